@@ -36,11 +36,14 @@ import org.slf4j.LoggerFactory;
 import org.transitime.config.ConfigFileReader;
 import org.transitime.configData.AgencyConfig;
 import org.transitime.configData.CoreConfig;
+import org.transitime.core.ScheduleAdherenceCounters;
 import org.transitime.core.ServiceUtils;
 import org.transitime.core.TimeoutHandlerModule;
+import org.transitime.core.dataCache.HistoricalCacheSnapshot;
 import org.transitime.core.dataCache.PredictionDataCache;
 import org.transitime.core.dataCache.StopArrivalDepartureCache;
-import org.transitime.core.dataCache.TripDataHistoryCache;
+import org.transitime.core.dataCache.StopPathTraversalCache;
+import org.transitime.core.dataCache.TripDataHistoryCacheFactory;
 import org.transitime.core.dataCache.VehicleDataCache;
 import org.transitime.db.hibernate.DataDbLogger;
 import org.transitime.db.hibernate.HibernateUtils;
@@ -380,6 +383,10 @@ public class Core {
 	private static void fillHistoricalCaches() {
 	  Session session = HibernateUtils.getSession();
     
+    /* if there is a recent snapshot of the caches use it instead of reading days of data */
+    if (HistoricalCacheSnapshot.read(session))
+      return;
+    
     Date endDate=Calendar.getInstance().getTime();
     /* populate one day at a time to avoid memory issue */
     for(int i=0;i<CoreConfig.getDaysPopulateHistoricalCache();i++)
@@ -387,7 +394,7 @@ public class Core {
       Date startDate=DateUtils.addDays(endDate, -1);
       
       logger.debug("Populating TripDataHistoryCache cache for period {} to {}",startDate,endDate);
-      TripDataHistoryCache.getInstance().populateCacheFromDb(session, startDate, endDate);
+      TripDataHistoryCacheFactory.getInstance().populateCacheFromDb(session, startDate, endDate);
       
       endDate=startDate;
     }
@@ -403,6 +410,12 @@ public class Core {
       
       endDate=startDate;
     }
+    
+    /* only the current day is used for the last vehicle traversals */
+    endDate=Calendar.getInstance().getTime();
+    Date startOfDay=new Date(Time.getStartOfDay(endDate));
+    logger.debug("Populating StopPathTraversalCache cache for period {} to {}",startOfDay,endDate);
+    StopPathTraversalCache.getInstance().populateCacheFromDb(session, startOfDay, endDate);
 	}
 	
 	
@@ -452,6 +465,13 @@ public class Core {
 			if (CoreConfig.getFillHistoricalCaches())
 			  fillHistoricalCaches();
 			
+			// Periodically write the caches to disk so that restarts are fast
+			HistoricalCacheSnapshot.start();
+			
+			// Periodically write the schedule adherence counts, and write
+			// them at shutdown
+			ScheduleAdherenceCounters.start();
+			
 			// Start any optional modules. 
 			List<String> optionalModuleNames = CoreConfig.getOptionalModules();
 			if (optionalModuleNames.size() > 0)
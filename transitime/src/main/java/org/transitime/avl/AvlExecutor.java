@@ -23,6 +23,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.configData.AgencyConfig;
 import org.transitime.db.structs.AvlReport;
@@ -37,6 +38,13 @@ import org.transitime.utils.threading.NamedThreadFactory;
  * of threads is specified using the Java property transitime.avl.numThreads .
  * The queue size is set using the Java property transitime.avl.queueSize .
  * <p>
+ * If transitime.avl.shardByVehicle is set then instead of a single pool
+ * sharing one queue there are numThreads separate lanes, each with its own
+ * single thread and its own AvlQueue. A vehicle is always assigned to the
+ * same lane, based on a hash of its vehicle ID, so that the reports for a
+ * vehicle are processed in order, one at a time. This way multiple threads
+ * can be used without them contending for the same vehicle.
+ * <p>
  * Causes AvlClient.run() to be called on each AvlReport, unless using test
  * executor, in which case the AvlClientTester() is called.
  * 
@@ -45,9 +53,13 @@ import org.transitime.utils.threading.NamedThreadFactory;
  */
 public class AvlExecutor {
 	
-	// The actual executor
+	// The actual executor. Null if sharding by vehicle.
 	ThreadPoolExecutor avlClientExecutor = null;
 	
+	// The single threaded executors, one per lane, for when sharding by
+	// vehicle. Null if not sharding by vehicle.
+	ThreadPoolExecutor[] avlClientLaneExecutors = null;
+	
 	// Singleton class
 	private static AvlExecutor singleton;
 	
@@ -57,6 +69,10 @@ public class AvlExecutor {
 	// an absurdly large number of threads.
 	private final static int MAX_THREADS = 25;
 	
+	// When sharding by vehicle each lane has its own queue. Don't want the
+	// queues to be so small that a burst of reports is rejected.
+	private final static int MIN_LANE_QUEUE_SIZE = 100;
+	
 	private static IntegerConfigValue avlQueueSize = 
 			new IntegerConfigValue("transitime.avl.queueSize", 2000,
 					"How many items to go into the blocking AVL queue "
@@ -76,6 +92,21 @@ public class AvlExecutor {
 					"multiple threads, such as 3-15 so that more of the cores " +
 					"are used.");
 	
+	private static BooleanConfigValue shardByVehicle =
+			new BooleanConfigValue("transitime.avl.shardByVehicle", false,
+					"If true then instead of having all the AVL threads "
+					+ "share a single queue each thread gets its own queue "
+					+ "and the vehicles are divided among the threads using "
+					+ "a hash of the vehicle ID. This way the AVL reports for "
+					+ "a vehicle are always processed in order by the same "
+					+ "thread and the threads don't contend with each other "
+					+ "for the same vehicle. The transitime.avl.queueSize is "
+					+ "divided among the queues. Useful for large systems "
+					+ "where transitime.avl.numThreads is greater than 1. In "
+					+ "this mode numThreads can be as large as the number of "
+					+ "processors even if that is greater than " + MAX_THREADS
+					+ ".");
+	
 	private static final Logger logger= 
 			LoggerFactory.getLogger(AvlExecutor.class);	
 
@@ -89,39 +120,81 @@ public class AvlExecutor {
 	private AvlExecutor() {
 		int numberThreads = numAvlThreads.getValue();
 		final int maxAVLQueueSize = avlQueueSize.getValue();
+		boolean sharded = shardByVehicle.getValue();
 
+		// When sharding each thread has its own lane so can make use of all
+		// of the processors
+		int maxThreads = sharded ? 
+				Math.max(MAX_THREADS, 
+						Runtime.getRuntime().availableProcessors()) 
+				: MAX_THREADS;
+		
 		// Make sure that numberThreads is reasonable
 		if (numberThreads < 1) {
 			logger.error("Number of threads must be at least 1 but {} was "
 					+ "specified. Therefore using 1 thread.", numberThreads);
 			numberThreads = 1;
 		}
-		if (numberThreads > MAX_THREADS) {
+		if (numberThreads > maxThreads) {
 			logger.error("Number of threads must be no greater than {} but "
 					+ "{} was specified. Therefore using {} threads.",
-					MAX_THREADS, numberThreads, MAX_THREADS);
-			numberThreads = MAX_THREADS;
+					maxThreads, numberThreads, maxThreads);
+			numberThreads = maxThreads;
 		}
 
-		logger.info("Starting AvlExecutor for directly handling AVL reports " +
-				"via a queue instead of JMS. maxAVLQueueSize={} and "
-				+ "numberThreads={}", 
-				maxAVLQueueSize, numberThreads);
+		if (!sharded) {
+			logger.info("Starting AvlExecutor for directly handling AVL "
+					+ "reports via a queue instead of JMS. maxAVLQueueSize={} "
+					+ "and numberThreads={}", 
+					maxAVLQueueSize, numberThreads);
 
-		// Start up the ThreadPoolExecutor
+			// Start up the ThreadPoolExecutor
+			avlClientExecutor = createExecutor("avlClient", numberThreads,
+					maxAVLQueueSize);
+		} else {
+			int laneQueueSize = Math.max(MIN_LANE_QUEUE_SIZE, 
+					maxAVLQueueSize / numberThreads);
+			logger.info("Starting AvlExecutor for directly handling AVL "
+					+ "reports via queues sharded by vehicle instead of JMS. "
+					+ "numberLanes={} and queue size per lane={}", 
+					numberThreads, laneQueueSize);
+
+			// Start up a single threaded ThreadPoolExecutor for each lane
+			avlClientLaneExecutors = new ThreadPoolExecutor[numberThreads];
+			for (int lane = 0; lane < numberThreads; ++lane) {
+				avlClientLaneExecutors[lane] = createExecutor(
+						"avlClientLane" + lane, 1, laneQueueSize);
+			}
+		}
+	}
+	
+	/**
+	 * Creates a ThreadPoolExecutor that uses an AvlQueue so that obsolete AVL
+	 * reports are skipped if the system gets behind.
+	 * 
+	 * @param name
+	 *            For naming the threads
+	 * @param numberThreads
+	 *            Maximum number of threads for the executor
+	 * @param queueSize
+	 *            Capacity of the AvlQueue
+	 * @return the new executor
+	 */
+	private static ThreadPoolExecutor createExecutor(String name,
+			int numberThreads, final int queueSize) {
 		int corePoolSize = 1;
 		int maximumPoolSize = numberThreads;
 		long keepAliveTime = 1; /* 1 hour */
-		BlockingQueue<Runnable> workQueue = new AvlQueue(maxAVLQueueSize);
+		BlockingQueue<Runnable> workQueue = new AvlQueue(queueSize);
 		NamedThreadFactory avlClientThreadFactory =
-				new NamedThreadFactory("avlClient");
+				new NamedThreadFactory(name);
 		// Called when queue fills up
 		RejectedExecutionHandler rejectedHandler = new RejectedExecutionHandler() {
 			@Override
 			public void	rejectedExecution(Runnable arg0, ThreadPoolExecutor arg1) {
 				String message = "Rejected AVL report in AvlExecutor for agencyId=" 
 						+ AgencyConfig.getAgencyId() + ". The work "
-						+ "queue with capacity " + maxAVLQueueSize 
+						+ "queue with capacity " + queueSize 
 						+ " must be full. " + ((AvlClient) arg0).getAvlReport();
 				// If first one then send out an e-mail message since this can 
 				// be a serious issue indicating that system is locked up. This
@@ -135,13 +208,28 @@ public class AvlExecutor {
 				}
 			}};
 		
-		avlClientExecutor =
-				new ThreadPoolExecutor(corePoolSize, maximumPoolSize,
+		return new ThreadPoolExecutor(corePoolSize, maximumPoolSize,
 						keepAliveTime, TimeUnit.HOURS, workQueue,
 						avlClientThreadFactory,
 						rejectedHandler);
 	}
 	
+	/**
+	 * Returns the lane executor to be used for the specified vehicle. A
+	 * vehicle is always mapped to the same lane so that its AVL reports are
+	 * processed in order.
+	 * 
+	 * @param vehicleId
+	 * @return the executor for the lane
+	 */
+	private ThreadPoolExecutor getLaneExecutor(String vehicleId) {
+		int hash = vehicleId != null ? vehicleId.hashCode() : 0;
+		// Spread the bits since vehicle IDs are often sequential numbers
+		hash ^= (hash >>> 16);
+		int lane = (hash & Integer.MAX_VALUE) % avlClientLaneExecutors.length;
+		return avlClientLaneExecutors[lane];
+	}
+	
 	/**
 	 * Returns singleton instance. Not synchronized since it is OK if an
 	 * executor is replaced by a new one.
@@ -170,6 +258,9 @@ public class AvlExecutor {
 	 * previous one is removed since there is no point processing an old AVL
 	 * report for a vehicle when new data is available.
 	 * <p>
+	 * If sharding by vehicle then the report is put into the queue of the
+	 * lane for the vehicle.
+	 * <p>
 	 * Causes AvlClient.run() to be called on each AvlReport, unless using test
 	 * executor, in which case the AvlClientTester() is called.
 	 * 
@@ -185,7 +276,10 @@ public class AvlExecutor {
 		Runnable avlClient = !testing ? 
 				new AvlClient(newAvlReport) : new AvlClientTester(newAvlReport);
 
-		avlClientExecutor.execute(avlClient);		
+		if (avlClientLaneExecutors == null)
+			avlClientExecutor.execute(avlClient);
+		else
+			getLaneExecutor(newAvlReport.getVehicleId()).execute(avlClient);
 	}
 
 	/**
@@ -112,4 +112,75 @@ public class DbSetupConfig {
                     100,
                     "Specifies the database batch size, defaults to 100");
 
+    /**
+     * Name of the DbBulkWriter class to use for writing batches of data
+     * from the DataDbLogger queues. If empty then Hibernate save() is used.
+     * @return
+     */
+    public static String getBulkWriterClassName() {
+        return bulkWriterClassName.getValue();
+    }
+    private static StringConfigValue bulkWriterClassName =
+            new StringConfigValue("transitime.db.bulkWriterClass",
+                    "",
+                    "Specifies the name of the DbBulkWriter class used to "
+                    + "write batches of data from the DataDbLogger queues "
+                    + "to the database. If empty then each object is saved "
+                    + "via Hibernate. Can be set to "
+                    + "org.transitime.db.hibernate.JdbcBatchBulkWriter to use "
+                    + "JDBC batch inserts instead, which is much faster for "
+                    + "high volume data such as AVL reports, matches, and "
+                    + "arrivals/departures. For best results also set "
+                    + "rewriteBatchedStatements=true (MySQL) or "
+                    + "reWriteBatchedInserts=true (PostgreSQL) in the JDBC "
+                    + "URL. Objects that cannot be handled by the bulk writer "
+                    + "are still written via Hibernate.");
+
+    /**
+     * Number of threads writing data from each of the DataDbLogger queues
+     * @return
+     */
+    public static int getWriterThreadsPerQueue() {
+        return writerThreadsPerQueue.getValue();
+    }
+    private static IntegerConfigValue writerThreadsPerQueue =
+            new IntegerConfigValue("transitime.db.writerThreadsPerQueue",
+                    1,
+                    "Number of threads used to write data from each of the "
+                    + "DataDbLogger queues, such as the one for AVL reports, "
+                    + "to the database. Using more than one thread allows "
+                    + "batches to be written in parallel when the database "
+                    + "round trip is the bottleneck, but then objects are no "
+                    + "longer necessarily written in the order received.");
+
+    /**
+     * Maximum batch size that the DataDbLogger queues can grow to
+     * @return
+     */
+    public static int getMaxBatchSize() {
+        return maxBatchSize.getValue();
+    }
+    private static IntegerConfigValue maxBatchSize =
+            new IntegerConfigValue("transitime.db.maxBatchSize",
+                    1000,
+                    "The batch size used by each of the DataDbLogger queues "
+                    + "starts at transitime.db.batchSize and adapts to the "
+                    + "write latency. It grows when the queue is backing up "
+                    + "and writes are fast but never exceeds this value.");
+
+    /**
+     * Commit latency that the adaptive DataDbLogger batch size aims for
+     * @return
+     */
+    public static int getTargetCommitMsec() {
+        return targetCommitMsec.getValue();
+    }
+    private static IntegerConfigValue targetCommitMsec =
+            new IntegerConfigValue("transitime.db.targetCommitMsec",
+                    1000,
+                    "If writing and committing a batch from a DataDbLogger "
+                    + "queue takes longer than this then the batch size for the queue is "
+                    + "halved. If writes take less than half of this and "
+                    + "batches are full then the batch size is increased.");
+
 }
@@ -88,4 +88,63 @@ public class RmiConfig {
 					+ "is consistent. Every server on a machine must use a "
 					+ "different secondary port for communication.");
 
+	/**
+	 * Which transport clients use for calling the server interfaces. Either
+	 * "rmi", the default, or "socket" for the binary socket based transport
+	 * in org.transitime.ipc.socket. The server must have
+	 * transitime.rmi.socketPort set for "socket" to work.
+	 * 
+	 * @return
+	 */
+	public static String ipcTransport() {
+		return ipcTransport.getValue();
+	}
+	private static StringConfigValue ipcTransport =
+			new StringConfigValue("transitime.rmi.ipcTransport",
+					"rmi",
+					"Which transport clients use for calling the server "
+					+ "interfaces. Either \"rmi\" for Java RMI or \"socket\" "
+					+ "for the binary socket based transport, which sends "
+					+ "all calls to a server over a single persistent "
+					+ "connection and encodes the vehicles and predictions "
+					+ "directly instead of using Java serialization. For "
+					+ "\"socket\" the server must have "
+					+ "transitime.rmi.socketPort set.");
+
+	/**
+	 * Which port the binary socket based transport uses. A value of 0, the
+	 * default, means that the server doesn't accept socket connections and
+	 * only RMI can be used. Like the secondary RMI port, every server on a
+	 * machine must use a different port.
+	 * 
+	 * @return
+	 */
+	public static int socketPort() {
+		return socketPort.getValue();
+	}
+	private static IntegerConfigValue socketPort =
+			new IntegerConfigValue("transitime.rmi.socketPort",
+					0,
+					"Which port the binary socket based transport uses. A "
+					+ "value of 0 means that the server doesn't accept "
+					+ "socket connections and only RMI can be used. Every "
+					+ "server on a machine must use a different port.");
+
+	/**
+	 * Which local address the binary socket based transport listens on.
+	 * 
+	 * @return
+	 */
+	public static String socketBindAddress() {
+		return socketBindAddress.getValue();
+	}
+	private static StringConfigValue socketBindAddress =
+			new StringConfigValue("transitime.rmi.socketBindAddress",
+					"0.0.0.0",
+					"Which local address the binary socket based transport "
+					+ "listens on. The default of 0.0.0.0 means all "
+					+ "addresses. Set to 127.0.0.1 if the clients are on "
+					+ "the same machine so that the port cannot be reached "
+					+ "from other machines.");
+
 }
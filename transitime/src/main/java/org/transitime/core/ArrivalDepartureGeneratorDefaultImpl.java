@@ -26,7 +26,8 @@ import org.transitime.configData.AgencyConfig;
 import org.transitime.configData.CoreConfig;
 import org.transitime.core.dataCache.HistoricalAverageCache;
 import org.transitime.core.dataCache.StopArrivalDepartureCache;
-import org.transitime.core.dataCache.TripDataHistoryCache;
+import org.transitime.core.dataCache.StopPathTraversalCache;
+import org.transitime.core.dataCache.TripDataHistoryCacheFactory;
 import org.transitime.core.dataCache.TripKey;
 import org.transitime.core.predAccuracy.PredictionAccuracyModule;
 import org.transitime.db.structs.Arrival;
@@ -376,15 +377,20 @@ public class ArrivalDepartureGeneratorDefaultImpl
 				int tripIndex, int stopPathIndex, boolean isArrival) {*/
 		
 		if (CoreConfig.getFillHistoricalCaches()) {
-		  TripDataHistoryCache.getInstance().putArrivalDeparture(arrivalDeparture);
+		  TripDataHistoryCacheFactory.getInstance().putArrivalDeparture(arrivalDeparture);
 		
 		  StopArrivalDepartureCache.getInstance().putArrivalDeparture(arrivalDeparture);
 		
+		  StopPathTraversalCache.getInstance().putArrivalDeparture(arrivalDeparture);
+		
 		  HistoricalAverageCache.getInstance().putArrivalDeparture(arrivalDeparture);
 		}
 		
 		// Generate prediction accuracy info as appropriate
 		PredictionAccuracyModule.handleArrivalDeparture(arrivalDeparture);
+		
+		// Count it for the schedule adherence reports
+		ScheduleAdherenceCounters.add(arrivalDeparture);
 	}
 	
 	/**
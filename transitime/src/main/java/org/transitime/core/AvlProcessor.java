@@ -35,6 +35,7 @@ import org.transitime.configData.CoreConfig;
 import org.transitime.core.SpatialMatcher.MatchingType;
 import org.transitime.core.autoAssigner.AutoBlockAssigner;
 import org.transitime.core.blockAssigner.BlockAssigner;
+import org.transitime.core.dataCache.PredictionComponentCache;
 import org.transitime.core.dataCache.PredictionDataCache;
 import org.transitime.core.dataCache.VehicleDataCache;
 import org.transitime.core.dataCache.VehicleStateManager;
@@ -187,6 +188,7 @@ public class AvlProcessor {
 
 		// Remove the predictions that were generated by the vehicle
 		PredictionDataCache.getInstance().removePredictions(vehicleState);
+		PredictionComponentCache.getInstance().removeVehicle(vehicleId);
 
 		// Update VehicleDataCache with the new state for the vehicle
 		VehicleDataCache.getInstance().updateVehicle(vehicleState);
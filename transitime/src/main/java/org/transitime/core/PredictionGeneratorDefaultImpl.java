@@ -27,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import org.transitime.applications.Core;
 import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.IntegerConfigValue;
+import org.transitime.core.dataCache.PredictionComponentCache;
 import org.transitime.core.dataCache.StopPathPredictionCache;
 import org.transitime.core.predictiongenerator.PredictionComponentElementsGenerator;
 import org.transitime.db.structs.AvlReport;
@@ -155,7 +156,7 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator, Pred
 		int gtfsStopSeq = path.getGtfsStopSeq();
 		Trip trip = indices.getTrip();
 		int expectedStopTimeMsec = 
-				(int) getStopTimeForPath(indices, avlReport);
+				(int) getCachedStopTimeForPath(indices, avlReport);
 			
 		// If should generate arrival time...
 		if ((indices.atEndOfTrip() || useArrivalTimes) && !indices.isWaitStop()) {	
@@ -329,6 +330,12 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator, Pred
 		long avlTime = avlReport.getTime();
 		boolean schedBasedPreds = avlReport.isForSchedBasedPreds();
 		
+		// Let the cache of travel and stop times know where the vehicle is
+		// so it can discard values for stop paths that are no longer needed
+		if (PredictionComponentCache.isEnabled())
+			PredictionComponentCache.getInstance().startGeneration(
+					vehicleState.getVehicleId(), indices);
+		
 		// Get time to end of first path and thereby determine prediction for 
 		// first stop.
 		TravelTimes travelTimes = TravelTimes.getInstance();
@@ -452,7 +459,7 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator, Pred
 			
 			// Add in travel time for the next path to get to predicted 
 			// arrival time of this stop
-			predictionTime += getTravelTimeForPath(indices, avlReport);
+			predictionTime += getCachedTravelTimeForPath(indices, avlReport);
 		}
 		
 		for(IpcPrediction prediction : filteredPredictions.values()){
@@ -463,6 +470,66 @@ public class PredictionGeneratorDefaultImpl implements PredictionGenerator, Pred
 		return newPredictions;
 	}
 	
+	/**
+	 * Returns the travel time for the stop path. Uses the value from
+	 * PredictionComponentCache if the travel time was already determined for
+	 * the vehicle for a previous AVL report and the data it was based on
+	 * hasn't changed since. Otherwise getTravelTimeForPath() is used and the
+	 * result is cached.
+	 * 
+	 * @param indices
+	 * @param avlReport
+	 * @return travel time in msec
+	 */
+	protected long getCachedTravelTimeForPath(Indices indices,
+			AvlReport avlReport) {
+		if (!PredictionComponentCache.isEnabled())
+			return getTravelTimeForPath(indices, avlReport);
+		
+		PredictionComponentCache cache = PredictionComponentCache.getInstance();
+		Long travelTime = cache.getTravelTime(avlReport.getVehicleId(), indices);
+		if (travelTime == null) {
+			long sequence = cache.startDetermining(indices);
+			try {
+				travelTime = getTravelTimeForPath(indices, avlReport);
+			} finally {
+				cache.doneDetermining();
+			}
+			cache.putTravelTime(avlReport.getVehicleId(), indices, travelTime,
+					sequence);
+		}
+		return travelTime;
+	}
+	
+	/**
+	 * Returns the stop time for the stop path. Like
+	 * getCachedTravelTimeForPath() uses the value from
+	 * PredictionComponentCache if it is still valid.
+	 * 
+	 * @param indices
+	 * @param avlReport
+	 * @return stop time in msec
+	 */
+	protected long getCachedStopTimeForPath(Indices indices,
+			AvlReport avlReport) {
+		if (!PredictionComponentCache.isEnabled())
+			return getStopTimeForPath(indices, avlReport);
+		
+		PredictionComponentCache cache = PredictionComponentCache.getInstance();
+		Long stopTime = cache.getStopTime(avlReport.getVehicleId(), indices);
+		if (stopTime == null) {
+			long sequence = cache.startDetermining(indices);
+			try {
+				stopTime = getStopTimeForPath(indices, avlReport);
+			} finally {
+				cache.doneDetermining();
+			}
+			cache.putStopTime(avlReport.getVehicleId(), indices, stopTime,
+					sequence);
+		}
+		return stopTime;
+	}
+	
 	public long getTravelTimeForPath(Indices indices, AvlReport avlReport)
 	{
 		logger.debug("Using transiTime default algorithm for travel time prediction : " + indices + " Value: "+indices.getTravelTimeForPath());
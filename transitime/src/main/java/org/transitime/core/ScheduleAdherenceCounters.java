@@ -0,0 +1,412 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.db.hibernate.HibernateUtils;
+import org.transitime.db.structs.ArrivalDeparture;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.ScheduleAdherenceCounts;
+import org.transitime.db.structs.ScheduleTime;
+import org.transitime.db.structs.Trip;
+import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThread;
+import org.transitime.utils.threading.NamedThreadFactory;
+
+/**
+ * Counts how many arrivals/departures for each route, stop, service day, and
+ * hour are early, on time, and late as they are generated. When an
+ * arrival/departure for a new hour is counted the counts for the previous
+ * hours are written to the database as ScheduleAdherenceCounts objects so
+ * that the schedule adherence reports don't need to query the
+ * ArrivalsDepartures table. The counts for hours that are over are also
+ * written periodically, in case no more arrivals/departures are generated,
+ * and all the counts are written when the core is shut down.
+ * <p>
+ * The counts are keyed by service date, the same as the schedule times, so
+ * that the arrivals/departures of trips that run past midnight are counted
+ * with the rest of their service day. For those the hour of the day is 24 or
+ * more.
+ */
+public class ScheduleAdherenceCounters {
+
+	// The counts being accumulated
+	private static final Map<CountsKey, Counts> countsMap =
+			new HashMap<CountsKey, Counts>();
+
+	// Start of the most recent hour that an arrival/departure was counted for
+	private static long latestHourStart = 0;
+
+	private static ScheduledExecutorService executor = null;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ScheduleAdherenceCounters.class);
+
+	/********************** Config Params **************************/
+
+	private static final BooleanConfigValue storeScheduleAdherenceCounts =
+			new BooleanConfigValue(
+					"transitime.core.storeScheduleAdherenceCounts",
+					true,
+					"Whether the number of early, on time, and late "
+					+ "arrivals/departures should be counted by route, "
+					+ "stop, and hour and stored in the "
+					+ "ScheduleAdherenceCounts table for the schedule "
+					+ "adherence reports.");
+
+	private static final IntegerConfigValue scheduleEarlySeconds =
+			new IntegerConfigValue(
+					"transitime.core.scheduleAdherenceEarlySeconds",
+					-120,
+					"Arrivals/departures that are more than this many seconds "
+					+ "before the scheduled time are counted as early. "
+					+ "Should be the same as "
+					+ "transitime.web.scheduleEarlyMinutes.");
+
+	private static final IntegerConfigValue scheduleLateSeconds =
+			new IntegerConfigValue(
+					"transitime.core.scheduleAdherenceLateSeconds",
+					420,
+					"Arrivals/departures that are more than this many seconds "
+					+ "after the scheduled time are counted as late. "
+					+ "Should be the same as "
+					+ "transitime.web.scheduleLateMinutes.");
+
+	private static final IntegerConfigValue flushIntervalMins =
+			new IntegerConfigValue(
+					"transitime.core.scheduleAdherenceFlushIntervalMins",
+					5,
+					"How frequently in minutes the schedule adherence counts "
+					+ "for hours that are over are written to the database. "
+					+ "Otherwise they are only written once an "
+					+ "arrival/departure for a later hour is generated.");
+
+	/**
+	 * Key for map of counts
+	 */
+	private static class CountsKey {
+		// Start of the service day
+		private final long dayStart;
+		// Hours into the service day. Can be 24 or more for trips that run
+		// past midnight.
+		private final int hourOfDay;
+		private final String routeId;
+		private final String routeShortName;
+		private final String stopId;
+		private final boolean isArrival;
+
+		private CountsKey(long dayStart, int hourOfDay, String routeId,
+				String routeShortName, String stopId, boolean isArrival) {
+			this.dayStart = dayStart;
+			this.hourOfDay = hourOfDay;
+			this.routeId = routeId;
+			this.routeShortName = routeShortName;
+			this.stopId = stopId;
+			this.isArrival = isArrival;
+		}
+
+		/**
+		 * For ordering the hours. Not exact on daylight savings days but
+		 * only needs to be consistent.
+		 */
+		private long getHourStart() {
+			return dayStart + hourOfDay * Time.MS_PER_HOUR;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + (int) (dayStart ^ (dayStart >>> 32));
+			result = prime * result + hourOfDay;
+			result = prime * result + ((routeId == null) ? 0 : routeId.hashCode());
+			result = prime * result + ((routeShortName == null) ? 0
+					: routeShortName.hashCode());
+			result = prime * result + ((stopId == null) ? 0 : stopId.hashCode());
+			result = prime * result + (isArrival ? 1231 : 1237);
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			CountsKey other = (CountsKey) obj;
+			return dayStart == other.dayStart
+					&& hourOfDay == other.hourOfDay
+					&& isArrival == other.isArrival
+					&& equal(routeId, other.routeId)
+					&& equal(routeShortName, other.routeShortName)
+					&& equal(stopId, other.stopId);
+		}
+
+		private static boolean equal(Object o1, Object o2) {
+			return o1 == null ? o2 == null : o1.equals(o2);
+		}
+	}
+
+	/**
+	 * The counts for a CountsKey
+	 */
+	private static class Counts {
+		private int numEarly;
+		private int numOnTime;
+		private int numLate;
+		private long sumScheduleAdherenceMsecs;
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Starts periodically writing the counts for the hours that are over to
+	 * the database, and makes sure the remaining counts are written when the
+	 * core is shut down. Nothing is done if the counts are not being stored.
+	 */
+	public static synchronized void start() {
+		if (!storeScheduleAdherenceCounts.getValue() || executor != null)
+			return;
+
+		int intervalMins = Math.max(1, flushIntervalMins.getValue());
+		executor = Executors.newSingleThreadScheduledExecutor(
+				new NamedThreadFactory("scheduleAdherenceCounts"));
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushCompletedHours();
+				} catch (Exception e) {
+					logger.error("Exception writing schedule adherence "
+							+ "counts", e);
+				}
+			}
+		}, intervalMins, intervalMins, TimeUnit.MINUTES);
+
+		Runtime.getRuntime().addShutdownHook(new NamedThread(new Runnable() {
+			@Override
+			public void run() {
+				flushAllToDb();
+			}
+		}, "scheduleAdherenceCountsShutdown"));
+	}
+
+	/**
+	 * Returns the start of the service day of the arrival/departure. For a
+	 * trip that runs past midnight this is the day before the calendar day
+	 * of the arrival/departure. Determined by going back from the scheduled
+	 * time by the schedule time's seconds into the service day. Noon is used
+	 * when getting the start of that day so that the result is correct even
+	 * on daylight savings days. If the schedule time is not available, such
+	 * as when the arrival/departure was read from the db, then the calendar
+	 * day is used.
+	 *
+	 * @param arrivalDeparture
+	 * @return start of the service day, epoch time in msec
+	 */
+	private static long getServiceDayStart(ArrivalDeparture arrivalDeparture) {
+		long scheduledTime = arrivalDeparture.getScheduledTime();
+		Block block = arrivalDeparture.getBlock();
+		Trip trip = block != null ?
+				block.getTrip(arrivalDeparture.getTripIndex()) : null;
+		ScheduleTime scheduleTime = trip != null ?
+				trip.getScheduleTime(arrivalDeparture.getStopPathIndex())
+				: null;
+		Integer secondsIntoDay = null;
+		if (scheduleTime != null)
+			secondsIntoDay = arrivalDeparture.isArrival() ?
+					scheduleTime.getArrivalTime()
+					: scheduleTime.getDepartureTime();
+		if (secondsIntoDay == null)
+			return Time.getStartOfDay(arrivalDeparture.getTime());
+
+		return Time.getStartOfDay(scheduledTime
+				- secondsIntoDay * Time.MS_PER_SEC + 12 * Time.MS_PER_HOUR);
+	}
+
+	/**
+	 * Counts the arrival/departure if it has a scheduled time. If it is for a
+	 * new hour then the counts for the previous hours are written to the
+	 * database.
+	 *
+	 * @param arrivalDeparture
+	 */
+	public static void add(ArrivalDeparture arrivalDeparture) {
+		if (!storeScheduleAdherenceCounts.getValue()
+				|| arrivalDeparture.getScheduledDate() == null)
+			return;
+
+		// Key by service day. Any days between the service day and the
+		// calendar day of the arrival/departure add 24 hours each.
+		long time = arrivalDeparture.getTime();
+		long dayStart = getServiceDayStart(arrivalDeparture);
+		int daysAfterServiceDay = (int) Math.round(
+				(double) (Time.getStartOfDay(time) - dayStart)
+						/ Time.MS_PER_DAY);
+		int hourOfDay = Core.getInstance().getTime().getSecondsIntoDay(time)
+				/ Time.SEC_PER_HOUR + 24 * daysAfterServiceDay;
+		CountsKey key = new CountsKey(dayStart, hourOfDay,
+				arrivalDeparture.getRouteId(),
+				arrivalDeparture.getRouteShortName(),
+				arrivalDeparture.getStopId(), arrivalDeparture.isArrival());
+
+		// Positive means late
+		long scheduleAdherenceMsecs =
+				time - arrivalDeparture.getScheduledTime();
+
+		List<ScheduleAdherenceCounts> completedCounts = null;
+		synchronized (countsMap) {
+			Counts counts = countsMap.get(key);
+			if (counts == null) {
+				counts = new Counts();
+				countsMap.put(key, counts);
+			}
+			if (scheduleAdherenceMsecs
+					< scheduleEarlySeconds.getValue() * Time.MS_PER_SEC)
+				++counts.numEarly;
+			else if (scheduleAdherenceMsecs
+					> scheduleLateSeconds.getValue() * Time.MS_PER_SEC)
+				++counts.numLate;
+			else
+				++counts.numOnTime;
+			counts.sumScheduleAdherenceMsecs += scheduleAdherenceMsecs;
+
+			// If now counting a new hour then the previous hours are done
+			long hourStart = key.getHourStart();
+			if (hourStart > latestHourStart) {
+				latestHourStart = hourStart;
+				completedCounts = removeCountsBefore(hourStart);
+			}
+		}
+
+		if (completedCounts != null)
+			store(completedCounts);
+	}
+
+	/**
+	 * Queues the counts to be written to the database.
+	 *
+	 * @param completedCounts
+	 */
+	private static void store(List<ScheduleAdherenceCounts> completedCounts) {
+		if (completedCounts.isEmpty())
+			return;
+
+		logger.info("Storing {} schedule adherence counts to db.",
+				completedCounts.size());
+		for (ScheduleAdherenceCounts counts : completedCounts)
+			Core.getInstance().getDbLogger().add(counts);
+	}
+
+	/**
+	 * Writes the counts for the hours that are over. Called periodically so
+	 * that the counts are written even if no arrivals/departures for a later
+	 * hour are generated, such as at the end of the service day.
+	 */
+	private static void flushCompletedHours() {
+		long currentHourStart = Time.getStartOfDay(System.currentTimeMillis())
+				+ Core.getInstance().getTime().getSecondsIntoDay(
+						System.currentTimeMillis())
+						/ Time.SEC_PER_HOUR * Time.MS_PER_HOUR;
+		List<ScheduleAdherenceCounts> completedCounts;
+		synchronized (countsMap) {
+			completedCounts = removeCountsBefore(currentHourStart);
+		}
+		store(completedCounts);
+	}
+
+	/**
+	 * Writes all the counts directly to the database. Called when the core
+	 * is shut down, at which point the DataDbLogger queues are no longer
+	 * necessarily being written.
+	 */
+	private static void flushAllToDb() {
+		List<ScheduleAdherenceCounts> completedCounts;
+		synchronized (countsMap) {
+			completedCounts = removeCountsBefore(Long.MAX_VALUE);
+		}
+		if (completedCounts.isEmpty())
+			return;
+
+		Session session = null;
+		Transaction tx = null;
+		try {
+			session = HibernateUtils.getSession();
+			tx = session.beginTransaction();
+			for (ScheduleAdherenceCounts counts : completedCounts)
+				session.save(counts);
+			tx.commit();
+			logger.info("Stored {} schedule adherence counts to db at "
+					+ "shutdown.", completedCounts.size());
+		} catch (HibernateException e) {
+			logger.error("Exception storing {} schedule adherence counts to "
+					+ "db at shutdown.", completedCounts.size(), e);
+			if (tx != null)
+				tx.rollback();
+		} finally {
+			if (session != null)
+				session.close();
+		}
+	}
+
+	/**
+	 * Removes the counts for hours before the specified hour and returns them
+	 * as db objects. Must be called while synchronized on countsMap.
+	 *
+	 * @param hourStart
+	 * @return the counts to be stored
+	 */
+	private static List<ScheduleAdherenceCounts> removeCountsBefore(
+			long hourStart) {
+		List<ScheduleAdherenceCounts> completedCounts =
+				new ArrayList<ScheduleAdherenceCounts>();
+		Iterator<Map.Entry<CountsKey, Counts>> iterator =
+				countsMap.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<CountsKey, Counts> entry = iterator.next();
+			CountsKey key = entry.getKey();
+			if (key.getHourStart() < hourStart) {
+				Counts counts = entry.getValue();
+				completedCounts.add(new ScheduleAdherenceCounts(
+						new Date(key.dayStart), key.hourOfDay, key.routeId,
+						key.routeShortName, key.stopId, key.isArrival,
+						counts.numEarly, counts.numOnTime, counts.numLate,
+						counts.sumScheduleAdherenceMsecs));
+				iterator.remove();
+			}
+		}
+		return completedCounts;
+	}
+}
@@ -24,6 +24,7 @@ import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
 import org.transitime.configData.AvlConfig;
 import org.transitime.configData.CoreConfig;
 import org.transitime.db.structs.AvlReport;
@@ -34,6 +35,7 @@ import org.transitime.db.structs.Route;
 import org.transitime.db.structs.StopPath;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.VectorWithHeading;
+import org.transitime.gtfs.SegmentsByLocIndex;
 import org.transitime.utils.Geo;
 import org.transitime.utils.Time;
 
@@ -390,9 +392,16 @@ public class SpatialMatcher {
 	public static List<SpatialMatch> getSpatialMatchesForAutoAssigning(
 			AvlReport avlReport, Block block,
 			List<Trip> tripsToInvestigate) {
+		// Only non-layover matches are returned and those need to be within
+		// the allowable distance of a segment. Therefore can use the segment
+		// index to skip trips whose trip pattern has no segment nearby
+		// instead of examining every segment of every trip.
+		List<Trip> nearbyTrips = 
+				getTripsNearAvlReport(avlReport, tripsToInvestigate);
+		
 		// Get all the spatial matches
 		List<SpatialMatch> allSpatialMatches =
-				getSpatialMatches(avlReport, block, tripsToInvestigate,
+				getSpatialMatches(avlReport, block, nearbyTrips,
 						MatchingType.AUTO_ASSIGNING_MATCHING);
 
 		// Filter out the ones that are layovers
@@ -406,6 +415,37 @@ public class SpatialMatcher {
 		return spatialMatchesWithoutLayovers;
 	}
 
+	/**
+	 * Returns the trips whose trip pattern might have a segment within the
+	 * max distance for auto assigning of the AVL report. Uses the
+	 * SegmentsByLocIndex so only trips that can't possibly have a
+	 * non-layover match are filtered out.
+	 * 
+	 * @param avlReport
+	 * @param tripsToInvestigate
+	 * @return the trips that might have a match. Can be empty.
+	 */
+	private static List<Trip> getTripsNearAvlReport(AvlReport avlReport,
+			List<Trip> tripsToInvestigate) {
+		if (tripsToInvestigate == null || tripsToInvestigate.isEmpty())
+			return tripsToInvestigate;
+		
+		SegmentsByLocIndex index = 
+				Core.getInstance().getDbConfig().getSegmentsByLocIndex();
+		Set<String> nearbyTripPatternIds = index.getTripPatternIdsNear(
+				avlReport.getLocation(),
+				CoreConfig.getMaxDistanceFromSegmentForAutoAssigning());
+		
+		List<Trip> nearbyTrips = new ArrayList<Trip>(tripsToInvestigate.size());
+		for (Trip trip : tripsToInvestigate) {
+			String tripPatternId = trip.getTripPattern().getId();
+			if (nearbyTripPatternIds.contains(tripPatternId)
+					|| !index.isIndexed(tripPatternId))
+				nearbyTrips.add(trip);
+		}
+		return nearbyTrips;
+	}
+	
 	/**
 	 * Returns the max distance that an AVL report can be from the segment.
 	 * Currently uses the max distance for the route if it is set. If max
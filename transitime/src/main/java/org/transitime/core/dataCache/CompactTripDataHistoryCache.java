@@ -0,0 +1,353 @@
+package org.transitime.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.criterion.Restrictions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.db.hibernate.HibernateUtils;
+import org.transitime.db.structs.ArrivalDeparture;
+import org.transitime.db.structs.Trip;
+import org.transitime.utils.Time;
+
+/**
+ * A TripDataHistoryCacheInterface implementation that doesn't hold on to the
+ * ArrivalDeparture objects. Instead, for each trip and day, it only stores the
+ * stop path index, the arrival/departure flag, and the time of each event in
+ * primitive arrays. Trip IDs are interned to ints so that the keys are
+ * compact. The data is stored in buckets by day so that a whole day can be
+ * evicted at once when it becomes too old.
+ * <p>
+ * Adding events to a trip only locks that trip. Reading doesn't lock at all
+ * since the events for a trip are published as an immutable snapshot.
+ * <p>
+ * Since the ArrivalDeparture objects are not kept getTripHistory() reads them
+ * back from the database, which is only suitable for debugging. The
+ * prediction generators use findEventTime() instead.
+ */
+public class CompactTripDataHistoryCache implements
+		TripDataHistoryCacheInterface {
+
+	// For when a trip doesn't have a start time
+	private static final int NO_START_TIME = Integer.MIN_VALUE;
+
+	// Trip IDs interned to ints. Can get back the trip ID when needed for
+	// creating TripKeys.
+	private final TripIdInterner tripIdInterner = TripIdInterner.getInstance();
+
+	// The events for each trip, bucketed by the epoch time of the start of
+	// the day. Within a day keyed by the trip index combined with the trip
+	// start time.
+	private final ConcurrentNavigableMap<Long, ConcurrentMap<Long, TripEvents>> days =
+			new ConcurrentSkipListMap<Long, ConcurrentMap<Long, TripEvents>>();
+
+	private static final IntegerConfigValue maxAgeSec = new IntegerConfigValue(
+			"transitime.tripdatacache.compactMaxAgeSec",
+			15 * Time.SEC_PER_DAY,
+			"How old the arrival/departure data in the "
+			+ "CompactTripDataHistoryCache can be before the day it is in "
+			+ "is removed from the cache.");
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(CompactTripDataHistoryCache.class);
+
+	/**
+	 * Immutable snapshot of the events for a trip. Events are encoded with the
+	 * stop path index shifted left by one and the low bit set for arrivals.
+	 */
+	private static class Events {
+		private final int[] stopPathIndexAndType;
+		private final long[] times;
+		private final int size;
+
+		private Events(int[] stopPathIndexAndType, long[] times, int size) {
+			this.stopPathIndexAndType = stopPathIndexAndType;
+			this.times = times;
+			this.size = size;
+		}
+	}
+
+	private static final Events NO_EVENTS = new Events(new int[0],
+			new long[0], 0);
+
+	/**
+	 * The events for a single trip for a single day. Writers synchronize on
+	 * the object. Readers just read the volatile snapshot. Since values are
+	 * only appended beyond the size of a published snapshot, and arrays are
+	 * copied before being grown, a snapshot never changes once published.
+	 */
+	private static class TripEvents {
+		private volatile Events events = NO_EVENTS;
+
+		private synchronized void add(int stopPathIndex, long time,
+				boolean isArrival) {
+			Events current = events;
+			int[] stopPathIndexAndType = current.stopPathIndexAndType;
+			long[] times = current.times;
+			if (current.size == times.length) {
+				int newLength = Math.max(16, times.length * 2);
+				stopPathIndexAndType =
+						Arrays.copyOf(stopPathIndexAndType, newLength);
+				times = Arrays.copyOf(times, newLength);
+			}
+			stopPathIndexAndType[current.size] =
+					encode(stopPathIndex, isArrival);
+			times[current.size] = time;
+			events = new Events(stopPathIndexAndType, times, current.size + 1);
+		}
+
+		private long findEventTime(int stopPathIndex, boolean isArrival) {
+			Events snapshot = events;
+			int encoded = encode(stopPathIndex, isArrival);
+			for (int i = 0; i < snapshot.size; ++i) {
+				if (snapshot.stopPathIndexAndType[i] == encoded)
+					return snapshot.times[i];
+			}
+			return -1;
+		}
+
+		/**
+		 * @return true if the snapshot contains the event
+		 */
+		private static boolean contains(Events snapshot, int stopPathIndex,
+				boolean isArrival, long time) {
+			int encoded = encode(stopPathIndex, isArrival);
+			for (int i = 0; i < snapshot.size; ++i) {
+				if (snapshot.stopPathIndexAndType[i] == encoded
+						&& snapshot.times[i] == time)
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Public constructor so can be instantiated by
+	 * TripDataHistoryCacheFactory.
+	 */
+	public CompactTripDataHistoryCache() {
+		logger.info("Using CompactTripDataHistoryCache with max age of {} "
+				+ "secs", maxAgeSec.getValue());
+	}
+
+	private static int encode(int stopPathIndex, boolean isArrival) {
+		return (stopPathIndex << 1) | (isArrival ? 1 : 0);
+	}
+
+	private static long tripKey(int tripIndex, Integer startTime) {
+		int start = startTime != null ? startTime : NO_START_TIME;
+		return ((long) tripIndex << 32) | (start & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns the events for the trip specified by the key, or null if not in
+	 * the cache.
+	 *
+	 * @param tripKey
+	 * @return
+	 */
+	private TripEvents getTripEvents(TripKey tripKey) {
+		if (tripKey.getTripStartDate() == null)
+			return null;
+
+		int tripIndex = tripIdInterner.getIndex(tripKey.getTripId());
+		if (tripIndex < 0)
+			return null;
+
+		Map<Long, TripEvents> day =
+				days.get(tripKey.getTripStartDate().getTime());
+		if (day == null)
+			return null;
+
+		return day.get(tripKey(tripIndex, tripKey.getStartTime()));
+	}
+
+	/**
+	 * Removes whole days that are older than the configured max age relative
+	 * to the newest day in the cache.
+	 */
+	private void evictOldDays() {
+		long newestDay = days.lastKey();
+		long cutoff = newestDay - maxAgeSec.getValue() * (long) Time.MS_PER_SEC;
+		ConcurrentNavigableMap<Long, ConcurrentMap<Long, TripEvents>> oldDays =
+				days.headMap(cutoff);
+		if (!oldDays.isEmpty()) {
+			logger.info("Evicting {} days of data older than {} from "
+					+ "CompactTripDataHistoryCache",
+					oldDays.size(), Time.dateStr(cutoff));
+			oldDays.clear();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.TripDataHistoryCacheInterface#getKeys()
+	 */
+	@Override
+	public List<TripKey> getKeys() {
+		List<TripKey> keys = new ArrayList<TripKey>();
+		for (Map.Entry<Long, ConcurrentMap<Long, TripEvents>> day :
+				days.entrySet()) {
+			Date date = new Date(day.getKey());
+			for (Long key : day.getValue().keySet()) {
+				int tripIndex = (int) (key >>> 32);
+				int startTime = (int) key.longValue();
+				keys.add(new TripKey(tripIdInterner.getTripId(tripIndex), date,
+						startTime != NO_START_TIME ? startTime : null));
+			}
+		}
+		return keys;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.TripDataHistoryCacheInterface#logCache(org.slf4j.Logger)
+	 */
+	@Override
+	public void logCache(Logger logger) {
+		logger.debug("Cache content log.");
+		for (TripKey key : getKeys()) {
+			TripEvents tripEvents = getTripEvents(key);
+			if (tripEvents == null)
+				continue;
+
+			logger.debug("Key: " + key.toString());
+			Events events = tripEvents.events;
+			for (int i = 0; i < events.size; ++i) {
+				logger.debug("stopPathIndex={} {} time={}",
+						events.stopPathIndexAndType[i] >> 1,
+						(events.stopPathIndexAndType[i] & 1) == 1 ?
+								"arrival" : "departure",
+						Time.dateTimeStrMsec(events.times[i]));
+			}
+		}
+	}
+
+	/**
+	 * The ArrivalDeparture objects are not kept in memory so they are read
+	 * from the database for the time span of the events cached for the trip.
+	 * Only the ones that match a cached event are returned, so the result is
+	 * the same as for a cache that keeps the objects, other than for events
+	 * that haven't been written to the database yet. Since this accesses the
+	 * database it is only intended for debugging, such as via
+	 * CacheQueryServer.
+	 *
+	 * @see org.transitime.core.dataCache.TripDataHistoryCacheInterface#getTripHistory(org.transitime.core.dataCache.TripKey)
+	 */
+	@Override
+	public List<ArrivalDeparture> getTripHistory(TripKey tripKey) {
+		TripEvents tripEvents = getTripEvents(tripKey);
+		if (tripEvents == null)
+			return null;
+
+		Events events = tripEvents.events;
+		List<ArrivalDeparture> result = new ArrayList<ArrivalDeparture>();
+		if (events.size == 0)
+			return result;
+
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		for (int i = 0; i < events.size; ++i) {
+			minTime = Math.min(minTime, events.times[i]);
+			maxTime = Math.max(maxTime, events.times[i]);
+		}
+
+		// The query excludes the begin and end times so widen by a msec
+		Session session = HibernateUtils.getSession();
+		try {
+			List<ArrivalDeparture> arrivalDepartures =
+					ArrivalDeparture.getArrivalsDeparturesFromDb(session,
+							new Date(minTime - 1), new Date(maxTime + 1),
+							tripKey.getTripId(), (Integer) null);
+			for (ArrivalDeparture arrivalDeparture : arrivalDepartures) {
+				if (TripEvents.contains(events,
+						arrivalDeparture.getStopPathIndex(),
+						arrivalDeparture.isArrival(),
+						arrivalDeparture.getTime()))
+					result.add(arrivalDeparture);
+			}
+		} finally {
+			session.close();
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.TripDataHistoryCacheInterface#putArrivalDeparture(org.transitime.db.structs.ArrivalDeparture)
+	 */
+	@Override
+	public TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+		long startOfDay = Time.getStartOfDay(arrivalDeparture.getTime());
+
+		Trip trip = Core.getInstance().getDbConfig()
+				.getTrip(arrivalDeparture.getTripId());
+		Integer startTime = trip != null ? trip.getStartTime() : null;
+
+		ConcurrentMap<Long, TripEvents> day = days.get(startOfDay);
+		if (day == null) {
+			ConcurrentMap<Long, TripEvents> newDay =
+					new ConcurrentHashMap<Long, TripEvents>();
+			day = days.putIfAbsent(startOfDay, newDay);
+			if (day == null) {
+				day = newDay;
+				evictOldDays();
+			}
+		}
+
+		long key = tripKey(tripIdInterner.getOrCreateIndex(arrivalDeparture.getTripId()),
+				startTime);
+		TripEvents tripEvents = day.get(key);
+		if (tripEvents == null) {
+			TripEvents newTripEvents = new TripEvents();
+			tripEvents = day.putIfAbsent(key, newTripEvents);
+			if (tripEvents == null)
+				tripEvents = newTripEvents;
+		}
+		tripEvents.add(arrivalDeparture.getStopPathIndex(),
+				arrivalDeparture.getTime(), arrivalDeparture.isArrival());
+
+		return new TripKey(arrivalDeparture.getTripId(), new Date(startOfDay),
+				startTime);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.TripDataHistoryCacheInterface#populateCacheFromDb(org.hibernate.Session, java.util.Date, java.util.Date)
+	 */
+	@Override
+	public void populateCacheFromDb(Session session, Date startDate,
+			Date endDate) {
+		Criteria criteria = session.createCriteria(ArrivalDeparture.class);
+
+		@SuppressWarnings("unchecked")
+		List<ArrivalDeparture> results = criteria.add(
+				Restrictions.between("time", startDate, endDate)).list();
+
+		for (ArrivalDeparture result : results) {
+			putArrivalDeparture(result);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.TripDataHistoryCacheInterface#findEventTime(org.transitime.core.dataCache.TripKey, int, boolean)
+	 */
+	@Override
+	public long findEventTime(TripKey tripKey, int stopPathIndex,
+			boolean isArrival) {
+		TripEvents tripEvents = getTripEvents(tripKey);
+		if (tripEvents == null)
+			return -1;
+		return tripEvents.findEventTime(stopPathIndex, isArrival);
+	}
+}
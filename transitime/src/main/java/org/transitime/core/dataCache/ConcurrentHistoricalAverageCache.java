@@ -0,0 +1,162 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+
+/**
+ * A HistoricalAverageCache that doesn't lock the whole cache. The trip IDs
+ * are interned to ints so that the trip, stop path index, and whether it is a
+ * travel or stop time can be packed into a single long key. The running
+ * averages are stored as primitive fields and only the entry being updated is
+ * locked.
+ */
+public class ConcurrentHistoricalAverageCache extends HistoricalAverageCache {
+
+	private final TripIdInterner tripIdInterner = TripIdInterner.getInstance();
+
+	private final ConcurrentMap<Long, Entry> averages =
+			new ConcurrentHashMap<Long, Entry>();
+
+	/**
+	 * A running average
+	 */
+	private static class Entry {
+		private int count;
+		private double average;
+
+		private synchronized void update(double value) {
+			average = ((count * average) + value) / (count + 1);
+			count = count + 1;
+		}
+
+		private synchronized void set(int count, double average) {
+			this.count = count;
+			this.average = average;
+		}
+
+		private synchronized HistoricalAverage toHistoricalAverage() {
+			HistoricalAverage historicalAverage = new HistoricalAverage();
+			historicalAverage.setCount(count);
+			historicalAverage.setAverage(average);
+			return historicalAverage;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Public constructor so can be instantiated by
+	 * HistoricalAverageCache.getInstance().
+	 */
+	public ConcurrentHistoricalAverageCache() {
+	}
+
+	private static long getKey(int tripIndex, int stopPathIndex,
+			boolean travelTime) {
+		return ((long) tripIndex << 32) | (stopPathIndex << 1)
+				| (travelTime ? 1 : 0);
+	}
+
+	/**
+	 * @return the packed key, or -1 if the trip ID hasn't been interned, in
+	 *         which case there is no average for it
+	 */
+	private long getExistingKey(StopPathCacheKey key) {
+		int tripIndex = tripIdInterner.getIndex(key.getTripId());
+		if (tripIndex < 0)
+			return -1;
+		return getKey(tripIndex, key.getStopPathIndex(), key.isTravelTime());
+	}
+
+	private Entry getOrCreateEntry(StopPathCacheKey key) {
+		long packedKey = getKey(tripIdInterner.getOrCreateIndex(key.getTripId()),
+				key.getStopPathIndex(), key.isTravelTime());
+		Entry entry = averages.get(packedKey);
+		if (entry == null) {
+			Entry newEntry = new Entry();
+			entry = averages.putIfAbsent(packedKey, newEntry);
+			if (entry == null)
+				entry = newEntry;
+		}
+		return entry;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.HistoricalAverageCache#getKeys()
+	 */
+	@Override
+	public List<StopPathCacheKey> getKeys() {
+		List<StopPathCacheKey> keys = new ArrayList<StopPathCacheKey>();
+		for (Map.Entry<Long, Entry> mapEntry : averages.entrySet()) {
+			long key = mapEntry.getKey();
+			int tripIndex = (int) (key >>> 32);
+			int stopPathIndexAndType = (int) key;
+			keys.add(new StopPathCacheKey(tripIdInterner.getTripId(tripIndex),
+					stopPathIndexAndType >>> 1,
+					(stopPathIndexAndType & 1) == 1));
+		}
+		return keys;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.HistoricalAverageCache#logCacheSize(org.slf4j.Logger)
+	 */
+	@Override
+	public void logCacheSize(Logger logger) {
+		logger.debug("Number of entries in HistoricalAverageCache : {}",
+				averages.size());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.HistoricalAverageCache#getAverage(org.transitime.core.dataCache.StopPathCacheKey)
+	 */
+	@Override
+	public HistoricalAverage getAverage(StopPathCacheKey key) {
+		long packedKey = getExistingKey(key);
+		if (packedKey < 0)
+			return null;
+
+		Entry entry = averages.get(packedKey);
+		if (entry == null)
+			return null;
+		return entry.toHistoricalAverage();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.HistoricalAverageCache#putAverage(org.transitime.core.dataCache.StopPathCacheKey, org.transitime.core.dataCache.HistoricalAverage)
+	 */
+	@Override
+	public void putAverage(StopPathCacheKey key, HistoricalAverage average) {
+		getOrCreateEntry(key).set(average.getCount(), average.getAverage());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.HistoricalAverageCache#updateAverage(org.transitime.core.dataCache.StopPathCacheKey, double)
+	 */
+	@Override
+	protected void updateAverage(StopPathCacheKey key, double value) {
+		getOrCreateEntry(key).update(value);
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.transitime.core.Indices;
+
+/**
+ * A KalmanErrorCache that doesn't lock. The trip IDs are interned to ints so
+ * that the trip and stop path index can be packed into a single long key.
+ * Looking up the error value for Indices doesn't need to create a
+ * KalmanErrorCacheKey.
+ */
+public class ConcurrentKalmanErrorCache extends KalmanErrorCache {
+
+	private final TripIdInterner tripIdInterner = TripIdInterner.getInstance();
+
+	private final ConcurrentMap<Long, Double> errorValues =
+			new ConcurrentHashMap<Long, Double>();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Public constructor so can be instantiated by
+	 * KalmanErrorCache.getInstance().
+	 */
+	public ConcurrentKalmanErrorCache() {
+	}
+
+	private static long getKey(int tripIndex, int stopPathIndex) {
+		return ((long) tripIndex << 32) | (stopPathIndex & 0xFFFFFFFFL);
+	}
+
+	private Double getErrorValue(String tripId, int stopPathIndex) {
+		int tripIndex = tripIdInterner.getIndex(tripId);
+		if (tripIndex < 0)
+			return null;
+		return errorValues.get(getKey(tripIndex, stopPathIndex));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.KalmanErrorCache#getErrorValue(org.transitime.core.Indices)
+	 */
+	@Override
+	public Double getErrorValue(Indices indices) {
+		return getErrorValue(indices.getTrip().getId(),
+				indices.getStopPathIndex());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.KalmanErrorCache#getErrorValue(org.transitime.core.dataCache.KalmanErrorCacheKey)
+	 */
+	@Override
+	public Double getErrorValue(KalmanErrorCacheKey key) {
+		return getErrorValue(key.getTripId(), key.getStopPathIndex());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.KalmanErrorCache#replaceErrorValue(org.transitime.core.Indices, java.lang.Double)
+	 */
+	@Override
+	protected Double replaceErrorValue(Indices indices, Double value) {
+		int tripIndex =
+				tripIdInterner.getOrCreateIndex(indices.getTrip().getId());
+		return errorValues.put(getKey(tripIndex, indices.getStopPathIndex()),
+				value);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.KalmanErrorCache#putErrorValue(org.transitime.core.dataCache.KalmanErrorCacheKey, java.lang.Double)
+	 */
+	@Override
+	public void putErrorValue(KalmanErrorCacheKey key, Double value) {
+		int tripIndex = tripIdInterner.getOrCreateIndex(key.getTripId());
+		errorValues.put(getKey(tripIndex, key.getStopPathIndex()), value);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.core.dataCache.KalmanErrorCache#getKeys()
+	 */
+	@Override
+	public List<KalmanErrorCacheKey> getKeys() {
+		List<KalmanErrorCacheKey> keys = new ArrayList<KalmanErrorCacheKey>();
+		for (Long key : errorValues.keySet()) {
+			keys.add(new KalmanErrorCacheKey(
+					tripIdInterner.getTripId((int) (key >>> 32)),
+					(int) key.longValue()));
+		}
+		return keys;
+	}
+}
@@ -0,0 +1,86 @@
+package org.transitime.core.dataCache;
+
+import java.util.List;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+/**
+ * @author Sean Og Crudden
+ *
+ * HistoricalAverageCache stored in Ehcache. All access is synchronized.
+ */
+public class EhcacheHistoricalAverageCache extends HistoricalAverageCache {
+	final private static String cacheName = "HistoricalAverageCache";
+	private static final Logger logger = LoggerFactory
+			.getLogger(EhcacheHistoricalAverageCache.class);
+
+	private Cache cache = null;
+
+	/**
+	 * Public constructor so can be instantiated by
+	 * HistoricalAverageCache.getInstance().
+	 */
+	public EhcacheHistoricalAverageCache() {
+		CacheManager cm = CacheManager.getInstance();
+
+		if (cm.getCache(cacheName) == null) {
+			cm.addCache(cacheName);
+		}
+		cache = cm.getCache(cacheName);
+	}
+	@Override
+	public List<StopPathCacheKey> getKeys()
+	{
+		@SuppressWarnings("unchecked")
+		List<StopPathCacheKey> keys = cache.getKeys();
+		return keys;
+	}
+	@Override
+	public void logCacheSize(Logger logger)
+	{
+		@SuppressWarnings("unchecked")
+		List<StopPathCacheKey> keys = cache.getKeys();
+
+		if(keys!=null)
+			logger.debug("Number of entries in HistoricalAverageCache : "+keys.size());
+	}
+
+	@Override
+	synchronized public HistoricalAverage getAverage(StopPathCacheKey key) {
+
+		Element result = cache.get(key);
+
+		if(result==null)
+			return null;
+		else
+			return (HistoricalAverage)result.getObjectValue();
+	}
+	@Override
+	synchronized public void putAverage(StopPathCacheKey key, HistoricalAverage average) {
+
+		logger.debug("Putting: "+key.toString()+" in cache with values : "+average);
+
+		Element averageElement = new Element(key, average);
+
+		cache.put(averageElement);
+
+		logCacheSize(logger);
+		// logCache(logger);
+	}
+	@Override
+	synchronized protected void updateAverage(StopPathCacheKey key, double value) {
+
+		HistoricalAverage average = getAverage(key);
+
+		if(average==null)
+			average=new HistoricalAverage();
+
+		average.update(value);
+
+		putAverage(key, average);
+	}
+}
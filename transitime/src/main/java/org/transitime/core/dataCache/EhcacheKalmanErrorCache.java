@@ -0,0 +1,82 @@
+package org.transitime.core.dataCache;
+
+import java.util.List;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+
+import org.transitime.core.Indices;
+/**
+ * @author Sean Og Crudden
+ *
+ * KalmanErrorCache stored in Ehcache. All access is synchronized.
+ */
+public class EhcacheKalmanErrorCache extends KalmanErrorCache {
+	final private static String cacheName = "KalmanErrorCache";
+
+	private Cache cache = null;
+
+	/**
+	 * Public constructor so can be instantiated by
+	 * KalmanErrorCache.getInstance().
+	 */
+	public EhcacheKalmanErrorCache() {
+		CacheManager cm = CacheManager.getInstance();
+
+		if (cm.getCache(cacheName) == null) {
+			cm.addCache(cacheName);
+		}
+		cache = cm.getCache(cacheName);
+
+		CacheConfiguration config = cache.getCacheConfiguration();
+
+		config.setEternal(true);
+
+		config.setMaxEntriesLocalHeap(1000000);
+
+		config.setMaxEntriesLocalDisk(1000000);
+	}
+
+	@Override
+	synchronized public Double getErrorValue(Indices indices) {
+
+		KalmanErrorCacheKey key=new KalmanErrorCacheKey(indices);
+
+		return getErrorValue(key);
+	}
+	@Override
+	synchronized public Double getErrorValue(KalmanErrorCacheKey key) {
+
+		Element result = cache.get(key);
+
+		if(result==null)
+			return null;
+		else
+			return (Double)result.getObjectValue();
+	}
+	@Override
+	synchronized protected Double replaceErrorValue(Indices indices,  Double value) {
+
+		KalmanErrorCacheKey key=new KalmanErrorCacheKey(indices);
+		Double oldValue = getErrorValue(key);
+		Element errorElement = new Element(key, value);
+
+		cache.put(errorElement);
+
+		return oldValue;
+	}
+	@Override
+	synchronized public void putErrorValue(KalmanErrorCacheKey key, Double value) {
+
+		cache.put(new Element(key, value));
+	}
+	@Override
+	public List<KalmanErrorCacheKey> getKeys()
+	{
+		@SuppressWarnings("unchecked")
+		List<KalmanErrorCacheKey> keys = cache.getKeys();
+		return keys;
+	}
+}
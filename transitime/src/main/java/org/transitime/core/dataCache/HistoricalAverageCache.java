@@ -1,141 +1,124 @@
 package org.transitime.core.dataCache;
 
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-
 import org.apache.commons.lang3.time.DateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.applications.Core;
+import org.transitime.config.StringConfigValue;
 import org.transitime.db.structs.ArrivalDeparture;
 import org.transitime.db.structs.Trip;
 import org.transitime.gtfs.DbConfig;
+import org.transitime.utils.ClassInstantiator;
 /**
  * @author Sean Og Crudden
- * 
+ *
+ * Cache of the historical average travel and stop times for each stop path of
+ * each trip. The implementation is configurable so that the original Ehcache
+ * based one can be replaced by ConcurrentHistoricalAverageCache, which
+ * doesn't lock the whole cache for every access.
  */
-public class HistoricalAverageCache {
-	final private static String cacheName = "HistoricalAverageCache";
-	private static HistoricalAverageCache singleton = new HistoricalAverageCache();
+public abstract class HistoricalAverageCache {
+
+	private static StringConfigValue className =
+			new StringConfigValue("transitime.core.cache.historicalAverageCache",
+					"org.transitime.core.dataCache.EhcacheHistoricalAverageCache",
+					"Specifies the name of the class used for caching the "
+					+ "historical average travel and stop times. Can use "
+					+ "org.transitime.core.dataCache.ConcurrentHistoricalAverageCache "
+					+ "so that the AVL threads don't contend for a lock when "
+					+ "generating predictions.");
+
+	private static volatile HistoricalAverageCache singleton = null;
+
 	private static final Logger logger = LoggerFactory
 			.getLogger(HistoricalAverageCache.class);
 
-	private Cache cache = null;
 	/**
-	 * Gets the singleton instance of this class.
-	 * 
+	 * Gets the singleton instance of this class. Synchronized when creating
+	 * the cache since multiple AVL threads could otherwise each create their
+	 * own cache.
+	 *
 	 * @return
 	 */
 	public static HistoricalAverageCache getInstance() {
-		return singleton;
-	}
-	
-	private HistoricalAverageCache() {
-		CacheManager cm = CacheManager.getInstance();
-		
-		if (cm.getCache(cacheName) == null) {
-			cm.addCache(cacheName);
+		if (singleton == null) {
+			synchronized (HistoricalAverageCache.class) {
+				if (singleton == null) {
+					singleton = ClassInstantiator.instantiate(
+							className.getValue(), HistoricalAverageCache.class);
+				}
+			}
 		}
-		cache = cm.getCache(cacheName);											
-	}
-	public List<StopPathCacheKey> getKeys()
-	{
-		@SuppressWarnings("unchecked")
-		List<StopPathCacheKey> keys = cache.getKeys();
-		return keys;
+		return singleton;
 	}
+
+	public abstract List<StopPathCacheKey> getKeys();
+
 	public void logCache(Logger logger)
 	{
 		logger.debug("Cache content log.");
-		@SuppressWarnings("unchecked")
-		List<StopPathCacheKey> keys = cache.getKeys();
-		
-		for(StopPathCacheKey key : keys)
+
+		for(StopPathCacheKey key : getKeys())
 		{
-			Element result=cache.get(key);
-			if(result!=null)
+			HistoricalAverage value=getAverage(key);
+			if(value!=null)
 			{
 				logger.debug("Key: "+key.toString());
-								
-				HistoricalAverage value=(HistoricalAverage) result.getObjectValue();
-												
+
 				logger.debug("Average: "+value);
 			}
-		}		
-	}
-	public void logCacheSize(Logger logger)
-	{
-		@SuppressWarnings("unchecked")
-		List<StopPathCacheKey> keys = cache.getKeys();
-		
-		if(keys!=null)
-			logger.debug("Number of entries in HistoricalAverageCache : "+keys.size());
-	}
-	
-	synchronized public HistoricalAverage getAverage(StopPathCacheKey key) {		
-						
-		Element result = cache.get(key);
-		
-		if(result==null)
-			return null;
-		else
-			return (HistoricalAverage)result.getObjectValue();		
-	}
-	synchronized public void putAverage(StopPathCacheKey key, HistoricalAverage average) {
-			
-		logger.debug("Putting: "+key.toString()+" in cache with values : "+average);
-		
-		Element averageElement = new Element(key, average);
-		
-		cache.put(averageElement);
-			
-		logCacheSize(logger);
-		// logCache(logger);
+		}
 	}
-	synchronized public void putArrivalDeparture(ArrivalDeparture arrivalDeparture) 
+
+	public abstract void logCacheSize(Logger logger);
+
+	/**
+	 * @param key
+	 * @return the average for the key, or null if there isn't one. Changing
+	 *         the returned object does not necessarily change the cache.
+	 */
+	public abstract HistoricalAverage getAverage(StopPathCacheKey key);
+
+	public abstract void putAverage(StopPathCacheKey key, HistoricalAverage average);
+
+	/**
+	 * Adds the value to the average for the key. Needs to be atomic since
+	 * multiple AVL threads can update the same average.
+	 *
+	 * @param key
+	 * @param value
+	 */
+	protected abstract void updateAverage(StopPathCacheKey key, double value);
+
+	public void putArrivalDeparture(ArrivalDeparture arrivalDeparture)
 	{
-		logger.debug("Putting :"+arrivalDeparture.toString() + " in HistoricalAverageCache cache.");
-		
+		if (logger.isDebugEnabled())
+			logger.debug("Putting :"+arrivalDeparture.toString() + " in HistoricalAverageCache cache.");
+
 		DbConfig dbConfig = Core.getInstance().getDbConfig();
-		
+
 		Trip trip=dbConfig.getTrip(arrivalDeparture.getTripId());
-		
+
 		double pathDuration=getLastPathDuration(arrivalDeparture, trip);
-		
+
 		if(pathDuration>0)
 		{
-			
+
 			StopPathCacheKey historicalAverageCacheKey=new StopPathCacheKey(trip.getId(), arrivalDeparture.getStopPathIndex(), true);
-			
-			HistoricalAverage average = HistoricalAverageCache.getInstance().getAverage(historicalAverageCacheKey);
-			
-			if(average==null)				
-				average=new HistoricalAverage();
-			
-			average.update(pathDuration);
-		
-			HistoricalAverageCache.getInstance().putAverage(historicalAverageCacheKey, average);
-		}		
-		
+
+			updateAverage(historicalAverageCacheKey, pathDuration);
+		}
+
 		double stopDuration=getLastStopDuration(arrivalDeparture, trip);
 		if(stopDuration>0)
 		{
 			StopPathCacheKey historicalAverageCacheKey=new StopPathCacheKey(trip.getId(), arrivalDeparture.getStopPathIndex(), false);
-			
-			HistoricalAverage average = HistoricalAverageCache.getInstance().getAverage(historicalAverageCacheKey);
-			
-			if(average==null)				
-				average=new HistoricalAverage();
-			
-			average.update(stopDuration);
-		
-			HistoricalAverageCache.getInstance().putAverage(historicalAverageCacheKey, average);
+
+			updateAverage(historicalAverageCacheKey, stopDuration);
 		}
 	}
 	private double getLastPathDuration(ArrivalDeparture arrivalDeparture, Trip trip)
@@ -144,17 +127,16 @@ public class HistoricalAverageCache {
 		TripKey tripKey = new TripKey(arrivalDeparture.getTripId(),
 				nearestDay,
 				trip.getStartTime());
-						
-		List<ArrivalDeparture> arrivalDepartures=(List<ArrivalDeparture>) TripDataHistoryCache.getInstance().getTripHistory(tripKey);
-		
-		if(arrivalDepartures!=null && arrivalDepartures.size()>0 && arrivalDeparture.isArrival())
-		{			
-			ArrivalDeparture previousEvent = TripDataHistoryCache.findPreviousDepartureEvent(arrivalDepartures, arrivalDeparture);
-			
-			if(previousEvent!=null && arrivalDeparture!=null && previousEvent.isDeparture())
-					return Math.abs(previousEvent.getTime()-arrivalDeparture.getTime());
+
+		if(arrivalDeparture.isArrival())
+		{
+			long previousEventTime = TripDataHistoryCacheFactory.getInstance().findEventTime(tripKey,
+					arrivalDeparture.getStopPathIndex()-1, false);
+
+			if(previousEventTime>=0)
+					return Math.abs(previousEventTime-arrivalDeparture.getTime());
 		}
-					
+
 		return -1;
 	}
 	private double getLastStopDuration(ArrivalDeparture arrivalDeparture, Trip trip)
@@ -163,15 +145,14 @@ public class HistoricalAverageCache {
 		TripKey tripKey = new TripKey(arrivalDeparture.getTripId(),
 				nearestDay,
 				trip.getStartTime());
-						
-		List<ArrivalDeparture> arrivalDepartures=(List<ArrivalDeparture>) TripDataHistoryCache.getInstance().getTripHistory(tripKey);
-		
-		if(arrivalDepartures!=null && arrivalDepartures.size()>0 && arrivalDeparture.isDeparture())
-		{			
-			ArrivalDeparture previousEvent = TripDataHistoryCache.findPreviousArrivalEvent(arrivalDepartures, arrivalDeparture);
-			
-			if(previousEvent!=null && arrivalDeparture!=null && previousEvent.isArrival())
-					return Math.abs(previousEvent.getTime()-arrivalDeparture.getTime());
+
+		if(arrivalDeparture.isDeparture())
+		{
+			long previousEventTime = TripDataHistoryCacheFactory.getInstance().findEventTime(tripKey,
+					arrivalDeparture.getStopPathIndex()-1, true);
+
+			if(previousEventTime>=0)
+					return Math.abs(previousEventTime-arrivalDeparture.getTime());
 		}
 		return -1;
 	}
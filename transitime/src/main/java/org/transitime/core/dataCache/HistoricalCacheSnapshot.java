@@ -0,0 +1,540 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.dataCache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.config.StringConfigValue;
+import org.transitime.configData.CoreConfig;
+import org.transitime.db.structs.Arrival;
+import org.transitime.db.structs.ArrivalDeparture;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Departure;
+import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
+
+/**
+ * For quickly restarting the core. Periodically writes the in memory history
+ * caches to a compact binary file. When the core starts the file is read in
+ * instead of querying days worth of arrivals/departures from the database.
+ * Only the arrivals/departures that are newer than the snapshot then need to
+ * be read from the database.
+ * <p>
+ * The snapshot contains the arrivals/departures, from which the
+ * TripDataHistoryCache, StopArrivalDepartureCache, and StopPathTraversalCache
+ * are rebuilt, along with the contents of the HistoricalAverageCache and the
+ * KalmanErrorCache, which cannot be determined from the database at all.
+ * <p>
+ * The arrivals/departures are recreated using the blocks from the current
+ * configuration so the snapshot is only used if it was written for the same
+ * configRev. Strings such as vehicle, block, and trip IDs are written once to
+ * a string table and then referenced by index to keep the file small. The
+ * file is memory mapped when read.
+ */
+public class HistoricalCacheSnapshot {
+
+	private static StringConfigValue snapshotFileName = new StringConfigValue(
+			"transitime.core.cacheSnapshotFile",
+			null,
+			"Name of file that the historical caches are periodically "
+			+ "written to so that the core can be restarted quickly "
+			+ "without having to read days of arrivals/departures from the "
+			+ "database. If not set then no snapshot is written or read.");
+
+	private static IntegerConfigValue snapshotIntervalMins = new IntegerConfigValue(
+			"transitime.core.cacheSnapshotIntervalMins",
+			15,
+			"How frequently in minutes the historical caches are written to "
+			+ "the snapshot file.");
+
+	private static IntegerConfigValue snapshotOverlapMins = new IntegerConfigValue(
+			"transitime.core.cacheSnapshotOverlapMins",
+			30,
+			"An arrival/departure is determined some time after it "
+			+ "happens, due to AVL latency and because it is only "
+			+ "determined once the vehicle has moved on. Therefore when "
+			+ "a snapshot is read the arrivals/departures from this many "
+			+ "minutes before the snapshot was written are also read from "
+			+ "the database. The ones that were already in the snapshot "
+			+ "are skipped.");
+
+	// For identifying the file and its format
+	private static final int MAGIC = 0x54544853; // "TTHS"
+	private static final int FORMAT_VERSION = 1;
+
+	private static ScheduledExecutorService executor = null;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(HistoricalCacheSnapshot.class);
+
+	/**
+	 * For assigning each string an index in the string table
+	 */
+	private static class StringTable {
+		private final Map<String, Integer> indexByString =
+				new HashMap<String, Integer>();
+		private final List<String> strings = new ArrayList<String>();
+
+		private int getIndex(String s) {
+			if (s == null)
+				return -1;
+			Integer index = indexByString.get(s);
+			if (index == null) {
+				index = strings.size();
+				strings.add(s);
+				indexByString.put(s, index);
+			}
+			return index;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @return true if a snapshot file has been configured
+	 */
+	public static boolean isEnabled() {
+		return snapshotFileName.getValue() != null
+				&& !snapshotFileName.getValue().isEmpty();
+	}
+
+	/**
+	 * Starts writing the snapshot periodically in a background thread.
+	 * Nothing is done if a snapshot file is not configured.
+	 */
+	public static synchronized void start() {
+		if (!isEnabled() || executor != null)
+			return;
+
+		int intervalMins = snapshotIntervalMins.getValue();
+		executor = Executors.newSingleThreadScheduledExecutor(
+				new NamedThreadFactory("cacheSnapshot"));
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write();
+				} catch (Exception e) {
+					logger.error("Exception writing cache snapshot to {}",
+							snapshotFileName.getValue(), e);
+				}
+			}
+		}, intervalMins, intervalMins, TimeUnit.MINUTES);
+		logger.info("Writing historical cache snapshot to {} every {} "
+				+ "minutes", snapshotFileName.getValue(), intervalMins);
+	}
+
+	/**
+	 * Writes the caches to the snapshot file. The file is first written to a
+	 * temporary file that is then renamed so that a partially written
+	 * snapshot is never read.
+	 *
+	 * @throws IOException
+	 */
+	public static void write() throws IOException {
+		IntervalTimer timer = new IntervalTimer();
+		long snapshotTime = Core.getInstance().getSystemTime();
+		int configRev = Core.getInstance().getDbConfig().getConfigRev();
+
+		// Get the data first so the string table is complete before writing
+		List<ArrivalDeparture> arrivalDepartures = getArrivalDepartures();
+		List<StopPathCacheKey> averageKeys =
+				HistoricalAverageCache.getInstance().getKeys();
+		List<KalmanErrorCacheKey> errorKeys =
+				KalmanErrorCache.getInstance().getKeys();
+
+		StringTable strings = new StringTable();
+		for (ArrivalDeparture arrivalDeparture : arrivalDepartures) {
+			strings.getIndex(arrivalDeparture.getVehicleId());
+			strings.getIndex(arrivalDeparture.getServiceId());
+			strings.getIndex(arrivalDeparture.getBlockId());
+		}
+		for (StopPathCacheKey key : averageKeys)
+			strings.getIndex(key.getTripId());
+		for (KalmanErrorCacheKey key : errorKeys)
+			strings.getIndex(key.getTripId());
+
+		File file = new File(snapshotFileName.getValue());
+		File tmpFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmpFile)));
+		int numberAverages = 0;
+		int numberErrors = 0;
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(configRev);
+			out.writeLong(snapshotTime);
+
+			out.writeInt(strings.strings.size());
+			for (String s : strings.strings) {
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			out.writeInt(arrivalDepartures.size());
+			for (ArrivalDeparture arrivalDeparture : arrivalDepartures) {
+				Date avlTime = arrivalDeparture.getAvlTime();
+				out.writeInt(strings.getIndex(arrivalDeparture.getVehicleId()));
+				out.writeLong(arrivalDeparture.getTime());
+				out.writeLong(avlTime != null ? avlTime.getTime() : -1);
+				out.writeInt(strings.getIndex(arrivalDeparture.getServiceId()));
+				out.writeInt(strings.getIndex(arrivalDeparture.getBlockId()));
+				out.writeInt(arrivalDeparture.getTripIndex());
+				out.writeInt(arrivalDeparture.getStopPathIndex());
+				out.writeBoolean(arrivalDeparture.isArrival());
+			}
+
+			// The caches can change while being written so only count the
+			// entries that are actually written
+			List<StopPathCacheKey> writtenAverageKeys =
+					new ArrayList<StopPathCacheKey>();
+			List<HistoricalAverage> averages = new ArrayList<HistoricalAverage>();
+			for (StopPathCacheKey key : averageKeys) {
+				HistoricalAverage average =
+						HistoricalAverageCache.getInstance().getAverage(key);
+				if (average != null) {
+					writtenAverageKeys.add(key);
+					averages.add(average);
+				}
+			}
+			numberAverages = averages.size();
+			out.writeInt(numberAverages);
+			for (int i = 0; i < numberAverages; ++i) {
+				StopPathCacheKey key = writtenAverageKeys.get(i);
+				HistoricalAverage average = averages.get(i);
+				out.writeInt(strings.getIndex(key.getTripId()));
+				out.writeInt(key.getStopPathIndex());
+				out.writeBoolean(key.isTravelTime());
+				out.writeInt(average.getCount());
+				out.writeDouble(average.getAverage());
+			}
+
+			List<KalmanErrorCacheKey> writtenErrorKeys =
+					new ArrayList<KalmanErrorCacheKey>();
+			List<Double> errors = new ArrayList<Double>();
+			for (KalmanErrorCacheKey key : errorKeys) {
+				Double value = KalmanErrorCache.getInstance().getErrorValue(key);
+				if (value != null) {
+					writtenErrorKeys.add(key);
+					errors.add(value);
+				}
+			}
+			numberErrors = errors.size();
+			out.writeInt(numberErrors);
+			for (int i = 0; i < numberErrors; ++i) {
+				KalmanErrorCacheKey key = writtenErrorKeys.get(i);
+				out.writeInt(strings.getIndex(key.getTripId()));
+				out.writeInt(key.getStopPathIndex());
+				out.writeDouble(errors.get(i));
+			}
+		} finally {
+			out.close();
+		}
+
+		Files.move(tmpFile.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+
+		logger.info("Wrote historical cache snapshot to {} with {} "
+				+ "arrivals/departures, {} averages, and {} Kalman errors. "
+				+ "Took {} msec.", file, arrivalDepartures.size(),
+				numberAverages, numberErrors, timer.elapsedMsec());
+	}
+
+	/**
+	 * Returns all the arrivals/departures in the StopArrivalDepartureCache,
+	 * sorted by time so that they can be replayed in order when read in.
+	 */
+	private static List<ArrivalDeparture> getArrivalDepartures() {
+		StopArrivalDepartureCache stopCache =
+				StopArrivalDepartureCache.getInstance();
+		List<ArrivalDeparture> arrivalDepartures =
+				new ArrayList<ArrivalDeparture>();
+		for (StopArrivalDepartureCacheKey key : stopCache.getKeys()) {
+			List<ArrivalDeparture> stopHistory = stopCache.getStopHistory(key);
+			if (stopHistory != null)
+				arrivalDepartures.addAll(stopHistory);
+		}
+
+		Collections.sort(arrivalDepartures, new Comparator<ArrivalDeparture>() {
+			@Override
+			public int compare(ArrivalDeparture ad1, ArrivalDeparture ad2) {
+				return Long.compare(ad1.getTime(), ad2.getTime());
+			}
+		});
+		return arrivalDepartures;
+	}
+
+	private static String getString(String[] strings, int index) {
+		return index >= 0 ? strings[index] : null;
+	}
+
+	/**
+	 * For determining whether an arrival/departure read from the database
+	 * was already in the snapshot. Uses the same members as the primary key
+	 * of the database table.
+	 */
+	private static String getDedupeKey(ArrivalDeparture arrivalDeparture) {
+		return arrivalDeparture.getVehicleId() + "|"
+				+ arrivalDeparture.getTime() + "|"
+				+ arrivalDeparture.getTripIndex() + "|"
+				+ arrivalDeparture.getStopPathIndex() + "|"
+				+ arrivalDeparture.isArrival();
+	}
+
+	/**
+	 * Reads in the snapshot file, if there is a usable one, and fills the
+	 * caches from it. Then the arrivals/departures that are newer than the
+	 * snapshot are read from the database and added to the caches.
+	 * <p>
+	 * Everything is first read into temporary lists and the caches are only
+	 * filled once all the data has been successfully read. This way a
+	 * problem doesn't leave the caches partially filled, which would
+	 * otherwise result in duplicates when the caches are then filled from
+	 * the database instead.
+	 *
+	 * @param session
+	 * @return true if the caches were filled from the snapshot, false if
+	 *         there was no usable snapshot and the caches need to be filled
+	 *         from the database
+	 */
+	public static boolean read(Session session) {
+		if (!isEnabled())
+			return false;
+
+		File file = new File(snapshotFileName.getValue());
+		if (!file.exists()) {
+			logger.info("No historical cache snapshot file {} so caches will "
+					+ "be filled from the database.", file);
+			return false;
+		}
+
+		IntervalTimer timer = new IntervalTimer();
+		long snapshotTime;
+		int numberArrivalDepartures;
+		List<ArrivalDeparture> arrivalDepartures =
+				new ArrayList<ArrivalDeparture>();
+		Map<StopPathCacheKey, HistoricalAverage> averages =
+				new HashMap<StopPathCacheKey, HistoricalAverage>();
+		Map<KalmanErrorCacheKey, Double> errors =
+				new HashMap<KalmanErrorCacheKey, Double>();
+		try (RandomAccessFile randomAccessFile =
+				new RandomAccessFile(file, "r");
+				FileChannel channel = randomAccessFile.getChannel()) {
+			MappedByteBuffer buffer =
+					channel.map(FileChannel.MapMode.READ_ONLY, 0,
+							channel.size());
+
+			if (buffer.getInt() != MAGIC
+					|| buffer.getInt() != FORMAT_VERSION) {
+				logger.warn("Historical cache snapshot file {} is not of the "
+						+ "expected format so not using it.", file);
+				return false;
+			}
+			int configRev = buffer.getInt();
+			int currentConfigRev =
+					Core.getInstance().getDbConfig().getConfigRev();
+			if (configRev != currentConfigRev) {
+				logger.info("Historical cache snapshot file {} is for "
+						+ "configRev={} but current configRev={} so not "
+						+ "using it.", file, configRev, currentConfigRev);
+				return false;
+			}
+			snapshotTime = buffer.getLong();
+			long now = Core.getInstance().getSystemTime();
+			if (snapshotTime < now - CoreConfig.getDaysPopulateHistoricalCache()
+					* Time.MS_PER_DAY) {
+				logger.info("Historical cache snapshot file {} is from {} "
+						+ "which is too old so not using it.", file,
+						Time.dateTimeStr(snapshotTime));
+				return false;
+			}
+
+			String[] strings = new String[buffer.getInt()];
+			for (int i = 0; i < strings.length; ++i) {
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				strings[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+
+			numberArrivalDepartures = buffer.getInt();
+			for (int i = 0; i < numberArrivalDepartures; ++i) {
+				String vehicleId = getString(strings, buffer.getInt());
+				long time = buffer.getLong();
+				long avlTime = buffer.getLong();
+				String serviceId = getString(strings, buffer.getInt());
+				String blockId = getString(strings, buffer.getInt());
+				int tripIndex = buffer.getInt();
+				int stopPathIndex = buffer.getInt();
+				boolean isArrival = buffer.get() != 0;
+
+				Block block = StopPathTraversalCache.getBlock(serviceId,
+						blockId, null);
+				if (block == null)
+					continue;
+				Date avlDate = avlTime >= 0 ? new Date(avlTime) : null;
+				ArrivalDeparture arrivalDeparture = isArrival ?
+						new Arrival(configRev, vehicleId, new Date(time),
+								avlDate, block, tripIndex, stopPathIndex)
+						: new Departure(configRev, vehicleId, new Date(time),
+								avlDate, block, tripIndex, stopPathIndex);
+				arrivalDepartures.add(arrivalDeparture);
+			}
+
+			int numberAverages = buffer.getInt();
+			for (int i = 0; i < numberAverages; ++i) {
+				String tripId = getString(strings, buffer.getInt());
+				int stopPathIndex = buffer.getInt();
+				boolean travelTime = buffer.get() != 0;
+				HistoricalAverage average = new HistoricalAverage();
+				average.setCount(buffer.getInt());
+				average.setAverage(buffer.getDouble());
+				averages.put(
+						new StopPathCacheKey(tripId, stopPathIndex, travelTime),
+						average);
+			}
+
+			int numberErrors = buffer.getInt();
+			for (int i = 0; i < numberErrors; ++i) {
+				String tripId = getString(strings, buffer.getInt());
+				int stopPathIndex = buffer.getInt();
+				errors.put(new KalmanErrorCacheKey(tripId, stopPathIndex),
+						buffer.getDouble());
+			}
+		} catch (Exception e) {
+			logger.error("Exception reading historical cache snapshot from {} "
+					+ "so caches will be filled from the database.", file, e);
+			return false;
+		}
+
+		// Get the arrivals/departures that were determined after the
+		// snapshot was written. Since they can be determined quite a while
+		// after they happen the ones from a bit before the snapshot time are
+		// also read, and then the ones already in the snapshot are skipped.
+		long overlapBeginTime =
+				snapshotTime - snapshotOverlapMins.getValue() * Time.MS_PER_MIN;
+		List<ArrivalDeparture> newArrivalDepartures =
+				new ArrayList<ArrivalDeparture>();
+		try {
+			Set<String> keysInOverlap = new HashSet<String>();
+			for (ArrivalDeparture arrivalDeparture : arrivalDepartures) {
+				if (arrivalDeparture.getTime() > overlapBeginTime)
+					keysInOverlap.add(getDedupeKey(arrivalDeparture));
+			}
+
+			Date endDate = new Date(Core.getInstance().getSystemTime());
+			Criteria criteria = session.createCriteria(ArrivalDeparture.class);
+			@SuppressWarnings("unchecked")
+			List<ArrivalDeparture> results = criteria
+					.add(Restrictions.gt("time", new Date(overlapBeginTime)))
+					.add(Restrictions.le("time", endDate))
+					.addOrder(Order.asc("time")).list();
+			for (ArrivalDeparture arrivalDeparture : results) {
+				if (!keysInOverlap.contains(getDedupeKey(arrivalDeparture)))
+					newArrivalDepartures.add(arrivalDeparture);
+			}
+		} catch (Exception e) {
+			logger.error("Exception reading arrivals/departures newer than "
+					+ "historical cache snapshot {} so caches will be filled "
+					+ "from the database.", file, e);
+			return false;
+		}
+
+		// Everything was successfully read so fill the caches
+		for (ArrivalDeparture arrivalDeparture : arrivalDepartures)
+			putArrivalDeparture(arrivalDeparture, false);
+		for (Map.Entry<StopPathCacheKey, HistoricalAverage> entry :
+				averages.entrySet())
+			HistoricalAverageCache.getInstance().putAverage(entry.getKey(),
+					entry.getValue());
+		for (Map.Entry<KalmanErrorCacheKey, Double> entry : errors.entrySet())
+			KalmanErrorCache.getInstance().putErrorValue(entry.getKey(),
+					entry.getValue());
+		for (ArrivalDeparture arrivalDeparture : newArrivalDepartures)
+			putArrivalDeparture(arrivalDeparture, true);
+
+		logger.info("Read historical cache snapshot from {} written at {}. "
+				+ "Used {} of {} arrivals/departures, {} averages, and {} "
+				+ "Kalman errors. Added {} arrivals/departures from the "
+				+ "database that are newer than the snapshot. Took {} msec.",
+				file, Time.dateTimeStr(snapshotTime), arrivalDepartures.size(),
+				numberArrivalDepartures, averages.size(), errors.size(),
+				newArrivalDepartures.size(), timer.elapsedMsec());
+
+		return true;
+	}
+
+	/**
+	 * Adds the arrival/departure to the caches that are based on
+	 * arrivals/departures.
+	 *
+	 * @param arrivalDeparture
+	 * @param updateAverages
+	 *            True if the historical averages also need to be updated
+	 *            because the arrival/departure is newer than the snapshot
+	 */
+	private static void putArrivalDeparture(ArrivalDeparture arrivalDeparture,
+			boolean updateAverages) {
+		TripDataHistoryCacheFactory.getInstance().putArrivalDeparture(
+				arrivalDeparture);
+		StopArrivalDepartureCache.getInstance().putArrivalDeparture(
+				arrivalDeparture);
+
+		// Only the current day is used for the last vehicle traversals
+		if (arrivalDeparture.getTime() >= Time.getStartOfDay(new Date(
+				Core.getInstance().getSystemTime())))
+			StopPathTraversalCache.getInstance().putArrivalDeparture(
+					arrivalDeparture);
+
+		if (updateAverages)
+			HistoricalAverageCache.getInstance().putArrivalDeparture(
+					arrivalDeparture);
+	}
+}
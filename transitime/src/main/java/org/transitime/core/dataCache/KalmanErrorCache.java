@@ -2,104 +2,98 @@ package org.transitime.core.dataCache;
 
 import java.util.List;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.config.CacheConfiguration;
-
 import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.transitime.config.StringConfigValue;
 import org.transitime.core.Indices;
+import org.transitime.utils.ClassInstantiator;
 /**
  * @author Sean Og Crudden
- * 
+ *
+ * Cache of the Kalman filter error values for each stop path of each trip.
+ * The implementation is configurable so that the original Ehcache based one
+ * can be replaced by ConcurrentKalmanErrorCache, which doesn't lock the whole
+ * cache for every access.
  */
-public class KalmanErrorCache {
-	final private static String cacheName = "KalmanErrorCache";
-	private static KalmanErrorCache singleton = new KalmanErrorCache();
-	private static final Logger logger = LoggerFactory
-			.getLogger(KalmanErrorCache.class);
+public abstract class KalmanErrorCache {
+
+	private static StringConfigValue className =
+			new StringConfigValue("transitime.core.cache.kalmanErrorCache",
+					"org.transitime.core.dataCache.EhcacheKalmanErrorCache",
+					"Specifies the name of the class used for caching the "
+					+ "Kalman error values. Can use "
+					+ "org.transitime.core.dataCache.ConcurrentKalmanErrorCache "
+					+ "so that the AVL threads don't contend for a lock when "
+					+ "generating predictions.");
+
+	private static volatile KalmanErrorCache singleton = null;
 
-	private Cache cache = null;
 	/**
-	 * Gets the singleton instance of this class.
-	 * 
+	 * Gets the singleton instance of this class. Synchronized when creating
+	 * the cache since multiple AVL threads could otherwise each create their
+	 * own cache.
+	 *
 	 * @return
 	 */
 	public static KalmanErrorCache getInstance() {
-		return singleton;
-	}
-	
-	private KalmanErrorCache() {
-		CacheManager cm = CacheManager.getInstance();
-		
-		if (cm.getCache(cacheName) == null) {
-			cm.addCache(cacheName);
+		if (singleton == null) {
+			synchronized (KalmanErrorCache.class) {
+				if (singleton == null) {
+					singleton = ClassInstantiator.instantiate(
+							className.getValue(), KalmanErrorCache.class);
+				}
+			}
 		}
-		cache = cm.getCache(cacheName);
-		
-		CacheConfiguration config = cache.getCacheConfiguration();
-		
-		config.setEternal(true);
-		
-		config.setMaxEntriesLocalHeap(1000000);
-		
-		config.setMaxEntriesLocalDisk(1000000);								
+		return singleton;
 	}
+
 	public void logCache(Logger logger)
 	{
 		logger.debug("Cache content log.");
-		@SuppressWarnings("unchecked")
-		List<KalmanErrorCacheKey> keys = cache.getKeys();
-		
-		for(KalmanErrorCacheKey key : keys)
+
+		for(KalmanErrorCacheKey key : getKeys())
 		{
-			Element result=cache.get(key);
-			if(result!=null)
+			Double value=getErrorValue(key);
+			if(value!=null)
 			{
 				logger.debug("Key: "+key.toString());
-								
-				Double value=(Double) result.getObjectValue();
-												
+
 				logger.debug("Error value: "+value);
 			}
-		}		
-	}
-	
-	@SuppressWarnings("unchecked")
-	synchronized public Double getErrorValue(Indices indices) {		
-		
-		KalmanErrorCacheKey key=new KalmanErrorCacheKey(indices);
-		
-		Element result = cache.get(key);
-		
-		if(result==null)
-			return null;
-		else
-			return (Double)result.getObjectValue();		
-	}
-	@SuppressWarnings("unchecked")
-	synchronized public Double getErrorValue(KalmanErrorCacheKey key) {		
-						
-		Element result = cache.get(key);
-		
-		if(result==null)
-			return null;
-		else
-			return (Double)result.getObjectValue();		
+		}
 	}
-	@SuppressWarnings("unchecked")
-	synchronized public void putErrorValue(Indices indices,  Double value) {
-		
-		KalmanErrorCacheKey key=new KalmanErrorCacheKey(indices);
-		Element errorElement = new Element(key, value);
-		
-		cache.put(errorElement);
-	}				
-	public List<KalmanErrorCacheKey> getKeys()
-	{
-		@SuppressWarnings("unchecked")
-		List<KalmanErrorCacheKey> keys = cache.getKeys();
-		return keys;
+
+	public abstract Double getErrorValue(Indices indices);
+
+	public abstract Double getErrorValue(KalmanErrorCacheKey key);
+
+	/**
+	 * Stores the error value.
+	 *
+	 * @param indices
+	 * @param value
+	 * @return the previous error value, or null if there wasn't one
+	 */
+	protected abstract Double replaceErrorValue(Indices indices, Double value);
+
+	public void putErrorValue(Indices indices,  Double value) {
+
+		Double oldValue = replaceErrorValue(indices, value);
+
+		/* Predictions for the stop path based on the old error value are now out of date */
+		if(oldValue==null || !value.equals(oldValue))
+		{
+			PredictionComponentCache.getInstance().invalidateStopPath(indices.getStopPath().getTripPatternId(), indices.getStopPathIndex());
+		}
 	}
+
+	/**
+	 * Stores the error value without invalidating any predictions. For
+	 * restoring the cache, such as from a HistoricalCacheSnapshot.
+	 *
+	 * @param key
+	 * @param value
+	 */
+	public abstract void putErrorValue(KalmanErrorCacheKey key, Double value);
+
+	public abstract List<KalmanErrorCacheKey> getKeys();
 }
@@ -0,0 +1,404 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.dataCache;
+
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.core.Indices;
+import org.transitime.utils.MapKey;
+import org.transitime.utils.Time;
+
+/**
+ * Remembers for each vehicle the travel and stop times that were determined
+ * for the stop paths ahead of it when predictions were last generated. Between
+ * AVL reports only the partial stop path that the vehicle is currently on
+ * changes so the travel and stop times for the rest of the stop paths, which
+ * can be expensive to determine when using historical data, can be reused.
+ * <p>
+ * The values for a stop path are invalidated when the data they are based on
+ * changes, which is when a vehicle traverses the stop path, and therefore
+ * there is a new last vehicle travel time, or when a Kalman error value for
+ * the stop path changes. Values are also limited to a max age so that more
+ * gradual changes such as to historical averages are picked up.
+ * <p>
+ * A change made to a stop path by the thread that is determining the value
+ * for that same stop path, such as the Kalman generator storing the error
+ * value for the vehicle's own trip, is a result of determining the value and
+ * not an input to it. Such a change therefore doesn't invalidate anything.
+ * The Kalman error values that are used as input are those of the vehicle
+ * that last traversed the stop path, which are no longer updated once that
+ * vehicle has traversed it, and the traversal itself invalidates the stop
+ * path.
+ * <p>
+ * When a cached value is used the prediction generator isn't called for the
+ * stop path so its side effects don't happen either. The Kalman generator
+ * stores the error value for the vehicle's own trip, but a cached value was
+ * determined from the same inputs so storing it again would store the same
+ * error. If transitime.core.storeTravelTimeStopPathPredictions is set the
+ * generators also store each StopPathPrediction, and with caching those are
+ * only stored when a value is actually determined. Since that changes what
+ * is recorded for comparing the generators caching is off by default.
+ */
+public class PredictionComponentCache {
+
+	private static PredictionComponentCache singleton =
+			new PredictionComponentCache();
+
+	private static BooleanConfigValue cachePredictionComponents =
+			new BooleanConfigValue(
+					"transitime.core.cachePredictionComponents",
+					false,
+					"If true then the travel and stop times for the stop "
+					+ "paths ahead of a vehicle are remembered and reused "
+					+ "when generating predictions for subsequent AVL "
+					+ "reports, as long as the data they are based on has "
+					+ "not changed. When a value is reused the prediction "
+					+ "generator isn't called so the StopPathPredictions "
+					+ "for transitime.core.storeTravelTimeStopPathPredictions "
+					+ "are only stored when a value is determined.");
+
+	private static IntegerConfigValue maxAgeSecs =
+			new IntegerConfigValue(
+					"transitime.core.predictionComponentsMaxAgeSecs",
+					5 * Time.SEC_PER_MIN,
+					"Max age of cached travel and stop times used for "
+					+ "generating predictions. Limits how long it takes for "
+					+ "changes to data such as historical averages to be "
+					+ "used.");
+
+	// For determining whether a value was determined before or after the
+	// data for its stop path was changed
+	private final AtomicLong sequence = new AtomicLong();
+
+	// Sequence of the latest change for each stop path. Keyed by trip
+	// pattern ID and stop path index.
+	private final ConcurrentMap<MapKey, Long> changeSequenceByStopPath =
+			new ConcurrentHashMap<MapKey, Long>();
+
+	private final ConcurrentMap<String, VehicleComponents> componentsByVehicle =
+			new ConcurrentHashMap<String, VehicleComponents>();
+
+	// The stop path that the thread is currently determining a value for
+	private final ThreadLocal<MapKey> stopPathBeingDetermined =
+			new ThreadLocal<MapKey>();
+
+	/**
+	 * A remembered travel or stop time
+	 */
+	private static class Component {
+		private final long value;
+		private final long sequence;
+		private final long time;
+
+		private Component(long value, long sequence, long time) {
+			this.value = value;
+			this.sequence = sequence;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * The remembered travel and stop times for a vehicle. Keyed by trip index
+	 * and stop path index combined into a long so that the stop paths that
+	 * the vehicle has already passed can easily be removed.
+	 */
+	private static class VehicleComponents {
+		private String blockId;
+		private final NavigableMap<Long, Component> travelTimes =
+				new TreeMap<Long, Component>();
+		private final NavigableMap<Long, Component> stopTimes =
+				new TreeMap<Long, Component>();
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Gets the singleton instance of this class.
+	 *
+	 * @return
+	 */
+	public static PredictionComponentCache getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Not private so that a separate instance can be used for testing
+	 */
+	PredictionComponentCache() {
+	}
+
+	/**
+	 * @return true if the travel and stop times are to be cached
+	 */
+	public static boolean isEnabled() {
+		return cachePredictionComponents.getValue();
+	}
+
+	private static long getKey(int tripIndex, int stopPathIndex) {
+		return ((long) tripIndex << 32) | stopPathIndex;
+	}
+
+	private static MapKey getStopPathKey(String tripPatternId,
+			int stopPathIndex) {
+		return new MapKey(tripPatternId, stopPathIndex);
+	}
+
+	/**
+	 * To be called before determining a value that is to be put into the
+	 * cache. Returns the current sequence so that if the underlying data is
+	 * changed by another thread while the value is being determined the
+	 * value will be treated as out of date. Changes to the stop path made by
+	 * this thread until doneDetermining() is called are ignored.
+	 *
+	 * @param indices
+	 *            The stop path that the value is being determined for
+	 * @return the current sequence
+	 */
+	public long startDetermining(Indices indices) {
+		return startDetermining(indices.getStopPath().getTripPatternId(),
+				indices.getStopPathIndex());
+	}
+
+	long startDetermining(String tripPatternId, int stopPathIndex) {
+		stopPathBeingDetermined.set(getStopPathKey(tripPatternId,
+				stopPathIndex));
+		return sequence.get();
+	}
+
+	/**
+	 * To be called, in a finally block, once the value for which
+	 * startDetermining() was called has been determined.
+	 */
+	public void doneDetermining() {
+		stopPathBeingDetermined.remove();
+	}
+
+	/**
+	 * Indicates that the data for the stop path has changed and therefore the
+	 * cached values for it should no longer be used. Ignored if the change
+	 * is made while this thread is determining the value for the same stop
+	 * path since then the change is a result of determining the value.
+	 *
+	 * @param tripPatternId
+	 * @param stopPathIndex
+	 */
+	public void invalidateStopPath(String tripPatternId, int stopPathIndex) {
+		MapKey key = getStopPathKey(tripPatternId, stopPathIndex);
+		if (key.equals(stopPathBeingDetermined.get()))
+			return;
+
+		changeSequenceByStopPath.put(key, sequence.incrementAndGet());
+	}
+
+	/**
+	 * Called at the start of generating predictions for a vehicle. If the
+	 * vehicle is now on a different block then all its values are discarded.
+	 * Otherwise the values for the stop paths before the current one are
+	 * discarded since they are no longer needed.
+	 *
+	 * @param vehicleId
+	 * @param indices
+	 *            The current indices of the vehicle
+	 */
+	public void startGeneration(String vehicleId, Indices indices) {
+		startGeneration(vehicleId, indices.getBlock().getId(),
+				indices.getTripIndex(), indices.getStopPathIndex());
+	}
+
+	void startGeneration(String vehicleId, String blockId, int tripIndex,
+			int stopPathIndex) {
+		VehicleComponents components = getVehicleComponents(vehicleId);
+		synchronized (components) {
+			if (!blockId.equals(components.blockId)) {
+				components.blockId = blockId;
+				components.travelTimes.clear();
+				components.stopTimes.clear();
+				return;
+			}
+			long key = getKey(tripIndex, stopPathIndex);
+			components.travelTimes.headMap(key, false).clear();
+			components.stopTimes.headMap(key, false).clear();
+		}
+	}
+
+	/**
+	 * Discards the values for the vehicle, such as when it is no longer
+	 * predictable.
+	 *
+	 * @param vehicleId
+	 */
+	public void removeVehicle(String vehicleId) {
+		componentsByVehicle.remove(vehicleId);
+	}
+
+	private VehicleComponents getVehicleComponents(String vehicleId) {
+		VehicleComponents components = componentsByVehicle.get(vehicleId);
+		if (components == null) {
+			VehicleComponents newComponents = new VehicleComponents();
+			components = componentsByVehicle.putIfAbsent(vehicleId,
+					newComponents);
+			if (components == null)
+				components = newComponents;
+		}
+		return components;
+	}
+
+	/**
+	 * Returns the value for the stop path if it is still valid.
+	 *
+	 * @param vehicleId
+	 * @param blockId
+	 * @param tripIndex
+	 * @param stopPathIndex
+	 * @param tripPatternId
+	 * @param travelTime
+	 *            true for the travel time, false for the stop time
+	 * @param now
+	 *            For determining whether the value is too old
+	 * @return the value, or null if not available
+	 */
+	Long getValue(String vehicleId, String blockId, int tripIndex,
+			int stopPathIndex, String tripPatternId, boolean travelTime,
+			long now) {
+		VehicleComponents components = componentsByVehicle.get(vehicleId);
+		if (components == null)
+			return null;
+
+		Component component;
+		synchronized (components) {
+			if (!blockId.equals(components.blockId))
+				return null;
+			component = (travelTime ? components.travelTimes
+					: components.stopTimes).get(getKey(tripIndex,
+							stopPathIndex));
+		}
+		if (component == null)
+			return null;
+
+		if (component.time < now - maxAgeSecs.getValue() * Time.MS_PER_SEC)
+			return null;
+		Long changeSequence = changeSequenceByStopPath.get(getStopPathKey(
+				tripPatternId, stopPathIndex));
+		if (changeSequence != null && changeSequence > component.sequence)
+			return null;
+
+		return component.value;
+	}
+
+	/**
+	 * Caches the value for the stop path, as long as the vehicle is still on
+	 * the same block.
+	 *
+	 * @param vehicleId
+	 * @param blockId
+	 * @param tripIndex
+	 * @param stopPathIndex
+	 * @param value
+	 * @param sequence
+	 *            The result of startDetermining()
+	 * @param travelTime
+	 *            true for the travel time, false for the stop time
+	 * @param now
+	 *            When the value was determined
+	 */
+	void putValue(String vehicleId, String blockId, int tripIndex,
+			int stopPathIndex, long value, long sequence, boolean travelTime,
+			long now) {
+		VehicleComponents components = getVehicleComponents(vehicleId);
+		synchronized (components) {
+			if (!blockId.equals(components.blockId))
+				return;
+			(travelTime ? components.travelTimes : components.stopTimes).put(
+					getKey(tripIndex, stopPathIndex),
+					new Component(value, sequence, now));
+		}
+	}
+
+	private Long getValue(String vehicleId, Indices indices,
+			boolean travelTime) {
+		return getValue(vehicleId, indices.getBlock().getId(),
+				indices.getTripIndex(), indices.getStopPathIndex(),
+				indices.getStopPath().getTripPatternId(), travelTime,
+				System.currentTimeMillis());
+	}
+
+	private void putValue(String vehicleId, Indices indices, long value,
+			long sequence, boolean travelTime) {
+		putValue(vehicleId, indices.getBlock().getId(),
+				indices.getTripIndex(), indices.getStopPathIndex(), value,
+				sequence, travelTime, System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the cached travel time for the stop path for the vehicle.
+	 *
+	 * @param vehicleId
+	 * @param indices
+	 * @return the travel time in msec, or null if not available
+	 */
+	public Long getTravelTime(String vehicleId, Indices indices) {
+		return getValue(vehicleId, indices, true);
+	}
+
+	/**
+	 * Caches the travel time for the stop path for the vehicle.
+	 *
+	 * @param vehicleId
+	 * @param indices
+	 * @param travelTime
+	 * @param sequence
+	 *            The result of startDetermining() from before the travel time
+	 *            was determined
+	 */
+	public void putTravelTime(String vehicleId, Indices indices,
+			long travelTime, long sequence) {
+		putValue(vehicleId, indices, travelTime, sequence, true);
+	}
+
+	/**
+	 * Returns the cached stop time for the stop path for the vehicle.
+	 *
+	 * @param vehicleId
+	 * @param indices
+	 * @return the stop time in msec, or null if not available
+	 */
+	public Long getStopTime(String vehicleId, Indices indices) {
+		return getValue(vehicleId, indices, false);
+	}
+
+	/**
+	 * Caches the stop time for the stop path for the vehicle.
+	 *
+	 * @param vehicleId
+	 * @param indices
+	 * @param stopTime
+	 * @param sequence
+	 *            The result of startDetermining() from before the stop time
+	 *            was determined
+	 */
+	public void putStopTime(String vehicleId, Indices indices, long stopTime,
+			long sequence) {
+		putValue(vehicleId, indices, stopTime, sequence, false);
+	}
+}
@@ -30,9 +30,10 @@ import org.transitime.applications.Core;
 import org.transitime.core.PredictionGeneratorDefaultImpl;
 import org.transitime.core.VehicleState;
 import org.transitime.db.structs.Route;
-import org.transitime.db.structs.Stop;
 import org.transitime.db.structs.Trip;
 import org.transitime.gtfs.DbConfig;
+import org.transitime.ipc.data.IpcBulkPredictions;
+import org.transitime.ipc.data.IpcChanges;
 import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
 import org.transitime.ipc.interfaces.PredictionsInterface.RouteStop;
@@ -86,6 +87,11 @@ public class PredictionDataCache {
 		predictionsMap =
 			new ConcurrentHashMap<MapKey, List<IpcPredictionsForRouteStopDest>>(1000);
 	
+	// The latest predictions for each vehicle so that clients such as the
+	// GTFS-realtime trip feed can get just the predictions that changed
+	private final VehicleChangeLog<List<IpcPrediction>> predictionChangeLog =
+			new VehicleChangeLog<List<IpcPrediction>>();
+	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(PredictionDataCache.class);
 
@@ -137,6 +143,38 @@ public class PredictionDataCache {
 	public List<IpcPredictionsForRouteStopDest> getPredictions(
 			String routeIdOrShortName, String directionId, String stopIdOrCode,
 			int maxPredictionsPerStop, double distanceToStop) {
+		return getPredictions(routeIdOrShortName, directionId, stopIdOrCode,
+				maxPredictionsPerStop, distanceToStop, true);
+	}
+
+	/**
+	 * Returns copy of the PredictionsForRouteStop objects, optionally without
+	 * the empty IpcPredictionsForRouteStopDest that is otherwise returned
+	 * when there are no predictions.
+	 * 
+	 * @param routeIdOrShortName
+	 *            route_id or route_short_name, or null to specify all routes
+	 *            for stop.
+	 * @param directionId
+	 *            Set to null if want predictions for all directions.
+	 * @param stopIdOrCode
+	 *            stop_id or stop_code
+	 * @param maxPredictionsPerStop
+	 * @param distanceToStop
+	 *            For when getting predictions by location
+	 * @param includeEmpty
+	 *            If true and there are no predictions then an empty
+	 *            IpcPredictionsForRouteStopDest is returned so that the client
+	 *            can display the route, stop, and direction info. Requires
+	 *            routeIdOrShortName to be set. If false an empty list is
+	 *            returned instead.
+	 * @return List of IpcPredictionsForRouteStopDest. Can be empty but will not
+	 *         be null.
+	 */
+	private List<IpcPredictionsForRouteStopDest> getPredictions(
+			String routeIdOrShortName, String directionId, String stopIdOrCode,
+			int maxPredictionsPerStop, double distanceToStop,
+			boolean includeEmpty) {
 		DbConfig dbConfig = Core.getInstance().getDbConfig();
 		
 		// Determine the routeShortName so can be used for maps in
@@ -160,24 +198,10 @@ public class PredictionDataCache {
 		}
 		
 		// Determine the stop ID since can pass in stopIdOrCode
-		String stopId = stopIdOrCode;
-		if (dbConfig.getStop(stopIdOrCode) == null) {
-			try {
-				Integer stopCode = Integer.parseInt(stopIdOrCode);
-				Stop stop = Core.getInstance().getDbConfig().getStop(stopCode);
-				
-				// If no such stop then complain
-				if (stop == null)
-					throw new IllegalArgumentException("Stop " + stopIdOrCode 
-							+ " not valid");
-				
-				stopId = stop.getId();
-			} catch (NumberFormatException e) {
-				// The stopIdOrCode was not an integer so give up
-				throw new IllegalArgumentException("Stop " + stopIdOrCode 
-						+ " not a valid integer");
-			}
-		}
+		String stopId = dbConfig.getStopId(stopIdOrCode);
+		if (stopId == null)
+			throw new IllegalArgumentException("Stop " + stopIdOrCode
+					+ " not valid");
 		
 		// Get the predictions from the map
 		List<IpcPredictionsForRouteStopDest> predictionsForRouteStop = 
@@ -260,6 +284,9 @@ public class PredictionDataCache {
 		// object so that the client can get route, stop, and direction info to
 		// display in the UI.
 		if (clonedPredictions.size() == 0) {
+			if (!includeEmpty)
+				return clonedPredictions;
+			
 			IpcPredictionsForRouteStopDest pred =
 					new IpcPredictionsForRouteStopDest(routeShortName,
 							directionId, stopIdOrCode, distanceToStop);
@@ -384,6 +411,42 @@ public class PredictionDataCache {
 		return listOfPredictions;
 	}
 	
+	/**
+	 * Returns the predictions for all routes for each of the specified stops
+	 * as a single columnar IpcBulkPredictions object. Intended for clients
+	 * that need predictions for thousands of stops at once. Unlike
+	 * getPredictions(List<RouteStop>, int) an invalid stop doesn't cause the
+	 * whole request to fail. Instead the invalid stops are listed in the
+	 * result.
+	 * 
+	 * @param stopIdsOrCodes
+	 *            Specified using stop_id or stop_code
+	 * @param predictionsPerStop
+	 *            Max number of predictions per route/stop/destination
+	 * @return The predictions for the stops. Stops that don't currently have
+	 *         any predictions are not included.
+	 */
+	public IpcBulkPredictions getBulkPredictions(List<String> stopIdsOrCodes,
+			int predictionsPerStop) {
+		List<IpcPredictionsForRouteStopDest> listOfPredictions = 
+				new ArrayList<IpcPredictionsForRouteStopDest>();
+		List<String> invalidStops = new ArrayList<String>();
+		DbConfig dbConfig = Core.getInstance().getDbConfig();
+		for (String stopIdOrCode : stopIdsOrCodes) {
+			String stopId = dbConfig.getStopId(stopIdOrCode);
+			if (stopId == null) {
+				invalidStops.add(stopIdOrCode);
+				continue;
+			}
+
+			// A stop without predictions is simply left out instead of
+			// being represented by an empty IpcPredictionsForRouteStopDest
+			listOfPredictions.addAll(getPredictions(null, null, stopId,
+					predictionsPerStop, Double.NaN, false));
+		}
+		return new IpcBulkPredictions(listOfPredictions, invalidStops);
+	}
+	
 	/**
 	 * Returns copy of all predictions currently associated for each route/stop
 	 * specified.
@@ -529,6 +592,37 @@ public class PredictionDataCache {
 				}
 			}
 		}
+		
+		// Record the change so that clients can get just what changed
+		String vehicleId = null;
+		if (!newPredictionsForVehicle.isEmpty())
+			vehicleId = newPredictionsForVehicle.get(0).getVehicleId();
+		else if (oldPredictionsForVehicle != null
+				&& !oldPredictionsForVehicle.isEmpty())
+			vehicleId = oldPredictionsForVehicle.get(0).getVehicleId();
+		if (vehicleId != null) {
+			predictionChangeLog.update(vehicleId,
+					newPredictionsForVehicle.isEmpty() ? null
+							: new ArrayList<IpcPrediction>(
+									newPredictionsForVehicle));
+		}
+	}
+	
+	/**
+	 * Returns the predictions, grouped by vehicle, that changed since the
+	 * specified sequence. For clients such as the GTFS-realtime trip feed
+	 * that want to keep their own copy of all the predictions up to date.
+	 * 
+	 * @param sinceEpoch
+	 *            Epoch from the previous call, or 0 if first call
+	 * @param sinceSequence
+	 *            Sequence from the previous call
+	 * @return The changed predictions keyed by vehicle ID. A null value
+	 *         means the predictions for the vehicle were removed.
+	 */
+	public IpcChanges<List<IpcPrediction>> getPredictionChangesSince(
+			long sinceEpoch, long sinceSequence) {
+		return predictionChangeLog.getChangesSince(sinceEpoch, sinceSequence);
 	}
 	
 	/**
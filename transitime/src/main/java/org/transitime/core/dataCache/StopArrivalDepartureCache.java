@@ -3,16 +3,18 @@
  */
 package org.transitime.core.dataCache;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.List;
-
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.store.Policy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hibernate.Criteria;
 import org.hibernate.criterion.Restrictions;
@@ -29,20 +31,54 @@ import org.transitime.utils.Time;
  *         stop for a day. The date used in the key should be the start of the
  *         day concerned.
  * 
- *         TODO this could do with an interface, factory class, and alternative
- *         implementations, perhaps using Infinispan.
+ *         The data is held in buckets keyed by the epoch time of the start of
+ *         the service day and then by stop ID. This way a whole day can be
+ *         evicted at once. The events for a stop are kept in a concurrent
+ *         sorted set so that adding one is O(log n) and doesn't lock. A
+ *         sorted list is only created when the history for a stop is read,
+ *         which happens far less often than adding events.
  */
 public class StopArrivalDepartureCache {
 	private static StopArrivalDepartureCache singleton = new StopArrivalDepartureCache();
 
-	private static boolean debug = false;
+	private static final Logger logger = LoggerFactory.getLogger(StopArrivalDepartureCache.class);
 
-	final private static String cacheByStop = "arrivalDeparturesByStop";
+	// Keyed by start of service day and then by stop ID
+	private final ConcurrentNavigableMap<Long, ConcurrentMap<String, ConcurrentSkipListSet<Entry>>> days = 
+			new ConcurrentSkipListMap<Long, ConcurrentMap<String, ConcurrentSkipListSet<Entry>>>();
 
-	private static final Logger logger = LoggerFactory.getLogger(StopArrivalDepartureCache.class);
+	// For ordering events that have the same time in the order they were added
+	private final AtomicLong sequence = new AtomicLong();
 
-	private Cache cache = null;
+	/**
+	 * An arrival/departure in the set for a stop. The sequence makes entries
+	 * with the same time distinct, and orders them in the order they were
+	 * added, the same as a stable sort would.
+	 */
+	private static class Entry {
+		private final ArrivalDeparture arrivalDeparture;
+		private final long time;
+		private final long sequence;
+
+		private Entry(ArrivalDeparture arrivalDeparture, long sequence) {
+			this.arrivalDeparture = arrivalDeparture;
+			this.time = arrivalDeparture.getTime();
+			this.sequence = sequence;
+		}
+	}
 
+	// Most recent first, and then in the order added
+	private static final Comparator<Entry> comparator = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			if (e1.time != e2.time)
+				return e1.time > e2.time ? -1 : 1;
+			if (e1.sequence != e2.sequence)
+				return e1.sequence < e2.sequence ? -1 : 1;
+			return 0;
+		}
+	};
+	
 	/**
 	 * Default is 4 as we need 3 days worth for Kalman Filter implementation
 	 */
@@ -60,41 +96,26 @@ public class StopArrivalDepartureCache {
 	}
 
 	private StopArrivalDepartureCache() {
-		CacheManager cm = CacheManager.getInstance();
-		EvictionAgePolicy evictionPolicy = null;
-		if (tripDataCacheMaxAgeSec != null) {
-			evictionPolicy = new EvictionAgePolicy(tripDataCacheMaxAgeSec.getValue() * Time.MS_PER_SEC);
-		} else {
-			evictionPolicy = new EvictionAgePolicy(4 * Time.SEC_PER_DAY * Time.MS_PER_SEC);
-		}
-
-		if (cm.getCache(cacheByStop) == null) {
-			cm.addCache(cacheByStop);
-		}
-		cache = cm.getCache(cacheByStop);
-
-		// CacheConfiguration config = cache.getCacheConfiguration();
-
-		// cache.setMemoryStoreEvictionPolicy(evictionPolicy);
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<StopArrivalDepartureCacheKey> getKeys() {
-		return (List<StopArrivalDepartureCacheKey>) cache.getKeys();
+		List<StopArrivalDepartureCacheKey> keys = new ArrayList<StopArrivalDepartureCacheKey>();
+		for (Map.Entry<Long, ConcurrentMap<String, ConcurrentSkipListSet<Entry>>> day : days.entrySet()) {
+			Date date = new Date(day.getKey());
+			for (String stopId : day.getValue().keySet()) {
+				keys.add(new StopArrivalDepartureCacheKey(stopId, date));
+			}
+		}
+		return keys;
 	}
 
 	public void logCache(Logger logger) {
 		logger.debug("Cache content log.");
-		@SuppressWarnings("unchecked")
-		List<StopArrivalDepartureCacheKey> keys = cache.getKeys();
 
-		for (StopArrivalDepartureCacheKey key : keys) {
-			Element result = cache.get(key);
-			if (result != null) {
+		for (StopArrivalDepartureCacheKey key : getKeys()) {
+			List<ArrivalDeparture> ads = getStopHistory(key);
+			if (ads != null) {
 				logger.debug("Key: " + key.toString());
-				@SuppressWarnings("unchecked")
-
-				List<ArrivalDeparture> ads = (List<ArrivalDeparture>) result.getObjectValue();
 
 				for (ArrivalDeparture ad : ads) {
 					logger.debug(ad.toString());
@@ -104,69 +125,85 @@ public class StopArrivalDepartureCache {
 
 	}
 
-	@SuppressWarnings("unchecked")
-	synchronized public List<ArrivalDeparture> getStopHistory(StopArrivalDepartureCacheKey key) {
-
-		//logger.debug(cache.toString());
-		Calendar date = Calendar.getInstance();
-		date.setTime(key.getDate());
-
-		date.set(Calendar.HOUR_OF_DAY, 0);
-		date.set(Calendar.MINUTE, 0);
-		date.set(Calendar.SECOND, 0);
-		date.set(Calendar.MILLISECOND, 0);
-		key.setDate(date.getTime());
-		Element result = cache.get(key);
+	/**
+	 * Returns the arrivals/departures for the stop for the day specified by
+	 * the key, sorted with the most recent first. The key is not modified.
+	 * The returned list is an unmodifiable snapshot.
+	 * 
+	 * @param key
+	 * @return list of arrivals/departures, or null if none for the stop
+	 */
+	public List<ArrivalDeparture> getStopHistory(StopArrivalDepartureCacheKey key) {
+		return getStopHistory(key.getStopid(), Time.getStartOfDay(key.getDate().getTime()));
+	}
 
-		if (result != null) {
-			return (List<ArrivalDeparture>) result.getObjectValue();
-		} else {
+	/**
+	 * Returns the arrivals/departures for the stop for the specified day,
+	 * sorted with the most recent first. The returned list is an unmodifiable
+	 * snapshot.
+	 * 
+	 * @param stopId
+	 * @param startOfDay
+	 *            epoch time of the start of the service day
+	 * @return list of arrivals/departures, or null if none for the stop
+	 */
+	public List<ArrivalDeparture> getStopHistory(String stopId, long startOfDay) {
+		Map<String, ConcurrentSkipListSet<Entry>> day = days.get(startOfDay);
+		if (day == null)
 			return null;
-		}
+		ConcurrentSkipListSet<Entry> entries = day.get(stopId);
+		if (entries == null)
+			return null;
+
+		List<ArrivalDeparture> list = new ArrayList<ArrivalDeparture>(entries.size());
+		for (Entry entry : entries)
+			list.add(entry.arrivalDeparture);
+		return Collections.unmodifiableList(list);
 	}
 
-	@SuppressWarnings("unchecked")
-	synchronized public StopArrivalDepartureCacheKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+	public StopArrivalDepartureCacheKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
 
-		logger.debug("Putting :" + arrivalDeparture.toString() + " in StopArrivalDepartureCache cache.");
+		logger.debug("Putting :{} in StopArrivalDepartureCache cache.", arrivalDeparture);
 	
-		Calendar date = Calendar.getInstance();
-		date.setTime(arrivalDeparture.getDate());
-
-		date.set(Calendar.HOUR_OF_DAY, 0);
-		date.set(Calendar.MINUTE, 0);
-		date.set(Calendar.SECOND, 0);
-		date.set(Calendar.MILLISECOND, 0);
-
-		StopArrivalDepartureCacheKey key = new StopArrivalDepartureCacheKey(arrivalDeparture.getStop().getId(),
-				date.getTime());
-
-		List<ArrivalDeparture> list = null;
-
-		Element result = cache.get(key);
+		long startOfDay = Time.getStartOfDay(arrivalDeparture.getDate().getTime());
+		String stopId = arrivalDeparture.getStop().getId();
+
+		ConcurrentMap<String, ConcurrentSkipListSet<Entry>> day = days.get(startOfDay);
+		if (day == null) {
+			ConcurrentMap<String, ConcurrentSkipListSet<Entry>> newDay = 
+					new ConcurrentHashMap<String, ConcurrentSkipListSet<Entry>>();
+			day = days.putIfAbsent(startOfDay, newDay);
+			if (day == null) {
+				day = newDay;
+				evictOldDays();
+			}
+		}
 
-		if (result != null && result.getObjectValue() != null) {
-			list = (List<ArrivalDeparture>) result.getObjectValue();
-			cache.remove(key);
-		} else {
-			list = new ArrayList<ArrivalDeparture>();
+		ConcurrentSkipListSet<Entry> entries = day.get(stopId);
+		if (entries == null) {
+			ConcurrentSkipListSet<Entry> newEntries = new ConcurrentSkipListSet<Entry>(comparator);
+			entries = day.putIfAbsent(stopId, newEntries);
+			if (entries == null)
+				entries = newEntries;
 		}
-		
-		list.add(arrivalDeparture);
-		
-		Collections.sort(list, new ArrivalDepartureComparator());
-		
-		// This is java 1.8 list.sort(new ArrivalDepartureComparator());
-		
-		Element arrivalDepartures = new Element(key, Collections.synchronizedList(list));
-
-		cache.put(arrivalDepartures);
-
-		return key;
+		entries.add(new Entry(arrivalDeparture, sequence.incrementAndGet()));
+
+		return new StopArrivalDepartureCacheKey(stopId, new Date(startOfDay));
 	}
 
-	private static <T> Iterable<T> emptyIfNull(Iterable<T> iterable) {
-		return iterable == null ? Collections.<T> emptyList() : iterable;
+	/**
+	 * Removes whole days that are older than the configured max age relative
+	 * to the newest day in the cache.
+	 */
+	private void evictOldDays() {
+		long cutoff = days.lastKey() - tripDataCacheMaxAgeSec.getValue() * (long) Time.MS_PER_SEC;
+		ConcurrentNavigableMap<Long, ConcurrentMap<String, ConcurrentSkipListSet<Entry>>> oldDays = 
+				days.headMap(cutoff);
+		if (!oldDays.isEmpty()) {
+			logger.info("Evicting {} days of data older than {} from StopArrivalDepartureCache", 
+					oldDays.size(), Time.dateStr(cutoff));
+			oldDays.clear();
+		}
 	}
 
 	public void populateCacheFromDb(Session session, Date startDate, Date endDate) {
@@ -179,54 +216,4 @@ public class StopArrivalDepartureCache {
 			StopArrivalDepartureCache.getInstance().putArrivalDeparture(result);
 		}
 	}
-
-	/**
-	 * This policy evicts arrival departures from the cache when they are X
-	 * (age) number of milliseconds old
-	 * 
-	 */
-	private class EvictionAgePolicy implements Policy {
-		private String name = "AGE";
-
-		private long age = 0L;
-
-		public EvictionAgePolicy(long age) {
-			super();
-			this.age = age;
-		}
-
-		@Override
-		public boolean compare(Element arg0, Element arg1) {
-			if (arg0.getObjectKey() instanceof StopArrivalDepartureCacheKey
-					&& arg1.getObjectKey() instanceof StopArrivalDepartureCacheKey) {
-				if (((StopArrivalDepartureCacheKey) arg0.getObjectKey()).getDate()
-						.after(((StopArrivalDepartureCacheKey) arg1.getObjectKey()).getDate())) {
-					return true;
-				}
-
-			}
-			return false;
-		}
-
-		@Override
-		public String getName() {
-			return name;
-		}
-
-		@Override
-		public Element selectedBasedOnPolicy(Element[] arg0, Element arg1) {
-
-			for (int i = 0; i < arg0.length; i++) {
-
-				if (arg0[i].getObjectKey() instanceof TripKey) {
-					StopArrivalDepartureCacheKey key = (StopArrivalDepartureCacheKey) arg0[i].getObjectKey();
-
-					if (Calendar.getInstance().getTimeInMillis() - key.getDate().getTime() > age) {
-						return arg0[i];
-					}
-				}
-			}
-			return null;
-		}
-	}
 }
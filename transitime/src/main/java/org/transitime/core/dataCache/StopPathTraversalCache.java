@@ -0,0 +1,291 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.dataCache;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.db.structs.ArrivalDeparture;
+import org.transitime.db.structs.Block;
+import org.transitime.db.structs.Trip;
+import org.transitime.utils.MapKey;
+
+/**
+ * Keeps track of the most recent traversals of each stop path of each trip
+ * pattern, meaning the departure from the previous stop and the arrival at
+ * the stop by the same vehicle for the same trip. This way the prediction
+ * generators can directly look up the travel time of the last vehicle that
+ * traversed a stop path instead of having to search through all of the
+ * arrivals/departures for the day for the two stops.
+ * <p>
+ * Only a small ring of the most recent traversals is kept for each stop path
+ * so memory use is bounded by the number of stop paths.
+ */
+public class StopPathTraversalCache {
+
+	private static StopPathTraversalCache singleton =
+			new StopPathTraversalCache();
+
+	// How many of the most recent traversals to keep for each stop path.
+	// Need more than one since the most recent one might have been by the
+	// vehicle that the prediction is being generated for.
+	private static final int TRAVERSALS_PER_STOP_PATH = 8;
+
+	// The most recent departure for each vehicle so that when the vehicle
+	// arrives at the next stop the traversal can be recorded
+	private final ConcurrentMap<String, ArrivalDeparture> lastDepartureByVehicle =
+			new ConcurrentHashMap<String, ArrivalDeparture>();
+
+	// Keyed by trip pattern ID and stop path index
+	private final ConcurrentMap<MapKey, TraversalRing> traversalsByStopPath =
+			new ConcurrentHashMap<MapKey, TraversalRing>();
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(StopPathTraversalCache.class);
+
+	/**
+	 * A single traversal of a stop path by a vehicle
+	 */
+	public static class Traversal {
+		private final String vehicleId;
+		private final String serviceId;
+		private final String blockId;
+		private final int tripIndex;
+		private final int stopPathIndex;
+		private final long departureTime;
+		private final long arrivalTime;
+
+		private Traversal(ArrivalDeparture departure, ArrivalDeparture arrival) {
+			this.vehicleId = arrival.getVehicleId();
+			this.serviceId = arrival.getServiceId();
+			this.blockId = arrival.getBlockId();
+			this.tripIndex = arrival.getTripIndex();
+			this.stopPathIndex = arrival.getStopPathIndex();
+			this.departureTime = departure.getTime();
+			this.arrivalTime = arrival.getTime();
+		}
+
+		public String getVehicleId() {
+			return vehicleId;
+		}
+
+		public String getServiceId() {
+			return serviceId;
+		}
+
+		public String getBlockId() {
+			return blockId;
+		}
+
+		public int getTripIndex() {
+			return tripIndex;
+		}
+
+		/**
+		 * @return stop path index of the arrival
+		 */
+		public int getStopPathIndex() {
+			return stopPathIndex;
+		}
+
+		public long getDepartureTime() {
+			return departureTime;
+		}
+
+		public long getArrivalTime() {
+			return arrivalTime;
+		}
+
+		/**
+		 * @return msec between the departure and the arrival. Will be zero
+		 *         or negative if the data went backwards.
+		 */
+		public long getTravelTime() {
+			return arrivalTime - departureTime;
+		}
+	}
+
+	/**
+	 * Fixed size ring of the most recent traversals of a stop path
+	 */
+	private static class TraversalRing {
+		private final Traversal[] traversals =
+				new Traversal[TRAVERSALS_PER_STOP_PATH];
+		private int next = 0;
+
+		private synchronized void add(Traversal traversal) {
+			traversals[next] = traversal;
+			next = (next + 1) % traversals.length;
+		}
+
+		private synchronized Traversal getMostRecent(String excludeVehicleId,
+				long minDepartureTime) {
+			Traversal mostRecent = null;
+			for (Traversal traversal : traversals) {
+				if (traversal == null
+						|| traversal.departureTime < minDepartureTime
+						|| traversal.vehicleId.equals(excludeVehicleId))
+					continue;
+				if (mostRecent == null
+						|| traversal.departureTime > mostRecent.departureTime)
+					mostRecent = traversal;
+			}
+			return mostRecent;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Gets the singleton instance of this class.
+	 *
+	 * @return
+	 */
+	public static StopPathTraversalCache getInstance() {
+		return singleton;
+	}
+
+	private StopPathTraversalCache() {
+	}
+
+	private static MapKey getKey(String tripPatternId, int stopPathIndex) {
+		return new MapKey(tripPatternId, stopPathIndex);
+	}
+
+	/**
+	 * Returns the block for the arrival/departure. The block is transient in
+	 * ArrivalDeparture so when read from database need to get it from the
+	 * DbConfig.
+	 *
+	 * @param serviceId
+	 * @param blockId
+	 * @param block
+	 *            The block if already known, otherwise null
+	 * @return the block, or null if it could not be determined
+	 */
+	public static Block getBlock(String serviceId, String blockId, Block block) {
+		if (block != null)
+			return block;
+		if (serviceId == null || blockId == null)
+			return null;
+		return Core.getInstance().getDbConfig().getBlock(serviceId, blockId);
+	}
+
+	/**
+	 * Updates the cache with the arrival/departure. Departures are remembered
+	 * for the vehicle. When an arrival for the same trip at the next stop
+	 * comes in then the traversal is recorded. Arrivals/departures for a
+	 * vehicle are expected to be added in time order.
+	 *
+	 * @param arrivalDeparture
+	 */
+	public void putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+		String vehicleId = arrivalDeparture.getVehicleId();
+		if (arrivalDeparture.isDeparture()) {
+			lastDepartureByVehicle.put(vehicleId, arrivalDeparture);
+			return;
+		}
+
+		ArrivalDeparture departure = lastDepartureByVehicle.get(vehicleId);
+		if (departure == null
+				|| departure.getStopPathIndex() != arrivalDeparture
+						.getStopPathIndex() - 1
+				|| !departure.getTripId().equals(arrivalDeparture.getTripId()))
+			return;
+
+		Block block = getBlock(arrivalDeparture.getServiceId(),
+				arrivalDeparture.getBlockId(), arrivalDeparture.getBlock());
+		if (block == null)
+			return;
+		Trip trip = block.getTrip(arrivalDeparture.getTripIndex());
+		if (trip == null || trip.getTripPattern() == null)
+			return;
+
+		MapKey key = getKey(trip.getTripPattern().getId(),
+				arrivalDeparture.getStopPathIndex());
+		TraversalRing ring = traversalsByStopPath.get(key);
+		if (ring == null) {
+			TraversalRing newRing = new TraversalRing();
+			ring = traversalsByStopPath.putIfAbsent(key, newRing);
+			if (ring == null)
+				ring = newRing;
+		}
+		ring.add(new Traversal(departure, arrivalDeparture));
+
+		// There is now a new last vehicle travel time for the stop path
+		PredictionComponentCache.getInstance().invalidateStopPath(
+				trip.getTripPattern().getId(),
+				arrivalDeparture.getStopPathIndex());
+	}
+
+	/**
+	 * Returns the most recent traversal of the stop path by a vehicle other
+	 * than the one specified.
+	 *
+	 * @param tripPatternId
+	 * @param stopPathIndex
+	 *            Stop path index of the arrival stop
+	 * @param excludeVehicleId
+	 *            The vehicle to ignore, usually the one that predictions are
+	 *            being generated for
+	 * @param minDepartureTime
+	 *            Traversals that departed before this time are ignored
+	 * @return the traversal, or null if there isn't one
+	 */
+	public Traversal getLastTraversal(String tripPatternId, int stopPathIndex,
+			String excludeVehicleId, long minDepartureTime) {
+		TraversalRing ring =
+				traversalsByStopPath.get(getKey(tripPatternId, stopPathIndex));
+		if (ring == null)
+			return null;
+		return ring.getMostRecent(excludeVehicleId, minDepartureTime);
+	}
+
+	/**
+	 * Populates the cache with the arrivals/departures from the database.
+	 * They are read in time order so that the traversals can be determined.
+	 *
+	 * @param session
+	 * @param startDate
+	 * @param endDate
+	 */
+	public void populateCacheFromDb(Session session, Date startDate,
+			Date endDate) {
+		Criteria criteria = session.createCriteria(ArrivalDeparture.class);
+
+		@SuppressWarnings("unchecked")
+		List<ArrivalDeparture> results = criteria
+				.add(Restrictions.between("time", startDate, endDate))
+				.addOrder(Order.asc("time")).list();
+
+		for (ArrivalDeparture result : results) {
+			putArrivalDeparture(result);
+		}
+		logger.info("Populated StopPathTraversalCache with {} "
+				+ "arrivals/departures", results.size());
+	}
+}
@@ -41,10 +41,11 @@ import org.transitime.utils.Time;
  *         hashmap. This approach to holding data in memory for transitime needs
  *         to be proven.
  *         
- *         TODO this could do with an interface, factory class, and alternative implementations, perhaps using Infinispan.
+ *         The instance to use should be obtained from
+ *         TripDataHistoryCacheFactory. See CompactTripDataHistoryCache for an
+ *         alternative implementation that uses far less memory.
  */
-public class TripDataHistoryCache{
-	private static TripDataHistoryCache singleton = new TripDataHistoryCache();
+public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
 	
 	private static boolean debug = false;
 
@@ -65,15 +66,10 @@ public class TripDataHistoryCache{
 			"How old an arrivaldeparture has to be before it is removed from the cache ");
 
 	/**
-	 * Gets the singleton instance of this class.
-	 * 
-	 * @return
+	 * Public constructor so can be instantiated by
+	 * TripDataHistoryCacheFactory.
 	 */
-	public static TripDataHistoryCache getInstance() {
-		return singleton;
-	}
-
-	private TripDataHistoryCache() {
+	public TripDataHistoryCache() {
 		CacheManager cm = CacheManager.getInstance();
 		EvictionAgePolicy evictionPolicy = null;
 		if(tripDataCacheMaxAgeSec!=null)
@@ -95,10 +91,12 @@ public class TripDataHistoryCache{
 		/*TODO We need to refine the eviction policy. */
 		cache.setMemoryStoreEvictionPolicy(evictionPolicy);
 	}
+	@Override
 	public List<TripKey> getKeys()
 	{
 		return cache.getKeys();
 	}
+	@Override
 	public void logCache(Logger logger)
 	{
 		logger.debug("Cache content log.");
@@ -124,6 +122,7 @@ public class TripDataHistoryCache{
 		
 	}
 
+	@Override
 	@SuppressWarnings("unchecked")
 	public List<ArrivalDeparture> getTripHistory(TripKey tripKey) {
 
@@ -141,6 +140,7 @@ public class TripDataHistoryCache{
 		}
 	}
 
+	@Override
 	@SuppressWarnings("unchecked")
 	synchronized public TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
 		
@@ -187,6 +187,7 @@ public class TripDataHistoryCache{
 		return tripKey;
 	}
 
+	@Override
 	public void populateCacheFromDb(Session session, Date startDate, Date endDate)
 	{
  		Criteria criteria =session.createCriteria(ArrivalDeparture.class);				
@@ -196,10 +197,23 @@ public class TripDataHistoryCache{
 						
 		for(ArrivalDeparture result : results)
 		{
-			TripDataHistoryCache.getInstance().putArrivalDeparture(result);			
+			putArrivalDeparture(result);			
 		}		
 	}
 	
+	@Override
+	public long findEventTime(TripKey tripKey, int stopPathIndex, boolean isArrival)
+	{
+		for (ArrivalDeparture tocheck : emptyIfNull(getTripHistory(tripKey))) 
+		{
+			if(tocheck.getStopPathIndex()==stopPathIndex && tocheck.isArrival()==isArrival)
+			{
+				return tocheck.getTime();
+			}
+		}
+		return -1;
+	}
+	
 	
 	static public ArrivalDeparture findPreviousArrivalEvent(List<ArrivalDeparture> arrivalDepartures,ArrivalDeparture current)
 	{
@@ -0,0 +1,47 @@
+package org.transitime.core.dataCache;
+
+import org.transitime.config.StringConfigValue;
+import org.transitime.utils.ClassInstantiator;
+
+/**
+ * For instantiating the TripDataHistoryCacheInterface object that holds the
+ * historic arrival/departure data for trips. The class to be instantiated can
+ * be set using the config variable
+ * transitime.core.cache.tripDataHistoryCache
+ */
+public class TripDataHistoryCacheFactory {
+
+	// The name of the class to instantiate
+	private static StringConfigValue className =
+			new StringConfigValue("transitime.core.cache.tripDataHistoryCache",
+					"org.transitime.core.dataCache.TripDataHistoryCache",
+					"Specifies the name of the class used for caching the "
+					+ "historic arrival/departure data for trips. Can use "
+					+ "org.transitime.core.dataCache.CompactTripDataHistoryCache "
+					+ "for large agencies since it uses far less memory.");
+
+	private static volatile TripDataHistoryCacheInterface singleton = null;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Returns the singleton cache. Synchronized when creating the cache since
+	 * multiple AVL threads could otherwise each create their own cache.
+	 * 
+	 * @return the cache
+	 */
+	public static TripDataHistoryCacheInterface getInstance() {
+		// If the cache hasn't been created yet then do so now
+		if (singleton == null) {
+			synchronized (TripDataHistoryCacheFactory.class) {
+				if (singleton == null) {
+					singleton = ClassInstantiator.instantiate(
+							className.getValue(),
+							TripDataHistoryCacheInterface.class);
+				}
+			}
+		}
+
+		return singleton;
+	}
+}
@@ -0,0 +1,76 @@
+package org.transitime.core.dataCache;
+
+import java.util.Date;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.transitime.db.structs.ArrivalDeparture;
+
+/**
+ * Interface for a cache that holds the historical arrival/departure data for
+ * trips. The data is used for generating predictions based on a Kalman filter
+ * or on historical averages. The implementation to use is specified by
+ * TripDataHistoryCacheFactory.
+ */
+public interface TripDataHistoryCacheInterface {
+
+	/**
+	 * @return the keys of all the trips that are in the cache
+	 */
+	public List<TripKey> getKeys();
+
+	/**
+	 * Logs the contents of the cache at debug level.
+	 *
+	 * @param logger
+	 */
+	public void logCache(Logger logger);
+
+	/**
+	 * Returns the arrivals/departures for the trip. Implementations that
+	 * don't keep the ArrivalDeparture objects read them from the database,
+	 * so this shouldn't be used when generating predictions.
+	 *
+	 * @param tripKey
+	 * @return list of arrivals/departures for trip, or null if trip not in
+	 *         cache
+	 */
+	public List<ArrivalDeparture> getTripHistory(TripKey tripKey);
+
+	/**
+	 * Adds the arrival/departure to the cache.
+	 *
+	 * @param arrivalDeparture
+	 * @return the key of the trip that the arrival/departure was added to
+	 */
+	public TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture);
+
+	/**
+	 * Reads in the arrivals/departures for the specified time range from the
+	 * database and adds them to the cache.
+	 *
+	 * @param session
+	 * @param startDate
+	 * @param endDate
+	 */
+	public void populateCacheFromDb(Session session, Date startDate,
+			Date endDate);
+
+	/**
+	 * Returns the time of the first arrival or departure for the trip at the
+	 * specified stop path. Allows the prediction generators to get at the
+	 * historic times without having to iterate over ArrivalDeparture objects.
+	 *
+	 * @param tripKey
+	 *            The trip
+	 * @param stopPathIndex
+	 *            The stop path of the event
+	 * @param isArrival
+	 *            true if looking for an arrival, false for a departure
+	 * @return epoch time of the event, or -1 if there is no such event in the
+	 *         cache
+	 */
+	public long findEventTime(TripKey tripKey, int stopPathIndex,
+			boolean isArrival);
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.dataCache;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns trip IDs to ints so that caches can use compact primitive keys
+ * instead of objects containing the trip ID string. The ints are assigned
+ * sequentially and never reused so they can be used as array indices and can
+ * be converted back to the trip ID.
+ * <p>
+ * Looking up an existing trip ID doesn't lock. Only assigning an index to a
+ * new trip ID does.
+ */
+public class TripIdInterner {
+
+	private static final TripIdInterner singleton = new TripIdInterner();
+
+	private final ConcurrentMap<String, Integer> indexByTripId =
+			new ConcurrentHashMap<String, Integer>();
+
+	// Indexed by the int so can get back the trip ID
+	private volatile String[] tripIds = new String[1024];
+	private int numberTripIds = 0;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Gets the singleton instance of this class.
+	 *
+	 * @return
+	 */
+	public static TripIdInterner getInstance() {
+		return singleton;
+	}
+
+	private TripIdInterner() {
+	}
+
+	/**
+	 * Returns the int index for the trip ID, creating one if there isn't one
+	 * yet.
+	 *
+	 * @param tripId
+	 * @return index for the trip ID
+	 */
+	public int getOrCreateIndex(String tripId) {
+		Integer index = indexByTripId.get(tripId);
+		if (index != null)
+			return index;
+
+		synchronized (indexByTripId) {
+			index = indexByTripId.get(tripId);
+			if (index != null)
+				return index;
+
+			if (numberTripIds == tripIds.length)
+				tripIds = Arrays.copyOf(tripIds, tripIds.length * 2);
+			index = numberTripIds++;
+			tripIds[index] = tripId;
+			indexByTripId.put(tripId, index);
+			return index;
+		}
+	}
+
+	/**
+	 * Returns the int index for the trip ID if there is one. Doesn't create
+	 * one so can be used for lookups without growing the interner.
+	 *
+	 * @param tripId
+	 * @return index for the trip ID, or -1 if there isn't one
+	 */
+	public int getIndex(String tripId) {
+		Integer index = indexByTripId.get(tripId);
+		return index != null ? index : -1;
+	}
+
+	/**
+	 * Returns the trip ID for an index returned by getOrCreateIndex().
+	 *
+	 * @param index
+	 * @return the trip ID
+	 */
+	public String getTripId(int index) {
+		return tripIds[index];
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.dataCache;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.TreeMap;
+
+import org.transitime.ipc.data.IpcChanges;
+import org.transitime.utils.Time;
+
+/**
+ * Keeps track of the latest value for each vehicle along with a sequence
+ * number indicating when it last changed. This way clients such as the
+ * GTFS-realtime feeds can ask for just what changed since the last time they
+ * asked instead of having to retrieve the data for the entire fleet.
+ * <p>
+ * A null value indicates that the data for the vehicle was removed. Such
+ * removals are remembered for a while so that clients can be told about
+ * them. If a client asks for changes since a sequence older than the
+ * removals that have been purged, or for a different epoch because the core
+ * was restarted, then the full dataset is returned instead.
+ *
+ * @param <T>
+ *            The type of the per vehicle value. Must be serializable since
+ *            returned via RMI.
+ */
+public class VehicleChangeLog<T> {
+
+	// Identifies this instance so clients can tell when the core has been
+	// restarted and their sequence numbers are no longer valid
+	private final long epoch = System.currentTimeMillis();
+
+	// Sequence number of the most recent change
+	private long sequence = 0;
+
+	// Removals with sequence numbers up to here have been purged
+	private long purgedSequence = 0;
+
+	// The latest value for each vehicle
+	private final Map<String, Entry<T>> entriesByVehicle =
+			new HashMap<String, Entry<T>>();
+
+	// The vehicle IDs ordered by the sequence of their latest change so that
+	// can quickly find what changed since a sequence number
+	private final NavigableMap<Long, String> vehiclesBySequence =
+			new TreeMap<Long, String>();
+
+	// The removals in the order that they happened, and therefore ordered by
+	// time, so that purging only needs to look at the oldest ones. A removal
+	// stays in here even if the vehicle has changed since then, in which
+	// case it is simply discarded when it gets to the head.
+	private final Queue<Entry<T>> removals = new ArrayDeque<Entry<T>>();
+
+	// How long removals are remembered
+	private static final long REMOVAL_RETENTION_MSEC = 10 * Time.MS_PER_MIN;
+
+	/**
+	 * The latest value for a vehicle
+	 */
+	private static class Entry<T> {
+		private final String vehicleId;
+		private final long sequence;
+		private final long time;
+		private final T value;
+
+		private Entry(String vehicleId, long sequence, long time, T value) {
+			this.vehicleId = vehicleId;
+			this.sequence = sequence;
+			this.time = time;
+			this.value = value;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Records the new value for the vehicle.
+	 *
+	 * @param vehicleId
+	 * @param value
+	 *            The new value, or null if the data for the vehicle has been
+	 *            removed
+	 */
+	public synchronized void update(String vehicleId, T value) {
+		Entry<T> oldEntry = entriesByVehicle.get(vehicleId);
+		if (oldEntry != null)
+			vehiclesBySequence.remove(oldEntry.sequence);
+		else if (value == null)
+			// Nothing to remove
+			return;
+
+		long now = System.currentTimeMillis();
+		++sequence;
+		Entry<T> entry = new Entry<T>(vehicleId, sequence, now, value);
+		entriesByVehicle.put(vehicleId, entry);
+		vehiclesBySequence.put(sequence, vehicleId);
+		if (value == null)
+			removals.add(entry);
+
+		purgeRemovals(now);
+	}
+
+	/**
+	 * Removes the removals that are older than REMOVAL_RETENTION_MSEC. Since
+	 * the removals queue is ordered by time only need to look at its head, so
+	 * this is quick even for a large fleet.
+	 *
+	 * @param now
+	 */
+	private void purgeRemovals(long now) {
+		while (!removals.isEmpty()
+				&& removals.peek().time <= now - REMOVAL_RETENTION_MSEC) {
+			Entry<T> removal = removals.remove();
+
+			// If the vehicle changed since it was removed then the removal
+			// is no longer its latest entry and there is nothing to purge
+			if (entriesByVehicle.get(removal.vehicleId) != removal)
+				continue;
+
+			entriesByVehicle.remove(removal.vehicleId);
+			vehiclesBySequence.remove(removal.sequence);
+			purgedSequence = removal.sequence;
+		}
+	}
+
+	/**
+	 * Returns the changes since the specified sequence. If the epoch is not
+	 * the current one, or the removals since the sequence have already been
+	 * purged, then the full dataset is returned.
+	 *
+	 * @param sinceEpoch
+	 *            The epoch returned by the previous call, or 0 for the first
+	 *            call
+	 * @param sinceSequence
+	 *            The sequence returned by the previous call
+	 * @return The changes. A null value for a vehicle means it was removed.
+	 */
+	public synchronized IpcChanges<T> getChangesSince(long sinceEpoch,
+			long sinceSequence) {
+		Map<String, T> changes = new HashMap<String, T>();
+		if (sinceEpoch != epoch || sinceSequence < purgedSequence
+				|| sinceSequence > sequence) {
+			for (Map.Entry<String, Entry<T>> mapEntry :
+					entriesByVehicle.entrySet()) {
+				if (mapEntry.getValue().value != null)
+					changes.put(mapEntry.getKey(), mapEntry.getValue().value);
+			}
+			return new IpcChanges<T>(epoch, sequence, true, changes);
+		}
+
+		for (String vehicleId :
+				vehiclesBySequence.tailMap(sinceSequence, false).values()) {
+			changes.put(vehicleId, entriesByVehicle.get(vehicleId).value);
+		}
+		return new IpcChanges<T>(epoch, sequence, false, changes);
+	}
+}
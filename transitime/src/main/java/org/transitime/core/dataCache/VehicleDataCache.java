@@ -36,6 +36,7 @@ import org.transitime.db.hibernate.HibernateUtils;
 import org.transitime.db.structs.AvlReport;
 import org.transitime.db.structs.Route;
 import org.transitime.db.structs.VehicleConfig;
+import org.transitime.ipc.data.IpcChanges;
 import org.transitime.ipc.data.IpcVehicleComplete;
 import org.transitime.utils.ConcurrentHashMapNullKeyOk;
 import org.transitime.utils.Time;
@@ -84,6 +85,11 @@ public class VehicleDataCache {
     private Map<String, VehicleConfig> vehicleConfigByTrackerIdMap =
     		new HashMap<String, VehicleConfig>();
     
+    // The latest vehicle info for each vehicle so that clients such as the
+    // GTFS-realtime vehicle positions feed can get just what changed
+    private final VehicleChangeLog<IpcVehicleComplete> vehicleChangeLog =
+    		new VehicleChangeLog<IpcVehicleComplete>();
+    
     // So can determine how long since data was read from db
     private long dbReadTime;
     
@@ -538,5 +544,29 @@ public class VehicleDataCache {
 		updateVehiclesByRouteMap(originalVehicle, vehicle);
 		updateVehicleIdsByBlockMap(originalVehicle, vehicle);
 		updateVehiclesMap(vehicle);
+		
+		// Record the change. Schedule based vehicles are not real vehicles
+		// so they are treated as removed.
+		vehicleChangeLog.update(vehicle.getId(),
+				vehicle.isForSchedBasedPred() ? null : vehicle);
+	}
+
+	/**
+	 * Returns the vehicles that changed since the specified sequence. For
+	 * clients such as the GTFS-realtime vehicle positions feed that want to
+	 * keep their own copy of the vehicle data up to date. Schedule based
+	 * vehicles are not included. Unlike getVehicles() vehicles with old AVL
+	 * reports are not filtered out so that is up to the client.
+	 * 
+	 * @param sinceEpoch
+	 *            Epoch from the previous call, or 0 if first call
+	 * @param sinceSequence
+	 *            Sequence from the previous call
+	 * @return The changed vehicles keyed by vehicle ID. A null value means
+	 *         the vehicle was removed.
+	 */
+	public IpcChanges<IpcVehicleComplete> getVehicleChangesSince(
+			long sinceEpoch, long sinceSequence) {
+		return vehicleChangeLog.getChangesSince(sinceEpoch, sinceSequence);
 	}
 }
@@ -186,6 +186,10 @@ public class PredictionAccuracyModule extends Module {
 		logger.info("Started module {} for agencyId={}", 
 				getClass().getName(), getAgencyId());
 		
+		// Make sure the rollups still being accumulated are written if
+		// the core is shut down
+		PredictionAccuracyRollups.start();
+		
 		// No need to run at startup since internal predictions won't be
 		// generated yet. So sleep a bit first.
 		Time.sleep(getTimeBetweenPollingPredictionsMsec());
@@ -203,6 +207,9 @@ public class PredictionAccuracyModule extends Module {
 				// Make sure old predictions that were never matched to an
 				// arrival/departure don't stick around taking up memory.
 				clearStalePredictions();
+				// Write out the prediction accuracy rollups for the hours
+				// that are over
+				PredictionAccuracyRollups.writeCompletedHours(new Date());
 				
 			} catch (Exception e) {
 				logger.error("Error accessing predictions feed {}", e, e);
@@ -530,5 +537,8 @@ public class PredictionAccuracyModule extends Module {
 		logger.debug("Storing prediction accuracy object to db. {}",
 				predAccuracy);
 		Core.getInstance().getDbLogger().add(predAccuracy);
+
+		// Also summarize it for the prediction accuracy reports
+		PredictionAccuracyRollups.add(predAccuracy);
 	}
 }
@@ -0,0 +1,335 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.core.predAccuracy;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.db.hibernate.HibernateUtils;
+import org.transitime.db.structs.Agency;
+import org.transitime.db.structs.PredictionAccuracy;
+import org.transitime.db.structs.PredictionAccuracyRollup;
+import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThread;
+
+/**
+ * Accumulates PredictionAccuracy data in memory into per route, stop, hour,
+ * prediction length bucket, and prediction source histograms. Once the hour
+ * is over the histograms are written to the database as
+ * PredictionAccuracyRollup objects so that the prediction accuracy reports
+ * can query the much smaller rollup table. The hours are those of the agency
+ * time zone, which matters for time zones that are not offset from UTC by a
+ * whole number of hours. Whatever hasn't been written yet when the core is
+ * shut down is written then.
+ */
+public class PredictionAccuracyRollups {
+
+	// The histograms being accumulated
+	private static final Map<RollupKey, SortedMap<Integer, Integer>> histograms =
+			new HashMap<RollupKey, SortedMap<Integer, Integer>>();
+
+	// For determining the start of the hour. Read from the agency when
+	// first needed.
+	private static volatile TimeZone timezone = null;
+
+	private static boolean shutdownHookAdded = false;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(PredictionAccuracyRollups.class);
+
+	/********************** Config Params **************************/
+
+	private static final BooleanConfigValue storeRollups =
+			new BooleanConfigValue("transitime.predAccuracy.storeRollups",
+					true,
+					"Whether prediction accuracy data should also be "
+					+ "summarized by route, stop, hour, prediction length, "
+					+ "and prediction source into the "
+					+ "PredictionAccuracyRollup table so that the prediction "
+					+ "accuracy reports can be generated quickly.");
+
+	/**
+	 * Key for map of histograms
+	 */
+	private static class RollupKey {
+		private final long hourStart;
+		private final String routeId;
+		private final String routeShortName;
+		private final String stopId;
+		private final int predictionLengthBucket;
+		private final String predictionSource;
+		private final Boolean affectedByWaitStop;
+
+		private RollupKey(long hourStart, String routeId,
+				String routeShortName, String stopId,
+				int predictionLengthBucket, String predictionSource,
+				Boolean affectedByWaitStop) {
+			this.hourStart = hourStart;
+			this.routeId = routeId;
+			this.routeShortName = routeShortName;
+			this.stopId = stopId;
+			this.predictionLengthBucket = predictionLengthBucket;
+			this.predictionSource = predictionSource;
+			this.affectedByWaitStop = affectedByWaitStop;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + (int) (hourStart ^ (hourStart >>> 32));
+			result = prime * result + ((routeId == null) ? 0 : routeId.hashCode());
+			result = prime * result + ((routeShortName == null) ? 0
+					: routeShortName.hashCode());
+			result = prime * result + ((stopId == null) ? 0 : stopId.hashCode());
+			result = prime * result + predictionLengthBucket;
+			result = prime * result + ((predictionSource == null) ? 0
+					: predictionSource.hashCode());
+			result = prime * result + ((affectedByWaitStop == null) ? 0
+					: affectedByWaitStop.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			RollupKey other = (RollupKey) obj;
+			return hourStart == other.hourStart
+					&& predictionLengthBucket == other.predictionLengthBucket
+					&& equal(routeId, other.routeId)
+					&& equal(routeShortName, other.routeShortName)
+					&& equal(stopId, other.stopId)
+					&& equal(predictionSource, other.predictionSource)
+					&& equal(affectedByWaitStop, other.affectedByWaitStop);
+		}
+
+		private static boolean equal(Object o1, Object o2) {
+			return o1 == null ? o2 == null : o1.equals(o2);
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Makes sure that the histograms that haven't been written yet are
+	 * written when the core is shut down. Nothing is done if the rollups are
+	 * not being stored.
+	 */
+	public static synchronized void start() {
+		if (!storeRollups.getValue() || shutdownHookAdded)
+			return;
+
+		shutdownHookAdded = true;
+		Runtime.getRuntime().addShutdownHook(new NamedThread(new Runnable() {
+			@Override
+			public void run() {
+				flushAllToDb();
+			}
+		}, "predictionAccuracyRollupsShutdown"));
+	}
+
+	/**
+	 * @return the time zone of the agency, or the default time zone if the
+	 *         agency is not available
+	 */
+	private static TimeZone getTimeZone() {
+		if (timezone == null) {
+			Agency agency = Core.isCoreApplication() ?
+					Core.getInstance().getDbConfig().getFirstAgency() : null;
+			timezone = agency != null ?
+					agency.getTimeZone() : TimeZone.getDefault();
+		}
+		return timezone;
+	}
+
+	/**
+	 * Returns the start of the hour, in the specified time zone, that the
+	 * time is in.
+	 *
+	 * @param time
+	 *            epoch time in msec
+	 * @param timezone
+	 * @return start of the hour, epoch time in msec
+	 */
+	static long getHourStart(long time, TimeZone timezone) {
+		long localTime = time + timezone.getOffset(time);
+		return time - Math.floorMod(localTime, (long) Time.MS_PER_HOUR);
+	}
+
+	/**
+	 * Adds the prediction accuracy info to the appropriate histogram. Does
+	 * nothing if there is no arrival/departure time for the prediction or if
+	 * the prediction is too long to be included in the reports.
+	 *
+	 * @param predAccuracy
+	 */
+	public static void add(PredictionAccuracy predAccuracy) {
+		if (!storeRollups.getValue()
+				|| predAccuracy.getArrivalDepartureTime() == null)
+			return;
+
+		int bucket = PredictionAccuracyRollup.getPredictionLengthBucket(
+				predAccuracy.getPredictionLengthMsecs() / Time.MS_PER_SEC);
+		if (bucket < 0)
+			return;
+
+		long hourStart = getHourStart(
+				predAccuracy.getArrivalDepartureTime().getTime(),
+				getTimeZone());
+		PredictionAccuracyRollup fullRollup = add(hourStart,
+				predAccuracy.getRouteId(), predAccuracy.getRouteShortName(),
+				predAccuracy.getStopId(), bucket,
+				predAccuracy.getPredictionSource(),
+				predAccuracy.isAffectedByWaitStop(),
+				predAccuracy.getPredictionAccuracyMsecs() / Time.MS_PER_SEC);
+
+		if (fullRollup != null)
+			Core.getInstance().getDbLogger().add(fullRollup);
+	}
+
+	/**
+	 * Adds the prediction accuracy to the histogram for the key.
+	 *
+	 * @return the rollup for the histogram if it has gotten too big and
+	 *         needs to be written now, otherwise null
+	 */
+	static PredictionAccuracyRollup add(long hourStart, String routeId,
+			String routeShortName, String stopId, int bucket,
+			String predictionSource, Boolean affectedByWaitStop,
+			int accuracySecs) {
+		RollupKey key = new RollupKey(hourStart, routeId, routeShortName,
+				stopId, bucket, predictionSource, affectedByWaitStop);
+
+		PredictionAccuracyRollup fullRollup = null;
+		synchronized (histograms) {
+			SortedMap<Integer, Integer> histogram = histograms.get(key);
+			if (histogram == null) {
+				histogram = new TreeMap<Integer, Integer>();
+				histograms.put(key, histogram);
+			}
+			Integer count = histogram.get(accuracySecs);
+			histogram.put(accuracySecs, count == null ? 1 : count + 1);
+
+			// If the histogram has gotten too big to be stored then write
+			// it out now and start a new one
+			if (histogram.size() >= PredictionAccuracyRollup.MAX_HISTOGRAM_ENTRIES) {
+				histograms.remove(key);
+				fullRollup = createRollup(key, histogram);
+			}
+		}
+		return fullRollup;
+	}
+
+	/**
+	 * Writes the histograms for the hours that are over to the database.
+	 * Histograms for the current hour are kept so that they can continue to
+	 * be added to. To be called periodically.
+	 *
+	 * @param now
+	 */
+	public static void writeCompletedHours(Date now) {
+		List<PredictionAccuracyRollup> rollups = removeHoursBefore(
+				getHourStart(now.getTime(), getTimeZone()));
+
+		logger.info("Storing {} prediction accuracy rollups to db.",
+				rollups.size());
+		for (PredictionAccuracyRollup rollup : rollups)
+			Core.getInstance().getDbLogger().add(rollup);
+	}
+
+	/**
+	 * Removes the histograms for the hours before the one specified.
+	 *
+	 * @param hourStart
+	 * @return the rollups for the histograms that were removed
+	 */
+	static List<PredictionAccuracyRollup> removeHoursBefore(long hourStart) {
+		List<PredictionAccuracyRollup> rollups =
+				new ArrayList<PredictionAccuracyRollup>();
+		synchronized (histograms) {
+			Iterator<Map.Entry<RollupKey, SortedMap<Integer, Integer>>> iterator =
+					histograms.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<RollupKey, SortedMap<Integer, Integer>> entry =
+						iterator.next();
+				if (entry.getKey().hourStart < hourStart) {
+					rollups.add(createRollup(entry.getKey(), entry.getValue()));
+					iterator.remove();
+				}
+			}
+		}
+		return rollups;
+	}
+
+	/**
+	 * Writes all the histograms directly to the database, including the ones
+	 * for the current hour. Called when the core is shut down, at which point
+	 * the DataDbLogger queues are no longer necessarily being written.
+	 */
+	private static void flushAllToDb() {
+		List<PredictionAccuracyRollup> rollups =
+				removeHoursBefore(Long.MAX_VALUE);
+		if (rollups.isEmpty())
+			return;
+
+		Session session = null;
+		Transaction tx = null;
+		try {
+			session = HibernateUtils.getSession();
+			tx = session.beginTransaction();
+			for (PredictionAccuracyRollup rollup : rollups)
+				session.save(rollup);
+			tx.commit();
+			logger.info("Stored {} prediction accuracy rollups to db at "
+					+ "shutdown.", rollups.size());
+		} catch (HibernateException e) {
+			logger.error("Exception storing {} prediction accuracy rollups "
+					+ "to db at shutdown.", rollups.size(), e);
+			if (tx != null)
+				tx.rollback();
+		} finally {
+			if (session != null)
+				session.close();
+		}
+	}
+
+	private static PredictionAccuracyRollup createRollup(RollupKey key,
+			SortedMap<Integer, Integer> histogram) {
+		return new PredictionAccuracyRollup(new Date(key.hourStart),
+				key.routeId, key.routeShortName, key.stopId,
+				key.predictionLengthBucket, key.predictionSource,
+				key.affectedByWaitStop, histogram);
+	}
+}
@@ -19,26 +19,23 @@ package org.transitime.core.predictiongenerator;
 
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.beanutils.BeanComparator;
 import org.apache.commons.lang3.time.DateUtils;
-import org.transitime.applications.Core;
 import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.core.Indices;
 import org.transitime.core.VehicleState;
-import org.transitime.core.dataCache.StopArrivalDepartureCache;
-import org.transitime.core.dataCache.StopArrivalDepartureCacheKey;
-import org.transitime.core.dataCache.TripDataHistoryCache;
+import org.transitime.core.dataCache.StopPathTraversalCache;
+import org.transitime.core.dataCache.StopPathTraversalCache.Traversal;
+import org.transitime.core.dataCache.TripDataHistoryCacheInterface;
 import org.transitime.core.dataCache.TripKey;
-import org.transitime.db.structs.ArrivalDeparture;
 import org.transitime.db.structs.Block;
-import org.transitime.gtfs.DbConfig;
 import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.utils.Time;
 
 /**
  * Commonly-used methods for PredictionGenerators that use historical cached data.
@@ -49,119 +46,63 @@ public class HistoricalPredictionLibrary {
 			"transitime.prediction.closestvehiclestopsahead", new Integer(2),
 			"Num stops ahead a vehicle must be to be considers in the closest vehicle calculation");
 	
+	/**
+	 * Returns the most recent traversal of the stop path of the indices by
+	 * another vehicle on the same service day.
+	 * 
+	 * @param currentVehicleState
+	 * @param indices
+	 * @return the traversal, or null if there isn't one
+	 */
+	private static Traversal getLastVehicleTraversal(VehicleState currentVehicleState, Indices indices) {
+		/* TODO how do we handle the the first stop path. Where do we get the first stop id. */
+		if (indices.atBeginningOfTrip())
+			return null;
+
+		long startOfDay = Time.getStartOfDay(currentVehicleState.getMatch().getAvlTime());
+
+		return StopPathTraversalCache.getInstance().getLastTraversal(
+				indices.getStopPath().getTripPatternId(), indices.getStopPathIndex(),
+				currentVehicleState.getVehicleId(), startOfDay);
+	}
+
+	/**
+	 * Returns how long the last vehicle took to traverse the stop path of the
+	 * indices.
+	 * 
+	 * @param currentVehicleState
+	 * @param indices
+	 * @return travel time in msec, or -1 if no other vehicle has traversed
+	 *         the stop path today or if the data went backwards
+	 */
 	public static long getLastVehicleTravelTime(VehicleState currentVehicleState, Indices indices) {
+		Traversal traversal = getLastVehicleTraversal(currentVehicleState, indices);
+		if (traversal == null || traversal.getTravelTime() <= 0)
+			return -1;
 
-		StopArrivalDepartureCacheKey nextStopKey = new StopArrivalDepartureCacheKey(
-				indices.getStopPath().getStopId(),
-				new Date(currentVehicleState.getMatch().getAvlTime()));
-										
-		/* TODO how do we handle the the first stop path. Where do we get the first stop id. */ 		 
-		if(!indices.atBeginningOfTrip())
-		{						
-			String currentStopId = indices.getPreviousStopPath().getStopId();
-			
-			StopArrivalDepartureCacheKey currentStopKey = new StopArrivalDepartureCacheKey(currentStopId,
-					new Date(currentVehicleState.getMatch().getAvlTime()));
-	
-			List<ArrivalDeparture> currentStopList = StopArrivalDepartureCache.getInstance().getStopHistory(currentStopKey);
-	
-			List<ArrivalDeparture> nextStopList = StopArrivalDepartureCache.getInstance().getStopHistory(nextStopKey);
-	
-			if (currentStopList != null && nextStopList != null) {
-				// lists are already sorted when put into cache.
-				for (ArrivalDeparture currentArrivalDeparture : currentStopList) {
-					
-					if(currentArrivalDeparture.isDeparture() && currentArrivalDeparture.getVehicleId() != currentVehicleState.getVehicleId())
-					{
-						ArrivalDeparture found;
-											
-						if ((found = findMatchInList(nextStopList, currentArrivalDeparture)) != null) {
-							if(found.getTime() - currentArrivalDeparture.getTime()>0)
-							{																
-								return found.getTime() - currentArrivalDeparture.getTime();
-							}else
-							{
-								// must be going backwards
-								return -1;
-							}
-						}else
-						{
-							return -1;
-						}
-					}
-				}
-			}
-		}
-		return -1;
+		return traversal.getTravelTime();
 	}
+
+	/**
+	 * Returns the indices of the last vehicle that traversed the stop path of
+	 * the indices.
+	 * 
+	 * @param currentVehicleState
+	 * @param indices
+	 * @return indices of the last vehicle, or null if no other vehicle has
+	 *         traversed the stop path today or if the data went backwards
+	 */
 	public static Indices getLastVehicleIndices(VehicleState currentVehicleState, Indices indices) {
+		Traversal traversal = getLastVehicleTraversal(currentVehicleState, indices);
+		if (traversal == null || traversal.getTravelTime() <= 0)
+			return null;
 
-		StopArrivalDepartureCacheKey nextStopKey = new StopArrivalDepartureCacheKey(
-				indices.getStopPath().getStopId(),
-				new Date(currentVehicleState.getMatch().getAvlTime()));
-										
-		/* TODO how do we handle the the first stop path. Where do we get the first stop id. */ 		 
-		if(!indices.atBeginningOfTrip())
-		{						
-			String currentStopId = indices.getPreviousStopPath().getStopId();
-			
-			StopArrivalDepartureCacheKey currentStopKey = new StopArrivalDepartureCacheKey(currentStopId,
-					new Date(currentVehicleState.getMatch().getAvlTime()));
-	
-			List<ArrivalDeparture> currentStopList = StopArrivalDepartureCache.getInstance().getStopHistory(currentStopKey);
-	
-			List<ArrivalDeparture> nextStopList = StopArrivalDepartureCache.getInstance().getStopHistory(nextStopKey);
-	
-			if (currentStopList != null && nextStopList != null) {
-				// lists are already sorted when put into cache.
-				for (ArrivalDeparture currentArrivalDeparture : currentStopList) {
-					
-					if(currentArrivalDeparture.isDeparture() && currentArrivalDeparture.getVehicleId() != currentVehicleState.getVehicleId())
-					{
-						ArrivalDeparture found;
-											
-						if ((found = findMatchInList(nextStopList, currentArrivalDeparture)) != null) {
-							if(found.getTime() - currentArrivalDeparture.getTime()>0)
-							{	
-								Block currentBlock=null;
-								/* block is transient in arrival departure so when read from database need to get from dbconfig. */ 
-								if(currentArrivalDeparture.getBlock()==null&&currentArrivalDeparture.getServiceId()!=null && currentArrivalDeparture.getBlockId()!=null)
-								{																																			
-									DbConfig dbConfig = Core.getInstance().getDbConfig();
-									
-									currentBlock=dbConfig.getBlock(currentArrivalDeparture.getServiceId(), currentArrivalDeparture.getBlockId());
-								}else
-								{
-									currentBlock=currentArrivalDeparture.getBlock();
-								}				
-								if(currentBlock!=null)
-									return new Indices(currentBlock, currentArrivalDeparture.getTripIndex(), found.getStopPathIndex(), 0);
-							}else
-							{
-								// must be going backwards
-								return null;
-							}
-						}else
-						{
-							return null;
-						}
-					}
-				}
-			}
-		}
-		return null;
-	}
-	/* TODO could also make it a requirement that it is on the same route as the one we are generating prediction for */
-	private static ArrivalDeparture findMatchInList(List<ArrivalDeparture> nextStopList,
-			ArrivalDeparture currentArrivalDeparture) {
-		for (ArrivalDeparture nextStopArrivalDeparture : nextStopList) {			
-			if (currentArrivalDeparture.getVehicleId() == nextStopArrivalDeparture.getVehicleId()
-					&& currentArrivalDeparture.getTripId() == nextStopArrivalDeparture.getTripId()
-					&&  currentArrivalDeparture.isDeparture() && nextStopArrivalDeparture.isArrival() ) {
-				return nextStopArrivalDeparture;
-			}
-		}
-		return null;
+		Block block = StopPathTraversalCache.getBlock(traversal.getServiceId(),
+				traversal.getBlockId(), null);
+		if (block == null)
+			return null;
+
+		return new Indices(block, traversal.getTripIndex(), traversal.getStopPathIndex(), 0);
 	}
 
 	private static VehicleState getClosestVehicle(List<VehicleState> vehiclesOnRoute, Indices indices,
@@ -188,18 +129,6 @@ public class HistoricalPredictionLibrary {
 		return result;
 	}
 
-	private static boolean isAfter(List<String> stops, String stop1, String stop2) {
-		if (stops != null && stop1 != null && stop2 != null) {
-			if (stops.contains(stop1) && stops.contains(stop2)) {
-				if (stops.indexOf(stop1) > stops.indexOf(stop2))
-					return true;
-				else
-					return false;
-			}
-		}
-		return false;
-	}
-
 	private static Integer numAfter(List<String> stops, String stop1, String stop2) {
 		if (stops != null && stop1 != null && stop2 != null)
 			if (stops.contains(stop1) && stops.contains(stop2))
@@ -208,11 +137,33 @@ public class HistoricalPredictionLibrary {
 		return null;
 	}
 
-	public static List<Integer> lastDaysTimes(TripDataHistoryCache cache, String tripId, int stopPathIndex, Date startDate,
+	public static List<Integer> lastDaysTimes(TripDataHistoryCacheInterface cache, String tripId, int stopPathIndex, Date startDate,
 			Integer startTime, int num_days_look_back, int num_days) {
 
-		List<Integer> times = new ArrayList<Integer>();
-		List<ArrivalDeparture> results = null;
+		double[] found = new double[num_days];
+		int num_found = lastDaysTimes(cache, tripId, stopPathIndex, startDate, startTime, num_days_look_back, found, num_days);
+
+		List<Integer> times = new ArrayList<Integer>(num_found);
+		for (int i = 0; i < num_found; i++) {
+			times.add(new Integer((int) found[i]));
+		}
+		return times;
+	}
+
+	/**
+	 * Same as lastDaysTimes() above but puts the times into an array provided
+	 * by the caller instead of creating a new List of Integers. This allows
+	 * callers that do this for every stop path, such as the Kalman prediction
+	 * generator, to reuse a scratch array.
+	 *
+	 * @param times
+	 *            Array that the times are written to. Must be at least
+	 *            num_days long.
+	 * @return the number of times written to the array
+	 */
+	public static int lastDaysTimes(TripDataHistoryCacheInterface cache, String tripId, int stopPathIndex, Date startDate,
+			Integer startTime, int num_days_look_back, double[] times, int num_days) {
+
 		int num_found = 0;
 		/*
 		 * TODO This could be smarter about the dates it looks at by looking at
@@ -226,41 +177,22 @@ public class HistoricalPredictionLibrary {
 
 			TripKey tripKey = new TripKey(tripId, nearestDay, startTime);
 
-			results = cache.getTripHistory(tripKey);
-
-			if (results != null) {
-
-				ArrivalDeparture arrival = getArrival(stopPathIndex, results);
-				
-				ArrivalDeparture departure = TripDataHistoryCache.findPreviousDepartureEvent(results, arrival);
-														
-				if (arrival != null && departure != null) {
+			/* Use the times directly so don't depend on the cache holding ArrivalDeparture objects. */
+			long arrivalTime = cache.findEventTime(tripKey, stopPathIndex, true);
+			
+			long departureTime = cache.findEventTime(tripKey, stopPathIndex - 1, false);
+													
+			if (arrivalTime >= 0 && departureTime >= 0) {
 
-					times.add(new Integer((int) (timeBetweenStops(departure, arrival))));
-						num_found++;
-				}			
-			}
+				times[num_found] = (int) (timeBetweenStops(departureTime, arrivalTime));
+					num_found++;
+			}			
 		}
-		return times;		
+		return num_found;		
 	}
-	private static ArrivalDeparture getArrival(int stopPathIndex, List<ArrivalDeparture> results)
-	{
-		for(ArrivalDeparture result:results)
-		{
-			if(result.isArrival()&&result.getStopPathIndex()==stopPathIndex)
-			{
-				return result;
-			}
-		}
-		return null;	
-	}
-	private static long timeBetweenStops(ArrivalDeparture ad1, ArrivalDeparture ad2) {
+	private static long timeBetweenStops(long time1, long time2) {
 		
-		return Math.abs(ad2.getTime() - ad1.getTime());		
-	}
-
-	private static <T> Iterable<T> emptyIfNull(Iterable<T> iterable) {
-		return iterable == null ? Collections.<T> emptyList() : iterable;
+		return Math.abs(time2 - time1);		
 	}
 
 }
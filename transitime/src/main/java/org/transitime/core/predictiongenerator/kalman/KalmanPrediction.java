@@ -17,70 +17,96 @@ public class KalmanPrediction
 	 */
 	public KalmanPredictionResult predict(TripSegment last_vehicle_segment,TripSegment historical_segments[], double last_prediction_error) throws Exception
 	{
-		KalmanPredictionResult result=null; 								
+		double historical_durations[]=new double[historical_segments.length];
+		for(int i=0;i<historical_segments.length;i++)
+		{
+			historical_durations[i]=historical_segments[i].getDestination().getTime()-historical_segments[i].getOrigin().getTime();
+		}
+		double last_vehicle_duration=last_vehicle_segment.getDestination().getTime()-last_vehicle_segment.getOrigin().getTime();
+		
+		double result[]=new double[RESULT_SIZE];
+		predict(last_vehicle_duration, historical_durations, historical_durations.length, last_prediction_error, result);
 						
-		double average=historicalAverage(historical_segments);
+		return new KalmanPredictionResult(result[RESULT_PREDICTION], result[RESULT_FILTER_ERROR]);				
+	}
+	
+	/** Index of the predicted duration in the result array of the primitive predict() */
+	public static final int RESULT_PREDICTION=0;
+	/** Index of the filter error in the result array of the primitive predict() */
+	public static final int RESULT_FILTER_ERROR=1;
+	/** Size of the result array needed by the primitive predict() */
+	public static final int RESULT_SIZE=2;
+	
+	/**
+	 * Same as predict() but works on durations instead of TripSegments and
+	 * puts the results into an array provided by the caller. This way nothing
+	 * is allocated, which matters since this is done for every stop path of
+	 * every prediction.
+	 * 
+	 * @param last_vehicle_duration The time the last vehicle took to cover the same segment
+	 * @param historical_durations The times taken on previous days for the same trip. Only the first count values are used.
+	 * @param count Number of historical durations to use
+	 * @param last_prediction_error From the previous segments calculation result.
+	 * @param result Array of at least RESULT_SIZE that the prediction and the filter error are written to
+	 * @throws IllegalArgumentException if there are no historical durations
+	 */
+	public static void predict(double last_vehicle_duration, double historical_durations[], int count, double last_prediction_error, double result[])
+	{
+		double average=historicalAverage(historical_durations, count);
 		
-		double variance = historicalVariance(historical_segments, average);
+		double variance = historicalVariance(historical_durations, count, average);
 						
 		double gain=gain(average, variance, last_prediction_error );	
 		
 		double loop_gain=1-gain;
 		
-		result=new KalmanPredictionResult(prediction(gain, loop_gain, historical_segments, last_vehicle_segment),filterError( variance, gain));
-						
-		return result;				
+		result[RESULT_PREDICTION]=prediction(gain, loop_gain, historical_durations[count-1], last_vehicle_duration);
+		result[RESULT_FILTER_ERROR]=filterError(variance, gain);
 	}
-	private double historicalAverage(TripSegment historical_segments[]) throws Exception	
+	private static double historicalAverage(double historical_durations[], int count)	
 	{
-		if(historical_segments.length>0)
+		if(count>0)
 		{
-			long total=0;
-			for(int i=0;i<historical_segments.length;i++)
+			double total=0;
+			for(int i=0;i<count;i++)
 			{
-				long duration=historical_segments[i].getDestination().getTime()-historical_segments[i].getOrigin().getTime();
-				total=total+duration;
+				total=total+historical_durations[i];
 			}
-			return (double) (total/historical_segments.length);
+			/* Truncate since average has always been determined using integer msec */
+			return (double) (long) (total/count);
 		}else
 		{
-			throw new Exception("Cannot average nothing");
+			throw new IllegalArgumentException("Cannot average nothing");
 		}				
 	}
-	private double historicalVariance(TripSegment historical_segments[], double average)		
+	private static double historicalVariance(double historical_durations[], int count, double average)		
 	{			
 		double total=0;
 		
-		for(int i=0;i<historical_segments.length;i++)
+		for(int i=0;i<count;i++)
 		{
-			long duration=historical_segments[i].getDestination().getTime()-historical_segments[i].getOrigin().getTime();
-			
-			double diff=duration-average;
+			double diff=historical_durations[i]-average;
 			
 			double long_diff_squared=diff*diff;
 			
 			total=total+long_diff_squared;
 		}		
-		return total/historical_segments.length;		
+		return total/count;		
 	}
-	private double filterError(double variance, double loop_gain)
+	private static double filterError(double variance, double loop_gain)
 	{
 		return variance*loop_gain;
 	}
 	
-	private double gain(double average, double variance, double last_prediction_error )		
+	private static double gain(double average, double variance, double last_prediction_error )		
 	{
 		double gain=(last_prediction_error+variance)/(last_prediction_error+(2*variance));
 		return gain;				
 	}
 	
-	private double prediction(double gain, double loop_gain, TripSegment historical_segments[],  TripSegment last_vechicle_segment)	
+	private static double prediction(double gain, double loop_gain, double historical_duration, double last_vehicle_duration)	
 	{
 		/* TODO This may be better use the historical average rather than just the vehicle on previous day. This would damping issues with last days value being dramtically different. */
-		long historical_duration=historical_segments[historical_segments.length-1].getDestination().getTime()-historical_segments[historical_segments.length-1].getOrigin().getTime();
-		
-		long last_vehicle_duration=last_vechicle_segment.getDestination().getTime()-last_vechicle_segment.getOrigin().getTime();
-				
 		double prediction=(loop_gain*last_vehicle_duration)+(gain*historical_duration);
 		
 		return prediction;	
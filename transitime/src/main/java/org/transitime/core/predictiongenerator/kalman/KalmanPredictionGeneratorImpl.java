@@ -2,7 +2,6 @@ package org.transitime.core.predictiongenerator.kalman;
 
 import java.util.Calendar;
 import java.util.Date;
-import java.util.List;
 
 import org.apache.commons.lang3.time.DateUtils;
 import org.slf4j.Logger;
@@ -16,7 +15,8 @@ import org.transitime.core.VehicleState;
 import org.transitime.core.dataCache.KalmanErrorCache;
 import org.transitime.core.dataCache.KalmanErrorCacheKey;
 import org.transitime.core.dataCache.StopPathPredictionCache;
-import org.transitime.core.dataCache.TripDataHistoryCache;
+import org.transitime.core.dataCache.TripDataHistoryCacheFactory;
+import org.transitime.core.dataCache.TripDataHistoryCacheInterface;
 import org.transitime.core.dataCache.VehicleStateManager;
 import org.transitime.core.predictiongenerator.HistoricalPredictionLibrary;
 import org.transitime.core.predictiongenerator.PredictionComponentElementsGenerator;
@@ -53,6 +53,52 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 
 	private static final Logger logger = LoggerFactory.getLogger(KalmanPredictionGeneratorImpl.class);
 
+	/*
+	 * Per thread scratch arrays so that generating a prediction for a stop
+	 * path doesn't need to allocate. The historical times array is replaced
+	 * if the number of days is reconfigured to be larger.
+	 */
+	private static final ThreadLocal<double[]> historicalTimesScratch = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[0];
+		}
+	};
+	
+	private static final ThreadLocal<double[]> resultScratch = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[KalmanPrediction.RESULT_SIZE];
+		}
+	};
+	
+	/**
+	 * Returns the scratch array for the historical times for the current
+	 * thread, making sure it is large enough.
+	 */
+	private static double[] getHistoricalTimesScratch(int size) {
+		double[] times = historicalTimesScratch.get();
+		if (times.length < size) {
+			times = new double[size];
+			historicalTimesScratch.set(times);
+		}
+		return times;
+	}
+	
+	/**
+	 * Reads the times for the trip for previous days into the scratch array.
+	 * 
+	 * @return the number of days found
+	 */
+	private static int readLastDaysTimes(TripDataHistoryCacheInterface tripCache, VehicleState currentVehicleState,
+			Indices indices, double[] times) {
+		Date nearestDay = DateUtils.truncate(Calendar.getInstance().getTime(), Calendar.DAY_OF_MONTH);
+		
+		return HistoricalPredictionLibrary.lastDaysTimes(tripCache, currentVehicleState.getTrip().getId(),
+				indices.getStopPathIndex(), nearestDay, currentVehicleState.getTrip().getStartTime(),
+				maxKalmanDaysToSearch.getValue(), times, minKalmanDays.getValue());
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -63,9 +109,9 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 	@Override
 	public long getTravelTimeForPath(Indices indices, AvlReport avlReport) {
 
-		logger.debug("Calling Kalman prediction algorithm for : "+indices.toString());
+		logger.debug("Calling Kalman prediction algorithm for : {}", indices);
 		
-		TripDataHistoryCache tripCache = TripDataHistoryCache.getInstance();
+		TripDataHistoryCacheInterface tripCache = TripDataHistoryCacheFactory.getInstance();
 
 		KalmanErrorCache kalmanErrorCache = KalmanErrorCache.getInstance();
 		
@@ -83,73 +129,57 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 		 */
 		if (time > -1) {
 
-			logger.debug("Kalman has last vehicle info for : " +indices.toString());
+			logger.debug("Kalman has last vehicle info for : {}", indices);
 									
-			Date nearestDay = DateUtils.truncate(Calendar.getInstance().getTime(), Calendar.DAY_OF_MONTH);
-
-			List<Integer> lastDaysTimes = HistoricalPredictionLibrary.lastDaysTimes(tripCache, currentVehicleState.getTrip().getId(),
-					indices.getStopPathIndex(), nearestDay, currentVehicleState.getTrip().getStartTime(),
-					maxKalmanDaysToSearch.getValue(), minKalmanDays.getValue());
+			double[] lastDaysTimes = getHistoricalTimesScratch(minKalmanDays.getValue());
+			int numLastDaysTimes = readLastDaysTimes(tripCache, currentVehicleState, indices, lastDaysTimes);
 												
-			if(lastDaysTimes!=null)
-			{												
-				logger.debug("Kalman has " +lastDaysTimes.size()+ " historical values for : " +indices.toString());
-			}
+			logger.debug("Kalman has {} historical values for : {}", numLastDaysTimes, indices);
 			/*
 			 * if we have enough data start using Kalman filter otherwise revert
 			 * to extended class for prediction. 
 			 */	
-			if (lastDaysTimes != null && lastDaysTimes.size() >= minKalmanDays.getValue().intValue()) {
+			if (numLastDaysTimes >= minKalmanDays.getValue().intValue()) {
 
-				logger.debug("Generating Kalman prediction for : "+indices.toString());
+				logger.debug("Generating Kalman prediction for : {}", indices);
 				
 				try {
-
-					KalmanPrediction kalmanPrediction = new KalmanPrediction();
-
-					KalmanPredictionResult kalmanPredictionResult;
-
-					Vehicle vehicle = new Vehicle(avlReport.getVehicleId());
-
-					VehicleStopDetail originDetail = new VehicleStopDetail(null, 0, vehicle);
-					TripSegment[] historical_segments_k = new TripSegment[lastDaysTimes.size()];
-					for (int i = 0; i < lastDaysTimes.size() && i < maxKalmanDays.getValue(); i++) {
-						VehicleStopDetail destinationDetail = new VehicleStopDetail(null, lastDaysTimes.get(i),
-								vehicle);
-						historical_segments_k[i] = new TripSegment(originDetail, destinationDetail);
-					}
-
-					VehicleStopDetail destinationDetail_0_k_1 = new VehicleStopDetail(null, time, vehicle);
-
-					TripSegment ts_day_0_k_1 = new TripSegment(originDetail, destinationDetail_0_k_1);
-
-					TripSegment last_vehicle_segment = ts_day_0_k_1;
+					int numHistorical = Math.min(numLastDaysTimes, maxKalmanDays.getValue());
 								
 					Indices previousVehicleIndices = HistoricalPredictionLibrary.getLastVehicleIndices(currentVehicleState, indices);
 					
-					Double last_prediction_error = lastVehiclePredictionError(kalmanErrorCache, previousVehicleIndices);
+					double last_prediction_error = lastVehiclePredictionError(kalmanErrorCache, previousVehicleIndices);
 					
-					for(int i=0;i<historical_segments_k.length;i++)
-					{
-						logger.debug("Using historical value: " + historical_segments_k[i].getDuration() + " for : "+new KalmanErrorCacheKey(indices).toString());	
+					if (logger.isDebugEnabled()) {
+						KalmanErrorCacheKey key = new KalmanErrorCacheKey(indices);
+						for(int i=0;i<numHistorical;i++)
+						{
+							logger.debug("Using historical value: {} for : {}", lastDaysTimes[i], key);	
+						}
+						
+						logger.debug("Using error value: {} from: {}", last_prediction_error, new KalmanErrorCacheKey(previousVehicleIndices));
+						
+						//TODO this should also display the detail of which vehicle it choose as the last one.
+						logger.debug("Using last vehicle value: {} for : {}", time, indices);
 					}
 					
-					logger.debug("Using error value: " + last_prediction_error + " from: "+new KalmanErrorCacheKey(previousVehicleIndices).toString());
-					
-					//TODO this should also display the detail of which vehicle it choose as the last one.
-					logger.debug("Using last vehicle value: " + time + " for : "+ indices.toString());
-					
-					kalmanPredictionResult = kalmanPrediction.predict(last_vehicle_segment, historical_segments_k,
-							last_prediction_error);
+					double[] kalmanPredictionResult = resultScratch.get();
+					KalmanPrediction.predict(time, lastDaysTimes, numHistorical, last_prediction_error,
+							kalmanPredictionResult);
 
-					long predictionTime = (long) kalmanPredictionResult.getResult();
+					long predictionTime = (long) kalmanPredictionResult[KalmanPrediction.RESULT_PREDICTION];
+					double filterError = kalmanPredictionResult[KalmanPrediction.RESULT_FILTER_ERROR];
 
-					logger.debug("Setting Kalman error value: " + kalmanPredictionResult.getFilterError() + " for : "+ new KalmanErrorCacheKey(indices).toString());
+					if (logger.isDebugEnabled()) {
+						logger.debug("Setting Kalman error value: {} for : {}", filterError, new KalmanErrorCacheKey(indices));
+					}
 					
-					kalmanErrorCache.putErrorValue(indices, kalmanPredictionResult.getFilterError());
+					kalmanErrorCache.putErrorValue(indices, filterError);
 
-					logger.debug("Using Kalman prediction: " + predictionTime + " instead of "+alternative+" prediction: "
-							+ super.getTravelTimeForPath(indices, avlReport) +" for : " + indices.toString());
+					if (logger.isDebugEnabled()) {
+						logger.debug("Using Kalman prediction: {} instead of {} prediction: {} for : {}", 
+								predictionTime, alternative, super.getTravelTimeForPath(indices, avlReport), indices);
+					}
 					
 					if(storeTravelTimeStopPathPredictions.getValue())
 					{
@@ -167,15 +197,17 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 		return super.getTravelTimeForPath(indices, avlReport);
 	}
 
-	private Double lastVehiclePredictionError(KalmanErrorCache cache, Indices indices) {		
+	private double lastVehiclePredictionError(KalmanErrorCache cache, Indices indices) {		
 		Double result = cache.getErrorValue(indices);
 		if(result!=null)
 		{
-			logger.debug("Kalman Error value : "+result +" for key: "+new KalmanErrorCacheKey(indices).toString());
+			if (logger.isDebugEnabled())
+				logger.debug("Kalman Error value : {} for key: {}", result, new KalmanErrorCacheKey(indices));
 		}
 		else
 		{
-			logger.debug("Kalman Error value set to default: "+initialErrorValue.getValue() +" for key: "+new KalmanErrorCacheKey(indices).toString());
+			if (logger.isDebugEnabled())
+				logger.debug("Kalman Error value set to default: {} for key: {}", initialErrorValue.getValue(), new KalmanErrorCacheKey(indices));
 			return initialErrorValue.getValue();
 		}
 		return result;
@@ -190,7 +222,7 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 	@Override
 	public boolean hasDataForPath(Indices indices, AvlReport avlReport) {
 
-		TripDataHistoryCache tripCache = TripDataHistoryCache.getInstance();		
+		TripDataHistoryCacheInterface tripCache = TripDataHistoryCacheFactory.getInstance();		
 		VehicleStateManager vehicleStateManager = VehicleStateManager.getInstance();
 		VehicleState currentVehicleState = vehicleStateManager.getVehicleState(avlReport.getVehicleId());		
 	
@@ -201,12 +233,10 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 		 * little to say about todays.
 		 */
 		if (time > -1) {
-			Date nearestDay = DateUtils.truncate(Calendar.getInstance().getTime(), Calendar.DAY_OF_MONTH);
-			List<Integer> lastDaysTimes = HistoricalPredictionLibrary.lastDaysTimes(tripCache, currentVehicleState.getTrip().getId(),
-					indices.getStopPathIndex(), nearestDay, currentVehicleState.getTrip().getStartTime(),
-					maxKalmanDaysToSearch.getValue(), minKalmanDays.getValue());
+			double[] lastDaysTimes = getHistoricalTimesScratch(minKalmanDays.getValue());
+			int numLastDaysTimes = readLastDaysTimes(tripCache, currentVehicleState, indices, lastDaysTimes);
 			
-			return (lastDaysTimes != null && lastDaysTimes.size() >= minKalmanDays.getValue().intValue());
+			return (numLastDaysTimes >= minKalmanDays.getValue().intValue());
 		}
 		
 		return false;
@@ -11,7 +11,6 @@ import org.transitime.core.Indices;
 import org.transitime.core.PredictionGeneratorDefaultImpl;
 import org.transitime.core.VehicleState;
 
-import org.transitime.core.dataCache.TripDataHistoryCache;
 import org.transitime.core.dataCache.StopPathCacheKey;
 import org.transitime.core.dataCache.StopPathPredictionCache;
 import org.transitime.core.dataCache.VehicleDataCache;
@@ -72,7 +72,9 @@ public class DataFetcher {
 
 //	private Map<String, Calendar> gtfsCalendars = null;
 	
-	private java.util.Calendar calendar = null;
+	// A calendar per thread since trips can be processed in parallel and
+	// a Calendar is not threadsafe
+	private ThreadLocal<java.util.Calendar> calendar = null;
 	
 //	private List<Integer> specialDaysOfWeek = null;
 
@@ -94,10 +96,24 @@ public class DataFetcher {
 	public DataFetcher(String dbName, List<Integer> newSpecialDaysOfWeek) {
 		// Create the member calendar using timezone specified in db for the 
 		// agency. Use the currently active config rev.
-		int configRev = ActiveRevisions.get(dbName).getConfigRev();
-		List<Agency> agencies = Agency.getAgencies(dbName, configRev);
-		TimeZone timezone = agencies.get(0).getTimeZone();
-		calendar = new GregorianCalendar(timezone);		
+		this(Agency.getAgencies(dbName,
+				ActiveRevisions.get(dbName).getConfigRev()).get(0)
+				.getTimeZone());
+	}
+	
+	/**
+	 * For when the timezone of the agency is already known, such as for
+	 * testing.
+	 * 
+	 * @param timezone
+	 */
+	DataFetcher(final TimeZone timezone) {
+		calendar = new ThreadLocal<java.util.Calendar>() {
+			@Override
+			protected java.util.Calendar initialValue() {
+				return new GregorianCalendar(timezone);
+			}
+		};
 	}
 	
 	/**
@@ -113,8 +129,28 @@ public class DataFetcher {
 		// trips that span midnight. But this doesn't work for trips that
 		// span 3am.
 		Date adjustedDate = new Date(date.getTime()-3*Time.MS_PER_HOUR);
-		calendar.setTime(adjustedDate);
-		return calendar.get(java.util.Calendar.DAY_OF_YEAR);
+		java.util.Calendar cal = calendar.get();
+		cal.setTime(adjustedDate);
+		return cal.get(java.util.Calendar.DAY_OF_YEAR);
+	}
+	
+	/**
+	 * Returns the end of the service day that the date is in. Uses the same
+	 * 3am boundary as dayOfYear() so that when data is read in one service
+	 * day at a time all the data for a trip is read in together.
+	 * 
+	 * @param date
+	 * @return the first 3am, agency time, after the date
+	 */
+	public Date getEndOfServiceDay(Date date) {
+		java.util.Calendar cal = calendar.get();
+		cal.setTime(new Date(date.getTime()-3*Time.MS_PER_HOUR));
+		cal.set(java.util.Calendar.HOUR_OF_DAY, 3);
+		cal.set(java.util.Calendar.MINUTE, 0);
+		cal.set(java.util.Calendar.SECOND, 0);
+		cal.set(java.util.Calendar.MILLISECOND, 0);
+		cal.add(java.util.Calendar.DAY_OF_YEAR, 1);
+		return cal.getTime();
 	}
 	
 //	/**
@@ -264,7 +300,8 @@ public class DataFetcher {
 		if (!pageDbReads()) {
 			// page by day for MySql -- its batch impl falls down on large data
 			Date pageBeginTime = beginTime;
-			Date pageEndTime = new Date(beginTime.getTime() + Time.MS_PER_DAY);
+			Date pageEndTime = new Date(Math.min(
+					beginTime.getTime() + Time.MS_PER_DAY, endTime.getTime()));
 			int runningCount = 0;
 			do {
 				logger.info("querying a/d for between {} and {}", pageBeginTime, pageEndTime);
@@ -288,7 +325,7 @@ public class DataFetcher {
 				pageBeginTime = pageEndTime;
 				pageEndTime = new Date(Math.min(pageBeginTime.getTime() + Time.MS_PER_DAY, endTime.getTime()));
 				
-			} while (pageEndTime.before(endTime));
+			} while (pageBeginTime.before(endTime));
 		} else {
 			// Read in batch of 50k rows of data and process it
 			do {				
@@ -370,7 +407,8 @@ public class DataFetcher {
 		if (!pageDbReads()) {
 			// page by day for MySql -- its batch impl falls down on large data
 			Date pageBeginTime = beginTime;
-			Date pageEndTime = new Date(beginTime.getTime() + Time.MS_PER_DAY);
+			Date pageEndTime = new Date(Math.min(
+					beginTime.getTime() + Time.MS_PER_DAY, endTime.getTime()));
 			int runningCount = 0;
 			do {
 				logger.info("querying matches for between {} and {}", pageBeginTime, pageEndTime);
@@ -386,7 +424,7 @@ public class DataFetcher {
 				pageBeginTime = pageEndTime;
 				pageEndTime = new Date(Math.min(pageBeginTime.getTime() + Time.MS_PER_DAY, endTime.getTime()));
 				
-			} while (pageEndTime.before(endTime));
+			} while (pageBeginTime.before(endTime));
 		} else {
 		// Read in batch of 50k rows of data and process it
 			do {				
@@ -428,6 +466,9 @@ public class DataFetcher {
 	 */
 	public void readData(String agencyId, Date beginTime, 
 			Date endTime) {
+		// Release any previously read data before reading in more
+		clear();
+		
 		// Read in arrival/departure times and matches from db
 		logger.info("Reading historic data from db...");
 		matchesMap = readMatches(agencyId, beginTime, endTime);
@@ -470,6 +511,25 @@ public class DataFetcher {
 		return matchesMap;
 	}
 
+	/**
+	 * For testing. Sets the data instead of reading it in from the db.
+	 * 
+	 * @param arrivalDepartureMap
+	 * @param matchesMap
+	 */
+	void setData(Map<DbDataMapKey, List<ArrivalDeparture>> arrivalDepartureMap,
+			Map<DbDataMapKey, List<Match>> matchesMap) {
+		this.arrivalDepartureMap = arrivalDepartureMap;
+		this.matchesMap = matchesMap;
+	}
 
+	/**
+	 * Releases the data that was read in so that it can be garbage collected.
+	 * For when reading in data one service day at a time.
+	 */
+	public void clear() {
+		arrivalDepartureMap = null;
+		matchesMap = null;
+	}
 	
 }
@@ -25,12 +25,15 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.DoubleConfigValue;
+import org.transitime.config.IntegerConfigValue;
 import org.transitime.core.TemporalDifference;
 import org.transitime.core.travelTimes.DataFetcher.DbDataMapKey;
 import org.transitime.db.structs.ArrivalDeparture;
@@ -139,6 +142,37 @@ public class TravelTimesProcessor {
 					+ "to make sure that don't get invalid travel times due to "
 					+ "bad data.");
 	
+	private static boolean shouldReadByServiceDay() {
+		return readByServiceDay.getValue();
+	}
+	private static BooleanConfigValue readByServiceDay =
+			new BooleanConfigValue("transitime.travelTimes.readByServiceDay",
+					false,
+					"If true then the historic data is read in and processed "
+					+ "one service day at a time instead of reading in all of "
+					+ "the data at once. This way memory use is bounded by the "
+					+ "amount of data for a single day, which is important "
+					+ "when processing a long time span for a large agency.");
+	
+	private static int getProcessingThreads() {
+		return processingThreads.getValue();
+	}
+	private static IntegerConfigValue processingThreads =
+			new IntegerConfigValue("transitime.travelTimes.processingThreads",
+					1,
+					"Number of threads to use for processing the historic "
+					+ "data for the trips into travel and stop times. If "
+					+ "greater than 1 the trips are processed in parallel "
+					+ "using a fork-join pool. The parallel processing only "
+					+ "uses the arrivals/departures and matches already read "
+					+ "in from the db, not the trip configuration, so that "
+					+ "nothing is lazy loaded through the shared Hibernate "
+					+ "session.");
+	
+	// When processing trips in parallel, a task processes this many trips
+	// before splitting them up among other threads
+	private final static int TRIPS_PER_TASK = 32;
+	
 	// The aggregate data processed from the historic db data.
 	// ProcessedDataMapKey combines tripId and stopPathIndex in 
 	// order to combine data for a particular tripId and stopPathIndex.
@@ -214,13 +248,48 @@ public class TravelTimesProcessor {
 		return new ProcessedDataMapKey(tripId, stopPathIndex, stopId);
 	}
 
+	/**
+	 * For testing. Returns the stop times that have been processed for the
+	 * stop path.
+	 * 
+	 * @param tripId
+	 * @param stopPathIndex
+	 * @param stopId
+	 * @return copy of the stop times, or null if there are none
+	 */
+	static synchronized List<Integer> getStopTimes(String tripId,
+			int stopPathIndex, String stopId) {
+		List<Integer> stopTimes = 
+				stopTimesMap.get(getKey(tripId, stopPathIndex, stopId));
+		return stopTimes != null ? new ArrayList<Integer>(stopTimes) : null;
+	}
+
+	/**
+	 * For testing. Returns the travel times that have been processed for the
+	 * stop path.
+	 * 
+	 * @param tripId
+	 * @param stopPathIndex
+	 * @param stopId
+	 * @return copy of the travel times, one list per trip, or null if there
+	 *         are none
+	 */
+	static synchronized List<List<Integer>> getTravelTimes(String tripId,
+			int stopPathIndex, String stopId) {
+		List<List<Integer>> travelTimes = 
+				travelTimesMap.get(getKey(tripId, stopPathIndex, stopId));
+		return travelTimes != null ? 
+				new ArrayList<List<Integer>>(travelTimes) : null;
+	}
+
 	/**
 	 * Adds stop times for a stop path for a single trip to the stopTimesMap.
+	 * Synchronized since trips can be processed in parallel.
 	 * 
 	 * @param mapKey
 	 * @param stopTimeMsec
 	 */
-	private static void addStopTimeToMap(ProcessedDataMapKey mapKey,
+	private static synchronized void addStopTimeToMap(ProcessedDataMapKey mapKey,
 			int stopTimeMsec) {
 		List<Integer> stopTimesForStop = stopTimesMap.get(mapKey);
 		if (stopTimesForStop == null) {
@@ -232,11 +301,12 @@ public class TravelTimesProcessor {
 	
 	/**
 	 * Adds travel times for stop path for a single trip to the travelTimesMap.
+	 * Synchronized since trips can be processed in parallel.
 	 * 
 	 * @param mapKey
 	 * @param travelTimesForStopPath
 	 */
-	private static void addTravelTimesToMap(ProcessedDataMapKey mapKey, 
+	private static synchronized void addTravelTimesToMap(ProcessedDataMapKey mapKey, 
 			List<Integer> travelTimesForStopPath) {
 		// If there is no data then simply return
 		if (travelTimesForStopPath == null || travelTimesForStopPath.isEmpty())
@@ -778,6 +848,68 @@ public class TravelTimesProcessor {
 			processDataBetweenTwoArrivalDepartures(dataFetcher, arrDep1, arrDep2);							
 		}		
 	}
+	
+	/**
+	 * For processing the data for a range of trips in a fork-join pool. If
+	 * there are more than TRIPS_PER_TASK trips then the range is split in
+	 * two so that the work is spread across the threads.
+	 */
+	private class ProcessTripsTask extends RecursiveAction {
+		private final DataFetcher dataFetcher;
+		private final List<List<ArrivalDeparture>> trips;
+		private final int begin;
+		private final int end;
+		
+		private static final long serialVersionUID = 4583702155913864173L;
+
+		private ProcessTripsTask(DataFetcher dataFetcher,
+				List<List<ArrivalDeparture>> trips, int begin, int end) {
+			this.dataFetcher = dataFetcher;
+			this.trips = trips;
+			this.begin = begin;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			if (end - begin <= TRIPS_PER_TASK) {
+				for (int i = begin; i < end; ++i) {
+					debugLogTrip(trips.get(i));
+					aggregateTripDataIntoMaps(dataFetcher, trips.get(i));
+				}
+				return;
+			}
+			
+			int middle = (begin + end) / 2;
+			invokeAll(new ProcessTripsTask(dataFetcher, trips, begin, middle),
+					new ProcessTripsTask(dataFetcher, trips, middle, end));
+		}
+	}
+	
+	/**
+	 * Processes the arrivals/departures for each trip that were read into the
+	 * dataFetcher. Puts resulting data into stopTimesMap and travelTimesMap.
+	 * 
+	 * @param dataFetcher
+	 * @param pool
+	 *            For processing the trips in parallel. If null then the trips
+	 *            are processed in the current thread.
+	 */
+	void processTrips(DataFetcher dataFetcher, ForkJoinPool pool) {
+		Collection<List<ArrivalDeparture>> arrivalDepartures =
+				dataFetcher.getArrivalDepartureMap().values();
+		if (pool == null) {
+			for (List<ArrivalDeparture> arrDepList : arrivalDepartures) {
+				debugLogTrip(arrDepList);
+				aggregateTripDataIntoMaps(dataFetcher, arrDepList);
+			}
+		} else {
+			List<List<ArrivalDeparture>> trips = 
+					new ArrayList<List<ArrivalDeparture>>(arrivalDepartures);
+			pool.invoke(new ProcessTripsTask(dataFetcher, trips, 0, 
+					trips.size()));
+		}
+	}
 		
 	/**
 	 * Converts the list of travel times such that times are grouped by segment
@@ -1013,6 +1145,11 @@ public class TravelTimesProcessor {
 	 * Reads in the Matches and the ArrivalDepartures from the database for the
 	 * time specified. Puts the data into the stopTimesMap and the travelTimesMap 
 	 * for further processing.
+	 * <p>
+	 * If transitime.travelTimes.readByServiceDay is set then the data is read
+	 * and processed one service day at a time so that the data for the entire
+	 * time span doesn't need to be in memory at once. The stopTimesMap and
+	 * travelTimesMap are added to as each day is processed.
 	 * 
 	 * @param projectId
 	 * @param specialDaysOfWeek
@@ -1023,8 +1160,33 @@ public class TravelTimesProcessor {
 			List<Integer> specialDaysOfWeek, Date beginTime, Date endTime) {
 		// Read the arrivals/departures and matches into a DataFetcher
 		DataFetcher dataFetcher = new DataFetcher(projectId, specialDaysOfWeek);
-		dataFetcher.readData(projectId, beginTime, endTime);
 		
+		// If processing trips in parallel then need a pool of threads
+		ForkJoinPool pool = getProcessingThreads() > 1 ? 
+				new ForkJoinPool(getProcessingThreads()) : null;
+		try {
+			if (shouldReadByServiceDay()) {
+				readAndProcessByServiceDay(projectId, dataFetcher, pool,
+						beginTime, endTime);
+				return;
+			}
+			
+			dataFetcher.readData(projectId, beginTime, endTime);
+			processHistoricData(dataFetcher, pool);
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Processes all the historic data that was read in by the dataFetcher.
+	 * 
+	 * @param dataFetcher
+	 * @param pool
+	 */
+	private void processHistoricData(DataFetcher dataFetcher,
+			ForkJoinPool pool) {
     // exit here if no matches are present
     // no further work can be done!
     if (dataFetcher.getMatchesMap()== null || dataFetcher.getMatchesMap().isEmpty()) {
@@ -1039,12 +1201,7 @@ public class TravelTimesProcessor {
 		// resulting data into stopTimesMap and travelTimesMap.
 		logger.info("Processing data into travel time maps...");
 		IntervalTimer intervalTimer = new IntervalTimer();
-		Collection<List<ArrivalDeparture>> arrivalDepartures =
-				dataFetcher.getArrivalDepartureMap().values();
-		for (List<ArrivalDeparture> arrDepList : arrivalDepartures) {
-			debugLogTrip(arrDepList);
-			aggregateTripDataIntoMaps(dataFetcher, arrDepList);
-		}
+		processTrips(dataFetcher, pool);
 		
 		// Nice to log how long things took so can see progress and bottle necks
 		logger.info("Processing data from db into the travel times and stop " +
@@ -1052,6 +1209,55 @@ public class TravelTimesProcessor {
 				intervalTimer.elapsedMsec());
 	}	
 	
+	/**
+	 * Reads in and processes the historic data one service day at a time so
+	 * that only the data for a single day is in memory at once. The results
+	 * for each day are added to the stopTimesMap and travelTimesMap.
+	 * 
+	 * @param projectId
+	 * @param dataFetcher
+	 * @param pool
+	 * @param beginTime
+	 * @param endTime
+	 */
+	private void readAndProcessByServiceDay(String projectId,
+			DataFetcher dataFetcher, ForkJoinPool pool, Date beginTime,
+			Date endTime) {
+		IntervalTimer intervalTimer = new IntervalTimer();
+		int daysWithData = 0;
+		Date dayBeginTime = beginTime;
+		while (dayBeginTime.before(endTime)) {
+			Date dayEndTime = dataFetcher.getEndOfServiceDay(dayBeginTime);
+			if (dayEndTime.after(endTime))
+				dayEndTime = endTime;
+			
+			logger.info("Reading and processing data for service day from "
+					+ "{} to {}", dayBeginTime, dayEndTime);
+			dataFetcher.readData(projectId, dayBeginTime, dayEndTime);
+			if (!dataFetcher.getMatchesMap().isEmpty()) {
+				++daysWithData;
+				processTrips(dataFetcher, pool);
+			}
+			
+			dayBeginTime = dayEndTime;
+		}
+		
+		// Done with the data for the last day so allow it to be garbage
+		// collected
+		dataFetcher.clear();
+		
+		isEmpty = daysWithData == 0;
+		if (isEmpty) {
+			logger.error("No Matches:  Nothing to do!");
+			reportStatus(0, 0, 0, 0);
+			return;
+		}
+		
+		logger.info("Reading and processing {} service days of data into the "
+				+ "travel times and stop times map took {} msec.",
+				daysWithData, intervalTimer.elapsedMsec());
+	}
+	
 	 public Long updateMetrics(Session session, int travelTimesRev) {
 	   Long count = Trip.countTravelTimesForTrips(session, travelTimesRev);
 	   cloudwatchService.saveMetric("PredictionLatestTravelTimeRev", travelTimesRev*1.0, 1, CloudwatchService.MetricType.SCALAR, CloudwatchService.ReportingIntervalTimeUnit.IMMEDIATE, false);
@@ -47,8 +47,14 @@ public class GenericQuery {
 	// Number of rows read in
 	private int rows;
 	
-	// For caching db connection
-	private static Connection connection;
+	// If greater than 0 then rows are read from the db in batches of this
+	// size instead of all at once
+	private int fetchSize = 0;
+	
+	// The db connection used by this query. Each query has its own
+	// connection since queries can be run concurrently by different web
+	// server threads. Should be released by calling close().
+	private final Connection connection;
 
 	protected static final Logger logger = LoggerFactory
 			.getLogger(GenericQuery.class);
@@ -127,6 +133,21 @@ public class GenericQuery {
 		return conn;
 	}
 
+	/**
+	 * Specifies that the rows of the query should be read from the database
+	 * in batches of fetchSize rows instead of all at once. This way a query
+	 * that returns a huge number of rows can be processed row by row, such as
+	 * by writing each row directly to a servlet response, without having to
+	 * hold the whole result in memory.
+	 * 
+	 * @param fetchSize
+	 *            Number of rows to read at a time. 0 means the JDBC driver
+	 *            default, which for some drivers means all rows.
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
 	/**
 	 * Performs the specified generic query. A List of GenericResult objects is
 	 * returned. All number columns (integer or float) are placed in
@@ -141,17 +162,34 @@ public class GenericQuery {
 	protected void doQuery(String sql, Object...parameters) throws SQLException {
 		PreparedStatement statement = null;
 		IntervalTimer timer = new IntervalTimer();
+		boolean autoCommit = connection.getAutoCommit();
 
 		try {			
 			
-			statement = connection.prepareStatement(sql);
+			statement = connection.prepareStatement(sql,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			
+			if (fetchSize > 0) {
+				if (connection.getMetaData().getDatabaseProductName()
+						.toLowerCase().contains("mysql")) {
+					// The MySQL driver only streams the rows instead of
+					// reading them all in if fetch size is Integer.MIN_VALUE
+					statement.setFetchSize(Integer.MIN_VALUE);
+				} else {
+					// PostgreSQL only uses a cursor, and therefore honors the
+					// fetch size, when not in auto commit mode
+					connection.setAutoCommit(false);
+					statement.setFetchSize(fetchSize);
+				}
+			}
 			
-			// TODO Deal with dates for the moment
 			for (int i=0;i<parameters.length;i++)
 			{
 				if(parameters[i] instanceof java.util.Date)
 				{
 					statement.setTimestamp(i+1, new Timestamp(((java.util.Date)parameters[i]).getTime()));
+				} else {
+					statement.setObject(i+1, parameters[i]);
 				}
 			}
 			
@@ -183,10 +221,26 @@ public class GenericQuery {
 		} finally {
 			if (statement != null)
 				statement.close();
+			if (connection.getAutoCommit() != autoCommit)
+				connection.setAutoCommit(autoCommit);
 		}
 
 	}
 
+	/**
+	 * Closes the db connection used by this query. Should be called in a
+	 * finally block once done with the query so that connections are not
+	 * leaked.
+	 */
+	public void close() {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			logger.error("Exception when closing db connection for "
+					+ "GenericQuery. {}", e.getMessage(), e);
+		}
+	}
+
 	/**
 	 * Executes an INSERT, UPDATE, or DELETE statement. 
 	 * 
@@ -35,8 +35,10 @@ import org.transitime.db.structs.Location;
 import org.transitime.db.structs.Match;
 import org.transitime.db.structs.MonitoringEvent;
 import org.transitime.db.structs.PredictionAccuracy;
+import org.transitime.db.structs.PredictionAccuracyRollup;
 import org.transitime.db.structs.PredictionForStopPath;
 import org.transitime.db.structs.Route;
+import org.transitime.db.structs.ScheduleAdherenceCounts;
 import org.transitime.db.structs.Stop;
 import org.transitime.db.structs.Transfer;
 import org.transitime.db.structs.FareRule;
@@ -91,7 +93,9 @@ public class AnnotatedClassesList {
 		MeasuredArrivalTime.class,
 		MonitoringEvent.class,
 		PredictionAccuracy.class,
+		PredictionAccuracyRollup.class,
 		Route.class,
+		ScheduleAdherenceCounts.class,
 		Stop.class,
 		StopPath.class,
 		Transfer.class,
@@ -18,6 +18,7 @@ package org.transitime.db.hibernate;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -38,6 +39,7 @@ import org.transitime.db.structs.PredictionAccuracy;
 import org.transitime.db.structs.VehicleConfig;
 import org.transitime.db.structs.VehicleEvent;
 import org.transitime.db.structs.VehicleState;
+import org.transitime.ipc.data.IpcDbQueueStatus;
 
 /**
  * DataDbLogger is for storing to the db a stream of data objects. It is intended
@@ -323,6 +325,27 @@ public class DataDbLogger {
 		return sizes.get(sizes.size()-1);
 	}
 
+	/**
+	 * Returns the status of each of the queues, including depth, enqueue and
+	 * drain rates, and how many objects have been dropped.
+	 * 
+	 * @return status for each queue
+	 */
+	public List<IpcDbQueueStatus> getQueueStatus() {
+		List<IpcDbQueueStatus> statuses = new ArrayList<IpcDbQueueStatus>();
+		statuses.add(arrivalDepartureQueue.getStatus());
+		statuses.add(avlReportQueue.getStatus());
+		statuses.add(vehicleConfigQueue.getStatus());
+		statuses.add(predictionQueue.getStatus());
+		statuses.add(matchQueue.getStatus());
+		statuses.add(predictionAccuracyQueue.getStatus());
+		statuses.add(monitoringEventQueue.getStatus());
+		statuses.add(vehicleEventQueue.getStatus());
+		statuses.add(vehicleStateQueue.getStatus());
+		statuses.add(genericQueue.getStatus());
+		return statuses;
+	}
+
 	private String hashAvl(AvlReport ar) {
 		// primary keys minus vehicleId
 		DateFormat simple =
@@ -0,0 +1,35 @@
+package org.transitime.db.hibernate;
+
+import java.util.List;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+
+/**
+ * For writing a batch of objects from a DbQueue to the database more
+ * efficiently than saving each one individually via Hibernate. The
+ * implementation to use is specified by the transitime.db.bulkWriterClass
+ * config parameter. Implementations must have a public no-arg constructor.
+ */
+public interface DbBulkWriter {
+
+	/**
+	 * Writes the objects using the session's current transaction. The
+	 * transaction is committed by the caller. Objects that the writer cannot
+	 * handle, such as ones whose identifier is generated by the database, are
+	 * returned so that the caller can write them via Hibernate instead.
+	 * <p>
+	 * If a HibernateException is thrown the caller rolls back the transaction
+	 * and writes the objects individually so that the good data is still
+	 * stored.
+	 *
+	 * @param session
+	 *            Session with an active transaction
+	 * @param objects
+	 *            The objects to be written
+	 * @return The objects that were not written, possibly empty
+	 * @throws HibernateException
+	 */
+	public List<Object> write(Session session, List<?> objects)
+			throws HibernateException;
+}
@@ -9,6 +9,8 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
@@ -20,7 +22,10 @@ import org.hibernate.exception.SQLGrammarException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.configData.DbSetupConfig;
+import org.transitime.ipc.data.IpcDbQueueStatus;
 import org.transitime.logging.Markers;
+import org.transitime.monitoring.CloudwatchService;
+import org.transitime.utils.ClassInstantiator;
 import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.Time;
 import org.transitime.utils.threading.NamedThreadFactory;
@@ -38,6 +43,9 @@ public class DbQueue<T> {
   private static final long TIME_BETWEEN_RETRIES = 1 * 1000; //msec
   
   private static final int QUEUE_CAPACITY = 500000;
+  
+  // Lower limit for the adaptive batch size
+  private static final int MIN_BATCH_SIZE = 10;
 
   // The queue that objects to be stored are placed in
   private BlockingQueue<T> queue = new LinkedBlockingQueue<T>(QUEUE_CAPACITY);
@@ -61,23 +69,49 @@ public class DbQueue<T> {
   
   // For keeping track of index into levels, which level of capacity of
   // queue being used. When level changes then an e-mail is sent out warning
-  // the operators.
-  private double indexOfLevelWhenMessageLogged = 0;
+  // the operators. Updated while synchronized on levelLock since both the
+  // threads adding data and the writer threads change it. Volatile so that
+  // add() can check whether it needs to lock without locking.
+  private volatile double indexOfLevelWhenMessageLogged = 0;
   
   // For keeping track of maximum capacity of queue that was used. 
-  // Used for logging when queue use is going down.
-  private double maxQueueLevel = 0.0;
+  // Used for logging when queue use is going down. Guarded the same way
+  // as indexOfLevelWhenMessageLogged.
+  private volatile double maxQueueLevel = 0.0;
+  
+  private final Object levelLock = new Object();
   
   
   // So can access projectId for logging messages
   private String projectId;
 
-  // The Session for writing data to db
-  private SessionFactory sessionFactory;
+  // The Session for writing data to db. Volatile since it is replaced
+  // by a writer thread when there is a connection problem.
+  private volatile SessionFactory sessionFactory;
+  
+  // Number of threads writing from the queue
+  private final int writerThreads;
   
+  // Current number of objects drained per batch. Adapts to how long
+  // commits take.
+  private final AtomicInteger batchSize = 
+      new AtomicInteger(DbSetupConfig.getBatchSize());
+  
+  // For writing batches more efficiently than via session.save(). Null
+  // if transitime.db.bulkWriterClass not set.
+  private final DbBulkWriter bulkWriter;
+
   // collect some statistics on how the db is performing
-  private long throughputCount = 0;
+  private final AtomicLong throughputCount = new AtomicLong();
+  private final AtomicLong bulkWriteCount = new AtomicLong();
+  private final AtomicLong hibernateWriteCount = new AtomicLong();
+  private final AtomicLong commitCount = new AtomicLong();
+  private final AtomicLong commitMsec = new AtomicLong();
+  private final AtomicLong enqueueCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
   private long throughputTimestamp = System.currentTimeMillis();
+  private volatile double enqueueRate = 0.0;
+  private volatile double drainRate = 0.0;
   private String shortType;
 
   public DbQueue(String projectId, boolean shouldStoreToDb, 
@@ -91,15 +125,23 @@ public class DbQueue<T> {
     // Create the reusable heavy weight session factory
     sessionFactory = HibernateUtils.getSessionFactory(projectId);
     
-    // Start up separate thread that reads from the queue and
-    // actually stores the data
+    // Create the bulk writer if one is configured
+    String bulkWriterClassName = DbSetupConfig.getBulkWriterClassName();
+    bulkWriter = bulkWriterClassName == null || bulkWriterClassName.isEmpty() ?
+        null : ClassInstantiator.instantiate(bulkWriterClassName, DbBulkWriter.class);
+    
+    // Start up separate threads that read from the queue and
+    // actually store the data
+    writerThreads = Math.max(1, DbSetupConfig.getWriterThreadsPerQueue());
     NamedThreadFactory threadFactory = new NamedThreadFactory(getClass().getSimpleName());
-    ExecutorService executor = Executors.newSingleThreadExecutor(threadFactory);
-    executor.execute(new Runnable() {
-      public void run() {
-        processData();
-        }
-      });
+    ExecutorService executor = Executors.newFixedThreadPool(writerThreads, threadFactory);
+    for (int i=0; i<writerThreads; ++i) {
+      executor.execute(new Runnable() {
+        public void run() {
+          processData();
+          }
+        });
+    }
     ThroughputMonitor tm = new ThroughputMonitor();
     new Thread(tm).start();
 
@@ -114,12 +156,30 @@ public class DbQueue<T> {
     
     // Add the object to the queue
     boolean success = queue.offer(t);
+    enqueueCount.incrementAndGet();
+    if (!success)
+      droppedCount.incrementAndGet();
 
     double level = queueLevel();
     int levelIndex = indexOfLevel(level);
+    
+    // Keep track of max queue level so can log it when queue level 
+    // is decreasing again. Also determine if reached a new level. Only
+    // lock if one of them might have changed, which is rare.
+    boolean reachedNewLevel = false;
+    if (levelIndex > indexOfLevelWhenMessageLogged || level > maxQueueLevel) {
+      synchronized (levelLock) {
+        if (levelIndex > indexOfLevelWhenMessageLogged) {
+          indexOfLevelWhenMessageLogged = levelIndex;
+          reachedNewLevel = true;
+        }
+        if (level > maxQueueLevel)
+          maxQueueLevel = level;
+      }
+    }
+    
     // If reached a new level then output message e-mail to warn users
-    if (levelIndex > indexOfLevelWhenMessageLogged) {
-      indexOfLevelWhenMessageLogged = levelIndex;
+    if (reachedNewLevel) {
       String message = success ?
           "DataDbLogger queue filling up " +
           " for projectId=" + projectId +" and type " + shortType + ". It is now at " + 
@@ -138,11 +198,6 @@ public class DbQueue<T> {
           "store object=[" + t + "]");
     }
     
-    // Keep track of max queue level so can log it when queue level 
-    // is decreasing again.
-    if (level > maxQueueLevel)
-      maxQueueLevel = level;
-    
     // If shouldPauseToReduceQueue (because in batch mode or such) and
     // if queue is starting to get more full then pause the calling
     // thread for 10 seconds so that separate thread can clear out 
@@ -161,12 +216,13 @@ public class DbQueue<T> {
 
   private List<T> drain() {
     // Get the next object from the head of the queue
-    ArrayList<T> buff = new ArrayList<T>(DbSetupConfig.getBatchSize());
+    int maxElements = batchSize.get();
+    ArrayList<T> buff = new ArrayList<T>(maxElements);
     int count = 0;
     do {
         buff.clear();
-        count = queue.drainTo(buff, DbSetupConfig.getBatchSize());
-        throughputCount += count;
+        count = queue.drainTo(buff, maxElements);
+        throughputCount.addAndGet(count);
         if (count == 0)
           try {
             Thread.sleep(TIME_BETWEEN_RETRIES);
@@ -181,15 +237,27 @@ public class DbQueue<T> {
     double level = queueLevel();
     int levelIndexIncludingMargin = indexOfLevel(level + 0.10);
     if (levelIndexIncludingMargin < indexOfLevelWhenMessageLogged) {
-      logger.error(Markers.email(), "DataDbLogger queue emptying out somewhat " +
-          " for projectId=" + projectId + " and type " + shortType + ". It is now at " + 
-          String.format("%.1f", level*100) + "% capacity with " + queue.size() + 
-          " elements already in the queue. The maximum capacity was " +
-          String.format("%.1f", maxQueueLevel*100) + "%.");
-      indexOfLevelWhenMessageLogged = levelIndexIncludingMargin;
+      // Several writer threads can get here at once so only one of them
+      // should log the message
+      boolean droppedLevel = false;
+      double previousMaxQueueLevel = 0.0;
+      synchronized (levelLock) {
+        if (levelIndexIncludingMargin < indexOfLevelWhenMessageLogged) {
+          droppedLevel = true;
+          previousMaxQueueLevel = maxQueueLevel;
+          indexOfLevelWhenMessageLogged = levelIndexIncludingMargin;
+          
+          // Reset the maxQueueLevel so can determine what next peak is
+          maxQueueLevel = level;
+        }
+      }
       
-      // Reset the maxQueueLevel so can determine what next peak is
-      maxQueueLevel = level;
+      if (droppedLevel)
+        logger.error(Markers.email(), "DataDbLogger queue emptying out somewhat " +
+            " for projectId=" + projectId + " and type " + shortType + ". It is now at " + 
+            String.format("%.1f", level*100) + "% capacity with " + queue.size() + 
+            " elements already in the queue. The maximum capacity was " +
+            String.format("%.1f", previousMaxQueueLevel*100) + "%.");
     }
 
     // Return the result
@@ -222,20 +290,42 @@ public class DbQueue<T> {
 		// then can try to write the objects one at a time to make sure that the
 		// the good ones are written. This way don't lose any good data even if
 		// an exception occurs while batching data.
-		List<Object> objectsForThisBatch = new ArrayList<Object>(DbSetupConfig.getBatchSize());
+		List<Object> objectsForThisBatch = new ArrayList<Object>(batchSize.get());
+		
+		// Get the objects to be stored from the queue. This is done before
+		// opening the session since drain() waits for data, and an idle
+		// writer thread shouldn't hold on to a connection that is idle in
+		// a transaction.
+		int batchSizeUsed = batchSize.get();
+		objectsForThisBatch.addAll(drain());
+		if (objectsForThisBatch.isEmpty())
+			return;
 		
 		Transaction tx = null;
 		Session session = null;
 		
+		// So if there is a connection problem can tell whether another
+		// writer thread has already replaced the factory
+		SessionFactory factoryUsed = sessionFactory;
+		
 		try {			
-			session = sessionFactory.openSession();
+			session = factoryUsed.openSession();
 			tx = session.beginTransaction();			
 
-      // Get the objects to be stored from the queue
-      List<T> objectsToBeStored = drain();
+      // Time the whole write, and not just the commit, since the bulk
+      // writer does its work before the commit. This is what the batch
+      // size is adapted to.
+      IntervalTimer writeTimer = new IntervalTimer();
       
-      objectsForThisBatch.addAll(objectsToBeStored);
-			for (Object objectToBeStored : objectsForThisBatch) {				
+      // If there is a bulk writer then use it. Whatever it can't handle
+      // is still saved via Hibernate below.
+      List<Object> objectsToSave = objectsForThisBatch;
+      if (bulkWriter != null) {
+        objectsToSave = bulkWriter.write(session, objectsForThisBatch);
+        bulkWriteCount.addAndGet(objectsForThisBatch.size() - objectsToSave.size());
+      }
+      
+			for (Object objectToBeStored : objectsToSave) {				
 				// Write the data to the session. This doesn't yet
 				// actually write the data to the db though. That is only
 				// done when the session is flushed or committed.
@@ -254,6 +344,11 @@ public class DbQueue<T> {
 
 			// Actually do the commit
 			tx.commit();
+			hibernateWriteCount.addAndGet(objectsToSave.size());
+			commitCount.incrementAndGet();
+			commitMsec.addAndGet(timer.elapsedMsec());
+			adaptBatchSize(batchSizeUsed, objectsForThisBatch.size(),
+					writeTimer.elapsedMsec());
 			
 			// Sometimes useful for debugging via the console
 			//System.err.println(new Date() + " Done committing. Took " 
@@ -276,8 +371,8 @@ public class DbQueue<T> {
 						+ "means that the db was rebooted or that the "
 						+ "connection to it was lost. Therefore creating a new "
 						+ "SessionFactory so get new connections.");
-				HibernateUtils.clearSessionFactory();
-				sessionFactory = HibernateUtils.getSessionFactory(projectId);
+				sessionFactory = HibernateUtils.replaceSessionFactory(projectId,
+						factoryUsed);
 			} else {
 				// Rollback the transaction since it likely was not committed.
 				// Otherwise can get an error when using Postgres "ERROR:
@@ -353,6 +448,39 @@ public class DbQueue<T> {
 	}
 	
   
+  /**
+   * Adjusts the batch size based on how long writing the batch took,
+   * including the bulk write and the commit. If the write was slow then the
+   * batch size is halved so that a slow database doesn't cause ever larger
+   * transactions. If the write was fast and the batch was full, meaning the queue is backing up, then the batch size is
+   * increased by half so that more is written per round trip.
+   * 
+   * @param batchSizeUsed the batch size when the batch was drained
+   * @param objectsInBatch how many objects were actually in the batch
+   * @param elapsedMsec how long writing and committing the batch took
+   */
+  private void adaptBatchSize(int batchSizeUsed, int objectsInBatch, 
+      long elapsedMsec) {
+    long targetMsec = DbSetupConfig.getTargetCommitMsec();
+    int newBatchSize;
+    if (elapsedMsec > targetMsec) {
+      newBatchSize = Math.max(MIN_BATCH_SIZE, batchSizeUsed / 2);
+    } else if (elapsedMsec < targetMsec / 2 && objectsInBatch >= batchSizeUsed) {
+      newBatchSize = Math.min(DbSetupConfig.getMaxBatchSize(), 
+          batchSizeUsed + Math.max(1, batchSizeUsed / 2));
+    } else {
+      return;
+    }
+    
+    // Only change if another writer thread hasn't already done so
+    if (newBatchSize != batchSizeUsed 
+        && batchSize.compareAndSet(batchSizeUsed, newBatchSize)) {
+      logger.debug("Changed batch size for {} from {} to {} since write "
+          + "took {} msec", shortType, batchSizeUsed, newBatchSize, 
+          elapsedMsec);
+    }
+  }
+  
   /**
    * This is the main method for processing data. It simply keeps on calling
    * processBatchOfData() so that data is batched as efficiently as possible.
@@ -400,6 +528,19 @@ public class DbQueue<T> {
     return queue.size();
   }
   
+  /**
+   * Returns the current status of the queue so that operators can see
+   * whether writing to the db is keeping up. The rates are for the last
+   * throughput monitoring interval.
+   * 
+   * @return status of the queue
+   */
+  public IpcDbQueueStatus getStatus() {
+    return new IpcDbQueueStatus(shortType, queueSize(), queueLevel(),
+        writerThreads, batchSize.get(), enqueueRate, drainRate, 
+        droppedCount.get());
+  }
+  
   /**
    * Returns the index into levels that the queue capacity is at.
    * For determining if should send e-mail warning message.
@@ -484,6 +625,7 @@ public class DbQueue<T> {
       logger.debug("Individually saving object {}", objectToBeStored);
       session.save(objectToBeStored);
       tx.commit();
+      hibernateWriteCount.incrementAndGet();
     } finally {
       if (session != null)
         session.close();
@@ -506,17 +648,48 @@ public class DbQueue<T> {
     }
     
     private void processThroughput() {
-      long delta = (System.currentTimeMillis() - throughputTimestamp)/1000;
-      if (throughputCount == 0) {
+      long now = System.currentTimeMillis();
+      long delta = Math.max(1, (now - throughputTimestamp)/1000);
+      throughputTimestamp = now;
+      long throughput = throughputCount.getAndSet(0);
+      long enqueued = enqueueCount.getAndSet(0);
+      long bulk = bulkWriteCount.getAndSet(0);
+      long hibernate = hibernateWriteCount.getAndSet(0);
+      long commits = commitCount.getAndSet(0);
+      long msec = commitMsec.getAndSet(0);
+      double rate = (double) throughput / delta;
+      drainRate = rate;
+      enqueueRate = (double) enqueued / delta;
+      
+      CloudwatchService cloudwatchService = CloudwatchService.getInstance();
+      cloudwatchService.saveMetric("DatabaseQueueWriteRate" + shortType, rate,
+          1, CloudwatchService.MetricType.AVERAGE,
+          CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
+      cloudwatchService.saveMetric("DatabaseQueueSize" + shortType,
+          (double) queueSize(), 1, CloudwatchService.MetricType.AVERAGE,
+          CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
+      cloudwatchService.saveMetric("DatabaseQueueEnqueueRate" + shortType,
+          enqueueRate, 1, CloudwatchService.MetricType.AVERAGE,
+          CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
+      cloudwatchService.saveMetric("DatabaseQueueDropped" + shortType,
+          (double) droppedCount.get(), 1, CloudwatchService.MetricType.SCALAR,
+          CloudwatchService.ReportingIntervalTimeUnit.IMMEDIATE, false);
+      
+      if (throughput == 0) {
         logger.debug("wrote nothing");
         return;
       }
       
-      long throughput = throughputCount;
-      throughputCount = 0;
-      throughputTimestamp = System.currentTimeMillis();
-      double rate = throughput / delta;
-      logger.info("wrote {} {} messages in {}s, ({}/s) ", throughput, shortType, (long)delta/1000, (long)rate);
+      cloudwatchService.saveMetric("DatabaseQueueCommitMsec" + shortType,
+          commits > 0 ? (double) msec / commits : 0.0, 1,
+          CloudwatchService.MetricType.AVERAGE,
+          CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
+      logger.info("wrote {} {} messages in {}s, ({}/s) bulk={} hibernate={} "
+          + "commits={} avgCommitMsec={} queueSize={} batchSize={} "
+          + "enqueued={}/s dropped={}", 
+          throughput, shortType, delta, (long)rate, bulk, hibernate, commits,
+          commits > 0 ? msec / commits : 0, queueSize(), batchSize.get(),
+          (long)enqueueRate, droppedCount.get());
     }
   }
 }
@@ -224,7 +224,33 @@ public class HibernateUtils {
 	 * use the newly configured timezone, and then successfully process dates.
 	 */
 	public static void clearSessionFactory() {
-		sessionFactoryCache.clear();
+		synchronized (sessionFactoryCache) {
+			sessionFactoryCache.clear();
+		}
+	}
+
+	/**
+	 * For when there was a connection problem using a session factory, such
+	 * as the database having been rebooted, so that new db connections are
+	 * needed. If the bad factory is still cached then the cache is cleared
+	 * and a new factory is created. But if another thread has already
+	 * replaced it then the new factory is simply returned. This way when
+	 * several threads encounter the same connection problem the factory is
+	 * only rebuilt once.
+	 * 
+	 * @param agencyId
+	 * @param badFactory
+	 *            The factory that had the connection problem
+	 * @return The new session factory
+	 * @throws HibernateException
+	 */
+	public static SessionFactory replaceSessionFactory(String agencyId,
+			SessionFactory badFactory) throws HibernateException {
+		synchronized (sessionFactoryCache) {
+			if (sessionFactoryCache.containsValue(badFactory))
+				sessionFactoryCache.clear();
+			return getSessionFactory(agencyId);
+		}
 	}
 	
 	/**
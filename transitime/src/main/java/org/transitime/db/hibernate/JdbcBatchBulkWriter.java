@@ -0,0 +1,296 @@
+package org.transitime.db.hibernate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.Session;
+import org.hibernate.classic.Lifecycle;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.Assigned;
+import org.hibernate.id.CompositeNestedGeneratedValueGenerator;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A DbBulkWriter that writes objects using plain JDBC batch inserts instead of
+ * having Hibernate save each object and track it in the session. The INSERT
+ * statement for each class is generated from the Hibernate mapping so the
+ * column definitions stay in one place, the annotations of the db structs.
+ * <p>
+ * Only entities stored in a single table, with an assigned (possibly
+ * composite) identifier and no version or collection properties are handled.
+ * This covers the high volume data such as AvlReports, Matches, and
+ * ArrivalDepartures. Other objects, such as Predictions that have a database
+ * generated identifier, are returned so that they are saved via Hibernate.
+ * <p>
+ * For the batch to actually be sent to the database as a single statement
+ * the JDBC URL should specify rewriteBatchedStatements=true for MySQL or
+ * reWriteBatchedInserts=true for PostgreSQL.
+ */
+public class JdbcBatchBulkWriter implements DbBulkWriter {
+
+	// The INSERT statement for each class. Classes that cannot be handled
+	// map to UNSUPPORTED so that only need to examine the mapping once.
+	private final ConcurrentMap<Class<?>, InsertStatement> insertStatements =
+			new ConcurrentHashMap<Class<?>, InsertStatement>();
+
+	private static final InsertStatement UNSUPPORTED =
+			new InsertStatement(null, null);
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(JdbcBatchBulkWriter.class);
+
+	/**
+	 * The SQL for inserting an entity along with the indexes of the
+	 * properties whose values are bound, in the order of the columns.
+	 */
+	private static class InsertStatement {
+		private final String sql;
+		private final int[] propertyIndexes;
+
+		private InsertStatement(String sql, int[] propertyIndexes) {
+			this.sql = sql;
+			this.propertyIndexes = propertyIndexes;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Public constructor so can be instantiated by DbQueue.
+	 */
+	public JdbcBatchBulkWriter() {
+	}
+
+	/**
+	 * Creates the InsertStatement for the entity from its Hibernate mapping.
+	 * Returns UNSUPPORTED if the entity can't be written with a simple
+	 * INSERT.
+	 *
+	 * @param clazz
+	 * @param factory
+	 * @return
+	 */
+	private static InsertStatement createInsertStatement(Class<?> clazz,
+			SessionFactoryImplementor factory) {
+		EntityPersister entityPersister;
+		try {
+			entityPersister = factory.getEntityPersister(clazz.getName());
+		} catch (MappingException e) {
+			logger.info("Class {} is not a mapped entity so will be written "
+					+ "via Hibernate.", clazz.getName());
+			return UNSUPPORTED;
+		}
+
+		if (!(entityPersister instanceof SingleTableEntityPersister)) {
+			logger.info("Entity {} is not stored in a single table so will "
+					+ "be written via Hibernate.", clazz.getName());
+			return UNSUPPORTED;
+		}
+		SingleTableEntityPersister persister =
+				(SingleTableEntityPersister) entityPersister;
+
+		IdentifierGenerator generator = persister.getIdentifierGenerator();
+		if (!(generator instanceof Assigned)
+				&& !(generator instanceof CompositeNestedGeneratedValueGenerator)) {
+			logger.info("Entity {} has a generated identifier so will be "
+					+ "written via Hibernate.", clazz.getName());
+			return UNSUPPORTED;
+		}
+
+		if (persister.isVersioned()) {
+			logger.info("Entity {} is versioned so will be written via "
+					+ "Hibernate.", clazz.getName());
+			return UNSUPPORTED;
+		}
+
+		StringBuilder columns = new StringBuilder();
+		StringBuilder values = new StringBuilder();
+		for (String column : persister.getIdentifierColumnNames()) {
+			appendColumn(columns, values, column, "?");
+		}
+
+		Type[] types = persister.getPropertyTypes();
+		boolean[] insertability = persister.getPropertyInsertability();
+		List<Integer> propertyIndexes = new ArrayList<Integer>();
+		for (int i = 0; i < types.length; ++i) {
+			if (types[i].isCollectionType()) {
+				logger.info("Entity {} has collection property {} so will be "
+						+ "written via Hibernate.", clazz.getName(),
+						persister.getPropertyNames()[i]);
+				return UNSUPPORTED;
+			}
+
+			String[] propertyColumns = persister.getPropertyColumnNames(i);
+			if (!insertability[i] || propertyColumns.length == 0)
+				continue;
+
+			for (String column : propertyColumns) {
+				appendColumn(columns, values, column, "?");
+			}
+			propertyIndexes.add(i);
+		}
+
+		// For subclasses stored in the same table, such as Arrival and
+		// Departure, need to also set the discriminator column
+		if (persister.isInherited()
+				|| persister.getEntityMetamodel().hasSubclasses()) {
+			appendColumn(columns, values,
+					persister.getDiscriminatorColumnName(),
+					persister.getDiscriminatorSQLValue());
+		}
+
+		String sql = "INSERT INTO " + persister.getTableName() + " ("
+				+ columns + ") VALUES (" + values + ")";
+		logger.info("Entity {} will be written via JDBC batch using {}",
+				clazz.getName(), sql);
+
+		int[] indexes = new int[propertyIndexes.size()];
+		for (int i = 0; i < indexes.length; ++i)
+			indexes[i] = propertyIndexes.get(i);
+		return new InsertStatement(sql, indexes);
+	}
+
+	private static void appendColumn(StringBuilder columns,
+			StringBuilder values, String column, String value) {
+		if (columns.length() > 0) {
+			columns.append(", ");
+			values.append(", ");
+		}
+		columns.append(column);
+		values.append(value);
+	}
+
+	/**
+	 * Returns the InsertStatement for the class, creating it the first time.
+	 *
+	 * @param clazz
+	 * @param factory
+	 * @return
+	 */
+	private InsertStatement getInsertStatement(Class<?> clazz,
+			SessionFactoryImplementor factory) {
+		InsertStatement insertStatement = insertStatements.get(clazz);
+		if (insertStatement == null) {
+			insertStatement = createInsertStatement(clazz, factory);
+			insertStatements.put(clazz, insertStatement);
+		}
+		return insertStatement;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitime.db.hibernate.DbBulkWriter#write(org.hibernate.Session, java.util.List)
+	 */
+	@Override
+	public List<Object> write(Session session, List<?> objects)
+			throws HibernateException {
+		final SessionImplementor sessionImplementor =
+				(SessionImplementor) session;
+		final SessionFactoryImplementor factory =
+				sessionImplementor.getFactory();
+
+		// Group the objects by class since each class needs its own
+		// statement. Objects that can't be handled are returned.
+		List<Object> notWritten = new ArrayList<Object>();
+		final Map<Class<?>, List<Object>> objectsByClass =
+				new LinkedHashMap<Class<?>, List<Object>>();
+		for (Object o : objects) {
+			if (getInsertStatement(o.getClass(), factory) == UNSUPPORTED) {
+				notWritten.add(o);
+				continue;
+			}
+
+			// Honor the Lifecycle callback just like session.save() does
+			if (o instanceof Lifecycle
+					&& ((Lifecycle) o).onSave(session) == Lifecycle.VETO)
+				continue;
+
+			List<Object> objectsForClass = objectsByClass.get(o.getClass());
+			if (objectsForClass == null) {
+				objectsForClass = new ArrayList<Object>();
+				objectsByClass.put(o.getClass(), objectsForClass);
+			}
+			objectsForClass.add(o);
+		}
+
+		if (objectsByClass.isEmpty())
+			return notWritten;
+
+		session.doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				for (Map.Entry<Class<?>, List<Object>> entry :
+						objectsByClass.entrySet()) {
+					executeBatch(connection, entry.getKey(), entry.getValue(),
+							sessionImplementor, factory);
+				}
+			}
+		});
+
+		return notWritten;
+	}
+
+	/**
+	 * Binds all of the objects of the specified class to the INSERT statement
+	 * and executes them as a single JDBC batch.
+	 *
+	 * @param connection
+	 * @param clazz
+	 * @param objects
+	 * @param session
+	 * @param factory
+	 * @throws SQLException
+	 */
+	private void executeBatch(Connection connection, Class<?> clazz,
+			List<Object> objects, SessionImplementor session,
+			SessionFactoryImplementor factory) throws SQLException {
+		InsertStatement insertStatement = getInsertStatement(clazz, factory);
+		SingleTableEntityPersister persister =
+				(SingleTableEntityPersister) factory.getEntityPersister(clazz
+						.getName());
+		Type identifierType = persister.getIdentifierType();
+		int identifierSpan = identifierType.getColumnSpan(factory);
+		Type[] types = persister.getPropertyTypes();
+
+		PreparedStatement statement =
+				connection.prepareStatement(insertStatement.sql);
+		try {
+			for (Object o : objects) {
+				int index = 1;
+				identifierType.nullSafeSet(statement,
+						persister.getIdentifier(o, session), index, session);
+				index += identifierSpan;
+
+				Object[] values = persister.getPropertyValues(o);
+				for (int propertyIndex : insertStatement.propertyIndexes) {
+					Type type = types[propertyIndex];
+					type.nullSafeSet(statement, values[propertyIndex], index,
+							session);
+					index += type.getColumnSpan(factory);
+				}
+				statement.addBatch();
+			}
+			statement.executeBatch();
+		} finally {
+			statement.close();
+		}
+
+		logger.debug("Wrote {} {} objects via JDBC batch", objects.size(),
+				clazz.getSimpleName());
+	}
+}
@@ -0,0 +1,313 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.db.structs;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.hibernate.annotations.DynamicUpdate;
+import org.hibernate.annotations.GenericGenerator;
+import org.transitime.db.hibernate.HibernateUtils;
+
+/**
+ * A database object for persisting pre-aggregated prediction accuracy
+ * information. Each row summarizes the PredictionAccuracy data for a route,
+ * stop, hour, prediction length bucket, and prediction source so that the
+ * prediction accuracy reports don't need to read every PredictionAccuracy
+ * row for the date range.
+ * <p>
+ * Besides the count, sum, and sum of squares of the prediction accuracy the
+ * row contains a histogram of the prediction accuracy in seconds. Since the
+ * reports use the prediction accuracy in whole seconds the histogram
+ * contains all the information that the reports need, including for
+ * determining percentiles.
+ * <p>
+ * The rows are additive. There can be multiple rows for the same route,
+ * stop, hour, etc, such as when a prediction is matched to an arrival after
+ * the rollup for that hour has already been written. Queries therefore need
+ * to combine all the rows that match.
+ * <p>
+ * Serializable since Hibernate requires such.
+ */
+@Entity @DynamicUpdate
+@Table(name="PredictionAccuracyRollup",
+       indexes = { @Index(name="PredictionAccuracyRollupHourIndex",
+                   columnList="hourStart" ) } )
+public class PredictionAccuracyRollup implements Serializable {
+
+	// Need an ID but using regular columns doesn't really make
+	// sense. So use an auto generated one. Not final since
+	// autogenerated and therefore not set in constructor.
+	@Id
+	@GeneratedValue(strategy= GenerationType.AUTO, generator="native")
+	@GenericGenerator(name = "native", strategy = "native")
+	private long id;
+
+	// Start of the hour of the arrival/departure times for the predictions
+	@Column
+	@Temporal(TemporalType.TIMESTAMP)
+	private final Date hourStart;
+
+	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
+	private final String routeId;
+
+	// Included for same reason as in PredictionAccuracy, so that can query
+	// by routeShortName for agencies where the route_id is not stable.
+	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
+	private final String routeShortName;
+
+	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
+	private final String stopId;
+
+	// Index of the prediction length bucket. See getPredictionLengthBucket().
+	@Column
+	private final int predictionLengthBucket;
+
+	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
+	private final String predictionSource;
+
+	@Column
+	private final Boolean affectedByWaitStop;
+
+	// Number of predictions summarized by this row
+	@Column
+	private final int numPredictions;
+
+	// Sum of the prediction accuracy in seconds
+	@Column
+	private final long sumAccuracySecs;
+
+	// Sum of the squares of the prediction accuracy in seconds, so that
+	// the standard deviation can be determined
+	@Column
+	private final double sumSquaresAccuracySecs;
+
+	// The histogram of the prediction accuracies in seconds. Encoded by
+	// encodeHistogram().
+	@Column(length=HISTOGRAM_LENGTH)
+	private final String histogram;
+
+	// The prediction length buckets are the same as used by the prediction
+	// accuracy reports, with each bucket centered on a multiple of
+	// PREDICTION_LENGTH_BUCKET_SECS. Predictions of MAX_PREDICTION_LENGTH_SECS
+	// or longer are not summarized.
+	public static final int PREDICTION_LENGTH_BUCKET_SECS = 30;
+	public static final int MAX_PREDICTION_LENGTH_SECS = 900;
+
+	// Max length of the histogram column. Each histogram entry takes at most
+	// 14 characters so limiting the number of distinct values in a histogram
+	// to MAX_HISTOGRAM_ENTRIES makes sure the histogram fits.
+	private static final int HISTOGRAM_LENGTH = 2000;
+	public static final int MAX_HISTOGRAM_ENTRIES = 140;
+
+	private static final long serialVersionUID = 4867355297830254736L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Simple constructor for creating object to be stored in db
+	 *
+	 * @param hourStart
+	 * @param routeId
+	 * @param routeShortName
+	 * @param stopId
+	 * @param predictionLengthBucket
+	 * @param predictionSource
+	 * @param affectedByWaitStop
+	 * @param histogram
+	 *            Number of predictions for each prediction accuracy in seconds
+	 */
+	public PredictionAccuracyRollup(Date hourStart, String routeId,
+			String routeShortName, String stopId, int predictionLengthBucket,
+			String predictionSource, Boolean affectedByWaitStop,
+			SortedMap<Integer, Integer> histogram) {
+		this.hourStart = hourStart;
+		this.routeId = routeId;
+		this.routeShortName = routeShortName;
+		this.stopId = stopId;
+		this.predictionLengthBucket = predictionLengthBucket;
+		this.predictionSource = predictionSource;
+		this.affectedByWaitStop = affectedByWaitStop;
+
+		int numPredictions = 0;
+		long sumAccuracySecs = 0;
+		double sumSquaresAccuracySecs = 0.0;
+		for (Map.Entry<Integer, Integer> entry : histogram.entrySet()) {
+			int accuracySecs = entry.getKey();
+			int count = entry.getValue();
+			numPredictions += count;
+			sumAccuracySecs += (long) accuracySecs * count;
+			sumSquaresAccuracySecs += (double) accuracySecs * accuracySecs * count;
+		}
+		this.numPredictions = numPredictions;
+		this.sumAccuracySecs = sumAccuracySecs;
+		this.sumSquaresAccuracySecs = sumSquaresAccuracySecs;
+		this.histogram = encodeHistogram(histogram);
+	}
+
+	/**
+	 * Hibernate requires a no-arg constructor for reading objects
+	 * from database.
+	 */
+	protected PredictionAccuracyRollup() {
+		this.hourStart = null;
+		this.routeId = null;
+		this.routeShortName = null;
+		this.stopId = null;
+		this.predictionLengthBucket = -1;
+		this.predictionSource = null;
+		this.affectedByWaitStop = null;
+		this.numPredictions = 0;
+		this.sumAccuracySecs = 0;
+		this.sumSquaresAccuracySecs = 0.0;
+		this.histogram = null;
+	}
+
+	/**
+	 * Determines which prediction length bucket a prediction belongs to. Each
+	 * bucket is for an easily understood value, such as 1 minute, with the
+	 * predictions for that bucket being from 45 seconds to 75 seconds so that
+	 * the value for the bucket is in the middle of the range. Same as what the
+	 * prediction accuracy reports use.
+	 *
+	 * @param predLengthSecs
+	 * @return the bucket index, or -1 if the prediction length is not valid
+	 *         or is MAX_PREDICTION_LENGTH_SECS or longer
+	 */
+	public static int getPredictionLengthBucket(int predLengthSecs) {
+		if (predLengthSecs >= MAX_PREDICTION_LENGTH_SECS)
+			return -1;
+		int bucket = (predLengthSecs + PREDICTION_LENGTH_BUCKET_SECS / 2)
+				/ PREDICTION_LENGTH_BUCKET_SECS;
+		return bucket >= 0 ? bucket : -1;
+	}
+
+	/**
+	 * Encodes the histogram as "accuracySecs:count" entries separated by
+	 * commas, in order of the prediction accuracy.
+	 *
+	 * @param histogram
+	 * @return the encoded histogram
+	 */
+	public static String encodeHistogram(SortedMap<Integer, Integer> histogram) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Integer, Integer> entry : histogram.entrySet()) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(entry.getKey()).append(':').append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Decodes a histogram that was encoded using encodeHistogram().
+	 *
+	 * @param encodedHistogram
+	 * @return map of prediction accuracy in seconds to number of predictions
+	 */
+	public static SortedMap<Integer, Integer> decodeHistogram(
+			String encodedHistogram) {
+		SortedMap<Integer, Integer> histogram = new TreeMap<Integer, Integer>();
+		if (encodedHistogram == null || encodedHistogram.isEmpty())
+			return histogram;
+
+		for (String entry : encodedHistogram.split(",")) {
+			int separator = entry.indexOf(':');
+			histogram.put(Integer.parseInt(entry.substring(0, separator)),
+					Integer.parseInt(entry.substring(separator + 1)));
+		}
+		return histogram;
+	}
+
+	@Override
+	public String toString() {
+		return "PredictionAccuracyRollup ["
+				+ "hourStart=" + hourStart
+				+ ", routeId=" + routeId
+				+ ", routeShortName=" + routeShortName
+				+ ", stopId=" + stopId
+				+ ", predictionLengthBucket=" + predictionLengthBucket
+				+ ", predictionSource=" + predictionSource
+				+ ", affectedByWaitStop=" + affectedByWaitStop
+				+ ", numPredictions=" + numPredictions
+				+ ", sumAccuracySecs=" + sumAccuracySecs
+				+ ", sumSquaresAccuracySecs=" + sumSquaresAccuracySecs
+				+ ", histogram=" + histogram
+				+ "]";
+	}
+
+	public Date getHourStart() {
+		return hourStart;
+	}
+
+	public String getRouteId() {
+		return routeId;
+	}
+
+	public String getRouteShortName() {
+		return routeShortName;
+	}
+
+	public String getStopId() {
+		return stopId;
+	}
+
+	public int getPredictionLengthBucket() {
+		return predictionLengthBucket;
+	}
+
+	public String getPredictionSource() {
+		return predictionSource;
+	}
+
+	public Boolean isAffectedByWaitStop() {
+		return affectedByWaitStop;
+	}
+
+	public int getNumPredictions() {
+		return numPredictions;
+	}
+
+	public long getSumAccuracySecs() {
+		return sumAccuracySecs;
+	}
+
+	public double getSumSquaresAccuracySecs() {
+		return sumSquaresAccuracySecs;
+	}
+
+	/**
+	 * @return the decoded histogram of the prediction accuracy in seconds
+	 */
+	public SortedMap<Integer, Integer> getHistogram() {
+		return decodeHistogram(histogram);
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.db.structs;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.hibernate.annotations.DynamicUpdate;
+import org.hibernate.annotations.GenericGenerator;
+import org.transitime.db.hibernate.HibernateUtils;
+
+/**
+ * A database object for persisting schedule adherence counts. Each row
+ * contains how many arrivals or departures for a route and stop during an
+ * hour of a day were early, on time, or late so that the schedule adherence
+ * reports don't need to read every ArrivalDeparture for the date range.
+ * <p>
+ * The rows are additive. There can be multiple rows for the same route, stop,
+ * date, and hour, such as when an arrival/departure is determined after the
+ * counts for that hour have already been written. Queries therefore need to
+ * sum the rows that match.
+ * <p>
+ * Serializable since Hibernate requires such.
+ */
+@Entity @DynamicUpdate
+@Table(name="ScheduleAdherenceCounts",
+       indexes = { @Index(name="ScheduleAdherenceCountsDateIndex",
+                   columnList="arrivalDepartureDate" ) } )
+public class ScheduleAdherenceCounts implements Serializable {
+
+	// Need an ID but using regular columns doesn't really make
+	// sense. So use an auto generated one. Not final since
+	// autogenerated and therefore not set in constructor.
+	@Id
+	@GeneratedValue(strategy= GenerationType.AUTO, generator="native")
+	@GenericGenerator(name = "native", strategy = "native")
+	private long id;
+
+	// The service date of the arrival/departure times, in the agency
+	// timezone. For trips that run past midnight this is the day before
+	// the calendar day of the arrival/departure times.
+	@Column
+	@Temporal(TemporalType.DATE)
+	private final Date arrivalDepartureDate;
+
+	// The hour into the service day of the arrival/departure times. Is 24
+	// or more for trips that run past midnight.
+	@Column
+	private final int hourOfDay;
+
+	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
+	private final String routeId;
+
+	// Included for same reason as in ArrivalDeparture, so that can query
+	// by routeShortName for agencies where the route_id is not stable.
+	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
+	private final String routeShortName;
+
+	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
+	private final String stopId;
+
+	@Column
+	private final boolean isArrival;
+
+	@Column
+	private final int numEarly;
+
+	@Column
+	private final int numOnTime;
+
+	@Column
+	private final int numLate;
+
+	// Sum of the arrival/departure time minus the scheduled time, so positive
+	// means late. Allows the average schedule adherence to be determined.
+	@Column
+	private final long sumScheduleAdherenceMsecs;
+
+	private static final long serialVersionUID = -2410937758193465508L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Simple constructor for creating object to be stored in db
+	 *
+	 * @param arrivalDepartureDate
+	 * @param hourOfDay
+	 * @param routeId
+	 * @param routeShortName
+	 * @param stopId
+	 * @param isArrival
+	 * @param numEarly
+	 * @param numOnTime
+	 * @param numLate
+	 * @param sumScheduleAdherenceMsecs
+	 */
+	public ScheduleAdherenceCounts(Date arrivalDepartureDate, int hourOfDay,
+			String routeId, String routeShortName, String stopId,
+			boolean isArrival, int numEarly, int numOnTime, int numLate,
+			long sumScheduleAdherenceMsecs) {
+		this.arrivalDepartureDate = arrivalDepartureDate;
+		this.hourOfDay = hourOfDay;
+		this.routeId = routeId;
+		this.routeShortName = routeShortName;
+		this.stopId = stopId;
+		this.isArrival = isArrival;
+		this.numEarly = numEarly;
+		this.numOnTime = numOnTime;
+		this.numLate = numLate;
+		this.sumScheduleAdherenceMsecs = sumScheduleAdherenceMsecs;
+	}
+
+	/**
+	 * Hibernate requires a no-arg constructor for reading objects
+	 * from database.
+	 */
+	protected ScheduleAdherenceCounts() {
+		this.arrivalDepartureDate = null;
+		this.hourOfDay = -1;
+		this.routeId = null;
+		this.routeShortName = null;
+		this.stopId = null;
+		this.isArrival = false;
+		this.numEarly = 0;
+		this.numOnTime = 0;
+		this.numLate = 0;
+		this.sumScheduleAdherenceMsecs = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "ScheduleAdherenceCounts ["
+				+ "arrivalDepartureDate=" + arrivalDepartureDate
+				+ ", hourOfDay=" + hourOfDay
+				+ ", routeId=" + routeId
+				+ ", routeShortName=" + routeShortName
+				+ ", stopId=" + stopId
+				+ ", isArrival=" + isArrival
+				+ ", numEarly=" + numEarly
+				+ ", numOnTime=" + numOnTime
+				+ ", numLate=" + numLate
+				+ ", sumScheduleAdherenceMsecs=" + sumScheduleAdherenceMsecs
+				+ "]";
+	}
+
+	public Date getArrivalDepartureDate() {
+		return arrivalDepartureDate;
+	}
+
+	public int getHourOfDay() {
+		return hourOfDay;
+	}
+
+	public String getRouteId() {
+		return routeId;
+	}
+
+	public String getRouteShortName() {
+		return routeShortName;
+	}
+
+	public String getStopId() {
+		return stopId;
+	}
+
+	public boolean isArrival() {
+		return isArrival;
+	}
+
+	public int getNumEarly() {
+		return numEarly;
+	}
+
+	public int getNumOnTime() {
+		return numOnTime;
+	}
+
+	public int getNumLate() {
+		return numLate;
+	}
+
+	public long getSumScheduleAdherenceMsecs() {
+		return sumScheduleAdherenceMsecs;
+	}
+}
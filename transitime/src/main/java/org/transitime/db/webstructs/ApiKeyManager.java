@@ -17,9 +17,21 @@
 
 package org.transitime.db.webstructs;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
@@ -30,30 +42,73 @@ import org.transitime.configData.DbSetupConfig;
 import org.transitime.db.hibernate.HibernateUtils;
 import org.transitime.db.webstructs.ApiKey;
 import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThread;
+import org.transitime.utils.threading.NamedThreadFactory;
 
 /**
  * Manages the ApiKeys. Caches them so API can quickly determine if key is
  * valid.
+ * <p>
+ * The cache is an immutable map that is replaced as a whole when the keys
+ * are reread from the database. This way determining if a key is valid only
+ * requires reading the current map, without any locking, so that many API
+ * requests can be validated simultaneously. The keys are reread in a
+ * separate thread so that a request with an unknown key only delays that
+ * request, not every request. The keys are also periodically reread so that
+ * keys that are removed from the database stop being accepted.
  *
  * @author SkiBu Smith
  *
  */
 public class ApiKeyManager {
 
-	// Cache of the ApiKeys loaded from database.
-	// Map is keyed on the API key.
-	private final Map<String, ApiKey> apiKeyCache;
+	// Cache of the ApiKeys loaded from database. Map is keyed on the API key.
+	// The map itself is never modified. Instead it is replaced with a new 
+	// map. Contains null until the keys have been read in.
+	private final AtomicReference<Map<String, ApiKey>> apiKeyCache;
+
+	// Keys that were recently found not to be valid so that an application
+	// repeatedly using an invalid key doesn't cause the keys to be reread
+	// from the db. Keyed on the API key. Values are the time in msec when
+	// the key was found not to be valid.
+	private final ConcurrentMap<String, Long> invalidKeyCache =
+			new ConcurrentHashMap<String, Long>();
+
+	// The current, or most recent, read of the keys from the db
+	private final AtomicReference<FutureTask<Map<String, ApiKey>>> keysRead =
+			new AtomicReference<FutureTask<Map<String, ApiKey>>>();
 
 	// Name of the database containing the keys
 	private final String dbName;
 
 	// For preventing too frequent db reads
-	private long lastTimeKeysReadIntoCache = 0;
+	private final AtomicLong lastTimeKeysReadIntoCache = new AtomicLong(0);
 
 	private static IntegerConfigValue lastTimeKeysReadLimitSec = new IntegerConfigValue(
 			"transitime.api.apiKeyLastUpdateLimitSec", 3,
 			"Amount of time to wait in sec before updating the apiKeyCache");
 
+	private static IntegerConfigValue invalidKeyRecheckSec = new IntegerConfigValue(
+			"transitime.api.invalidApiKeyRecheckSec", 60,
+			"Once a key has been found to not be valid, amount of time in "
+			+ "sec before that key can cause the apiKeyCache to be updated "
+			+ "again.");
+
+	private static IntegerConfigValue refreshSec = new IntegerConfigValue(
+			"transitime.api.apiKeyRefreshSec", 300,
+			"How frequently in sec the apiKeyCache is reread from the "
+			+ "database so that keys that were removed from the database, "
+			+ "or changed by another server, are handled properly. 0 means "
+			+ "the keys are only reread when an unknown key is used.");
+
+	// Limits how long a request with an unknown key waits for the keys to be
+	// reread from the db
+	private static final long MAX_WAIT_FOR_KEYS_READ_MSEC = 5 * Time.MS_PER_SEC;
+
+	// Limits the size of invalidKeyCache in case an application tries many
+	// different keys
+	private static final int MAX_INVALID_KEYS_CACHED = 10000;
+
 	// This is a singleton class
 	private static ApiKeyManager singleton = new ApiKeyManager();
 
@@ -63,16 +118,37 @@ public class ApiKeyManager {
 	/********************** Member Functions **************************/
 
 	/**
-	 * Constructor private because singleton class
+	 * Constructor protected so that tests can replace the database access by
+	 * overriding getApiKeys() and storeApiKey(). Otherwise use getInstance()
+	 * since this is a singleton class.
 	 */
-	private ApiKeyManager() {
+	protected ApiKeyManager() {
 		// Set the name of the db to get the data from.
 		// Use the db name, such as "web".
 		dbName = DbSetupConfig.getDbName();
 
 		// Create the cache. Cache will actually be populated when first
 		// checking if key is valid. This way don't do a db read at startup.
-		apiKeyCache = new HashMap<String, ApiKey>();
+		apiKeyCache = new AtomicReference<Map<String, ApiKey>>();
+
+		// Periodically reread the keys so that ones removed from the db
+		// are no longer accepted
+		int refreshPeriodSec = refreshSec.getValue();
+		if (refreshPeriodSec > 0) {
+			ScheduledExecutorService executor =
+					Executors.newSingleThreadScheduledExecutor(
+							new NamedThreadFactory("ApiKeyRefresh"));
+			executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						startReadingKeys(System.currentTimeMillis());
+					} catch (Exception e) {
+						logger.error("Exception refreshing API keys", e);
+					}
+				}
+			}, refreshPeriodSec, refreshPeriodSec, TimeUnit.SECONDS);
+		}
 	}
 
 	/**
@@ -90,41 +166,160 @@ public class ApiKeyManager {
 	 * database in case it was just added. But won't do so more than every few
 	 * seconds since more frequent access could allow an app with a bad key to
 	 * cause the db to be queried to often putting an unneeded burden on the db.
+	 * For the same reason a key that was found to not be valid won't cause the
+	 * keys to be reread again for transitime.api.invalidApiKeyRecheckSec.
 	 * <p>
-	 * Synchronized because can have simultaneous access and using a cache.
+	 * Not synchronized. For a key in the cache simply reads the current cache
+	 * map. Only a request with an unknown key waits for the keys to be reread.
 	 * 
 	 * @param key
 	 *            The key to investigate
 	 * @return True if key is valid
 	 */
-	public synchronized boolean isKeyValid(String key) {
+	public boolean isKeyValid(String key) {
 		try {
 			// If key is already in cache return true
-			if (apiKeyCache.get(key) != null)
+			Map<String, ApiKey> apiKeys = apiKeyCache.get();
+			if (apiKeys != null && apiKeys.get(key) != null)
 				return true;
+			if (key == null)
+				return false;
 
-			// Want to make sure a user doesn't overwhelm the system by
-			// repeatedly trying to use an invalid key. So if the cache was
-			// just updated a few x seconds ago then don't update it again
-			// right now. Simply return false.
-			if (System.currentTimeMillis() < lastTimeKeysReadIntoCache
-					+ lastTimeKeysReadLimitSec.getValue() * Time.MS_PER_SEC)
+			// Don't reread the keys if this key was just found to be invalid
+			long now = System.currentTimeMillis();
+			Long invalidTime = invalidKeyCache.get(key);
+			if (invalidTime != null && now < invalidTime
+					+ invalidKeyRecheckSec.getValue() * Time.MS_PER_SEC)
 				return false;
-			lastTimeKeysReadIntoCache = System.currentTimeMillis();
 
-			// Key wasn't in cache so update the cache in case it was added
-			apiKeyCache.clear();
-			for (ApiKey apiKey : getApiKeys()) {
-				apiKeyCache.put(apiKey.getKey(), apiKey);
-			}
+			// Key wasn't in cache so update the cache in case it was added.
+			// If the cache was just updated a few seconds ago then null is
+			// returned and simply return false. The key is not remembered
+			// as invalid in that case since it wasn't actually checked
+			// against the db, so it can cause a read once the limit passes.
+			FutureTask<Map<String, ApiKey>> read = startReadingKeys(now);
+			if (read == null)
+				return false;
 
-			return apiKeyCache.get(key) != null;
+			// Wait for the keys to be read, but only for this request
+			apiKeys = read.get(MAX_WAIT_FOR_KEYS_READ_MSEC,
+					TimeUnit.MILLISECONDS);
+			if (apiKeys.get(key) == null) {
+				// The keys were actually read and the key is not valid so
+				// don't reread the keys because of it for a while
+				if (invalidKeyCache.size() < MAX_INVALID_KEYS_CACHED)
+					invalidKeyCache.put(key, System.currentTimeMillis());
+				return false;
+			}
+			
+			invalidKeyCache.remove(key);
+			return true;
+		} catch (TimeoutException e) {
+			logger.error("Timed out reading keys from db when checking key "
+					+ "\"{}\" to see if valid.", key);
+			return false;
 		} catch (Exception e) {
 			logger.error("Problem checking key \"{}\" to see if valid.", key, e);
 			return false;
 		}
 	}
 
+	/**
+	 * Starts rereading the keys from the database in a separate thread. When
+	 * done the cache is replaced with the new keys. If the keys are already
+	 * being read then the current read is returned. 
+	 * 
+	 * @param now
+	 *            Current time in msec
+	 * @return The read of the keys, or null if the keys were read too
+	 *         recently to read them again
+	 */
+	private FutureTask<Map<String, ApiKey>> startReadingKeys(long now) {
+		FutureTask<Map<String, ApiKey>> currentRead = keysRead.get();
+		if (currentRead != null && !currentRead.isDone())
+			return currentRead;
+
+		// Want to make sure a user doesn't overwhelm the system by
+		// repeatedly trying to use an invalid key. So if the cache was
+		// just updated a few x seconds ago then don't update it again
+		// right now. 
+		long lastTime = lastTimeKeysReadIntoCache.get();
+		if (now < lastTime 
+				+ lastTimeKeysReadLimitSec.getValue() * Time.MS_PER_SEC)
+			return null;
+		
+		FutureTask<Map<String, ApiKey>> read = 
+				new FutureTask<Map<String, ApiKey>>(
+						new Callable<Map<String, ApiKey>>() {
+							@Override
+							public Map<String, ApiKey> call() {
+								return readKeysIntoCache();
+							}
+						});
+		
+		// If another thread just started a read then use it instead
+		if (!lastTimeKeysReadIntoCache.compareAndSet(lastTime, now)
+				|| !keysRead.compareAndSet(currentRead, read)) {
+			return keysRead.get();
+		}
+		
+		new NamedThread(read, "ApiKeyReader").start();
+		return read;
+	}
+
+	/**
+	 * Reads the keys from the database and replaces the cache with them.
+	 * Also clears out old entries from the invalid key cache.
+	 * 
+	 * @return The new cache of keys
+	 */
+	private Map<String, ApiKey> readKeysIntoCache() {
+		Map<String, ApiKey> apiKeys = new HashMap<String, ApiKey>();
+		for (ApiKey apiKey : getApiKeys()) {
+			apiKeys.put(apiKey.getKey(), apiKey);
+		}
+		apiKeys = Collections.unmodifiableMap(apiKeys);
+		apiKeyCache.set(apiKeys);
+
+		long oldestInvalidTime = System.currentTimeMillis()
+				- invalidKeyRecheckSec.getValue() * Time.MS_PER_SEC;
+		Iterator<Long> iterator = invalidKeyCache.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next() < oldestInvalidTime)
+				iterator.remove();
+		}
+		
+		logger.debug("Read {} API keys from db.", apiKeys.size());
+		return apiKeys;
+	}
+
+	/**
+	 * Adds or removes a key from the cache. The cache map is replaced with a
+	 * modified copy. If the keys have not yet been read from the db then
+	 * nothing is done since the key will be handled when they are read.
+	 * 
+	 * @param key
+	 * @param apiKey
+	 *            The ApiKey to add, or null if the key is to be removed
+	 */
+	private void updateCache(String key, ApiKey apiKey) {
+		while (true) {
+			Map<String, ApiKey> apiKeys = apiKeyCache.get();
+			if (apiKeys == null)
+				return;
+			
+			Map<String, ApiKey> newApiKeys = 
+					new HashMap<String, ApiKey>(apiKeys);
+			if (apiKey != null)
+				newApiKeys.put(key, apiKey);
+			else
+				newApiKeys.remove(key);
+			if (apiKeyCache.compareAndSet(apiKeys,
+					Collections.unmodifiableMap(newApiKeys)))
+				return;
+		}
+	}
+
 	/**
 	 * Gets the API keys from the database. Gets the session for db access. The
 	 * session is specified by parameters in CoreConfig including
@@ -141,6 +336,16 @@ public class ApiKeyManager {
 		return ApiKey.getApiKeys(session);
 	}
 
+	/**
+	 * Stores the new ApiKey in the database.
+	 * 
+	 * @param apiKey
+	 * @throws HibernateException
+	 */
+	protected void storeApiKey(ApiKey apiKey) throws HibernateException {
+		apiKey.storeApiKey(dbName);
+	}
+
 	private static final String KEY_SALT = "some salt";
 
 	/**
@@ -191,7 +396,11 @@ public class ApiKeyManager {
 				email, phone, description);
 
 		// Store new ApiKey in database
-		newApiKey.storeApiKey(dbName);
+		storeApiKey(newApiKey);
+
+		// Make the new key valid right away
+		updateCache(key, newApiKey);
+		invalidKeyCache.remove(key);
 
 		// Return the new key
 		return newApiKey;
@@ -210,7 +419,7 @@ public class ApiKeyManager {
 				apiKey.deleteApiKey(dbName);
 
 				// Also delete key from the cache
-				apiKeyCache.remove(key);
+				updateCache(key, null);
 
 				// Found the key so done here
 				return;
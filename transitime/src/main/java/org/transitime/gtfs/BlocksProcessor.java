@@ -24,6 +24,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +32,7 @@ import org.transitime.db.structs.Block;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.TripPattern;
 import org.transitime.gtfs.gtfsStructs.GtfsRoute;
+import org.transitime.utils.threading.ParallelForEach;
 
 /**
  * Goes through all the Trip objects and creates corresponding Block
@@ -42,13 +44,26 @@ public class BlocksProcessor {
 
 	private final GtfsData gtfsData;
 	
+	// For creating the blocks in parallel. Null if should be done sequentially
+	private final ForkJoinPool forkJoinPool;
+	
+	// How many blocks are created by a single fork join task
+	private static final int BLOCKS_PER_TASK = 64;
+	
 	private static final Logger logger = LoggerFactory
 			.getLogger(BlocksProcessor.class);
 
 	/********************** Member Functions **************************/
 
-	public BlocksProcessor(GtfsData gtfsData) {
+	/**
+	 * @param gtfsData
+	 * @param forkJoinPool
+	 *            For sorting the trips and creating the blocks in parallel. If
+	 *            null then the blocks are created sequentially.
+	 */
+	public BlocksProcessor(GtfsData gtfsData, ForkJoinPool forkJoinPool) {
 		this.gtfsData = gtfsData;
+		this.forkJoinPool = forkJoinPool;
 
 		// Make sure needed data is already read in. This method uses
 		// trips and trip patterns from the stop_time.txt file. Therefore
@@ -147,6 +162,50 @@ public class BlocksProcessor {
 		}
 	}
 
+	/**
+	 * Creates the Block for the specified trips.
+	 * 
+	 * @param configRev
+	 * @param blockId
+	 * @param serviceId
+	 * @param tripsListForBlock
+	 *            The trips for the block. Sorted chronologically by this
+	 *            method.
+	 * @return The Block, or null if the start time of the first trip not
+	 *         known
+	 */
+	private static Block createBlock(int configRev, String blockId,
+			String serviceId, List<Trip> tripsListForBlock) {
+		// Sort the List of Trips chronologically since they might
+		// be listed in the stop_times.txt file in any order.
+		Collections.sort(tripsListForBlock, 
+				new Comparator<Trip>() {
+					@Override
+					public int compare(Trip arg0, Trip arg1) {
+					  if (arg0 == arg1) return 0;
+					  if (arg0 == null || arg0.getStartTime() == null) return -1;
+					  if (arg1 == null || arg1.getStartTime() == null) return 1;
+						return arg0.getStartTime().
+								compareTo(arg1.getStartTime());
+					}
+				} );
+					
+		// Determine start time for block from the first trip.
+		Trip firstTripForBlock = tripsListForBlock.get(0);
+		if (firstTripForBlock == null || firstTripForBlock.getStartTime() == null)
+		  return null;
+		int startTimeForBlock = firstTripForBlock.getStartTime();
+		
+		// Determine end time for block from the last trip.
+		Trip lastTripForBlock = 
+				tripsListForBlock.get(tripsListForBlock.size()-1);
+		int endTimeForBlock = lastTripForBlock.getEndTime();
+
+		// Create the Block
+		return new Block(configRev, blockId, serviceId,
+				startTimeForBlock, endTimeForBlock, tripsListForBlock);
+	}
+	
 	/**
 	 * Actually processes the trips into block assignments. Includes "unscheduled"
 	 * block assignments for the routes that have been configured for such.
@@ -154,7 +213,7 @@ public class BlocksProcessor {
 	 * @param configRev
 	 * @return List of Block assignments.
 	 */
-	public List<Block> process(int configRev) {
+	public List<Block> process(final int configRev) {
 		// Create list for blocks
 		List<Block> blocks = new ArrayList<Block>();
 		
@@ -193,51 +252,44 @@ public class BlocksProcessor {
 			tripListForBlock.add(trip);
 		}
 		
-		// Now have access to trip list for each block. For each service ID
-		// and block ID create the Block object.
+		// Now have access to trip list for each block. Determine the service
+		// ID and block ID for each block so that the blocks can be created
+		// in parallel but still be added to the list of blocks in the
+		// same order as when processed sequentially.
+		final List<String> serviceIdForBlocks = new ArrayList<String>();
+		final List<String> blockIdForBlocks = new ArrayList<String>();
+		List<List<Trip>> tripsListForBlocks = new ArrayList<List<Trip>>();
 		for (String serviceId : tripListByBlocksByServiceMap.keySet()) {
 			HashMap<String, List<Trip>> tripListForBlocksMap = 
 					tripListByBlocksByServiceMap.get(serviceId);
 			
 			// For each block ID for the service ID...
 			for (String blockId : tripListForBlocksMap.keySet()) {
-				// Determine list of trips for the current block
-				List<Trip> tripsListForBlock = tripListForBlocksMap.get(blockId);
-								
-				// Sort the List of Trips chronologically since they might
-				// be listed in the stop_times.txt file in any order.
-				Collections.sort(tripsListForBlock, 
-						new Comparator<Trip>() {
-							@Override
-							public int compare(Trip arg0, Trip arg1) {
-							  if (arg0 == arg1) return 0;
-							  if (arg0 == null || arg0.getStartTime() == null) return -1;
-							  if (arg1 == null || arg1.getStartTime() == null) return 1;
-								return arg0.getStartTime().
-										compareTo(arg1.getStartTime());
-							}
-						} );
-							
-				// Determine start time for block from the first trip.
-				Trip firstTripForBlock = tripsListForBlock.get(0);
-				if (firstTripForBlock == null || firstTripForBlock.getStartTime() == null)
-				  continue;
-				int startTimeForBlock = firstTripForBlock.getStartTime();
-				
-				// Determine end time for block from the last trip.
-				Trip lastTripForBlock = 
-						tripsListForBlock.get(tripsListForBlock.size()-1);
-				int endTimeForBlock = lastTripForBlock.getEndTime();
-
-				// Create the Block
-				Block block = new Block(configRev, blockId, serviceId,
-						startTimeForBlock, endTimeForBlock, tripsListForBlock);
-				
-				// Add the new block to the list of blocks
-				blocks.add(block);
+				serviceIdForBlocks.add(serviceId);
+				blockIdForBlocks.add(blockId);
+				tripsListForBlocks.add(tripListForBlocksMap.get(blockId));
 			}
 		}
 		
+		// For each service ID and block ID create the Block object. 
+		final Block[] blocksArray = new Block[tripsListForBlocks.size()];
+		ParallelForEach.process(forkJoinPool, tripsListForBlocks,
+				BLOCKS_PER_TASK, new ParallelForEach.Processor<List<Trip>>() {
+					@Override
+					public void process(int index, List<Trip> tripsListForBlock) {
+						blocksArray[index] = createBlock(configRev,
+								blockIdForBlocks.get(index),
+								serviceIdForBlocks.get(index),
+								tripsListForBlock);
+					}
+				});
+		
+		// Add the new blocks to the list of blocks
+		for (Block block : blocksArray) {
+			if (block != null)
+				blocks.add(block);
+		}
+		
 		// Determine the service IDs that are used and then add
 		// the unscheduled blocks for routes that have been configured
 		// such that they should be generated.
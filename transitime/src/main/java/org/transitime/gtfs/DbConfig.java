@@ -120,6 +120,14 @@ public class DbConfig {
 	// Keyed by stop_code
 	private Map<Integer, Stop> stopsByStopCode;
 	
+	// For finding stops near a location. Created when first needed
+	// since the trip patterns need to be accessible via Core.
+	private volatile StopsByLocIndex stopsByLocIndex;
+	
+	// For finding trip patterns with segments near a location. Created
+	// when first needed.
+	private volatile SegmentsByLocIndex segmentsByLocIndex;
+	
 	// Remember the session. This is a bit odd because usually
 	// close sessions but want to keep it open so can do lazy loading
 	// and so that can read in TripPatterns later using the same session.
@@ -718,6 +726,8 @@ public class DbConfig {
 		stopsMap = putStopsIntoMap(stopsList);
 		stopsByStopCode = putStopsIntoMapByStopCode(stopsList);
 		routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
+		stopsByLocIndex = null;
+		segmentsByLocIndex = null;
 		logger.debug("Reading stops took {} msec", timer.elapsedMsec());
 
 		timer = new IntervalTimer();
@@ -868,6 +878,43 @@ public class DbConfig {
 		return Collections.unmodifiableList(routes);
 	}
 
+	/**
+	 * Returns the spatial index of the stops of all of the trip patterns.
+	 * Created the first time it is needed.
+	 * 
+	 * @return
+	 */
+	public StopsByLocIndex getStopsByLocIndex() {
+		if (stopsByLocIndex == null) {
+			synchronized (this) {
+				if (stopsByLocIndex == null)
+					stopsByLocIndex = new StopsByLocIndex(routes);
+			}
+		}
+		return stopsByLocIndex;
+	}
+
+	/**
+	 * Returns the spatial index of the segments of all of the trip patterns.
+	 * Created the first time it is needed.
+	 * 
+	 * @return
+	 */
+	public SegmentsByLocIndex getSegmentsByLocIndex() {
+		if (segmentsByLocIndex == null) {
+			synchronized (this) {
+				if (segmentsByLocIndex == null) {
+					List<TripPattern> tripPatterns = new ArrayList<TripPattern>();
+					for (List<TripPattern> tripPatternsForRoute : 
+							tripPatternsByRouteMap.values())
+						tripPatterns.addAll(tripPatternsForRoute);
+					segmentsByLocIndex = new SegmentsByLocIndex(tripPatterns);
+				}
+			}
+		}
+		return segmentsByLocIndex;
+	}
+
 	/**
 	 * Returns the Route with the specified routeId.
 	 * 
@@ -907,6 +954,28 @@ public class DbConfig {
 	public Stop getStop(Integer stopCode) {
 		return stopsByStopCode.get(stopCode);
 	}
+
+	/**
+	 * Determines the stop ID for a stop ID or stop code, so that stops can
+	 * be specified either way.
+	 * 
+	 * @param stopIdOrCode
+	 *            stop_id or stop_code
+	 * @return The stop ID, or null if stopIdOrCode is neither a valid stop ID
+	 *         nor a valid stop code
+	 */
+	public String getStopId(String stopIdOrCode) {
+		if (getStop(stopIdOrCode) != null)
+			return stopIdOrCode;
+
+		try {
+			Stop stop = getStop(Integer.parseInt(stopIdOrCode));
+			return stop != null ? stop.getId() : null;
+		} catch (NumberFormatException e) {
+			// The stopIdOrCode was not an integer so not a stop code
+			return null;
+		}
+	}
 	
 	/**
 	 * Returns collection of routes that use the specified stop.
@@ -29,11 +29,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 import org.hibernate.HibernateException;
-
+
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.slf4j.Logger;
@@ -135,6 +139,16 @@ public class GtfsData {
 	// So can make the titles more readable
 	private final TitleFormatter titleFormatter;
 	
+	// For processing the GTFS data in parallel. Only exists while
+	// processData() is running. Null if processing sequentially.
+	private ForkJoinPool forkJoinPool;
+	
+	// The large stop_times.txt and shapes.txt files are read in by the 
+	// forkJoinPool while the other files are being processed. Null if 
+	// not reading them in the background.
+	private ForkJoinTask<Map<String, List<GtfsStopTime>>> gtfsStopTimesTask;
+	private ForkJoinTask<List<GtfsShape>> gtfsShapesTask;
+	
 	// Where the data is stored.
 	// From main and supplement routes.txt files. Key is route_id.
 	private Map<String, GtfsRoute> gtfsRoutesMap;
@@ -255,6 +269,17 @@ public class GtfsData {
 					+ "stops for the trips with the same headsign differ by "
 					+ "less than this amount.");
 	
+	private static IntegerConfigValue processingThreads =
+			new IntegerConfigValue("transitime.gtfs.processingThreads", 
+					0,
+					"Number of threads to use for processing the GTFS data. "
+					+ "The large stop_times.txt and shapes.txt files are read "
+					+ "in while other files are processed and the stop paths "
+					+ "and blocks are created in parallel. A value of 0 means "
+					+ "that the number of available processors is used. A "
+					+ "value of 1 means that the data is processed "
+					+ "sequentially.");
+	
 	// Logging
 	public static final Logger logger = 
 			LoggerFactory.getLogger(GtfsData.class);
@@ -980,6 +1005,49 @@ public class GtfsData {
 		return processedGtfsStopTimesForTrip;
 	}
 	
+	/**
+	 * Adds the GtfsStopTime to the list of stop times for its trip so later 
+	 * can create Trips and TripPatterns.
+	 * 
+	 * @param stopTimesForTripMap
+	 *            Keyed by tripId
+	 * @param gtfsStopTime
+	 */
+	private static void addStopTimeForTrip(
+			Map<String, List<GtfsStopTime>> stopTimesForTripMap,
+			GtfsStopTime gtfsStopTime) {
+		String tripId = gtfsStopTime.getTripId();
+		List<GtfsStopTime> gtfsStopTimesForTrip = 
+				stopTimesForTripMap.get(tripId);
+		if (gtfsStopTimesForTrip == null) {
+			gtfsStopTimesForTrip = new ArrayList<GtfsStopTime>();
+			stopTimesForTripMap.put(tripId, gtfsStopTimesForTrip);
+		}
+		gtfsStopTimesForTrip.add(gtfsStopTime);
+	}
+	
+	/**
+	 * Reads in the stop_times.txt file. The stop times are streamed directly
+	 * into the map by trip instead of first reading them all into a list
+	 * since for large agencies there are millions of them.
+	 * 
+	 * @return Map keyed by tripId of the GtfsStopTimes for the trip, in the
+	 *         order that they are in the file
+	 */
+	private Map<String, List<GtfsStopTime>> readStopTimesByTrip() {
+		final Map<String, List<GtfsStopTime>> stopTimesForTripMap = 
+				new HashMap<String, List<GtfsStopTime>>();
+		GtfsStopTimesReader stopTimesReader = 
+				new GtfsStopTimesReader(gtfsDirectoryName);
+		stopTimesReader.process(new Consumer<GtfsStopTime>() {
+			@Override
+			public void accept(GtfsStopTime gtfsStopTime) {
+				addStopTimeForTrip(stopTimesForTripMap, gtfsStopTime);
+			}
+		});
+		return stopTimesForTripMap;
+	}
+	
 	/**
 	 * Reads the data from stop_times.txt and puts it into
 	 * gtfsStopTimesForTripMap map. Also processes the data to determine Trips
@@ -1016,14 +1084,16 @@ public class GtfsData {
 		// Let user know what is going on
 		logger.info("Processing stop_times.txt data...");
 		
-		// Read in the stop_times.txt GTFS data from file. Use a large initial
-		// array size so when reading in data won't have to constantly increase
-		// array size and do array copying. SFMTA for example has 1,100,000
-		// stop times so starting with a value of 500,000 certainly should be 
-		// reasonable.
-		GtfsStopTimesReader stopTimesReader = 
-				new GtfsStopTimesReader(gtfsDirectoryName);
-		Collection<GtfsStopTime> gtfsStopTimes = stopTimesReader.get(500000);
+		// Read in the stop_times.txt GTFS data from file. The GtfsStopTimes 
+		// are put into this map and then can create Trips and TripPatterns.
+		// Keyed by tripId
+		if (gtfsStopTimesTask != null) {
+			// Already being read in by the forkJoinPool so just wait for it
+			gtfsStopTimesForTripMap = gtfsStopTimesTask.join();
+			gtfsStopTimesTask = null;
+		} else {
+			gtfsStopTimesForTripMap = readStopTimesByTrip();
+		}
 
 		// Handle possible supplemental stop_times.txt file.
 		// Match the supplemental data to the main data using both
@@ -1038,11 +1108,14 @@ public class GtfsData {
 				// Put original shapes into map for quick searching
 				Map<MapKey, GtfsStopTime> map =
 						new HashMap<MapKey, GtfsStopTime>();
-				for (GtfsStopTime gtfsStopTime : gtfsStopTimes) {
-					MapKey key =
-							new MapKey(gtfsStopTime.getTripId(),
-									gtfsStopTime.getStopId());
-					map.put(key, gtfsStopTime);
+				for (List<GtfsStopTime> gtfsStopTimesForTrip : 
+						gtfsStopTimesForTripMap.values()) {
+					for (GtfsStopTime gtfsStopTime : gtfsStopTimesForTrip) {
+						MapKey key =
+								new MapKey(gtfsStopTime.getTripId(),
+										gtfsStopTime.getStopId());
+						map.put(key, gtfsStopTime);
+					}
 				}
 					
 				// Modify main GtfsShape objects using supplemental data
@@ -1079,26 +1152,12 @@ public class GtfsData {
 				}
 				
 				// Use the new combined shapes
-				gtfsStopTimes = map.values();
-			}
-		}
-		
-		// The GtfsStopTimes are put into this map and then can create Trips
-		// and TripPatterns. Keyed by tripId
-		gtfsStopTimesForTripMap = new HashMap<String, List<GtfsStopTime>>();
-
-		// Put the GtfsStopTimes into the map
-		for (GtfsStopTime gtfsStopTime : gtfsStopTimes) {
-			// Add the GtfsStopTime to the map so later can create Trips and 
-			// TripPatterns
-			String tripId = gtfsStopTime.getTripId();
-			List<GtfsStopTime> gtfsStopTimesForTrip = 
-					gtfsStopTimesForTripMap.get(tripId);
-			if (gtfsStopTimesForTrip == null) {
-				gtfsStopTimesForTrip = new ArrayList<GtfsStopTime>();
-				gtfsStopTimesForTripMap.put(tripId, gtfsStopTimesForTrip);
+				gtfsStopTimesForTripMap = 
+						new HashMap<String, List<GtfsStopTime>>();
+				for (GtfsStopTime gtfsStopTime : map.values()) {
+					addStopTimeForTrip(gtfsStopTimesForTripMap, gtfsStopTime);
+				}
 			}
-			gtfsStopTimesForTrip.add(gtfsStopTime);
 		}
 		
 		// Go through the stop times for each tripId. Sort them and look for
@@ -1722,7 +1781,8 @@ public class GtfsData {
 		logger.info("Processing blocks...");
 
 		// Actually process the block info and get back list of blocks
-		blocks = new BlocksProcessor(this).process(revs.getConfigRev());
+		blocks = new BlocksProcessor(this, forkJoinPool)
+				.process(revs.getConfigRev());
 		
 		// Let user know what is going on
 		logger.info("Finished processing blocks. Took {} msec.", 
@@ -1806,8 +1866,16 @@ public class GtfsData {
 		logger.info("Processing shapes.txt data...");
 		
 		// Read in the shapes.txt GTFS data from file
-		GtfsShapesReader shapesReader = new GtfsShapesReader(gtfsDirectoryName);
-		Collection<GtfsShape> gtfsShapes = shapesReader.get();
+		Collection<GtfsShape> gtfsShapes;
+		if (gtfsShapesTask != null) {
+			// Already being read in by the forkJoinPool so just wait for it
+			gtfsShapes = gtfsShapesTask.join();
+			gtfsShapesTask = null;
+		} else {
+			GtfsShapesReader shapesReader = 
+					new GtfsShapesReader(gtfsDirectoryName);
+			gtfsShapes = shapesReader.get();
+		}
 		
 		// Handle possible supplemental shapes.txt file.
 		// Match the supplemental data to the main data using both
@@ -1874,7 +1942,8 @@ public class GtfsData {
 						pathOffsetDistance,
 						maxStopToPathDistance, 
 						maxDistanceForEliminatingVertices,
-						trimPathBeforeFirstStopOfTrip);
+						trimPathBeforeFirstStopOfTrip,
+						forkJoinPool);
 		pathProcessor.processPathSegments();
 						
 		// Let user know what is going on
@@ -2639,6 +2708,54 @@ public class GtfsData {
 		return matches;
 	}
 	
+	/**
+	 * Creates the forkJoinPool, unless configured to process the data
+	 * sequentially, and starts reading in the stop_times.txt and shapes.txt
+	 * files. These are by far the largest files and they don't depend on any
+	 * other data so they can be read in while the other files are being
+	 * processed. Only the reading is done in the background. The processing
+	 * of the data is still done in the usual order so that the results are
+	 * the same as when processing sequentially.
+	 */
+	private void startForkJoinPool() {
+		int numThreads = processingThreads.getValue();
+		if (numThreads <= 0)
+			numThreads = Runtime.getRuntime().availableProcessors();
+		if (numThreads <= 1)
+			return;
+		
+		logger.info("Processing GTFS data using {} threads.", numThreads);
+		forkJoinPool = new ForkJoinPool(numThreads);
+		
+		gtfsStopTimesTask = forkJoinPool.submit(
+				new Callable<Map<String, List<GtfsStopTime>>>() {
+					@Override
+					public Map<String, List<GtfsStopTime>> call() {
+						return readStopTimesByTrip();
+					}
+				});
+		gtfsShapesTask = forkJoinPool.submit(
+				new Callable<List<GtfsShape>>() {
+					@Override
+					public List<GtfsShape> call() {
+						return new GtfsShapesReader(gtfsDirectoryName).get();
+					}
+				});
+	}
+	
+	/**
+	 * Shuts down the forkJoinPool, if there is one, since it is only needed
+	 * while processing the data.
+	 */
+	private void shutdownForkJoinPool() {
+		if (forkJoinPool != null) {
+			forkJoinPool.shutdownNow();
+			forkJoinPool = null;
+		}
+		gtfsStopTimesTask = null;
+		gtfsShapesTask = null;
+	}
+	
 	/**
 	 * Does all the work. Processes the data and store it in internal structures
 	 */
@@ -2650,27 +2767,35 @@ public class GtfsData {
 		logger.info("Processing GTFS data from {} ...",
 				gtfsDirectoryName);
 
-		// Note. The order of how these are processed in important because
-		// some data sets rely on others in order to be fully processed.
-		// If the order is wrong then the methods below will log an error and
-		// exit.
-		processRouteData();
-		processStopData();		
-		processCalendarDates();
-		processCalendars();
-		processServiceIds();
-		processTripsData();	
-		processFrequencies();
-		processStopTimesData();		
-		processRouteMaps(); 
-		processBlocks();
-		processPaths();
-		processAgencyData();
-		
-		// Following are simple objects that don't require combining tables
-		processFareAttributes();
-		processFareRules();
-		processTransfers();
+		// Start reading in the large files in the background, if configured
+		// to process in parallel
+		startForkJoinPool();
+		
+		try {
+			// Note. The order of how these are processed in important because
+			// some data sets rely on others in order to be fully processed.
+			// If the order is wrong then the methods below will log an error 
+			// and exit.
+			processRouteData();
+			processStopData();		
+			processCalendarDates();
+			processCalendars();
+			processServiceIds();
+			processTripsData();	
+			processFrequencies();
+			processStopTimesData();		
+			processRouteMaps(); 
+			processBlocks();
+			processPaths();
+			processAgencyData();
+			
+			// Following are simple objects that don't require combining tables
+			processFareAttributes();
+			processFareRules();
+			processTransfers();
+		} finally {
+			shutdownForkJoinPool();
+		}
 		
 		// Sometimes will be using a partial configuration. For example, for 
 		// MBTA commuter rail only want to use the trips defined for 
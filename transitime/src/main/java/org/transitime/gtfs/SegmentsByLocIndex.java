@@ -0,0 +1,189 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.gtfs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.db.structs.Vector;
+import org.transitime.utils.Geo;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * A uniform lat/lon grid over the segments of the stop paths of all trip
+ * patterns for a config rev. Each grid cell lists the trip patterns that
+ * have a segment passing through the cell. Allows SpatialMatcher to quickly
+ * determine which trip patterns could possibly have a segment within the
+ * allowable distance of an AVL report instead of computing the distance to
+ * every segment of every trip.
+ */
+public class SegmentsByLocIndex {
+
+	// Size of a grid cell in degrees. About 500m north/south.
+	private static final double CELL_SIZE_DEGREES = 0.005;
+
+	// Trip pattern IDs, indexed by the ints stored in the cells
+	private final String[] tripPatternIds;
+	private final Set<String> indexedTripPatternIds;
+
+	// For each grid cell the indexes of the trip patterns that have a
+	// segment going through that cell
+	private final Map<Long, int[]> tripPatternsByCell;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(SegmentsByLocIndex.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the index for the trip patterns.
+	 *
+	 * @param tripPatterns
+	 */
+	public SegmentsByLocIndex(Collection<TripPattern> tripPatterns) {
+		IntervalTimer timer = new IntervalTimer();
+
+		List<String> tripPatternIdsList = new ArrayList<String>();
+		Map<Long, Set<Integer>> cells = new HashMap<Long, Set<Integer>>();
+		for (TripPattern tripPattern : tripPatterns) {
+			int tripPatternIndex = tripPatternIdsList.size();
+			tripPatternIdsList.add(tripPattern.getId());
+
+			for (StopPath stopPath : tripPattern.getStopPaths()) {
+				for (Vector segment : stopPath.getSegmentVectors()) {
+					addSegment(cells, segment, tripPatternIndex);
+				}
+			}
+		}
+
+		tripPatternIds =
+				tripPatternIdsList.toArray(new String[tripPatternIdsList.size()]);
+		indexedTripPatternIds = new HashSet<String>(tripPatternIdsList);
+		tripPatternsByCell = new HashMap<Long, int[]>();
+		for (Map.Entry<Long, Set<Integer>> entry : cells.entrySet()) {
+			int[] array = new int[entry.getValue().size()];
+			int i = 0;
+			for (Integer tripPatternIndex : entry.getValue())
+				array[i++] = tripPatternIndex;
+			tripPatternsByCell.put(entry.getKey(), array);
+		}
+
+		logger.info("Created SegmentsByLocIndex for {} trip patterns using "
+				+ "{} grid cells. Took {} msec.", tripPatternIds.length,
+				tripPatternsByCell.size(), timer.elapsedMsec());
+	}
+
+	/**
+	 * Adds the trip pattern to all of the cells covered by the bounding box
+	 * of the segment. Since every point of the segment is within the bounding
+	 * box this means that every cell the segment passes through is included.
+	 *
+	 * @param cells
+	 * @param segment
+	 * @param tripPatternIndex
+	 */
+	private static void addSegment(Map<Long, Set<Integer>> cells,
+			Vector segment, int tripPatternIndex) {
+		Location l1 = segment.getL1();
+		Location l2 = segment.getL2();
+		int minLatCell = cell(Math.min(l1.getLat(), l2.getLat()));
+		int maxLatCell = cell(Math.max(l1.getLat(), l2.getLat()));
+		int minLonCell = cell(Math.min(l1.getLon(), l2.getLon()));
+		int maxLonCell = cell(Math.max(l1.getLon(), l2.getLon()));
+		for (int latCell = minLatCell; latCell <= maxLatCell; ++latCell) {
+			for (int lonCell = minLonCell; lonCell <= maxLonCell; ++lonCell) {
+				long key = cellKey(latCell, lonCell);
+				Set<Integer> tripPatternsForCell = cells.get(key);
+				if (tripPatternsForCell == null) {
+					tripPatternsForCell = new HashSet<Integer>();
+					cells.put(key, tripPatternsForCell);
+				}
+				tripPatternsForCell.add(tripPatternIndex);
+			}
+		}
+	}
+
+	private static int cell(double degrees) {
+		return (int) Math.floor(degrees / CELL_SIZE_DEGREES);
+	}
+
+	private static long cellKey(int latCell, int lonCell) {
+		return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns true if the trip pattern is part of the index. Trip patterns
+	 * that are not part of the index should always be investigated.
+	 *
+	 * @param tripPatternId
+	 * @return
+	 */
+	public boolean isIndexed(String tripPatternId) {
+		return indexedTripPatternIds.contains(tripPatternId);
+	}
+
+	/**
+	 * Returns the IDs of the trip patterns that might have a segment within
+	 * maxDistance of the location. The result is a superset of the trip
+	 * patterns that actually have such a segment since whole grid cells are
+	 * examined. Therefore a trip pattern not in the result definitely does
+	 * not have a segment within maxDistance.
+	 *
+	 * @param loc
+	 * @param maxDistance
+	 * @return set of trip pattern IDs
+	 */
+	public Set<String> getTripPatternIdsNear(Location loc, double maxDistance) {
+		// Determine the extent of the search in degrees. Add a bit of
+		// margin to handle the approximations of the distance calculation.
+		double deltaLat = Math.toDegrees(
+				maxDistance / Geo.RADIUS_OF_EARTH_IN_METERS) * 1.1;
+		double cosLat = Math.max(0.01,
+				Math.cos(Math.toRadians(Math.abs(loc.getLat()) + deltaLat)));
+		double deltaLon = deltaLat / cosLat;
+
+		int minLatCell = cell(loc.getLat() - deltaLat);
+		int maxLatCell = cell(loc.getLat() + deltaLat);
+		int minLonCell = cell(loc.getLon() - deltaLon);
+		int maxLonCell = cell(loc.getLon() + deltaLon);
+
+		Set<String> results = new HashSet<String>();
+		for (int latCell = minLatCell; latCell <= maxLatCell; ++latCell) {
+			for (int lonCell = minLonCell; lonCell <= maxLonCell; ++lonCell) {
+				int[] tripPatternsForCell =
+						tripPatternsByCell.get(cellKey(latCell, lonCell));
+				if (tripPatternsForCell == null)
+					continue;
+				for (int tripPatternIndex : tripPatternsForCell)
+					results.add(tripPatternIds[tripPatternIndex]);
+			}
+		}
+
+		return results;
+	}
+}
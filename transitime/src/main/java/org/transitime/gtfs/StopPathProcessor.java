@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +34,7 @@ import org.transitime.db.structs.Vector;
 import org.transitime.gtfs.gtfsStructs.GtfsShape;
 import org.transitime.utils.Geo;
 import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.threading.ParallelForEach;
 
 /**
  * Part of GtfsData class. Processes the shapes.txt data and converts
@@ -51,6 +53,10 @@ public class StopPathProcessor {
 	private final double maxStopToPathDistance;
 	private final double maxDistanceForEliminatingVertices;
 	private final boolean trimPathBeforeFirstStopOfTrip;
+	private final ForkJoinPool forkJoinPool;
+	
+	// How many trip patterns are processed by a single fork join task
+	private static final int TRIP_PATTERNS_PER_TASK = 4;
 	
 	private static final Logger logger = 
 			LoggerFactory.getLogger(StopPathProcessor.class);
@@ -75,6 +81,9 @@ public class StopPathProcessor {
 	 *            trip. This can be useful because sometimes a single shape is
 	 *            used for multiple trip patterns or the shapes simply have some
 	 *            problem points at the beginning (like sfmta 21-Hayes.
+	 * @param forkJoinPool
+	 *            For processing the trip patterns in parallel. If null then
+	 *            they are processed sequentially.
 	 */
 	public StopPathProcessor(Collection<GtfsShape> gtfsShapes, 
 			Map<String, Stop> stopsMap, 
@@ -82,7 +91,8 @@ public class StopPathProcessor {
 			double offsetDistance,
 			double maxStopToPathDistance,
 			double maxDistanceForEliminatingVertices,
-			boolean trimPathBeforeFirstStopOfTrip) {
+			boolean trimPathBeforeFirstStopOfTrip,
+			ForkJoinPool forkJoinPool) {
 		// Create a GtfsShapes Map where can look up
 		// GtfsShapes by shapeId.
 		gtfsShapesMap = new HashMap<String, List<GtfsShape>>(gtfsShapes.size());
@@ -108,6 +118,7 @@ public class StopPathProcessor {
 		this.maxStopToPathDistance = maxStopToPathDistance;
 		this.maxDistanceForEliminatingVertices = maxDistanceForEliminatingVertices;
 		this.trimPathBeforeFirstStopOfTrip = trimPathBeforeFirstStopOfTrip;
+		this.forkJoinPool = forkJoinPool;
 	}
 	
 	/**
@@ -618,6 +629,9 @@ public class StopPathProcessor {
 	 * stop and the path ends at the stop. The path segments are also
 	 * filtered so that segments that are too short or too long are 
 	 * adjusted.
+	 * <p>
+	 * Each trip pattern only modifies its own StopPaths so the trip patterns
+	 * are processed in parallel using the ForkJoinPool, if there is one.
 	 */
 	public void processPathSegments() {
 		// For logging how long things take
@@ -627,28 +641,15 @@ public class StopPathProcessor {
 		logger.info("Processing and filtering path segment data...");
 		
 		// Need to process stopPaths for every trip pattern...
-		for (TripPattern tripPattern : tripPatterns) {
-			// Determine the GtfsShape associated with the TripPattern
-			String shapeId = tripPattern.getShapeId();
-			List<GtfsShape> gtfsShapesForTripPattern = gtfsShapesMap.get(shapeId);
-			
-			// If no shape defined then simply connect the stops
-			if (gtfsShapesForTripPattern == null) {
-				// Create stopPaths by connecting the stops
-				connectStopsSinceNoShapes(tripPattern);
-			} else {
-				// Determine list of shapes associated with the trip pattern.
-				// The stopPaths are offset to the right by the offsetDistance
-				// if needed. This is useful if the shapes.txt data is street
-				// centerline data.
-				List<Location> offsetLocations = 
-						getOffsetLocations(gtfsShapesMap.get(shapeId));
-						
-				// Create stopPaths by finding best match to shapes
-				determinePathSegmentsMatchingStopsToShapes(offsetLocations, 
-						tripPattern);
-			}
-		}
+		ParallelForEach.process(forkJoinPool, 
+				new ArrayList<TripPattern>(tripPatterns),
+				TRIP_PATTERNS_PER_TASK,
+				new ParallelForEach.Processor<TripPattern>() {
+					@Override
+					public void process(int index, TripPattern tripPattern) {
+						processPathSegments(tripPattern);
+					}
+				});
 		
 		// Let user know what is going on
 		logger.info("Finished processing and filtering path segment data. " +
@@ -656,4 +657,32 @@ public class StopPathProcessor {
 				timer.elapsedMsec());		
 	}
 	
+	/**
+	 * Determines the path segments for the specified trip pattern.
+	 * 
+	 * @param tripPattern
+	 */
+	private void processPathSegments(TripPattern tripPattern) {
+		// Determine the GtfsShape associated with the TripPattern
+		String shapeId = tripPattern.getShapeId();
+		List<GtfsShape> gtfsShapesForTripPattern = gtfsShapesMap.get(shapeId);
+		
+		// If no shape defined then simply connect the stops
+		if (gtfsShapesForTripPattern == null) {
+			// Create stopPaths by connecting the stops
+			connectStopsSinceNoShapes(tripPattern);
+		} else {
+			// Determine list of shapes associated with the trip pattern.
+			// The stopPaths are offset to the right by the offsetDistance
+			// if needed. This is useful if the shapes.txt data is street
+			// centerline data.
+			List<Location> offsetLocations = 
+					getOffsetLocations(gtfsShapesForTripPattern);
+					
+			// Create stopPaths by finding best match to shapes
+			determinePathSegmentsMatchingStopsToShapes(offsetLocations, 
+					tripPattern);
+		}
+	}
+	
 }
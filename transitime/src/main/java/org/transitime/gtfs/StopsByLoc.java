@@ -18,6 +18,7 @@
 package org.transitime.gtfs;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 import org.transitime.applications.Core;
@@ -175,10 +176,39 @@ public class StopsByLoc {
 		return true;
 	}
 	
+	/**
+	 * Now that have matches for all trip patterns for a direction determines
+	 * which is the best one and adds it to the results.
+	 * 
+	 * @param matchesForDirection
+	 * @param results
+	 */
+	private static void addBestMatchForDirection(
+			List<StopInfo> matchesForDirection, List<StopInfo> results) {
+		if (matchesForDirection.size() >= 1 
+				&& matchesAreForSameStop(matchesForDirection)) {
+			// There is just a single stop so use it
+			results.add(matchesForDirection.get(0));
+		} else if (matchesForDirection.size() > 1) {
+			// Matches are for different stops so determine best stop 
+			// based on predictions
+			StopInfo stopInfo = determineBestStopBasedOnPredictions(
+					matchesForDirection);
+			
+			if (stopInfo != null)
+				results.add(stopInfo);
+		}
+	}
+	
 	/**
 	 * Gets list of stops that are within maxDistance of the specified location.
 	 * Looks at every trip pattern so can deal with complicated cases such as
 	 * routes with school service stops just for part of the day.
+	 * <p>
+	 * Uses the StopsByLocIndex to only look at the trip patterns that have a
+	 * stop near the location. A trip pattern without such a stop can't
+	 * provide a match so the results are the same as when looking at all
+	 * trip patterns.
 	 * 
 	 * @param loc
 	 * @param maxDistance
@@ -188,60 +218,48 @@ public class StopsByLoc {
 		// For returning the results
 		List<StopInfo> results = new ArrayList<StopInfo>();
 		
-		// Find closest stops for every route...
+		// Determine the trip patterns that might have a stop nearby. They
+		// are ordered by route and then direction.
 		DbConfig dbConfig = Core.getInstance().getDbConfig();
-		for (Route route : dbConfig.getRoutes()) {
+		StopsByLocIndex index = dbConfig.getStopsByLocIndex();
+		BitSet candidates = index.getCandidateTripPatterns(loc, maxDistance);
+		
+		// Need to look at trip patterns separately since don't just want
+		// to match to a closest stop that happens to not be in service
+		// at the time (such as a special school stop) and then not get
+		// predictions for the route. So for each direction for each
+		// trip pattern find closest stop. Then look at predictions
+		// for those stops. Use the stop that provides the most useful
+		// predictions.
+		List<StopInfo> matchesForDirection = new ArrayList<StopInfo>();
+		int currentDirectionNumber = -1;
+		for (int i = candidates.nextSetBit(0); i >= 0; 
+				i = candidates.nextSetBit(i+1)) {
 			// If the specified location is not within the distance of the route
 			// then can skip this route
+			Route route = index.getRoute(i);
 			if (!route.getExtent().isWithinDistance(loc, maxDistance))
 				continue;
-			
-			// Need to look at trip patterns separately since don't just want
-			// to match to a closest stop that happens to not be in service
-			// at the time (such as a special school stop) and then not get
-			// predictions for the route. So for each direction for each
-			// trip pattern find closest stop. Then look at predictions
-			// for those stops. Use the stop that provides the most useful
-			// predictions.
-			for (String directionId : route.getDirectionIds()) {
-				// So can look at matches for all trip patterns for direction
-				// at once.
-				List<StopInfo> matchesForDirection = 
-						new ArrayList<StopInfo>();
-				
-				List<TripPattern> tripPatternsForDirection = 
-						route.getTripPatterns(directionId);
-				for (TripPattern tripPattern : tripPatternsForDirection) {
-					// Determine the closest stop for the trip pattern
-					StopInfo stopInfo = 
-							determineClosestStop(tripPattern, loc, maxDistance);
-					
-					// If valid stop found then go on to next trip pattern
-					if (stopInfo == null)
-						continue;
-					
-					// So can look at matches for all trip patterns for direction
-					// at once.					
-					matchesForDirection.add(stopInfo);
-				}
-				
-				// Now that have matches for all trip patterns for the direction
-				// need to determine which is the best one.
-				if (matchesForDirection.size() >= 1 
-						&& matchesAreForSameStop(matchesForDirection)) {
-					// There is just a single stop so use it
-					results.add(matchesForDirection.get(0));
-				} else if (matchesForDirection.size() > 1) {
-					// Matches are for different stops so determine best stop 
-					// based on predictions
-					StopInfo stopInfo = determineBestStopBasedOnPredictions(
-							matchesForDirection);
-					
-					if (stopInfo != null)
-						results.add(stopInfo);
-				}
+
+			// If on to a new direction then handle the matches for the
+			// previous one
+			int directionNumber = index.getDirectionNumber(i);
+			if (directionNumber != currentDirectionNumber) {
+				addBestMatchForDirection(matchesForDirection, results);
+				matchesForDirection.clear();
+				currentDirectionNumber = directionNumber;
 			}
+			
+			// Determine the closest stop for the trip pattern
+			StopInfo stopInfo = determineClosestStop(index.getTripPattern(i),
+					loc, maxDistance);
+			
+			// If valid stop found then remember it so can look at matches 
+			// for all trip patterns for direction at once.
+			if (stopInfo != null)
+				matchesForDirection.add(stopInfo);
 		}
+		addBestMatchForDirection(matchesForDirection, results);
 		
 		// Ah, done
 		return results;
@@ -0,0 +1,211 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.gtfs;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.db.structs.Location;
+import org.transitime.db.structs.Route;
+import org.transitime.db.structs.StopPath;
+import org.transitime.db.structs.TripPattern;
+import org.transitime.utils.Geo;
+import org.transitime.utils.IntervalTimer;
+
+/**
+ * A uniform lat/lon grid over the stops of all trip patterns so that
+ * StopsByLoc can quickly determine which trip patterns have a stop near a
+ * location instead of computing the distance to every stop of every trip
+ * pattern.
+ * <p>
+ * The trip patterns are numbered in the same order that StopsByLoc would
+ * iterate over them, by route, then direction, then trip pattern. Therefore
+ * the candidates for a location are returned as a BitSet that can be
+ * iterated in that same order, which means StopsByLoc returns identical
+ * results.
+ */
+public class StopsByLocIndex {
+
+	// Size of a grid cell in degrees. About 1km north/south.
+	private static final double CELL_SIZE_DEGREES = 0.01;
+
+	// The trip patterns, in order, along with the route and the direction
+	// they belong to.
+	private final TripPattern[] tripPatterns;
+	private final Route[] routes;
+	private final int[] directionNumbers;
+
+	// For each grid cell the indexes of the trip patterns that have a stop
+	// in that cell
+	private final Map<Long, int[]> tripPatternsByCell;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(StopsByLocIndex.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the index for the routes. Should be called once the trip
+	 * patterns can be accessed for the routes.
+	 *
+	 * @param routesList
+	 *            The routes in the order they are to be returned
+	 */
+	public StopsByLocIndex(List<Route> routesList) {
+		IntervalTimer timer = new IntervalTimer();
+
+		List<TripPattern> tripPatternsList = new ArrayList<TripPattern>();
+		List<Route> routesForTripPatterns = new ArrayList<Route>();
+		List<Integer> directionNumbersList = new ArrayList<Integer>();
+		Map<Long, List<Integer>> cells = new HashMap<Long, List<Integer>>();
+		int directionNumber = 0;
+		for (Route route : routesList) {
+			for (String directionId : route.getDirectionIds()) {
+				++directionNumber;
+				for (TripPattern tripPattern :
+						route.getTripPatterns(directionId)) {
+					int tripPatternIndex = tripPatternsList.size();
+					tripPatternsList.add(tripPattern);
+					routesForTripPatterns.add(route);
+					directionNumbersList.add(directionNumber);
+
+					for (StopPath stopPath : tripPattern.getStopPaths()) {
+						Location stopLoc = stopPath.getStopLocation();
+						long cell = cellKey(latCell(stopLoc.getLat()),
+								lonCell(stopLoc.getLon()));
+						List<Integer> tripPatternsForCell = cells.get(cell);
+						if (tripPatternsForCell == null) {
+							tripPatternsForCell = new ArrayList<Integer>();
+							cells.put(cell, tripPatternsForCell);
+						}
+						// Trip pattern is added consecutively for its stops
+						// so only need to check the last one for duplicates
+						if (tripPatternsForCell.isEmpty()
+								|| tripPatternsForCell.get(tripPatternsForCell
+										.size() - 1) != tripPatternIndex)
+							tripPatternsForCell.add(tripPatternIndex);
+					}
+				}
+			}
+		}
+
+		tripPatterns =
+				tripPatternsList.toArray(new TripPattern[tripPatternsList.size()]);
+		routes = routesForTripPatterns.toArray(new Route[routesForTripPatterns.size()]);
+		directionNumbers = new int[directionNumbersList.size()];
+		for (int i = 0; i < directionNumbers.length; ++i)
+			directionNumbers[i] = directionNumbersList.get(i);
+
+		tripPatternsByCell = new HashMap<Long, int[]>();
+		for (Map.Entry<Long, List<Integer>> entry : cells.entrySet()) {
+			List<Integer> list = entry.getValue();
+			int[] array = new int[list.size()];
+			for (int i = 0; i < array.length; ++i)
+				array[i] = list.get(i);
+			tripPatternsByCell.put(entry.getKey(), array);
+		}
+
+		logger.info("Created StopsByLocIndex for {} trip patterns using {} "
+				+ "grid cells. Took {} msec.", tripPatterns.length,
+				tripPatternsByCell.size(), timer.elapsedMsec());
+	}
+
+	private static int latCell(double lat) {
+		return (int) Math.floor(lat / CELL_SIZE_DEGREES);
+	}
+
+	private static int lonCell(double lon) {
+		return (int) Math.floor(lon / CELL_SIZE_DEGREES);
+	}
+
+	private static long cellKey(int latCell, int lonCell) {
+		return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns the indexes of the trip patterns that have a stop that might
+	 * be within maxDistance of the location. The result is a superset of the
+	 * trip patterns that actually have such a stop since whole grid cells
+	 * are examined.
+	 *
+	 * @param loc
+	 * @param maxDistance
+	 * @return BitSet of trip pattern indexes, in iteration order
+	 */
+	public BitSet getCandidateTripPatterns(Location loc, double maxDistance) {
+		// Determine the extent of the search in degrees. Add a bit of
+		// margin to handle the approximations of the distance calculation.
+		double deltaLat = Math.toDegrees(
+				maxDistance / Geo.RADIUS_OF_EARTH_IN_METERS) * 1.1;
+		double cosLat = Math.max(0.01,
+				Math.cos(Math.toRadians(Math.abs(loc.getLat()) + deltaLat)));
+		double deltaLon = deltaLat / cosLat;
+
+		int minLatCell = latCell(loc.getLat() - deltaLat);
+		int maxLatCell = latCell(loc.getLat() + deltaLat);
+		int minLonCell = lonCell(loc.getLon() - deltaLon);
+		int maxLonCell = lonCell(loc.getLon() + deltaLon);
+
+		BitSet candidates = new BitSet(tripPatterns.length);
+		for (int latCell = minLatCell; latCell <= maxLatCell; ++latCell) {
+			for (int lonCell = minLonCell; lonCell <= maxLonCell; ++lonCell) {
+				int[] tripPatternsForCell =
+						tripPatternsByCell.get(cellKey(latCell, lonCell));
+				if (tripPatternsForCell == null)
+					continue;
+				for (int tripPatternIndex : tripPatternsForCell)
+					candidates.set(tripPatternIndex);
+			}
+		}
+
+		return candidates;
+	}
+
+	/**
+	 * @param tripPatternIndex
+	 * @return The trip pattern for the index
+	 */
+	public TripPattern getTripPattern(int tripPatternIndex) {
+		return tripPatterns[tripPatternIndex];
+	}
+
+	/**
+	 * @param tripPatternIndex
+	 * @return The route that the trip pattern belongs to
+	 */
+	public Route getRoute(int tripPatternIndex) {
+		return routes[tripPatternIndex];
+	}
+
+	/**
+	 * Returns a number that uniquely identifies the route/direction of the
+	 * trip pattern, so can determine when the direction changes while
+	 * iterating over trip patterns.
+	 *
+	 * @param tripPatternIndex
+	 * @return
+	 */
+	public int getDirectionNumber(int tripPatternIndex) {
+		return directionNumbers[tripPatternIndex];
+	}
+}
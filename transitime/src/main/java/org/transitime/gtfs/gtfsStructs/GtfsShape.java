@@ -65,7 +65,7 @@ public class GtfsShape extends CsvBase implements Comparable<GtfsShape> {
 		throws NumberFormatException {
 		super(record, supplemental, fileName);
 
-		shapeId = getRequiredValue(record, "shape_id");
+		shapeId = intern(getRequiredValue(record, "shape_id"));
 		
 		String latStr = getRequiredUnlessSupplementalValue(record, "shape_pt_lat");
 		shapePtLat = latStr!=null ? Double.parseDouble(latStr) : Double.NaN;
@@ -100,7 +100,7 @@ public class GtfsStopTime extends CsvBase implements Comparable<GtfsStopTime> {
 			throws NumberFormatException {
 		super(record, supplemental, fileName);
 
-		tripId = getRequiredValue(record, "trip_id");
+		tripId = intern(getRequiredValue(record, "trip_id"));
 
 		// Convert arrival_time to seconds in day
 		String arrivalTimeStr = getOptionalValue(record, "arrival_time");
@@ -116,7 +116,7 @@ public class GtfsStopTime extends CsvBase implements Comparable<GtfsStopTime> {
 		else
 			departureTimeSecs = null;
 
-		stopId = getRequiredValue(record, "stop_id");
+		stopId = intern(getRequiredValue(record, "stop_id"));
 
 		String stopSequenceStr =
 				getRequiredUnlessSupplementalValue(record, "stop_sequence");
@@ -0,0 +1,143 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * For reading Ipc objects that were written using CompactOutput. Since the
+ * data can come from a remote client every size read is checked against
+ * the number of bytes remaining so that corrupt or malicious data cannot
+ * cause a huge allocation. Therefore the stream read from must only contain
+ * the data written to the CompactOutput and available() must return the
+ * number of bytes remaining, as is the case for a ByteArrayInputStream.
+ */
+public class CompactInput extends DataInputStream {
+
+	// The strings already read, in the order they were written
+	private final List<String> strings = new ArrayList<String>();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param in
+	 *            Where the data is read from
+	 */
+	public CompactInput(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * Reads a size written by CompactOutput.writeSize(). Since each element
+	 * of what the size is for takes at least one byte the size is checked
+	 * against the number of bytes remaining.
+	 * 
+	 * @return the size
+	 * @throws IOException
+	 *             If the size is not valid
+	 */
+	public int readSize() throws IOException {
+		int size = readVarInt();
+		int remaining = available();
+		if (size > remaining)
+			throw new IOException("Invalid size " + size + " when only "
+					+ remaining + " bytes remain");
+		return size;
+	}
+
+	/**
+	 * Reads a string written by CompactOutput.writeString().
+	 * 
+	 * @return the string, or null
+	 * @throws IOException
+	 *             If the data is not valid
+	 */
+	public String readString() throws IOException {
+		int marker = readVarInt();
+		if (marker == CompactOutput.NULL_STRING)
+			return null;
+
+		if (marker == CompactOutput.NEW_STRING) {
+			byte[] bytes = new byte[readSize()];
+			readFully(bytes);
+			String s = new String(bytes, StandardCharsets.UTF_8);
+			strings.add(s);
+			return s;
+		}
+
+		int index = marker - 2;
+		if (index >= strings.size())
+			throw new IOException("Invalid string index " + index
+					+ " when only " + strings.size() + " strings read");
+		return strings.get(index);
+	}
+
+	/**
+	 * Reads an enum written by CompactOutput.writeEnum().
+	 * 
+	 * @param enumClass
+	 * @return the enum, or null
+	 * @throws IOException
+	 *             If the name is not a value of the enum
+	 */
+	public <E extends Enum<E>> E readEnum(Class<E> enumClass)
+			throws IOException {
+		String name = readString();
+		if (name == null)
+			return null;
+
+		try {
+			return Enum.valueOf(enumClass, name);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid " + enumClass.getSimpleName()
+					+ " value " + name);
+		}
+	}
+
+	/**
+	 * Reads an Integer written by CompactOutput.writeInteger().
+	 * 
+	 * @return the Integer, or null
+	 * @throws IOException
+	 */
+	public Integer readInteger() throws IOException {
+		return readBoolean() ? Integer.valueOf(readInt()) : null;
+	}
+
+	/**
+	 * Reads a non-negative int written using 1 to 5 bytes.
+	 */
+	private int readVarInt() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0)
+					throw new IOException("Invalid size " + value);
+				return value;
+			}
+		}
+		throw new IOException("Size encoded using more than 5 bytes");
+	}
+}
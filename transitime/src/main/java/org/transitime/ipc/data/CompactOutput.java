@@ -0,0 +1,123 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * For writing Ipc objects in a compact binary form instead of with Java
+ * serialization, as done by the socket based IPC transport. Unlike Java
+ * serialization no class descriptors or per object headers are written.
+ * Each distinct string is only written once. Later occurrences, such as the
+ * same route or stop ID in many predictions, are written as an index into
+ * the strings already written. Strings and enums can be null. Read using
+ * CompactInput.
+ */
+public class CompactOutput extends DataOutputStream {
+
+	// The strings already written, and their indexes
+	private final Map<String, Integer> stringIndexes =
+			new HashMap<String, Integer>();
+
+	// Marker values written before a string. A value greater than
+	// NEW_STRING is the index of a string already written plus 2.
+	static final int NULL_STRING = 0;
+	static final int NEW_STRING = 1;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param out
+	 *            Where the data is written to
+	 */
+	public CompactOutput(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * Writes a non-negative int using 1 to 5 bytes, with small values using
+	 * fewer bytes. For sizes and string indexes.
+	 * 
+	 * @param value
+	 *            Must not be negative
+	 * @throws IOException
+	 */
+	public void writeSize(int value) throws IOException {
+		if (value < 0)
+			throw new IOException("Size " + value + " is negative");
+		while ((value & ~0x7F) != 0) {
+			writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		writeByte(value);
+	}
+
+	/**
+	 * Writes a string, which can be null. If the same string was already
+	 * written to this stream then only its index is written.
+	 * 
+	 * @param s
+	 * @throws IOException
+	 */
+	public void writeString(String s) throws IOException {
+		if (s == null) {
+			writeSize(NULL_STRING);
+			return;
+		}
+
+		Integer index = stringIndexes.get(s);
+		if (index != null) {
+			writeSize(index + 2);
+			return;
+		}
+
+		stringIndexes.put(s, stringIndexes.size());
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeSize(NEW_STRING);
+		writeSize(bytes.length);
+		write(bytes);
+	}
+
+	/**
+	 * Writes an enum, which can be null, using its name so that adding enum
+	 * values doesn't change the meaning of the ones already defined.
+	 * 
+	 * @param e
+	 * @throws IOException
+	 */
+	public void writeEnum(Enum<?> e) throws IOException {
+		writeString(e != null ? e.name() : null);
+	}
+
+	/**
+	 * Writes an Integer, which can be null.
+	 * 
+	 * @param i
+	 * @throws IOException
+	 */
+	public void writeInteger(Integer i) throws IOException {
+		writeBoolean(i != null);
+		if (i != null)
+			writeInt(i);
+	}
+}
@@ -237,6 +237,57 @@ public class IpcAvl implements Serializable {
 		throw new InvalidObjectException("Must use proxy instead");
 	}
 
+	/**
+	 * Writes the AVL data in the compact form used by the socket based IPC
+	 * transport. Contains the same fields as the SerializationProxy.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeCompact(CompactOutput out) throws IOException {
+		out.writeString(vehicleId);
+		out.writeLong(time);
+		out.writeFloat(latitude);
+		out.writeFloat(longitude);
+		out.writeFloat(speed);
+		out.writeFloat(heading);
+		out.writeString(source);
+		out.writeString(assignmentId);
+		out.writeEnum(assignmentType);
+		out.writeString(driverId);
+		out.writeString(licensePlate);
+		out.writeInt(passengerCount);
+		out.writeEnum(occupancyStatus);
+	}
+
+	/**
+	 * Reads AVL data written by writeCompact().
+	 * 
+	 * @param in
+	 * @return the IpcAvl
+	 * @throws IOException
+	 *             If the data is not valid
+	 */
+	public static IpcAvl readCompact(CompactInput in) throws IOException {
+		String vehicleId = in.readString();
+		long time = in.readLong();
+		float latitude = in.readFloat();
+		float longitude = in.readFloat();
+		float speed = in.readFloat();
+		float heading = in.readFloat();
+		String source = in.readString();
+		String assignmentId = in.readString();
+		AssignmentType assignmentType = in.readEnum(AssignmentType.class);
+		String driverId = in.readString();
+		String licensePlate = in.readString();
+		int passengerCount = in.readInt();
+		IpcOccupancyStatus occupancyStatus =
+				in.readEnum(IpcOccupancyStatus.class);
+		return new IpcAvl(vehicleId, time, latitude, longitude, speed,
+				heading, source, assignmentId, assignmentType, driverId,
+				licensePlate, passengerCount, occupancyStatus);
+	}
+
 	public String getVehicleId() {
 		return vehicleId;
 	}
@@ -0,0 +1,541 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Predictions for a large number of stops, for Inter Process Communication
+ * (IPC). For when a client such as a digital signage controller needs the
+ * predictions for thousands of stops at once.
+ * <p>
+ * Instead of a list of IpcPredictionsForRouteStopDest objects, each with its
+ * own list of IpcPrediction objects, the data is stored in columns, with an
+ * array for each member. There is one element per route/stop/destination in
+ * the destination columns and one element per prediction in the prediction
+ * columns. The strings, which are mostly ids that are repeated many times,
+ * are stored just once in a string table and the columns contain indexes
+ * into that table. This way serializing the object only involves a few
+ * primitive arrays instead of a large object graph, which greatly reduces
+ * the size of the payload and the time it takes to encode and decode it.
+ * <p>
+ * The destinations are ordered by stop, in the order that the stops were
+ * requested, so the destinations for a stop are contiguous. The predictions
+ * for destination i are from getFirstPredictionIndex(i) up to but not
+ * including getFirstPredictionIndex(i+1).
+ */
+public class IpcBulkPredictions implements Serializable {
+
+	// Each distinct string only once. The string columns contain indexes
+	// into this table, or NO_STRING for null.
+	private final String[] strings;
+
+	// Columns with an element for each route/stop/destination
+	private final int[] routeIds;
+	private final int[] routeShortNames;
+	private final int[] routeNames;
+	private final int[] stopIds;
+	private final int[] stopNames;
+	private final int[] stopCodes;
+	private final int[] headsigns;
+	private final int[] directionIds;
+	// Has an additional element at the end so that the number of predictions
+	// for the last destination can be determined
+	private final int[] firstPredictionIndexes;
+
+	// Columns with an element for each prediction
+	private final long[] predictionTimes;
+	private final int[] vehicleIds;
+	private final int[] tripIds;
+	private final int[] tripPatternIds;
+	private final int[] blockIds;
+	private final short[] passengerCounts;
+	private final byte[] occupancyStatuses;
+	private final byte[] flags;
+
+	// The requested stops that were not valid
+	private final String[] invalidStops;
+
+	// For string columns when the value is null
+	private static final int NO_STRING = -1;
+
+	// For the stopCodes column when stop doesn't have a code
+	private static final int NO_STOP_CODE = Integer.MIN_VALUE;
+
+	// For the occupancyStatuses column when there is no status
+	private static final byte NO_OCCUPANCY_STATUS = -1;
+
+	// Bits for the flags column
+	private static final byte SCHED_BASED_PRED = 1;
+	private static final byte ARRIVAL = 1 << 1;
+	private static final byte AT_END_OF_TRIP = 1 << 2;
+	private static final byte AFFECTED_BY_WAIT_STOP = 1 << 3;
+	private static final byte DELAYED = 1 << 4;
+	private static final byte LATE_AND_SUBSEQUENT_TRIP = 1 << 5;
+
+	private static final long serialVersionUID = -6154720337617430915L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor for creating the columns on the server side.
+	 *
+	 * @param predsForRouteStopDests
+	 *            The predictions, ordered by stop
+	 * @param invalidStops
+	 *            The requested stop IDs or codes that were not valid
+	 */
+	public IpcBulkPredictions(
+			List<IpcPredictionsForRouteStopDest> predsForRouteStopDests,
+			List<String> invalidStops) {
+		Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+		List<String> stringTable = new ArrayList<String>();
+
+		int numDests = predsForRouteStopDests.size();
+		int numPreds = 0;
+		for (IpcPredictionsForRouteStopDest predsForRouteStopDest :
+				predsForRouteStopDests)
+			numPreds += predsForRouteStopDest.getPredictionsForRouteStop().size();
+
+		routeIds = new int[numDests];
+		routeShortNames = new int[numDests];
+		routeNames = new int[numDests];
+		stopIds = new int[numDests];
+		stopNames = new int[numDests];
+		stopCodes = new int[numDests];
+		headsigns = new int[numDests];
+		directionIds = new int[numDests];
+		firstPredictionIndexes = new int[numDests + 1];
+
+		predictionTimes = new long[numPreds];
+		vehicleIds = new int[numPreds];
+		tripIds = new int[numPreds];
+		tripPatternIds = new int[numPreds];
+		blockIds = new int[numPreds];
+		passengerCounts = new short[numPreds];
+		occupancyStatuses = new byte[numPreds];
+		flags = new byte[numPreds];
+
+		int predIndex = 0;
+		for (int destIndex = 0; destIndex < numDests; ++destIndex) {
+			IpcPredictionsForRouteStopDest dest =
+					predsForRouteStopDests.get(destIndex);
+			routeIds[destIndex] =
+					index(dest.getRouteId(), stringIndexes, stringTable);
+			routeShortNames[destIndex] =
+					index(dest.getRouteShortName(), stringIndexes, stringTable);
+			routeNames[destIndex] =
+					index(dest.getRouteName(), stringIndexes, stringTable);
+			stopIds[destIndex] =
+					index(dest.getStopId(), stringIndexes, stringTable);
+			stopNames[destIndex] =
+					index(dest.getStopName(), stringIndexes, stringTable);
+			stopCodes[destIndex] = dest.getStopCode() != null ?
+					dest.getStopCode() : NO_STOP_CODE;
+			headsigns[destIndex] =
+					index(dest.getHeadsign(), stringIndexes, stringTable);
+			directionIds[destIndex] =
+					index(dest.getDirectionId(), stringIndexes, stringTable);
+			firstPredictionIndexes[destIndex] = predIndex;
+
+			for (IpcPrediction pred : dest.getPredictionsForRouteStop()) {
+				predictionTimes[predIndex] = pred.getPredictionTime();
+				vehicleIds[predIndex] =
+						index(pred.getVehicleId(), stringIndexes, stringTable);
+				tripIds[predIndex] =
+						index(pred.getTripId(), stringIndexes, stringTable);
+				tripPatternIds[predIndex] =
+						index(pred.getTripPatternId(), stringIndexes, stringTable);
+				blockIds[predIndex] =
+						index(pred.getBlockId(), stringIndexes, stringTable);
+				passengerCounts[predIndex] = pred.getPassengerCount();
+				occupancyStatuses[predIndex] = pred.getOccupancyStatus() != null ?
+						(byte) pred.getOccupancyStatus().ordinal()
+						: NO_OCCUPANCY_STATUS;
+				flags[predIndex] = flags(pred);
+				++predIndex;
+			}
+		}
+		firstPredictionIndexes[numDests] = predIndex;
+
+		this.strings = stringTable.toArray(new String[stringTable.size()]);
+		this.invalidStops = invalidStops.toArray(new String[invalidStops.size()]);
+	}
+
+	/**
+	 * Constructor used for when deserializing a proxy object. Declared private
+	 * because only used internally by the proxy class.
+	 */
+	private IpcBulkPredictions(SerializationProxy proxy) {
+		this.strings = proxy.strings;
+		this.routeIds = proxy.routeIds;
+		this.routeShortNames = proxy.routeShortNames;
+		this.routeNames = proxy.routeNames;
+		this.stopIds = proxy.stopIds;
+		this.stopNames = proxy.stopNames;
+		this.stopCodes = proxy.stopCodes;
+		this.headsigns = proxy.headsigns;
+		this.directionIds = proxy.directionIds;
+		this.firstPredictionIndexes = proxy.firstPredictionIndexes;
+		this.predictionTimes = proxy.predictionTimes;
+		this.vehicleIds = proxy.vehicleIds;
+		this.tripIds = proxy.tripIds;
+		this.tripPatternIds = proxy.tripPatternIds;
+		this.blockIds = proxy.blockIds;
+		this.passengerCounts = proxy.passengerCounts;
+		this.occupancyStatuses = proxy.occupancyStatuses;
+		this.flags = proxy.flags;
+		this.invalidStops = proxy.invalidStops;
+	}
+
+	/**
+	 * Returns the index of the string in the string table, adding it to the
+	 * table if it is not already there.
+	 */
+	private static int index(String s, Map<String, Integer> stringIndexes,
+			List<String> stringTable) {
+		if (s == null)
+			return NO_STRING;
+
+		Integer index = stringIndexes.get(s);
+		if (index == null) {
+			index = stringTable.size();
+			stringTable.add(s);
+			stringIndexes.put(s, index);
+		}
+		return index;
+	}
+
+	private static byte flags(IpcPrediction pred) {
+		byte flags = 0;
+		if (pred.isSchedBasedPred())
+			flags |= SCHED_BASED_PRED;
+		if (pred.isArrival())
+			flags |= ARRIVAL;
+		if (pred.isAtEndOfTrip())
+			flags |= AT_END_OF_TRIP;
+		if (pred.isAffectedByWaitStop())
+			flags |= AFFECTED_BY_WAIT_STOP;
+		if (pred.isDelayed())
+			flags |= DELAYED;
+		if (pred.isLateAndSubsequentTripSoMarkAsUncertain())
+			flags |= LATE_AND_SUBSEQUENT_TRIP;
+		return flags;
+	}
+
+	/**
+	 * SerializationProxy is used so that this class can be immutable and so
+	 * that can do versioning of objects. The columns are written as primitive
+	 * arrays, which Java serialization encodes compactly as a length followed
+	 * by the raw values.
+	 */
+	private static class SerializationProxy implements Serializable {
+		private String[] strings;
+		private int[] routeIds;
+		private int[] routeShortNames;
+		private int[] routeNames;
+		private int[] stopIds;
+		private int[] stopNames;
+		private int[] stopCodes;
+		private int[] headsigns;
+		private int[] directionIds;
+		private int[] firstPredictionIndexes;
+		private long[] predictionTimes;
+		private int[] vehicleIds;
+		private int[] tripIds;
+		private int[] tripPatternIds;
+		private int[] blockIds;
+		private short[] passengerCounts;
+		private byte[] occupancyStatuses;
+		private byte[] flags;
+		private String[] invalidStops;
+
+		private static final short currentSerializationVersion = 0;
+		private static final long serialVersionUID = 3198524173665283049L;
+
+		/*
+		 * Only to be used within this class.
+		 */
+		private SerializationProxy(IpcBulkPredictions p) {
+			this.strings = p.strings;
+			this.routeIds = p.routeIds;
+			this.routeShortNames = p.routeShortNames;
+			this.routeNames = p.routeNames;
+			this.stopIds = p.stopIds;
+			this.stopNames = p.stopNames;
+			this.stopCodes = p.stopCodes;
+			this.headsigns = p.headsigns;
+			this.directionIds = p.directionIds;
+			this.firstPredictionIndexes = p.firstPredictionIndexes;
+			this.predictionTimes = p.predictionTimes;
+			this.vehicleIds = p.vehicleIds;
+			this.tripIds = p.tripIds;
+			this.tripPatternIds = p.tripPatternIds;
+			this.blockIds = p.blockIds;
+			this.passengerCounts = p.passengerCounts;
+			this.occupancyStatuses = p.occupancyStatuses;
+			this.flags = p.flags;
+			this.invalidStops = p.invalidStops;
+		}
+
+		/*
+		 * When object is serialized writeReplace() causes this
+		 * SerializationProxy object to be written. Write it in a custom way
+		 * that includes a version ID so that clients and servers can have two
+		 * different versions of code.
+		 */
+		private void writeObject(java.io.ObjectOutputStream stream)
+				throws IOException {
+			stream.writeShort(currentSerializationVersion);
+
+			stream.writeObject(strings);
+			stream.writeObject(routeIds);
+			stream.writeObject(routeShortNames);
+			stream.writeObject(routeNames);
+			stream.writeObject(stopIds);
+			stream.writeObject(stopNames);
+			stream.writeObject(stopCodes);
+			stream.writeObject(headsigns);
+			stream.writeObject(directionIds);
+			stream.writeObject(firstPredictionIndexes);
+			stream.writeObject(predictionTimes);
+			stream.writeObject(vehicleIds);
+			stream.writeObject(tripIds);
+			stream.writeObject(tripPatternIds);
+			stream.writeObject(blockIds);
+			stream.writeObject(passengerCounts);
+			stream.writeObject(occupancyStatuses);
+			stream.writeObject(flags);
+			stream.writeObject(invalidStops);
+		}
+
+		/*
+		 * Custom method of deserializing a SerializationProy object.
+		 */
+		private void readObject(java.io.ObjectInputStream stream)
+				throws IOException, ClassNotFoundException {
+			short readVersion = stream.readShort();
+			if (currentSerializationVersion < readVersion) {
+				throw new IOException("Serialization error when reading "
+						+ getClass().getSimpleName()
+						+ " object. Read version=" + readVersion
+						+ " but currently using software version="
+						+ currentSerializationVersion);
+			}
+
+			// serialization version is OK so read in object
+			strings = (String[]) stream.readObject();
+			routeIds = (int[]) stream.readObject();
+			routeShortNames = (int[]) stream.readObject();
+			routeNames = (int[]) stream.readObject();
+			stopIds = (int[]) stream.readObject();
+			stopNames = (int[]) stream.readObject();
+			stopCodes = (int[]) stream.readObject();
+			headsigns = (int[]) stream.readObject();
+			directionIds = (int[]) stream.readObject();
+			firstPredictionIndexes = (int[]) stream.readObject();
+			predictionTimes = (long[]) stream.readObject();
+			vehicleIds = (int[]) stream.readObject();
+			tripIds = (int[]) stream.readObject();
+			tripPatternIds = (int[]) stream.readObject();
+			blockIds = (int[]) stream.readObject();
+			passengerCounts = (short[]) stream.readObject();
+			occupancyStatuses = (byte[]) stream.readObject();
+			flags = (byte[]) stream.readObject();
+			invalidStops = (String[]) stream.readObject();
+		}
+
+		/*
+		 * When an object is read in it will be a SerializatProxy object due to
+		 * writeReplace() being used by the enclosing class. When such an object
+		 * is deserialized this method will be called and the SerializationProxy
+		 * object is converted to an enclosing class object.
+		 */
+		private Object readResolve() {
+			return new IpcBulkPredictions(this);
+		}
+	} /* End of SerializationProxy inner class */
+
+	/*
+	 * Needed as part of using a SerializationProxy. When IpcBulkPredictions
+	 * object is serialized the SerializationProxy will instead be used.
+	 */
+	private Object writeReplace() {
+		return new SerializationProxy(this);
+	}
+
+	/*
+	 * Needed as part of using a SerializationProxy. Makes sure that object
+	 * cannot be deserialized without using proxy, thereby eliminating
+	 * possibility of such an attack as described in "Effective Java".
+	 */
+	private void readObject(ObjectInputStream stream)
+			throws InvalidObjectException {
+		throw new InvalidObjectException("Must use proxy instead");
+	}
+
+	private String string(int index) {
+		return index == NO_STRING ? null : strings[index];
+	}
+
+	@Override
+	public String toString() {
+		return "IpcBulkPredictions ["
+				+ "numDestinations=" + getNumDestinations()
+				+ ", numPredictions=" + getNumPredictions()
+				+ ", numStrings=" + strings.length
+				+ ", invalidStops=" + getInvalidStops()
+				+ "]";
+	}
+
+	/********************* Destination columns ***********************/
+
+	/**
+	 * @return Number of route/stop/destinations
+	 */
+	public int getNumDestinations() {
+		return routeIds.length;
+	}
+
+	public String getRouteId(int destIndex) {
+		return string(routeIds[destIndex]);
+	}
+
+	public String getRouteShortName(int destIndex) {
+		return string(routeShortNames[destIndex]);
+	}
+
+	public String getRouteName(int destIndex) {
+		return string(routeNames[destIndex]);
+	}
+
+	public String getStopId(int destIndex) {
+		return string(stopIds[destIndex]);
+	}
+
+	public String getStopName(int destIndex) {
+		return string(stopNames[destIndex]);
+	}
+
+	public Integer getStopCode(int destIndex) {
+		return stopCodes[destIndex] != NO_STOP_CODE ?
+				stopCodes[destIndex] : null;
+	}
+
+	public String getHeadsign(int destIndex) {
+		return string(headsigns[destIndex]);
+	}
+
+	public String getDirectionId(int destIndex) {
+		return string(directionIds[destIndex]);
+	}
+
+	/**
+	 * @param destIndex
+	 *            Index of the destination, or getNumDestinations() to get the
+	 *            end of the predictions for the last destination
+	 * @return Index of the first prediction for the destination
+	 */
+	public int getFirstPredictionIndex(int destIndex) {
+		return firstPredictionIndexes[destIndex];
+	}
+
+	/********************* Prediction columns ***********************/
+
+	/**
+	 * @return Total number of predictions for all of the destinations
+	 */
+	public int getNumPredictions() {
+		return predictionTimes.length;
+	}
+
+	public long getPredictionTime(int predIndex) {
+		return predictionTimes[predIndex];
+	}
+
+	public String getVehicleId(int predIndex) {
+		return string(vehicleIds[predIndex]);
+	}
+
+	public String getTripId(int predIndex) {
+		return string(tripIds[predIndex]);
+	}
+
+	public String getTripPatternId(int predIndex) {
+		return string(tripPatternIds[predIndex]);
+	}
+
+	public String getBlockId(int predIndex) {
+		return string(blockIds[predIndex]);
+	}
+
+	public short getPassengerCount(int predIndex) {
+		return passengerCounts[predIndex];
+	}
+
+	public boolean isPassengerCountValid(int predIndex) {
+		return passengerCounts[predIndex] >= 0;
+	}
+
+	public IpcOccupancyStatus getOccupancyStatus(int predIndex) {
+		return occupancyStatuses[predIndex] != NO_OCCUPANCY_STATUS ?
+				IpcOccupancyStatus.values()[occupancyStatuses[predIndex]]
+				: null;
+	}
+
+	public boolean isSchedBasedPred(int predIndex) {
+		return (flags[predIndex] & SCHED_BASED_PRED) != 0;
+	}
+
+	public boolean isArrival(int predIndex) {
+		return (flags[predIndex] & ARRIVAL) != 0;
+	}
+
+	public boolean isAtEndOfTrip(int predIndex) {
+		return (flags[predIndex] & AT_END_OF_TRIP) != 0;
+	}
+
+	public boolean isAffectedByWaitStop(int predIndex) {
+		return (flags[predIndex] & AFFECTED_BY_WAIT_STOP) != 0;
+	}
+
+	public boolean isDelayed(int predIndex) {
+		return (flags[predIndex] & DELAYED) != 0;
+	}
+
+	public boolean isLateAndSubsequentTripSoMarkAsUncertain(int predIndex) {
+		return (flags[predIndex] & LATE_AND_SUBSEQUENT_TRIP) != 0;
+	}
+
+	/**
+	 * @return The requested stop IDs or codes that were not valid. Can be
+	 *         empty but will not be null.
+	 */
+	public List<String> getInvalidStops() {
+		return Collections.unmodifiableList(Arrays.asList(invalidStops));
+	}
+}
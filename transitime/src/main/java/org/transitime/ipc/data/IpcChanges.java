@@ -0,0 +1,95 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * The per vehicle changes since a previous request, for Inter Process
+ * Communication (IPC). Allows clients to keep their own copy of the data up
+ * to date by only transferring what changed.
+ * <p>
+ * The epoch and sequence are to be passed in to the next request. If
+ * fullDataset is true then the changes contain the data for all vehicles and
+ * the client should discard whatever it had before.
+ *
+ * @param <T>
+ *            The type of the per vehicle data
+ */
+public class IpcChanges<T> implements Serializable {
+
+	private final long epoch;
+	private final long sequence;
+	private final boolean fullDataset;
+	private final Map<String, T> changesByVehicle;
+
+	private static final long serialVersionUID = 6250381972113462713L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param epoch
+	 *            Identifies the server instance that the sequence applies to
+	 * @param sequence
+	 *            Sequence number of the latest change included
+	 * @param fullDataset
+	 *            True if the changes contain the data for all vehicles
+	 * @param changesByVehicle
+	 *            The new data keyed by vehicle ID. A null value means the data
+	 *            for the vehicle was removed.
+	 */
+	public IpcChanges(long epoch, long sequence, boolean fullDataset,
+			Map<String, T> changesByVehicle) {
+		this.epoch = epoch;
+		this.sequence = sequence;
+		this.fullDataset = fullDataset;
+		this.changesByVehicle = changesByVehicle;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcChanges ["
+				+ "epoch=" + epoch
+				+ ", sequence=" + sequence
+				+ ", fullDataset=" + fullDataset
+				+ ", changesByVehicle.size()=" + changesByVehicle.size()
+				+ "]";
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public boolean isFullDataset() {
+		return fullDataset;
+	}
+
+	/**
+	 * @return Map keyed by vehicle ID. A null value means the data for the
+	 *         vehicle was removed.
+	 */
+	public Map<String, T> getChangesByVehicle() {
+		return changesByVehicle;
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.data;
+
+import java.io.Serializable;
+
+/**
+ * Represents the status of one of the DataDbLogger queues for Inter Process
+ * Communication (IPC). Lets operators see whether writing to the database is
+ * keeping up before the queue fills.
+ */
+public class IpcDbQueueStatus implements Serializable {
+
+	private final String type;
+	private final int queueSize;
+	private final double queueLevel;
+	private final int writerThreads;
+	private final int batchSize;
+	private final double enqueueRate;
+	private final double drainRate;
+	private final long droppedCount;
+
+	private static final long serialVersionUID = -2871543937260916521L;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param type
+	 *            Short name of the type of objects in the queue
+	 * @param queueSize
+	 *            Number of objects currently in the queue
+	 * @param queueLevel
+	 *            Fraction of the queue capacity being used, 0.0 to 1.0
+	 * @param writerThreads
+	 *            Number of threads writing from the queue to the db
+	 * @param batchSize
+	 *            Current adaptive batch size
+	 * @param enqueueRate
+	 *            Objects per second added to the queue during the last
+	 *            monitoring interval
+	 * @param drainRate
+	 *            Objects per second taken from the queue during the last
+	 *            monitoring interval
+	 * @param droppedCount
+	 *            Total number of objects dropped because the queue was full
+	 */
+	public IpcDbQueueStatus(String type, int queueSize, double queueLevel,
+			int writerThreads, int batchSize, double enqueueRate,
+			double drainRate, long droppedCount) {
+		this.type = type;
+		this.queueSize = queueSize;
+		this.queueLevel = queueLevel;
+		this.writerThreads = writerThreads;
+		this.batchSize = batchSize;
+		this.enqueueRate = enqueueRate;
+		this.drainRate = drainRate;
+		this.droppedCount = droppedCount;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcDbQueueStatus ["
+				+ "type=" + type
+				+ ", queueSize=" + queueSize
+				+ ", queueLevel=" + queueLevel
+				+ ", writerThreads=" + writerThreads
+				+ ", batchSize=" + batchSize
+				+ ", enqueueRate=" + enqueueRate
+				+ ", drainRate=" + drainRate
+				+ ", droppedCount=" + droppedCount
+				+ "]";
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public double getQueueLevel() {
+		return queueLevel;
+	}
+
+	public int getWriterThreads() {
+		return writerThreads;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public double getEnqueueRate() {
+		return enqueueRate;
+	}
+
+	public double getDrainRate() {
+		return drainRate;
+	}
+
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+}
@@ -375,6 +375,80 @@ public class IpcPrediction implements Serializable {
 		throw new InvalidObjectException("Must use proxy instead");
 	}
 
+	/**
+	 * Writes the prediction in the compact form used by the socket based IPC
+	 * transport. Contains the same fields as the SerializationProxy.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeCompact(CompactOutput out) throws IOException {
+		out.writeString(vehicleId);
+		out.writeString(routeId);
+		out.writeString(stopId);
+		out.writeInt(gtfsStopSeq);
+		out.writeString(tripId);
+		out.writeString(tripPatternId);
+		out.writeString(blockId);
+		out.writeLong(predictionTime);
+		out.writeBoolean(atEndOfTrip);
+		out.writeBoolean(schedBasedPred);
+		out.writeLong(avlTime);
+		out.writeLong(creationTime);
+		out.writeLong(tripStartEpochTime);
+		out.writeBoolean(affectedByWaitStop);
+		out.writeString(driverId);
+		out.writeShort(passengerCount);
+		out.writeFloat(passengerFullness);
+		out.writeBoolean(isArrival);
+		out.writeBoolean(isDelayed);
+		out.writeBoolean(lateAndSubsequentTripSoMarkAsUncertain);
+		out.writeInteger(delay);
+		out.writeEnum(occupancyStatus);
+	}
+
+	/**
+	 * Reads a prediction written by writeCompact().
+	 * 
+	 * @param in
+	 * @return the IpcPrediction
+	 * @throws IOException
+	 *             If the data is not valid
+	 */
+	public static IpcPrediction readCompact(CompactInput in)
+			throws IOException {
+		String vehicleId = in.readString();
+		String routeId = in.readString();
+		String stopId = in.readString();
+		int gtfsStopSeq = in.readInt();
+		String tripId = in.readString();
+		String tripPatternId = in.readString();
+		String blockId = in.readString();
+		long predictionTime = in.readLong();
+		boolean atEndOfTrip = in.readBoolean();
+		boolean schedBasedPred = in.readBoolean();
+		long avlTime = in.readLong();
+		long creationTime = in.readLong();
+		long tripStartEpochTime = in.readLong();
+		boolean affectedByWaitStop = in.readBoolean();
+		String driverId = in.readString();
+		short passengerCount = in.readShort();
+		float passengerFullness = in.readFloat();
+		boolean isArrival = in.readBoolean();
+		boolean isDelayed = in.readBoolean();
+		boolean lateAndSubsequentTripSoMarkAsUncertain = in.readBoolean();
+		Integer delay = in.readInteger();
+		IpcOccupancyStatus occupancyStatus =
+				in.readEnum(IpcOccupancyStatus.class);
+		return new IpcPrediction(vehicleId, routeId, stopId, gtfsStopSeq,
+				tripId, tripPatternId, blockId, predictionTime, 0,
+				atEndOfTrip, schedBasedPred, avlTime, creationTime,
+				tripStartEpochTime, affectedByWaitStop, driverId,
+				passengerCount, passengerFullness, isDelayed,
+				lateAndSubsequentTripSoMarkAsUncertain, isArrival, delay,
+				occupancyStatus);
+	}
+
 	@Override
 	public String toString() {
 		return "IpcPrediction [" 
@@ -371,6 +371,61 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
 		throw new InvalidObjectException("Must use proxy instead");
 	}
 
+	/**
+	 * Writes the predictions in the compact form used by the socket based IPC
+	 * transport. Contains the same fields as the SerializationProxy. Since
+	 * the predictions are written using the same CompactOutput the IDs that
+	 * they share, such as the route and stop IDs, are only written once.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeCompact(CompactOutput out) throws IOException {
+		out.writeString(routeId);
+		out.writeString(routeShortName);
+		out.writeString(routeName);
+		out.writeInt(routeOrder);
+		out.writeString(stopId);
+		out.writeString(stopName);
+		out.writeInteger(stopCode);
+		out.writeString(headsign);
+		out.writeString(directionId);
+		out.writeDouble(distanceToStop);
+		out.writeSize(predictionsForRouteStopDest.size());
+		for (IpcPrediction prediction : predictionsForRouteStopDest)
+			prediction.writeCompact(out);
+	}
+
+	/**
+	 * Reads predictions written by writeCompact().
+	 * 
+	 * @param in
+	 * @return the IpcPredictionsForRouteStopDest
+	 * @throws IOException
+	 *             If the data is not valid
+	 */
+	public static IpcPredictionsForRouteStopDest readCompact(CompactInput in)
+			throws IOException {
+		String routeId = in.readString();
+		String routeShortName = in.readString();
+		String routeName = in.readString();
+		int routeOrder = in.readInt();
+		String stopId = in.readString();
+		String stopName = in.readString();
+		Integer stopCode = in.readInteger();
+		String headsign = in.readString();
+		String directionId = in.readString();
+		double distanceToStop = in.readDouble();
+		int numPredictions = in.readSize();
+		List<IpcPrediction> predictions =
+				new ArrayList<IpcPrediction>(numPredictions);
+		for (int i = 0; i < numPredictions; ++i)
+			predictions.add(IpcPrediction.readCompact(in));
+		return new IpcPredictionsForRouteStopDest(routeId, routeShortName,
+				routeName, routeOrder, stopId, stopName, stopCode, headsign,
+				directionId, distanceToStop, predictions);
+	}
+
 	/**
 	 * Gets a copy of this object. This is done with the object being
 	 * copied synchronized so that the predictions remain coherent. Limits
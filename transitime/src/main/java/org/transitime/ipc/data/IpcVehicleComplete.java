@@ -275,6 +275,119 @@ public class IpcVehicleComplete extends IpcVehicleGtfsRealtime {
 		throw new InvalidObjectException("Must use proxy instead");
 	}
 
+	/**
+	 * Writes the vehicle in the compact form used by the socket based IPC
+	 * transport. Contains the same fields as the SerializationProxy classes
+	 * of this class and its super classes.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeCompact(CompactOutput out) throws IOException {
+		// IpcVehicle fields
+		out.writeString(getBlockId());
+		out.writeEnum(getBlockAssignmentMethod());
+		out.writeBoolean(getAvl() != null);
+		if (getAvl() != null)
+			getAvl().writeCompact(out);
+		out.writeFloat(getHeading());
+		out.writeString(getRouteId());
+		out.writeString(getRouteShortName());
+		out.writeString(getRouteName());
+		out.writeString(getTripId());
+		out.writeString(getTripPatternId());
+		out.writeString(getDirectionId());
+		out.writeString(getHeadsign());
+		out.writeBoolean(isPredictable());
+		out.writeBoolean(isForSchedBasedPred());
+		TemporalDifference realTimeSchdAdh = getRealTimeSchedAdh();
+		out.writeInteger(realTimeSchdAdh != null ?
+				realTimeSchdAdh.getTemporalDifference() : null);
+		out.writeBoolean(isDelayed());
+		out.writeBoolean(isLayover());
+		out.writeLong(getLayoverDepartureTime());
+		out.writeString(getNextStopId());
+		out.writeString(getNextStopName());
+		out.writeString(getVehicleType());
+		out.writeDouble(getPredictedLatitude());
+		out.writeDouble(getPredictedLongitude());
+
+		// IpcVehicleGtfsRealtime fields
+		out.writeBoolean(isAtStop());
+		out.writeString(getAtOrNextStopId());
+		out.writeInteger(getAtOrNextGtfsStopSeq());
+		out.writeLong(getTripStartEpochTime());
+
+		// IpcVehicleComplete fields
+		out.writeString(originStopId);
+		out.writeString(destinationId);
+		out.writeDouble(distanceToNextStop);
+		out.writeDouble(distanceOfNextStopFromTripStart);
+		out.writeDouble(distanceAlongTrip);
+		out.writeEnum(occupancyStatus);
+	}
+
+	/**
+	 * Reads a vehicle written by writeCompact().
+	 * 
+	 * @param in
+	 * @return the IpcVehicleComplete
+	 * @throws IOException
+	 *             If the data is not valid
+	 */
+	public static IpcVehicleComplete readCompact(CompactInput in)
+			throws IOException {
+		String blockId = in.readString();
+		BlockAssignmentMethod blockAssignmentMethod =
+				in.readEnum(BlockAssignmentMethod.class);
+		IpcAvl avl = in.readBoolean() ? IpcAvl.readCompact(in) : null;
+		float heading = in.readFloat();
+		String routeId = in.readString();
+		String routeShortName = in.readString();
+		String routeName = in.readString();
+		String tripId = in.readString();
+		String tripPatternId = in.readString();
+		String directionId = in.readString();
+		String headsign = in.readString();
+		boolean predictable = in.readBoolean();
+		boolean schedBasedPred = in.readBoolean();
+		Integer schedAdhMsec = in.readInteger();
+		TemporalDifference realTimeSchdAdh = schedAdhMsec != null ?
+				new TemporalDifference(schedAdhMsec) : null;
+		boolean isDelayed = in.readBoolean();
+		boolean isLayover = in.readBoolean();
+		long layoverDepartureTime = in.readLong();
+		String nextStopId = in.readString();
+		String nextStopName = in.readString();
+		String vehicleType = in.readString();
+		double predictedLatitude = in.readDouble();
+		double predictedLongitude = in.readDouble();
+
+		boolean atStop = in.readBoolean();
+		String atOrNextStopId = in.readString();
+		Integer atOrNextGtfsStopSeq = in.readInteger();
+		long tripStartEpochTime = in.readLong();
+
+		String originStopId = in.readString();
+		String destinationId = in.readString();
+		double distanceToNextStop = in.readDouble();
+		double distanceOfNextStopFromTripStart = in.readDouble();
+		double distanceAlongTrip = in.readDouble();
+		IpcOccupancyStatus occupancyStatus =
+				in.readEnum(IpcOccupancyStatus.class);
+
+		return new IpcVehicleComplete(blockId, blockAssignmentMethod, avl,
+				heading, routeId, routeShortName, routeName, tripId,
+				tripPatternId, directionId, headsign, predictable,
+				schedBasedPred, realTimeSchdAdh, isDelayed, isLayover,
+				layoverDepartureTime, nextStopId, nextStopName, vehicleType,
+				tripStartEpochTime, atStop, atOrNextStopId,
+				atOrNextGtfsStopSeq, originStopId, destinationId,
+				distanceToNextStop, distanceOfNextStopFromTripStart,
+				distanceAlongTrip, predictedLatitude, predictedLongitude,
+				occupancyStatus);
+	}
+
 	public String getOriginStopId() {
 		return originStopId;
 	}
@@ -96,6 +96,20 @@ public interface ConfigInterface extends Remote {
 	 */
 	public IpcDirectionsForRoute getStops(String routeIdOrShortName)  
 			throws RemoteException;
+
+	/**
+	 * Returns the stop IDs for the specified stop IDs or stop codes. For
+	 * when a client needs the stop IDs, such as for filtering predictions,
+	 * but stops can be specified by either.
+	 * 
+	 * @param stopIdsOrCodes
+	 * @return The stop IDs, in the same order as stopIdsOrCodes. An element
+	 *         is null if the corresponding stopIdOrCode is neither a valid
+	 *         stop ID nor a valid stop code.
+	 * @throws RemoteException
+	 */
+	public List<String> getStopIds(List<String> stopIdsOrCodes)
+			throws RemoteException;
 	
 	/**
 	 * Returns block info for specified blockId and serviceId. Includes all trip
@@ -22,6 +22,9 @@ import java.rmi.RemoteException;
 import java.util.List;
 
 import org.transitime.db.structs.Location;
+import org.transitime.ipc.data.IpcBulkPredictions;
+import org.transitime.ipc.data.IpcChanges;
+import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
 
 /**
@@ -99,6 +102,27 @@ public interface PredictionsInterface extends Remote {
 			List<RouteStop> routeStops,	int predictionsPerStop)
 				throws RemoteException;
 	
+	/**
+	 * Returns the predictions for all routes for each of the specified stops.
+	 * Intended for clients that need predictions for a large number of stops,
+	 * such as thousands of stops for digital signage. Instead of a list of
+	 * IpcPredictionsForRouteStopDest objects the predictions are returned in
+	 * a columnar IpcBulkPredictions object, which is much more compact to
+	 * serialize. Invalid stops don't cause the call to fail. Instead they are
+	 * listed in the result.
+	 * 
+	 * @param stopIdsOrCodes
+	 *            The stops to return predictions for. Can use either stop ID
+	 *            or stop code.
+	 * @param predictionsPerStop
+	 *            Max number of predictions to return per
+	 *            route/stop/destination
+	 * @return The predictions for the stops
+	 * @throws RemoteException
+	 */
+	public IpcBulkPredictions getBulk(List<String> stopIdsOrCodes,
+			int predictionsPerStop) throws RemoteException;
+	
 	/**
 	 * Returns predictions based on the specified location.
 	 * 
@@ -125,4 +149,21 @@ public interface PredictionsInterface extends Remote {
 	 */
 	public List<IpcPredictionsForRouteStopDest> getAllPredictions(
 			int predictionMaxFutureSecs) throws RemoteException;
+	
+	/**
+	 * Returns the predictions, grouped by vehicle, for the vehicles whose
+	 * predictions changed since the specified sequence. This is intended for
+	 * clients such as the GTFS-RT trip update feed that keep their own copy
+	 * of all predictions so that only the changes need to be transferred.
+	 * 
+	 * @param sinceEpoch
+	 *            Epoch from the previous call, or 0 if first call
+	 * @param sinceSequence
+	 *            Sequence from the previous call
+	 * @return The predictions keyed by vehicle ID. A null value means the
+	 *         predictions for the vehicle were removed.
+	 * @throws RemoteException
+	 */
+	public IpcChanges<List<IpcPrediction>> getPredictionChangesSince(
+			long sinceEpoch, long sinceSequence) throws RemoteException;
 }
@@ -19,7 +19,9 @@ package org.transitime.ipc.interfaces;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
+import org.transitime.ipc.data.IpcDbQueueStatus;
 import org.transitime.ipc.data.IpcServerStatus;
 
 /**
@@ -49,4 +51,14 @@ public interface ServerStatusInterface extends Remote {
 	 */
 	public String monitor() throws RemoteException;
 	
+	/**
+	 * Gets the status of each of the queues used for writing data such as
+	 * AVL reports and predictions to the database. Shows whether the
+	 * database is keeping up before the queues fill up.
+	 * 
+	 * @return Status of each queue, or empty list if not logging to db
+	 * @throws RemoteException
+	 */
+	public List<IpcDbQueueStatus> getDbQueueStatus() throws RemoteException;
+	
 }
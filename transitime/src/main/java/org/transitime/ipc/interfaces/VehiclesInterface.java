@@ -22,6 +22,7 @@ import java.rmi.RemoteException;
 import java.util.Collection;
 
 import org.transitime.ipc.data.IpcActiveBlock;
+import org.transitime.ipc.data.IpcChanges;
 import org.transitime.ipc.data.IpcVehicleComplete;
 import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
 import org.transitime.ipc.data.IpcVehicle;
@@ -118,6 +119,24 @@ public interface VehiclesInterface extends Remote {
 	public Collection<IpcVehicleGtfsRealtime> getGtfsRealtime()
 			throws RemoteException;
 
+	/**
+	 * Returns the GTFS-realtime vehicle info for the vehicles that changed
+	 * since the specified sequence. Allows the GTFS-realtime vehicle positions
+	 * feed to keep its own copy of the vehicles up to date without
+	 * transferring the whole fleet each time. Unlike getGtfsRealtime()
+	 * vehicles with old AVL reports are not filtered out.
+	 * 
+	 * @param sinceEpoch
+	 *            Epoch from the previous call, or 0 if first call
+	 * @param sinceSequence
+	 *            Sequence from the previous call
+	 * @return The changed vehicles keyed by vehicle ID. A null value means
+	 *         the vehicle was removed.
+	 * @throws RemoteException
+	 */
+	public IpcChanges<IpcVehicleGtfsRealtime> getGtfsRealtimeChangesSince(
+			long sinceEpoch, long sinceSequence) throws RemoteException;
+
 	/**
 	 * Gets from server IpcVehicle info for specified vehicle.
 	 * 
@@ -27,6 +27,7 @@ import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.configData.AgencyConfig;
+import org.transitime.ipc.socket.SocketServer;
 import org.transitime.logging.Markers;
 import org.transitime.utils.Timer;
 
@@ -160,6 +161,12 @@ public abstract class AbstractServer {
 			// name by the client.
 			bindName = getBindName(agencyId, objectName);
 			
+			// If the binary socket based transport is enabled then also make
+			// the object available via it, using the same bind name
+			SocketServer socketServer = SocketServer.getInstance();
+			if (socketServer != null)
+				socketServer.register(bindName, remoteThis);
+			
 			// Bind the stub to the RMI registry in a loop so that even if 
 			// rmiregistry is restarted the stub will quickly get bound to it.
 			// rebind() is called immediately and then again every 
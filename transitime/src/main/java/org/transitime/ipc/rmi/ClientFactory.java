@@ -32,7 +32,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.config.StringConfigValue;
+import org.transitime.configData.RmiConfig;
 import org.transitime.ipc.rmi.Hello;
+import org.transitime.ipc.socket.SocketInvocationHandler;
 import org.transitime.utils.Time;
 
 /**
@@ -59,6 +61,9 @@ public class ClientFactory<T extends Remote> {
 	    null, 
 	    "The RMI server to connect to when in debug mode");
 	
+	// Value of transitime.rmi.ipcTransport for using the socket transport
+	private static final String SOCKET_TRANSPORT = "socket";
+
 	private static final Logger logger = LoggerFactory
 			.getLogger(ClientFactory.class);
 
@@ -83,6 +88,11 @@ public class ClientFactory<T extends Remote> {
 	 */
 	public static <T extends Remote> T getInstance(String agencyId,
 			Class<T> clazz) {
+		// If configured to use the binary socket based transport instead
+		// of RMI then use proxy that makes the calls via a socket
+		if (SOCKET_TRANSPORT.equals(RmiConfig.ipcTransport()))
+			return getSocketInstance(agencyId, clazz);
+
 		// Set RMI timeout if need to
 		enableRmiTimeout();
 
@@ -122,6 +132,27 @@ public class ClientFactory<T extends Remote> {
 		}
 	}
 
+	/**
+	 * Creates a proxy for the remote object that uses the binary socket based
+	 * transport in org.transitime.ipc.socket instead of RMI. The server must
+	 * have transitime.rmi.socketPort configured.
+	 * 
+	 * @param agencyId
+	 * @param clazz
+	 * @return Proxy to the object on the server
+	 */
+	private static <T extends Remote> T getSocketInstance(String agencyId,
+			Class<T> clazz) {
+		RmiStubInfo info = new RmiStubInfo(agencyId, clazz.getSimpleName());
+
+		@SuppressWarnings("unchecked")
+		T proxy = (T) Proxy.newProxyInstance(clazz.getClassLoader(),
+				new Class<?>[] { clazz }, new SocketInvocationHandler(info));
+
+		logger.debug("Got socket proxy instance. proxy={}", proxy);
+		return proxy;
+	}
+
 	/**
 	 * Creates an RMI stub based on the project name, host name, and class name.
 	 * An RMI stub is a remote reference to an object.
@@ -161,6 +161,39 @@ public class RmiCallInvocationHandler implements InvocationHandler {
 		return counter;
 	}
 	
+	/**
+	 * For when a remote call is made using a transport other than RMI, such
+	 * as the socket based one in org.transitime.ipc.socket, so that the same
+	 * limit on concurrent calls and the same counts apply. Increments the
+	 * total count. If there are not too many calls already in process for
+	 * the agency then the current count is also incremented and true is
+	 * returned, in which case callCompleted() must be called once the call
+	 * is done.
+	 * 
+	 * @param agencyId
+	 * @return true if the call can be made, false if there are already too
+	 *         many concurrent calls
+	 */
+	public static boolean callStarting(String agencyId) {
+		Counts accessCounter = getAccessCounter(agencyId);
+		accessCounter.total.incrementAndGet();
+		if (accessCounter.current.get() >= getMaxConcurrentCallsPerProject())
+			return false;
+		
+		accessCounter.current.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * To be called when a call for which callStarting() returned true is
+	 * done, whether it succeeded or not.
+	 * 
+	 * @param agencyId
+	 */
+	public static void callCompleted(String agencyId) {
+		getAccessCounter(agencyId).current.decrementAndGet();
+	}
+	
 	private static class ConcurrentAccessException extends Throwable {
 		// Needed because exceptions are Serializable
 		private static final long serialVersionUID = 2130715701627365891L;
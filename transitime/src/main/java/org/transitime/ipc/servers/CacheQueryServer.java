@@ -19,7 +19,7 @@ import org.transitime.core.dataCache.KalmanErrorCache;
 import org.transitime.core.dataCache.KalmanErrorCacheKey;
 import org.transitime.core.dataCache.StopArrivalDepartureCache;
 import org.transitime.core.dataCache.StopArrivalDepartureCacheKey;
-import org.transitime.core.dataCache.TripDataHistoryCache;
+import org.transitime.core.dataCache.TripDataHistoryCacheFactory;
 import org.transitime.core.dataCache.TripKey;
 import org.transitime.core.dataCache.StopPathCacheKey;
 import org.transitime.db.structs.ArrivalDeparture;
@@ -130,34 +130,36 @@ public class CacheQueryServer extends AbstractServer implements CacheQueryInterf
 				
 				TripKey tripKey = new TripKey(tripId, date, starttime);
 
-				result = TripDataHistoryCache.getInstance().getTripHistory(tripKey);
+				List<ArrivalDeparture> tripHistory = TripDataHistoryCacheFactory.getInstance().getTripHistory(tripKey);
+				if (tripHistory != null)
+					result = tripHistory;
 			}
 			else if(tripId!=null && date!=null && starttime==null)
 			{
-				for(TripKey key:TripDataHistoryCache.getInstance().getKeys())
+				for(TripKey key:TripDataHistoryCacheFactory.getInstance().getKeys())
 				{
 					if(key.getTripId().equals(tripId) && date.compareTo(key.getTripStartDate())==0)
 					{
-						result.addAll(TripDataHistoryCache.getInstance().getTripHistory(key));
+						result.addAll(TripDataHistoryCacheFactory.getInstance().getTripHistory(key));
 					}										
 				}
 			}else if(tripId!=null && date==null && starttime==null)
 			{
-				for(TripKey key:TripDataHistoryCache.getInstance().getKeys())
+				for(TripKey key:TripDataHistoryCacheFactory.getInstance().getKeys())
 				{
 					if(key.getTripId().equals(tripId))
 					{
-						result.addAll(TripDataHistoryCache.getInstance().getTripHistory(key));
+						result.addAll(TripDataHistoryCacheFactory.getInstance().getTripHistory(key));
 					}										
 				}
 			}
 			else if(tripId==null && date!=null && starttime==null)
 			{
-				for(TripKey key:TripDataHistoryCache.getInstance().getKeys())
+				for(TripKey key:TripDataHistoryCacheFactory.getInstance().getKeys())
 				{
 					if(date.compareTo(key.getTripStartDate())==0)
 					{
-						result.addAll(TripDataHistoryCache.getInstance().getTripHistory(key));
+						result.addAll(TripDataHistoryCacheFactory.getInstance().getTripHistory(key));
 					}										
 				}
 			}
@@ -210,6 +210,19 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 		return ipcStopsForRoute;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.ConfigInterface#getStopIds(java.util.List)
+	 */
+	@Override
+	public List<String> getStopIds(List<String> stopIdsOrCodes)
+			throws RemoteException {
+		DbConfig dbConfig = Core.getInstance().getDbConfig();
+		List<String> stopIds = new ArrayList<String>(stopIdsOrCodes.size());
+		for (String stopIdOrCode : stopIdsOrCodes)
+			stopIds.add(dbConfig.getStopId(stopIdOrCode));
+		return stopIds;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.transitime.ipc.interfaces.ConfigInterface#getBlock(java.lang.String, java.lang.String)
 	 */
@@ -29,6 +29,9 @@ import org.transitime.core.dataCache.PredictionDataCache;
 import org.transitime.db.structs.Location;
 import org.transitime.gtfs.StopsByLoc;
 import org.transitime.gtfs.StopsByLoc.StopInfo;
+import org.transitime.ipc.data.IpcBulkPredictions;
+import org.transitime.ipc.data.IpcChanges;
+import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
 import org.transitime.ipc.interfaces.PredictionsInterface;
 import org.transitime.ipc.rmi.AbstractServer;
@@ -116,6 +119,24 @@ public class PredictionsServer
 		return predictionDataCache.getPredictions(routeStops, predictionsPerStop);
 	}
 
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.PredictionsInterface#getBulk(java.util.List, int)
+	 */
+	@Override
+	public IpcBulkPredictions getBulk(List<String> stopIdsOrCodes,
+			int predictionsPerStop) throws RemoteException {
+		IntervalTimer timer = new IntervalTimer();
+
+		IpcBulkPredictions predictions = predictionDataCache
+				.getBulkPredictions(stopIdsOrCodes, predictionsPerStop);
+
+		logger.debug("Determined {} predictions for {} stops. Took {} msec",
+				predictions.getNumPredictions(), stopIdsOrCodes.size(),
+				timer.elapsedMsec());
+
+		return predictions;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.transitime.ipc.interfaces.PredictionsInterface#getPredictionsByVehicle()
 	 */
@@ -130,6 +151,16 @@ public class PredictionsServer
 				maxSystemTimeForPrediction);
 	}
 
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.PredictionsInterface#getPredictionChangesSince(long, long)
+	 */
+	@Override
+	public IpcChanges<List<IpcPrediction>> getPredictionChangesSince(
+			long sinceEpoch, long sinceSequence) {
+		return predictionDataCache.getPredictionChangesSince(sinceEpoch,
+				sinceSequence);
+	}
+
 	// If stops are relatively close then should order routes based on route
 	// order instead of distance.
 	private static double DISTANCE_AT_WHICH_ROUTES_GROUPED = 80.0;
@@ -18,9 +18,14 @@
 package org.transitime.ipc.servers;
 
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitime.applications.Core;
+import org.transitime.db.hibernate.DataDbLogger;
+import org.transitime.ipc.data.IpcDbQueueStatus;
 import org.transitime.ipc.data.IpcServerStatus;
 import org.transitime.ipc.interfaces.ServerStatusInterface;
 import org.transitime.ipc.rmi.AbstractServer;
@@ -96,4 +101,17 @@ public class ServerStatusServer extends AbstractServer
 		return resultStr;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.ServerStatusInterface#getDbQueueStatus()
+	 */
+	@Override
+	public List<IpcDbQueueStatus> getDbQueueStatus() throws RemoteException {
+		DataDbLogger dbLogger = Core.isCoreApplication() ?
+				Core.getInstance().getDbLogger() : null;
+		if (dbLogger == null)
+			return new ArrayList<IpcDbQueueStatus>();
+		
+		return dbLogger.getQueueStatus();
+	}
+
 }
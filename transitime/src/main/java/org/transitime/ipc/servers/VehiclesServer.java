@@ -22,7 +22,9 @@ import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.hibernate.Criteria;
 import org.hibernate.Session;
@@ -38,6 +40,7 @@ import org.transitime.db.structs.Route;
 import org.transitime.db.structs.Trip;
 import org.transitime.db.structs.VehicleConfig;
 import org.transitime.ipc.data.IpcBlock;
+import org.transitime.ipc.data.IpcChanges;
 import org.transitime.ipc.data.IpcVehicleComplete;
 import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
 import org.transitime.ipc.data.IpcVehicle;
@@ -132,6 +135,23 @@ public class VehiclesServer extends AbstractServer
 		return getGtfsRealtimeSerializableCollection(vehicleDataCache.getVehicles());
 	}
 	
+	/* (non-Javadoc)
+	 * @see org.transitime.ipc.interfaces.VehiclesInterface#getGtfsRealtimeChangesSince(long, long)
+	 */
+	@Override
+	public IpcChanges<IpcVehicleGtfsRealtime> getGtfsRealtimeChangesSince(
+			long sinceEpoch, long sinceSequence) throws RemoteException {
+		IpcChanges<IpcVehicleComplete> changes =
+				vehicleDataCache.getVehicleChangesSince(sinceEpoch,
+						sinceSequence);
+		Map<String, IpcVehicleGtfsRealtime> changesByVehicle =
+				new HashMap<String, IpcVehicleGtfsRealtime>(
+						changes.getChangesByVehicle());
+		return new IpcChanges<IpcVehicleGtfsRealtime>(changes.getEpoch(),
+				changes.getSequence(), changes.isFullDataset(),
+				changesByVehicle);
+	}
+	
 
 	/* (non-Javadoc)
 	 * @see org.transitime.ipc.interfaces.VehiclesInterface#get(java.lang.String)
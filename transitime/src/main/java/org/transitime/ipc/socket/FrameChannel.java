@@ -0,0 +1,181 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reads and writes length prefixed frames over a blocking SocketChannel. Each
+ * frame consists of the length of the rest of the frame, a request ID, and
+ * then the body. The request ID is what allows multiple requests to be in
+ * progress on the same connection at once, since a response can be matched
+ * to its request no matter what order the responses are sent in.
+ * <p>
+ * One thread reads frames while any number of threads write frames. Writes
+ * are synchronized so that frames are not interleaved. A SocketChannel
+ * allows a read and a write to happen at the same time.
+ */
+public class FrameChannel {
+
+	private final SocketChannel channel;
+
+	// So that frames written by different threads are not interleaved
+	private final Object writeLock = new Object();
+
+	// For reading the length and request ID of a frame
+	private final ByteBuffer headerBuffer =
+			ByteBuffer.allocate(HEADER_SIZE);
+
+	// Size of the frame length plus the request ID
+	private static final int HEADER_SIZE = 4 + 8;
+
+	// To protect against corrupt data causing a huge allocation
+	static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+	/**
+	 * A frame read from the channel
+	 */
+	public static class Frame {
+		private final long requestId;
+		private final byte[] body;
+
+		private Frame(long requestId, byte[] body) {
+			this.requestId = requestId;
+			this.body = body;
+		}
+
+		public long getRequestId() {
+			return requestId;
+		}
+
+		/**
+		 * @return stream for reading the body of the frame
+		 */
+		public DataInputStream getBody() {
+			return new DataInputStream(new ByteArrayInputStream(body));
+		}
+	}
+
+	/**
+	 * For building the body of a frame to be written
+	 */
+	public static class FrameBuilder {
+		private final ByteArrayOutputStream bytes;
+		private final DataOutputStream body;
+
+		public FrameBuilder(long requestId) throws IOException {
+			bytes = new ByteArrayOutputStream();
+			body = new DataOutputStream(bytes);
+
+			// Reserve space for the header, which is filled in by
+			// toByteBuffer() once the length is known
+			body.writeInt(0);
+			body.writeLong(requestId);
+		}
+
+		/**
+		 * @return stream for writing the body of the frame
+		 */
+		public DataOutputStream getBody() {
+			return body;
+		}
+
+		private ByteBuffer toByteBuffer() throws IOException {
+			body.flush();
+			ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+			buffer.putInt(0, buffer.limit() - 4);
+			return buffer;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param channel
+	 *            Must be in blocking mode
+	 */
+	public FrameChannel(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Reads the next frame. Blocks until it is available. Only to be called by
+	 * a single thread.
+	 *
+	 * @return the frame
+	 * @throws IOException
+	 *             If the connection is closed or the data is not valid
+	 */
+	public Frame readFrame() throws IOException {
+		headerBuffer.clear();
+		readFully(headerBuffer);
+		headerBuffer.flip();
+		int length = headerBuffer.getInt();
+		long requestId = headerBuffer.getLong();
+		if (length < HEADER_SIZE - 4 || length > MAX_FRAME_SIZE)
+			throw new IOException("Invalid frame length " + length);
+
+		ByteBuffer bodyBuffer = ByteBuffer.allocate(length - (HEADER_SIZE - 4));
+		readFully(bodyBuffer);
+		return new Frame(requestId, bodyBuffer.array());
+	}
+
+	/**
+	 * Writes the frame. Can be called by multiple threads at once.
+	 *
+	 * @param frameBuilder
+	 * @throws IOException
+	 */
+	public void writeFrame(FrameBuilder frameBuilder) throws IOException {
+		ByteBuffer buffer = frameBuilder.toByteBuffer();
+		synchronized (writeLock) {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new EOFException("Connection closed");
+		}
+	}
+
+	/**
+	 * Closes the channel, which causes a blocked readFrame() to fail.
+	 */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing useful can be done so ignore
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "FrameChannel [channel=" + channel + "]";
+	}
+}
@@ -0,0 +1,361 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.transitime.ipc.data.CompactInput;
+import org.transitime.ipc.data.CompactOutput;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.ipc.data.IpcVehicleComplete;
+
+/**
+ * Encodes the arguments and results of the remote method calls for the socket
+ * based transport. Each value is written as a one byte type tag followed by
+ * the value. Nulls, booleans, numbers, strings, and lists of such values are
+ * written directly in a compact binary form.
+ * <p>
+ * The vehicles and predictions make up most of the data sent so
+ * IpcVehicleComplete, IpcPrediction, and IpcPredictionsForRouteStopDest
+ * objects, and lists of them, are also written directly, using their
+ * writeCompact() methods. The strings of a value are written using a string
+ * table so that IDs that many predictions share are only written once. If
+ * the fields of one of these classes change then a new type tag is to be
+ * used so that a peer running older software fails cleanly because of an
+ * invalid type tag instead of misreading the data.
+ * <p>
+ * The other Ipc* classes already define their wire format, including a
+ * version, in their SerializationProxy classes. Therefore any other value is
+ * written using Java serialization, which uses that SerializationProxy
+ * format. A list that contains such objects is serialized as a whole so
+ * that the class descriptors are only written once for the list instead of
+ * once per element.
+ * <p>
+ * To protect against malicious or corrupt data every length read is checked
+ * against the number of bytes remaining in the frame, so the stream being read
+ * from must contain just a single frame, as returned by Frame.getBody(). Only
+ * the specific JDK classes that are used by the IPC contracts, plus the
+ * org.transitime classes, can be deserialized. Limits are also put on the
+ * size, depth, and number of objects so that a small amount of data cannot
+ * cause a huge amount of memory or processing to be used.
+ */
+public class IpcCodec {
+
+	// The type tags
+	private static final byte NULL = 0;
+	private static final byte TRUE = 1;
+	private static final byte FALSE = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte STRING = 6;
+	private static final byte LIST = 7;
+	private static final byte SERIALIZED = 8;
+	private static final byte VEHICLE_COMPLETE = 9;
+	private static final byte PREDICTION = 10;
+	private static final byte PREDICTIONS_FOR_ROUTE_STOP_DEST = 11;
+
+	// Maximum nesting of lists or of serialized objects. The IPC objects are
+	// not nested deeply. Keeping this small also prevents a small amount of
+	// data with nested hash maps from taking exponential time to read.
+	private static final int MAX_DEPTH = 20;
+
+	// Only allow classes that are part of the IPC contracts to be
+	// deserialized. Note that java.lang.* only matches the classes in
+	// java.lang itself and not the ones in subpackages. Hash based sets
+	// are intentionally not allowed since they aren't part of the contracts.
+	private static final ObjectInputFilter deserializationFilter =
+			ObjectInputFilter.Config.createFilter(
+					"maxbytes=" + FrameChannel.MAX_FRAME_SIZE
+					+ ";maxdepth=" + MAX_DEPTH
+					+ ";maxrefs=1000000"
+					+ ";maxarray=1000000"
+					+ ";java.lang.*"
+					+ ";java.util.ArrayList;java.util.LinkedList"
+					+ ";java.util.Arrays$ArrayList;java.util.Collections$*"
+					+ ";java.util.HashMap;java.util.LinkedHashMap"
+					+ ";java.util.Map$Entry"
+					+ ";java.util.Date;java.sql.Timestamp;java.sql.Date"
+					+ ";java.io.IOException;java.rmi.RemoteException"
+					+ ";org.transitime.**;!*");
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor private since all methods are static
+	 */
+	private IpcCodec() {
+	}
+
+	/**
+	 * Writes the value to the stream.
+	 *
+	 * @param out
+	 * @param value
+	 *            Must be one of the directly supported types or be
+	 *            Serializable
+	 * @throws IOException
+	 */
+	public static void write(DataOutputStream out, Object value)
+			throws IOException {
+		// Use a new CompactOutput for each value so that the string table
+		// of the value is independent of any other value
+		write(new CompactOutput(out), value);
+	}
+
+	private static void write(CompactOutput out, Object value)
+			throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Boolean) {
+			out.writeByte((Boolean) value ? TRUE : FALSE);
+		} else if (value instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		} else if (value.getClass() == IpcVehicleComplete.class) {
+			out.writeByte(VEHICLE_COMPLETE);
+			((IpcVehicleComplete) value).writeCompact(out);
+		} else if (value.getClass() == IpcPrediction.class) {
+			out.writeByte(PREDICTION);
+			((IpcPrediction) value).writeCompact(out);
+		} else if (value.getClass() == IpcPredictionsForRouteStopDest.class) {
+			out.writeByte(PREDICTIONS_FOR_ROUTE_STOP_DEST);
+			((IpcPredictionsForRouteStopDest) value).writeCompact(out);
+		} else if (value instanceof List && isDirectlyEncodable(value)) {
+			List<?> list = (List<?>) value;
+			out.writeByte(LIST);
+			out.writeInt(list.size());
+			for (Object element : list)
+				write(out, element);
+		} else {
+			out.writeByte(SERIALIZED);
+			writeSerialized(out, value);
+		}
+	}
+
+	/**
+	 * Reads a value that was written by write().
+	 *
+	 * @param in
+	 *            Stream for a single frame, as returned by Frame.getBody()
+	 * @return The value
+	 * @throws IOException
+	 *             If the data is not valid
+	 */
+	public static Object read(DataInputStream in) throws IOException {
+		return read(new CompactInput(in), 0);
+	}
+
+	private static Object read(CompactInput in, int depth)
+			throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case INT:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case DOUBLE:
+			return in.readDouble();
+		case STRING:
+			return readString(in);
+		case LIST:
+			if (depth >= MAX_DEPTH)
+				throw new IOException("Lists nested more than " + MAX_DEPTH
+						+ " deep");
+			// Each element takes at least a byte so the size can be checked
+			// against the remaining bytes
+			int size = readLength(in);
+			List<Object> list = new ArrayList<Object>(size);
+			for (int i = 0; i < size; ++i)
+				list.add(read(in, depth + 1));
+			return list;
+		case SERIALIZED:
+			return readSerialized(in);
+		case VEHICLE_COMPLETE:
+			return IpcVehicleComplete.readCompact(in);
+		case PREDICTION:
+			return IpcPrediction.readCompact(in);
+		case PREDICTIONS_FOR_ROUTE_STOP_DEST:
+			return IpcPredictionsForRouteStopDest.readCompact(in);
+		default:
+			throw new IOException("Invalid type tag " + tag);
+		}
+	}
+
+	/**
+	 * Writes a non-null string as the length of its UTF-8 encoding followed
+	 * by the UTF-8 bytes. Unlike DataOutputStream.writeUTF() the string can
+	 * be longer than 64K.
+	 *
+	 * @param out
+	 * @param s
+	 * @throws IOException
+	 */
+	public static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by writeString().
+	 *
+	 * @param in
+	 *            Stream for a single frame, as returned by Frame.getBody()
+	 * @return the string
+	 * @throws IOException
+	 *             If the data is not valid
+	 */
+	public static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readLength(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads a length and makes sure that it is valid, meaning that it is not
+	 * negative and that there are at least that many bytes left in the
+	 * frame. This way corrupt or malicious data cannot cause a huge
+	 * allocation.
+	 *
+	 * @param in
+	 *            Stream for a single frame, as returned by Frame.getBody()
+	 * @return the length
+	 * @throws IOException
+	 *             If the length is not valid
+	 */
+	private static int readLength(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		int remaining = in.available();
+		if (length < 0 || length > remaining)
+			throw new IOException("Invalid length " + length + " when only "
+					+ remaining + " bytes remain in frame");
+		return length;
+	}
+
+	/**
+	 * Returns a key that identifies the method of a remote interface. Includes
+	 * the parameter types since the interfaces have overloaded methods.
+	 *
+	 * @param method
+	 * @return Key such as "get(java.lang.String,int)"
+	 */
+	public static String getMethodKey(Method method) {
+		StringBuilder sb = new StringBuilder(method.getName()).append('(');
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		for (int i = 0; i < parameterTypes.length; ++i) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(parameterTypes[i].getName());
+		}
+		return sb.append(')').toString();
+	}
+
+	/**
+	 * @param value
+	 * @return true if the value can be written without Java serialization
+	 */
+	private static boolean isDirectlyEncodable(Object value) {
+		if (value == null || value instanceof Boolean
+				|| value instanceof Integer || value instanceof Long
+				|| value instanceof Double || value instanceof String)
+			return true;
+
+		if (value.getClass() == IpcVehicleComplete.class
+				|| value.getClass() == IpcPrediction.class
+				|| value.getClass() == IpcPredictionsForRouteStopDest.class)
+			return true;
+
+		if (value instanceof List) {
+			for (Object element : (List<?>) value) {
+				if (!isDirectlyEncodable(element))
+					return false;
+			}
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Writes the value using Java serialization, prefixed with the length of
+	 * the serialized bytes so that the ObjectInputStream used to read it
+	 * cannot read past the end of the value.
+	 */
+	private static void writeSerialized(DataOutputStream out, Object value)
+			throws IOException {
+		if (!(value instanceof Serializable))
+			throw new IOException("Class " + value.getClass().getName()
+					+ " is not Serializable");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+		objectOut.writeObject(value);
+		objectOut.close();
+
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+
+	private static Object readSerialized(DataInputStream in)
+			throws IOException {
+		byte[] bytes = new byte[readLength(in)];
+		in.readFully(bytes);
+
+		ObjectInputStream objectIn =
+				new ObjectInputStream(new ByteArrayInputStream(bytes));
+		objectIn.setObjectInputFilter(deserializationFilter);
+		try {
+			return objectIn.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Could not deserialize object. "
+					+ e.getMessage(), e);
+		} finally {
+			objectIn.close();
+		}
+	}
+}
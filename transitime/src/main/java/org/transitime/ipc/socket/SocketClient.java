@@ -0,0 +1,272 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.socket;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.ipc.socket.FrameChannel.Frame;
+import org.transitime.ipc.socket.FrameChannel.FrameBuilder;
+import org.transitime.utils.threading.NamedThread;
+
+/**
+ * The client side of the binary socket based transport. There is a single
+ * connection per server host and port, shared by all threads and by all of
+ * the interfaces. Each request gets a unique ID so that many requests can be
+ * in progress on the connection at once. A reader thread matches the
+ * responses to the waiting requests.
+ * <p>
+ * If the connection fails all of the requests waiting on it get a
+ * RemoteException and the next request opens a new connection.
+ */
+public class SocketClient {
+
+	private final String host;
+	private final int port;
+
+	// The current connection. Null if not connected.
+	private FrameChannel frameChannel = null;
+
+	// The requests that are waiting for a response, keyed by request ID
+	private final ConcurrentMap<Long, PendingCall> pendingCalls =
+			new ConcurrentHashMap<Long, PendingCall>();
+
+	private final AtomicLong nextRequestId = new AtomicLong(0);
+
+	// Keyed on "host:port"
+	private static final ConcurrentMap<String, SocketClient> clients =
+			new ConcurrentHashMap<String, SocketClient>();
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(SocketClient.class);
+
+	/**
+	 * A request waiting for its response
+	 */
+	private static class PendingCall {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile FrameChannel channel;
+		private volatile Frame response;
+		private volatile IOException failure;
+	}
+
+	/********************** Member Functions **************************/
+
+	private SocketClient(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Returns the SocketClient for the host and port, creating it if
+	 * necessary.
+	 *
+	 * @param host
+	 * @param port
+	 * @return the client
+	 */
+	public static SocketClient getInstance(String host, int port) {
+		String key = host + ":" + port;
+		SocketClient client = clients.get(key);
+		if (client == null) {
+			SocketClient newClient = new SocketClient(host, port);
+			client = clients.putIfAbsent(key, newClient);
+			if (client == null)
+				client = newClient;
+		}
+		return client;
+	}
+
+	/**
+	 * Calls a method of a remote object and waits for the result.
+	 *
+	 * @param bindName
+	 *            Same as the RMI bind name
+	 * @param methodKey
+	 *            From IpcCodec.getMethodKey()
+	 * @param args
+	 *            Can be null if no arguments
+	 * @param timeoutMsec
+	 *            How long to wait for connecting and for the response
+	 * @return the result of the method
+	 * @throws RemoteException
+	 *             If there is a problem communicating with the server
+	 * @throws Throwable
+	 *             The exception thrown by the remote method
+	 */
+	public Object call(String bindName, String methodKey, Object[] args,
+			int timeoutMsec) throws Throwable {
+		long requestId = nextRequestId.incrementAndGet();
+
+		PendingCall pendingCall = new PendingCall();
+		pendingCalls.put(requestId, pendingCall);
+		byte status;
+		Object value;
+		try {
+			FrameBuilder request = new FrameBuilder(requestId);
+			DataOutputStream body = request.getBody();
+			IpcCodec.writeString(body, bindName);
+			IpcCodec.writeString(body, methodKey);
+			body.writeInt(args != null ? args.length : 0);
+			if (args != null) {
+				for (Object arg : args)
+					IpcCodec.write(body, arg);
+			}
+
+			FrameChannel channel = getFrameChannel(timeoutMsec);
+			pendingCall.channel = channel;
+			try {
+				channel.writeFrame(request);
+			} catch (IOException e) {
+				connectionFailed(channel, e);
+				throw e;
+			}
+
+			if (!pendingCall.done.await(timeoutMsec, TimeUnit.MILLISECONDS))
+				throw new RemoteException("Timed out after " + timeoutMsec
+						+ " msec waiting for response to " + bindName + "."
+						+ methodKey + " from " + host + ":" + port);
+			if (pendingCall.failure != null)
+				throw pendingCall.failure;
+
+			DataInputStream responseBody = pendingCall.response.getBody();
+			status = responseBody.readByte();
+			value = IpcCodec.read(responseBody);
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new RemoteException("Exception calling " + bindName + "."
+					+ methodKey + " on " + host + ":" + port + ". "
+					+ e.getMessage(), e);
+		} finally {
+			pendingCalls.remove(requestId);
+		}
+
+		if (status == SocketServer.EXCEPTION)
+			throw (Throwable) value;
+		return value;
+	}
+
+	/**
+	 * Returns the current connection, opening one if there isn't one.
+	 *
+	 * @param timeoutMsec
+	 *            For connecting
+	 * @return the connection
+	 * @throws ConnectException
+	 *             If could not connect
+	 */
+	private synchronized FrameChannel getFrameChannel(int timeoutMsec)
+			throws ConnectException {
+		if (frameChannel != null)
+			return frameChannel;
+
+		SocketChannel socketChannel = null;
+		try {
+			socketChannel = SocketChannel.open();
+			socketChannel.socket().setTcpNoDelay(true);
+			socketChannel.socket().connect(new InetSocketAddress(host, port),
+					timeoutMsec);
+			frameChannel = new FrameChannel(socketChannel);
+		} catch (IOException e) {
+			if (socketChannel != null) {
+				try {
+					socketChannel.close();
+				} catch (IOException e2) {
+					// Nothing useful can be done so ignore
+				}
+			}
+			throw new ConnectException("Could not connect to " + host + ":"
+					+ port + ". " + e.getMessage(), e);
+		}
+
+		logger.info("SocketClient connected to {}:{}", host, port);
+		final FrameChannel channel = frameChannel;
+		NamedThread readerThread = new NamedThread(new Runnable() {
+			public void run() {
+				readResponses(channel);
+			}
+		}, "SocketClient-" + host + ":" + port);
+		readerThread.setDaemon(true);
+		readerThread.start();
+
+		return frameChannel;
+	}
+
+	/**
+	 * Reads the responses and hands each one to the request that is waiting
+	 * for it. Returns when the connection fails.
+	 *
+	 * @param channel
+	 */
+	private void readResponses(FrameChannel channel) {
+		try {
+			while (true) {
+				Frame response = channel.readFrame();
+				PendingCall pendingCall =
+						pendingCalls.get(response.getRequestId());
+				// If request already timed out then no one is waiting for it
+				if (pendingCall != null) {
+					pendingCall.response = response;
+					pendingCall.done.countDown();
+				}
+			}
+		} catch (IOException e) {
+			connectionFailed(channel, e);
+		}
+	}
+
+	/**
+	 * Closes the connection and fails all of the waiting requests so that
+	 * the next request opens a new connection.
+	 *
+	 * @param channel
+	 *            The connection that failed
+	 * @param e
+	 */
+	private void connectionFailed(FrameChannel channel, IOException e) {
+		synchronized (this) {
+			// If already replaced by a new connection then nothing to do
+			if (frameChannel != channel)
+				return;
+			frameChannel = null;
+		}
+
+		logger.error("SocketClient connection to {}:{} failed. {}",
+				host, port, e.getMessage());
+		channel.close();
+		for (PendingCall pendingCall : pendingCalls.values()) {
+			if (pendingCall.channel == channel) {
+				pendingCall.failure = e;
+				pendingCall.done.countDown();
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.socket;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.configData.RmiConfig;
+import org.transitime.ipc.rmi.AbstractServer;
+import org.transitime.ipc.rmi.ClientFactory;
+import org.transitime.ipc.rmi.RmiCallInvocationHandler;
+import org.transitime.ipc.rmi.RmiStubInfo;
+import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.Time;
+
+/**
+ * Called on the client side when a proxied *Interface object is accessed and
+ * the binary socket based transport is being used. The counterpart of
+ * RmiCallInvocationHandler. Sends the method call to the server using a
+ * SocketClient. If there is a communication problem the host name is
+ * updated, in case the agency server moved, and the call is tried once more.
+ * The same limit on concurrent calls per agency as for RMI is applied, and
+ * the calls are included in the RmiCallInvocationHandler counts.
+ */
+public class SocketInvocationHandler implements InvocationHandler {
+
+	// For determining the host and for logging
+	private final RmiStubInfo info;
+
+	// Same name as the server object is bound to in the RMI registry
+	private final String bindName;
+
+	// So only need to determine the key for each method once
+	private final ConcurrentMap<Method, String> methodKeys =
+			new ConcurrentHashMap<Method, String>();
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(SocketInvocationHandler.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Simple constructor.
+	 *
+	 * @param info
+	 */
+	public SocketInvocationHandler(RmiStubInfo info) {
+		this.info = info;
+		this.bindName =
+				AbstractServer.getBindName(info.getAgencyId(),
+						info.getClassName());
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		// The java.lang.Object methods relate to the proxy object identity
+		// so handle them here instead of calling the server
+		if (Object.class == method.getDeclaringClass()) {
+			String name = method.getName();
+			if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(name)) {
+				return proxy.getClass().getName() + "@" +
+						Integer.toHexString(System.identityHashCode(proxy)) +
+						", with InvocationHandler " + this;
+			} else {
+				throw new IllegalStateException(String.valueOf(method));
+			}
+		}
+
+		String methodKey = methodKeys.get(method);
+		if (methodKey == null) {
+			methodKey = IpcCodec.getMethodKey(method);
+			methodKeys.put(method, methodKey);
+		}
+
+		// Don't burden the server with even more calls if it is already
+		// behind. Same limit and counts as for RMI calls.
+		String agencyId = info.getAgencyId();
+		if (!RmiCallInvocationHandler.callStarting(agencyId)) {
+			String message = "Reached maximum of "
+					+ RmiCallInvocationHandler.getMaxConcurrentCallsPerProject()
+					+ " concurrent calls when calling remote method "
+					+ info.getClassName() + "." + method.getName()
+					+ "() for agency " + agencyId + " so throwing exception.";
+			logger.error(message);
+			throw new RemoteException(message);
+		}
+
+		IntervalTimer timer = new IntervalTimer();
+		try {
+			return call(info.getHostName(), methodKey, args);
+		} catch (RemoteException e) {
+			// Perhaps the server for the agency was moved to a new host so
+			// update the host name and try once more
+			logger.warn("Remote method {}.{}() for agency {} encountered "
+					+ "exception {}. Trying again.",
+					info.getClassName(), method.getName(), info.getAgencyId(),
+					e.getMessage());
+			return call(info.getHostNameViaUpdatedCache(), methodKey, args);
+		} finally {
+			RmiCallInvocationHandler.callCompleted(agencyId);
+			logger.debug("Remote method {}.{}() for agency {} took {} msec.",
+					info.getClassName(), method.getName(), info.getAgencyId(),
+					timer.elapsedMsec());
+		}
+	}
+
+	private Object call(String hostName, String methodKey, Object[] args)
+			throws Throwable {
+		if (hostName == null)
+			throw new RemoteException("No host configured for agency "
+					+ info.getAgencyId());
+
+		SocketClient client =
+				SocketClient.getInstance(hostName, RmiConfig.socketPort());
+		return client.call(bindName, methodKey, args,
+				ClientFactory.getTimeoutSec() * Time.MS_PER_SEC);
+	}
+
+	@Override
+	public String toString() {
+		return "SocketInvocationHandler [bindName=" + bindName + "]";
+	}
+}
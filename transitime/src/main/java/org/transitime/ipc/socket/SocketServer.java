@@ -0,0 +1,349 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.ipc.socket;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.configData.AgencyConfig;
+import org.transitime.configData.RmiConfig;
+import org.transitime.ipc.socket.FrameChannel.Frame;
+import org.transitime.ipc.socket.FrameChannel.FrameBuilder;
+import org.transitime.logging.Markers;
+import org.transitime.utils.threading.NamedThread;
+import org.transitime.utils.threading.NamedThreadFactory;
+
+/**
+ * The server side of the binary socket based transport, an alternative to
+ * RMI. Listens on the port specified by transitime.rmi.socketPort. The server
+ * objects, such as PredictionsServer, are registered using the same bind names
+ * as for the RMI registry so that a client can call the same *Interface
+ * methods using either transport.
+ * <p>
+ * Each connection has a thread that reads the requests. The requests are
+ * handled by a thread pool so that a slow request doesn't hold up the other
+ * requests on the same connection. The response contains the request ID so
+ * that the client can match it to the request.
+ * <p>
+ * A request frame contains the bind name, the method key from
+ * IpcCodec.getMethodKey(), the number of arguments, and the arguments
+ * encoded using IpcCodec. A response frame contains a status byte followed by
+ * either the result or the exception thrown by the method.
+ */
+public class SocketServer {
+
+	// The registered server objects, keyed by bind name
+	private final ConcurrentMap<String, Remote> serverObjects =
+			new ConcurrentHashMap<String, Remote>();
+
+	// The remote methods of each server object class, keyed by method key.
+	// Determined once per class so that don't need reflection lookups for
+	// every request.
+	private final ConcurrentMap<Class<?>, Map<String, Method>> methodsByClass =
+			new ConcurrentHashMap<Class<?>, Map<String, Method>>();
+
+	// For handling the requests
+	private final ExecutorService executor;
+
+	private static SocketServer singleton = null;
+
+	private static IntegerConfigValue numThreads = new IntegerConfigValue(
+			"transitime.rmi.socketServerThreads", 25,
+			"Number of threads used for handling the requests received via "
+			+ "the binary socket based transport.");
+
+	private static IntegerConfigValue maxQueuedRequests =
+			new IntegerConfigValue(
+			"transitime.rmi.socketServerMaxQueuedRequests", 1000,
+			"Maximum number of requests received via the binary socket "
+			+ "based transport that can be waiting for a thread. Once "
+			+ "reached further requests are immediately answered with a "
+			+ "RemoteException instead of using up more and more memory.");
+
+	// Response status
+	static final byte RESULT = 0;
+	static final byte EXCEPTION = 1;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(SocketServer.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor private since singleton class
+	 */
+	private SocketServer() {
+		executor = new ThreadPoolExecutor(numThreads.getValue(),
+				numThreads.getValue(), 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(maxQueuedRequests.getValue()),
+				new NamedThreadFactory("SocketServer"));
+	}
+
+	/**
+	 * Returns the SocketServer, starting it the first time called. If the
+	 * socket transport isn't enabled, because transitime.rmi.socketPort is 0,
+	 * then null is returned.
+	 *
+	 * @return the SocketServer or null if not enabled or couldn't be started
+	 */
+	public static synchronized SocketServer getInstance() {
+		if (singleton == null && RmiConfig.socketPort() > 0) {
+			SocketServer server = new SocketServer();
+			if (server.start(RmiConfig.socketPort()))
+				singleton = server;
+		}
+		return singleton;
+	}
+
+	/**
+	 * Opens the server socket and starts the thread that accepts connections.
+	 * Listens on the address specified by transitime.rmi.socketBindAddress.
+	 *
+	 * @param port
+	 * @return true if successful
+	 */
+	private boolean start(int port) {
+		String bindAddress = RmiConfig.socketBindAddress();
+		final ServerSocketChannel serverChannel;
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.bind(new InetSocketAddress(bindAddress, port));
+		} catch (IOException e) {
+			logger.error(Markers.email(),
+					"For agencyId={} could not start SocketServer on "
+					+ "address={} port={}",
+					AgencyConfig.getAgencyId(), bindAddress, port, e);
+			return false;
+		}
+
+		logger.info("Started SocketServer on address={} port={}",
+				bindAddress, port);
+		new NamedThread(new Runnable() {
+			public void run() {
+				acceptConnections(serverChannel);
+			}
+		}, "SocketServerAccept").start();
+		return true;
+	}
+
+	/**
+	 * Makes the server object available to socket clients.
+	 *
+	 * @param bindName
+	 *            Same as the RMI bind name, from AbstractServer.getBindName()
+	 * @param serverObject
+	 */
+	public void register(String bindName, Remote serverObject) {
+		logger.info("Registering {} with SocketServer", bindName);
+		serverObjects.put(bindName, serverObject);
+	}
+
+	/**
+	 * Accepts connections and starts a thread for reading the requests of
+	 * each one. Never returns.
+	 *
+	 * @param serverChannel
+	 */
+	private void acceptConnections(ServerSocketChannel serverChannel) {
+		while (true) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				channel.socket().setTcpNoDelay(true);
+				final FrameChannel frameChannel = new FrameChannel(channel);
+				logger.info("SocketServer accepted connection from {}",
+						channel.getRemoteAddress());
+				new NamedThread(new Runnable() {
+					public void run() {
+						readRequests(frameChannel);
+					}
+				}, "SocketServerConnection").start();
+			} catch (IOException e) {
+				logger.error("Exception accepting connection for SocketServer",
+						e);
+			}
+		}
+	}
+
+	/**
+	 * Reads the requests from the connection and hands them to the executor.
+	 * If too many requests are already queued the request is rejected right
+	 * away so that the client doesn't have to wait for a timeout. Returns
+	 * when the connection is closed.
+	 *
+	 * @param frameChannel
+	 */
+	private void readRequests(final FrameChannel frameChannel) {
+		try {
+			while (true) {
+				final Frame request = frameChannel.readFrame();
+				try {
+					executor.execute(new Runnable() {
+						public void run() {
+							handleRequest(frameChannel, request);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					logger.error("SocketServer request queue is full so "
+							+ "rejecting request from {}", frameChannel);
+					writeResponse(frameChannel, request.getRequestId(),
+							EXCEPTION, new RemoteException("SocketServer for "
+									+ "agencyId=" + AgencyConfig.getAgencyId()
+									+ " is too busy"));
+				}
+			}
+		} catch (IOException e) {
+			logger.info("SocketServer connection {} closed. {}",
+					frameChannel, e.getMessage());
+		} finally {
+			frameChannel.close();
+		}
+	}
+
+	/**
+	 * Calls the method specified by the request and writes the response.
+	 *
+	 * @param frameChannel
+	 * @param request
+	 */
+	private void handleRequest(FrameChannel frameChannel, Frame request) {
+		byte status;
+		Object value;
+		try {
+			status = RESULT;
+			value = invoke(request.getBody());
+		} catch (InvocationTargetException e) {
+			// The method threw an exception so pass it on to the client
+			status = EXCEPTION;
+			value = e.getCause();
+		} catch (Exception e) {
+			logger.error("Exception handling SocketServer request", e);
+			status = EXCEPTION;
+			value = e;
+		}
+
+		writeResponse(frameChannel, request.getRequestId(), status, value);
+	}
+
+	/**
+	 * Encodes and writes the response to a request.
+	 *
+	 * @param frameChannel
+	 * @param requestId
+	 * @param status
+	 *            RESULT or EXCEPTION
+	 * @param value
+	 *            The result or the exception
+	 */
+	private void writeResponse(FrameChannel frameChannel, long requestId,
+			byte status, Object value) {
+		try {
+			FrameBuilder response = new FrameBuilder(requestId);
+			response.getBody().writeByte(status);
+			try {
+				IpcCodec.write(response.getBody(), value);
+			} catch (IOException e) {
+				// Result couldn't be encoded so return exception instead
+				logger.error("Exception encoding SocketServer response", e);
+				response = new FrameBuilder(requestId);
+				response.getBody().writeByte(EXCEPTION);
+				IpcCodec.write(response.getBody(),
+						new IOException(e.getMessage()));
+			}
+			frameChannel.writeFrame(response);
+		} catch (IOException e) {
+			// Connection closed. The reading thread will deal with it.
+			logger.info("Could not write SocketServer response to {}. {}",
+					frameChannel, e.getMessage());
+		}
+	}
+
+	/**
+	 * Decodes the request and calls the method.
+	 *
+	 * @param body
+	 * @return the result of the method
+	 * @throws InvocationTargetException
+	 *             If the method throws an exception
+	 * @throws Exception
+	 *             If the request is not valid
+	 */
+	private Object invoke(DataInputStream body) throws Exception {
+		String bindName = IpcCodec.readString(body);
+		String methodKey = IpcCodec.readString(body);
+		Object[] args = new Object[body.readInt()];
+		for (int i = 0; i < args.length; ++i)
+			args[i] = IpcCodec.read(body);
+
+		Remote serverObject = serverObjects.get(bindName);
+		if (serverObject == null)
+			throw new IllegalArgumentException("No server object bound to "
+					+ bindName);
+
+		Method method = getMethods(serverObject.getClass()).get(methodKey);
+		if (method == null)
+			throw new IllegalArgumentException("No remote method " + methodKey
+					+ " for " + bindName);
+
+		return method.invoke(serverObject, args);
+	}
+
+	/**
+	 * Returns the methods of the Remote interfaces implemented by the class,
+	 * keyed by method key. Only the methods of the Remote interfaces are
+	 * included so that clients cannot call any other methods.
+	 *
+	 * @param clazz
+	 * @return the methods
+	 */
+	private Map<String, Method> getMethods(Class<?> clazz) {
+		Map<String, Method> methods = methodsByClass.get(clazz);
+		if (methods == null) {
+			methods = new HashMap<String, Method>();
+			for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+				for (Class<?> iface : c.getInterfaces()) {
+					if (!Remote.class.isAssignableFrom(iface))
+						continue;
+					for (Method method : iface.getMethods())
+						methods.put(IpcCodec.getMethodKey(method), method);
+				}
+			}
+			methodsByClass.putIfAbsent(clazz, methods);
+		}
+		return methods;
+	}
+}
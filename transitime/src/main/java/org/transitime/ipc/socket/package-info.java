@@ -0,0 +1,31 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A binary socket based alternative to RMI for calling the *Interface
+ * methods of the server. Requests and responses are length prefixed frames
+ * sent over a single connection per server, with a request ID so that many
+ * requests can be in progress at once.
+ * <p>
+ * The server accepts socket connections if transitime.rmi.socketPort is set.
+ * Every AbstractServer object is then available via both RMI and the socket
+ * transport. A client uses the socket transport instead of RMI if
+ * transitime.rmi.ipcTransport is set to "socket" and transitime.rmi.socketPort
+ * is set to the same port as for the server. The client code doesn't otherwise
+ * change since ClientFactory returns the same interfaces.
+ */
+package org.transitime.ipc.socket;
@@ -269,7 +269,30 @@ public class Time {
 		long epochTime = calendar.getTimeInMillis();
 		return epochTime;
 	}
-	
+
+	/**
+	 * Returns the epoch time of the start of the day for the default timezone.
+	 * Same result as getStartOfDay(Date) but doesn't need to create a
+	 * Calendar, which is important for when called for every arrival/departure
+	 * or prediction. Uses the timezone offset to truncate and then corrects
+	 * the offset in case midnight has a different offset than the time
+	 * specified, which can happen on daylight savings days.
+	 *
+	 * @param epochTime
+	 *            the time that the start of the day is needed for
+	 * @return start of the day
+	 */
+	public static long getStartOfDay(long epochTime) {
+		TimeZone tz = TimeZone.getDefault();
+		long localTime = epochTime + tz.getOffset(epochTime);
+		long localStartOfDay = localTime - Math.floorMod(localTime, MS_PER_DAY);
+		long startOfDay = localStartOfDay - tz.getOffset(epochTime);
+
+		// Adjust in case offset at start of day is different due to DST
+		int offsetAtStartOfDay = tz.getOffset(startOfDay);
+		return localStartOfDay - offsetAtStartOfDay;
+	}
+
 	/**
 	 * Converts secondsIntoDay into an epoch time.
 	 * 
@@ -21,6 +21,9 @@ import org.apache.commons.csv.CSVRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 
 /**
  * Base class for CSV struct classes. The main CSV struct classes must inherit
@@ -37,6 +40,13 @@ public class CsvBase {
 	
 	private final boolean supplementalFileSoSomeRequiredItemsCanBeMissing;
 	
+	// For sharing a single String for IDs that are repeated many times in
+	// large files, such as the trip_id and stop_id in stop_times. Weak so
+	// that the Strings can be garbage collected once the data is no longer
+	// needed.
+	private static final Interner<String> idInterner = 
+			Interners.newWeakInterner();
+	
 	protected static final Logger logger = 
 			LoggerFactory.getLogger(CsvBase.class);
 
@@ -98,6 +108,18 @@ public class CsvBase {
 		return fileName;
 	}
 	
+	/**
+	 * Returns a canonical String for the ID. For IDs that are repeated in
+	 * many records of a large file so that each record doesn't need to
+	 * keep its own copy of the String. Thread safe.
+	 * 
+	 * @param id
+	 * @return The canonical String for the ID, or null if id is null
+	 */
+	protected static String intern(String id) {
+		return id == null ? null : idInterner.intern(id);
+	}
+	
 	/**
 	 * For reading a value that is required in CSV and is required even if
 	 * reading in a supplemental file. If data is missing the error is logged.
@@ -26,6 +26,7 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Consumer;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
@@ -57,8 +58,12 @@ public abstract class CsvBaseReader<T> {
 	// file is going to be combined with the main file.
 	private final boolean supplemental;
 	
-	// The CSV objects read from the file
+	// The CSV objects read from the file. Only set when get() is used.
 	protected List<T> gtfsObjects;
+	
+	// Size of buffer used for reading the file. Larger than the default 
+	// of 8K since the GTFS files can be very large.
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
 
 	protected static final Logger logger = 
 			LoggerFactory.getLogger(CsvBaseReader.class);
@@ -104,10 +109,13 @@ public abstract class CsvBaseReader<T> {
 	
 	/**
 	 * Parse the CSV file. Reads in the header info and then each line. Calls
-	 * the abstract handleRecord() method for each record. Adds each resulting
-	 * CSV object to the gtfsObjecgts array.
+	 * the abstract handleRecord() method for each record. Passes each
+	 * resulting CSV object to the consumer.
+	 * 
+	 * @param consumer
+	 *            Called for each CSV object that is not filtered out
 	 */
-	private void parse() {
+	private void parse(Consumer<? super T> consumer) {
 		CSVRecord record = null;
 		try {
 			IntervalTimer timer = new IntervalTimer();
@@ -127,7 +135,7 @@ public abstract class CsvBaseReader<T> {
 			// way the CSV parser will process the file starting with the first
 			// true character.			
 			Reader in = new BufferedReader(new InputStreamReader(
-					new FileInputStream(fileName), "UTF-8"));
+					new FileInputStream(fileName), "UTF-8"), READ_BUFFER_SIZE);
 			
 			// Deal with the possible BOM character at the beginning of the file
 			in.mark(1);
@@ -190,9 +198,9 @@ public abstract class CsvBaseReader<T> {
 					continue;
 				}
 				
-				// Add the newly created CSV object to the object list
+				// Pass the newly created CSV object to the consumer
 				if (gtfsObject != null)
-					gtfsObjects.add(gtfsObject);		
+					consumer.accept(gtfsObject);		
 				
 				// Log info if it has been a while. Check only every 20,000
 				// lines to see if the 10 seconds has gone by. If so, then log
@@ -256,11 +264,32 @@ public abstract class CsvBaseReader<T> {
 	 * @return List of CSV objects. Can be empty but not null.
 	 */
 	public List<T> get(int initialSize) {
-		gtfsObjects = new ArrayList<T>(initialSize);
+		final List<T> objects = new ArrayList<T>(initialSize);
+		gtfsObjects = objects;
 		
-		parse();
+		parse(new Consumer<T>() {
+			@Override
+			public void accept(T gtfsObject) {
+				objects.add(gtfsObject);
+			}
+		});
 		
-		return gtfsObjects;
+		return objects;
+	}
+
+	/**
+	 * For streaming the CSV objects instead of reading them all into a list.
+	 * Each CSV object is passed to the consumer as soon as its record has
+	 * been parsed. Since the objects are not retained by the reader this
+	 * is the way to process really large files, such as stop_times, where
+	 * the objects are going to be put into some other data structure anyways.
+	 * 
+	 * @param consumer
+	 *            Called for each CSV object that is not filtered out, in the
+	 *            order that they are in the file
+	 */
+	public void process(Consumer<? super T> consumer) {
+		parse(consumer);
 	}
 
 	
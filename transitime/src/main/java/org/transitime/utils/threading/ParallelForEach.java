@@ -0,0 +1,110 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.utils.threading;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * For processing each element of a list using a ForkJoinPool. The list is
+ * recursively split in half until the pieces are no larger than the
+ * threshold, and then the elements of each piece are processed in order.
+ * <p>
+ * The Processor is passed the index of the element so that it can store its
+ * result at that index of an array. This way the results are in the same
+ * order as the list no matter which threads did the processing, which keeps
+ * the output deterministic.
+ */
+public class ParallelForEach<T> extends RecursiveAction {
+
+	private final List<T> list;
+	private final int beginIndex;
+	private final int endIndex;
+	private final int threshold;
+	private final Processor<T> processor;
+
+	private static final long serialVersionUID = -2839187468372052634L;
+
+	/**
+	 * What is to be done with each element of the list. Must be thread safe
+	 * since called from multiple threads.
+	 */
+	public interface Processor<T> {
+		public void process(int index, T element);
+	}
+
+	/********************** Member Functions **************************/
+
+	private ParallelForEach(List<T> list, int beginIndex, int endIndex,
+			int threshold, Processor<T> processor) {
+		this.list = list;
+		this.beginIndex = beginIndex;
+		this.endIndex = endIndex;
+		this.threshold = threshold;
+		this.processor = processor;
+	}
+
+	/**
+	 * Processes each element of the list. Returns once all of the elements
+	 * have been processed.
+	 *
+	 * @param pool
+	 *            The ForkJoinPool to use. If null then the elements are
+	 *            simply processed in order by the calling thread.
+	 * @param list
+	 *            The elements to process. Should support fast random access.
+	 * @param threshold
+	 *            Max number of elements processed sequentially by a single
+	 *            task. Should be large enough so that the overhead of the
+	 *            tasks is insignificant.
+	 * @param processor
+	 *            Called for each element
+	 */
+	public static <T> void process(ForkJoinPool pool, List<T> list,
+			int threshold, Processor<T> processor) {
+		ParallelForEach<T> task = new ParallelForEach<T>(list, 0, list.size(),
+				Math.max(threshold, 1), processor);
+		if (pool == null)
+			task.processSequentially();
+		else
+			pool.invoke(task);
+	}
+
+	private void processSequentially() {
+		for (int i = beginIndex; i < endIndex; ++i)
+			processor.process(i, list.get(i));
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.concurrent.RecursiveAction#compute()
+	 */
+	@Override
+	protected void compute() {
+		if (endIndex - beginIndex <= threshold) {
+			processSequentially();
+		} else {
+			int middleIndex = (beginIndex + endIndex) >>> 1;
+			invokeAll(
+					new ParallelForEach<T>(list, beginIndex, middleIndex,
+							threshold, processor),
+					new ParallelForEach<T>(list, middleIndex, endIndex,
+							threshold, processor));
+		}
+	}
+}
@@ -204,6 +204,22 @@
         primary key (id)
     );
 
+    create table PredictionAccuracyRollup (
+        id bigint not null auto_increment,
+        affectedByWaitStop bit,
+        histogram varchar(2000),
+        hourStart datetime(3),
+        numPredictions integer not null,
+        predictionLengthBucket integer not null,
+        predictionSource varchar(60),
+        routeId varchar(60),
+        routeShortName varchar(60),
+        stopId varchar(60),
+        sumAccuracySecs bigint not null,
+        sumSquaresAccuracySecs double precision not null,
+        primary key (id)
+    );
+
     create table Predictions (
         id bigint not null auto_increment,
         affectedByWaitStop bit,
@@ -240,6 +256,21 @@
         primary key (id, configRev)
     );
 
+    create table ScheduleAdherenceCounts (
+        id bigint not null auto_increment,
+        arrivalDepartureDate date,
+        hourOfDay integer not null,
+        isArrival bit not null,
+        numEarly integer not null,
+        numLate integer not null,
+        numOnTime integer not null,
+        routeId varchar(60),
+        routeShortName varchar(60),
+        stopId varchar(60),
+        sumScheduleAdherenceMsecs bigint not null,
+        primary key (id)
+    );
+
     create table StopPathPredictions (
         id bigint not null auto_increment,
         algorithm varchar(255),
@@ -430,8 +461,12 @@
 
     create index PredictionAccuracyTimeIndex on PredictionAccuracy (arrivalDepartureTime);
 
+    create index PredictionAccuracyRollupHourIndex on PredictionAccuracyRollup (hourStart);
+
     create index PredictionTimeIndex on Predictions (creationTime);
 
+    create index ScheduleAdherenceCountsDateIndex on ScheduleAdherenceCounts (arrivalDepartureDate);
+
     create index StopPathPredictionTimeIndex on StopPathPredictions (creationTime);
 
     create index TravelTimesRevIndex on TravelTimesForTrips (travelTimesRev);
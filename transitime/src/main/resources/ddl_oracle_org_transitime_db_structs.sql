@@ -204,6 +204,22 @@
         primary key (id)
     );
 
+    create table PredictionAccuracyRollup (
+        id number(19,0) not null,
+        affectedByWaitStop number(1,0),
+        histogram varchar2(2000 char),
+        hourStart timestamp,
+        numPredictions number(10,0) not null,
+        predictionLengthBucket number(10,0) not null,
+        predictionSource varchar2(60 char),
+        routeId varchar2(60 char),
+        routeShortName varchar2(60 char),
+        stopId varchar2(60 char),
+        sumAccuracySecs number(19,0) not null,
+        sumSquaresAccuracySecs double precision not null,
+        primary key (id)
+    );
+
     create table Predictions (
         id number(19,0) not null,
         affectedByWaitStop number(1,0),
@@ -240,6 +256,21 @@
         primary key (id, configRev)
     );
 
+    create table ScheduleAdherenceCounts (
+        id number(19,0) not null,
+        arrivalDepartureDate date,
+        hourOfDay number(10,0) not null,
+        isArrival number(1,0) not null,
+        numEarly number(10,0) not null,
+        numLate number(10,0) not null,
+        numOnTime number(10,0) not null,
+        routeId varchar2(60 char),
+        routeShortName varchar2(60 char),
+        stopId varchar2(60 char),
+        sumScheduleAdherenceMsecs number(19,0) not null,
+        primary key (id)
+    );
+
     create table StopPathPredictions (
         id number(19,0) not null,
         algorithm varchar2(255 char),
@@ -430,8 +461,12 @@
 
     create index PredictionAccuracyTimeIndex on PredictionAccuracy (arrivalDepartureTime);
 
+    create index PredictionAccuracyRollupHourIndex on PredictionAccuracyRollup (hourStart);
+
     create index PredictionTimeIndex on Predictions (creationTime);
 
+    create index ScheduleAdherenceCountsDateIndex on ScheduleAdherenceCounts (arrivalDepartureDate);
+
     create index StopPathPredictionTimeIndex on StopPathPredictions (creationTime);
 
     create index TravelTimesRevIndex on TravelTimesForTrips (travelTimesRev);
@@ -204,6 +204,22 @@
         primary key (id)
     );
 
+    create table PredictionAccuracyRollup (
+        id int8 not null,
+        affectedByWaitStop boolean,
+        histogram varchar(2000),
+        hourStart timestamp,
+        numPredictions int4 not null,
+        predictionLengthBucket int4 not null,
+        predictionSource varchar(60),
+        routeId varchar(60),
+        routeShortName varchar(60),
+        stopId varchar(60),
+        sumAccuracySecs int8 not null,
+        sumSquaresAccuracySecs float8 not null,
+        primary key (id)
+    );
+
     create table Predictions (
         id int8 not null,
         affectedByWaitStop boolean,
@@ -240,6 +256,21 @@
         primary key (id, configRev)
     );
 
+    create table ScheduleAdherenceCounts (
+        id int8 not null,
+        arrivalDepartureDate date,
+        hourOfDay int4 not null,
+        isArrival boolean not null,
+        numEarly int4 not null,
+        numLate int4 not null,
+        numOnTime int4 not null,
+        routeId varchar(60),
+        routeShortName varchar(60),
+        stopId varchar(60),
+        sumScheduleAdherenceMsecs int8 not null,
+        primary key (id)
+    );
+
     create table StopPathPredictions (
         id int8 not null,
         algorithm varchar(255),
@@ -430,8 +461,12 @@
 
     create index PredictionAccuracyTimeIndex on PredictionAccuracy (arrivalDepartureTime);
 
+    create index PredictionAccuracyRollupHourIndex on PredictionAccuracyRollup (hourStart);
+
     create index PredictionTimeIndex on Predictions (creationTime);
 
+    create index ScheduleAdherenceCountsDateIndex on ScheduleAdherenceCounts (arrivalDepartureDate);
+
     create index StopPathPredictionTimeIndex on StopPathPredictions (creationTime);
 
     create index TravelTimesRevIndex on TravelTimesForTrips (travelTimesRev);
@@ -17,6 +17,11 @@
 package org.transitime.config;
 
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.TestCase;
 
 import org.transitime.config.ConfigFileReader.ConfigException;
@@ -33,6 +38,53 @@ public class TestAPIKeyManager extends TestCase {
 
 	static String fileName = "transiTimeconfig.xml";
 
+	// The config params are read when ApiKeyManager is loaded. Don't limit
+	// how frequently the keys are read, remember invalid keys for just 1
+	// sec, and don't periodically refresh the keys in a separate thread.
+	static {
+		System.setProperty("transitime.api.apiKeyLastUpdateLimitSec", "0");
+		System.setProperty("transitime.api.invalidApiKeyRecheckSec", "1");
+		System.setProperty("transitime.api.apiKeyRefreshSec", "0");
+	}
+
+	/**
+	 * Uses a list instead of the database for the keys and counts how many
+	 * times the keys are read. Reading can be blocked to simulate a slow
+	 * database.
+	 */
+	private static class TestApiKeyManager extends ApiKeyManager {
+		private final List<ApiKey> apiKeys = new ArrayList<ApiKey>();
+		private final AtomicInteger numReads = new AtomicInteger();
+		private volatile CountDownLatch readBlocker = null;
+
+		@Override
+		public List<ApiKey> getApiKeys() {
+			numReads.incrementAndGet();
+			if (readBlocker != null) {
+				try {
+					readBlocker.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			synchronized (apiKeys) {
+				return new ArrayList<ApiKey>(apiKeys);
+			}
+		}
+
+		@Override
+		protected void storeApiKey(ApiKey apiKey) {
+			addToDb(apiKey.getKey());
+		}
+
+		private void addToDb(String key) {
+			synchronized (apiKeys) {
+				apiKeys.add(new ApiKey("app" + key, key, "http://test",
+						"test@test.com", "12345678", "test"));
+			}
+		}
+	}
+
 	protected void setUp() throws Exception {
 //		super.setUp();
 	}
@@ -45,6 +97,94 @@ public class TestAPIKeyManager extends TestCase {
 	public void testNoOp() {
 	  
 	}
+
+	public void testUnknownKeyThenAdded() throws InterruptedException {
+		TestApiKeyManager manager = new TestApiKeyManager();
+		assertFalse(manager.isKeyValid("key1"));
+		assertEquals(1, manager.numReads.get());
+
+		// Added to the db, such as by another server. Is found once the key
+		// is no longer remembered as being invalid.
+		manager.addToDb("key1");
+		Thread.sleep(1100);
+		assertTrue(manager.isKeyValid("key1"));
+		assertEquals(2, manager.numReads.get());
+
+		// Now in the cache so no more reads
+		assertTrue(manager.isKeyValid("key1"));
+		assertEquals(2, manager.numReads.get());
+	}
+
+	public void testInvalidKeyNotRereadUntilExpired()
+			throws InterruptedException {
+		TestApiKeyManager manager = new TestApiKeyManager();
+		manager.addToDb("key1");
+		assertFalse(manager.isKeyValid("badKey"));
+		assertEquals(1, manager.numReads.get());
+
+		// Repeatedly using the invalid key doesn't cause more reads
+		for (int i = 0; i < 10; ++i)
+			assertFalse(manager.isKeyValid("badKey"));
+		assertEquals(1, manager.numReads.get());
+
+		// A different unknown key still causes a read
+		assertFalse(manager.isKeyValid("otherBadKey"));
+		assertEquals(2, manager.numReads.get());
+
+		// Once the invalid key has expired it causes one more read
+		Thread.sleep(1100);
+		assertFalse(manager.isKeyValid("badKey"));
+		assertEquals(3, manager.numReads.get());
+		assertFalse(manager.isKeyValid("badKey"));
+		assertEquals(3, manager.numReads.get());
+	}
+
+	public void testConcurrentUnknownKeySharesRead()
+			throws InterruptedException {
+		final TestApiKeyManager manager = new TestApiKeyManager();
+		manager.addToDb("key1");
+		manager.readBlocker = new CountDownLatch(1);
+
+		final AtomicInteger numValid = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; ++i) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					if (manager.isKeyValid("key1"))
+						numValid.incrementAndGet();
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+
+		// Only release the read once every thread is waiting for it
+		for (Thread thread : threads) {
+			while (thread.getState() != Thread.State.TIMED_WAITING)
+				Thread.sleep(10);
+		}
+		manager.readBlocker.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(1, manager.numReads.get());
+		assertEquals(threads.size(), numValid.get());
+	}
+
+	public void testGeneratedKeyValidImmediately() {
+		TestApiKeyManager manager = new TestApiKeyManager();
+		assertFalse(manager.isKeyValid("badKey"));
+
+		ApiKey apiKey = manager.generateApiKey("test",
+				"http://127.0.0.1:8080/transitime", "test@test.com",
+				"12345678", "test");
+		int numReads = manager.numReads.get();
+
+		// Valid from the cache without rereading the keys
+		assertTrue(manager.isKeyValid(apiKey.getKey()));
+		assertEquals(numReads, manager.numReads.get());
+	}
 	
 	public void xtestAPIKeyManager() {
 		try {
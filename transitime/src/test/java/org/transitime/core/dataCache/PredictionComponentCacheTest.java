@@ -0,0 +1,151 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.dataCache;
+
+import junit.framework.TestCase;
+
+import org.transitime.utils.Time;
+
+/**
+ * Tests when PredictionComponentCache returns a remembered travel or stop
+ * time and when the value has to be determined again.
+ */
+public class PredictionComponentCacheTest extends TestCase {
+
+	private static final String VEHICLE = "v1";
+	private static final String BLOCK = "block1";
+	private static final String TRIP_PATTERN = "pattern1";
+
+	// Default of transitime.core.predictionComponentsMaxAgeSecs
+	private static final long MAX_AGE_MSEC = 5 * Time.MS_PER_MIN;
+
+	private static final long NOW = 1420088400000L;
+
+	private PredictionComponentCache cache;
+
+	@Override
+	protected void setUp() {
+		cache = new PredictionComponentCache();
+		cache.startGeneration(VEHICLE, BLOCK, 0, 2);
+	}
+
+	/**
+	 * Determines and caches the travel time for the stop path like
+	 * PredictionGeneratorDefaultImpl does
+	 */
+	private void putTravelTime(int stopPathIndex, long travelTime) {
+		long sequence = cache.startDetermining(TRIP_PATTERN, stopPathIndex);
+		cache.doneDetermining();
+		cache.putValue(VEHICLE, BLOCK, 0, stopPathIndex, travelTime,
+				sequence, true, NOW);
+	}
+
+	private Long getTravelTime(int stopPathIndex, long now) {
+		return cache.getValue(VEHICLE, BLOCK, 0, stopPathIndex, TRIP_PATTERN,
+				true, now);
+	}
+
+	public void testHit() {
+		putTravelTime(3, 45000);
+		assertEquals(Long.valueOf(45000), getTravelTime(3, NOW));
+		assertEquals(Long.valueOf(45000), getTravelTime(3, NOW + 1000));
+	}
+
+	public void testMiss() {
+		// Nothing cached yet
+		assertNull(getTravelTime(3, NOW));
+
+		putTravelTime(3, 45000);
+
+		// Different stop path, a stop time instead of a travel time, a
+		// different vehicle, or the vehicle on a different block
+		assertNull(getTravelTime(4, NOW));
+		assertNull(cache.getValue(VEHICLE, BLOCK, 0, 3, TRIP_PATTERN, false,
+				NOW));
+		assertNull(cache.getValue("v2", BLOCK, 0, 3, TRIP_PATTERN, true,
+				NOW));
+		assertNull(cache.getValue(VEHICLE, "block2", 0, 3, TRIP_PATTERN, true,
+				NOW));
+	}
+
+	public void testInvalidate() {
+		putTravelTime(3, 45000);
+		putTravelTime(4, 50000);
+
+		// Such as when another vehicle traverses the stop path
+		cache.invalidateStopPath(TRIP_PATTERN, 3);
+		assertNull(getTravelTime(3, NOW));
+		assertEquals(Long.valueOf(50000), getTravelTime(4, NOW));
+
+		// Determined again after the change so can be used
+		putTravelTime(3, 46000);
+		assertEquals(Long.valueOf(46000), getTravelTime(3, NOW));
+	}
+
+	public void testChangeWhileDetermining() throws InterruptedException {
+		// Another thread changes the data for the stop path while the value
+		// is being determined so the value is out of date
+		long sequence = cache.startDetermining(TRIP_PATTERN, 3);
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				cache.invalidateStopPath(TRIP_PATTERN, 3);
+			}
+		};
+		other.start();
+		other.join();
+		cache.doneDetermining();
+		cache.putValue(VEHICLE, BLOCK, 0, 3, 45000, sequence, true, NOW);
+		assertNull(getTravelTime(3, NOW));
+
+		// A change made by the thread determining the value, such as
+		// storing the Kalman error for the vehicle's own trip, is a result
+		// of determining the value so it doesn't invalidate it
+		sequence = cache.startDetermining(TRIP_PATTERN, 4);
+		cache.invalidateStopPath(TRIP_PATTERN, 4);
+		cache.doneDetermining();
+		cache.putValue(VEHICLE, BLOCK, 0, 4, 50000, sequence, true, NOW);
+		assertEquals(Long.valueOf(50000), getTravelTime(4, NOW));
+	}
+
+	public void testMaxAge() {
+		putTravelTime(3, 45000);
+		assertEquals(Long.valueOf(45000), 
+				getTravelTime(3, NOW + MAX_AGE_MSEC));
+		assertNull(getTravelTime(3, NOW + MAX_AGE_MSEC + 1));
+	}
+
+	public void testStopPathsPassedAreDiscarded() {
+		putTravelTime(3, 45000);
+		putTravelTime(4, 50000);
+
+		cache.startGeneration(VEHICLE, BLOCK, 0, 4);
+		assertNull(getTravelTime(3, NOW));
+		assertEquals(Long.valueOf(50000), getTravelTime(4, NOW));
+
+		// Vehicle assigned to a different block so everything discarded
+		cache.startGeneration(VEHICLE, "block2", 0, 4);
+		cache.startGeneration(VEHICLE, BLOCK, 0, 4);
+		assertNull(getTravelTime(4, NOW));
+	}
+
+	public void testRemoveVehicle() {
+		putTravelTime(3, 45000);
+		cache.removeVehicle(VEHICLE);
+		assertNull(getTravelTime(3, NOW));
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that TripIdInterner assigns a single index per trip ID, even when
+ * called concurrently, and that the trip ID can be retrieved from the index.
+ */
+public class TripIdInternerTest extends TestCase {
+
+	// The interner is a singleton so use trip IDs unique to each test
+	private static String tripId(String test, int i) {
+		return TripIdInternerTest.class.getName() + "-" + test + "-" + i;
+	}
+
+	public void testIndexIsStable() {
+		TripIdInterner interner = TripIdInterner.getInstance();
+		String tripId = tripId("stable", 0);
+		assertEquals(-1, interner.getIndex(tripId));
+
+		int index = interner.getOrCreateIndex(tripId);
+		assertTrue(index >= 0);
+		assertEquals(index, interner.getOrCreateIndex(tripId));
+		assertEquals(index, interner.getIndex(new String(tripId)));
+		assertEquals(tripId, interner.getTripId(index));
+
+		int otherIndex = interner.getOrCreateIndex(tripId("stable", 1));
+		assertTrue(otherIndex != index);
+	}
+
+	public void testGrowsBeyondInitialCapacity() {
+		TripIdInterner interner = TripIdInterner.getInstance();
+		int[] indices = new int[5000];
+		for (int i = 0; i < indices.length; ++i)
+			indices[i] = interner.getOrCreateIndex(tripId("grow", i));
+		for (int i = 0; i < indices.length; ++i)
+			assertEquals(tripId("grow", i), interner.getTripId(indices[i]));
+	}
+
+	public void testConcurrentCreationGivesSingleIndex() throws Exception {
+		final TripIdInterner interner = TripIdInterner.getInstance();
+		final int numTripIds = 2000;
+		final int numThreads = 4;
+		final int[][] indices = new int[numThreads][numTripIds];
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; ++t) {
+			final int threadIndex = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					// Each thread goes through the trip IDs in a different
+					// order so that they race to create the indices
+					List<Integer> order = new ArrayList<Integer>();
+					for (int i = 0; i < numTripIds; ++i)
+						order.add(i);
+					Collections.shuffle(order);
+					for (int i : order)
+						indices[threadIndex][i] = interner.getOrCreateIndex(
+								tripId("concurrent", i));
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		for (int i = 0; i < numTripIds; ++i) {
+			for (int t = 1; t < numThreads; ++t)
+				assertEquals(indices[0][i], indices[t][i]);
+			assertEquals(tripId("concurrent", i),
+					interner.getTripId(indices[0][i]));
+		}
+	}
+}
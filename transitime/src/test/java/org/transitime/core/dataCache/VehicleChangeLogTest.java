@@ -0,0 +1,122 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.dataCache;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.transitime.ipc.data.IpcChanges;
+
+/**
+ * Tests that VehicleChangeLog returns just the changes since a sequence, and
+ * the full dataset when the client's sequence can't be used.
+ */
+public class VehicleChangeLogTest extends TestCase {
+
+	public void testFirstCallReturnsFullDataset() {
+		VehicleChangeLog<String> log = new VehicleChangeLog<String>();
+		log.update("v1", "a");
+		log.update("v2", "b");
+
+		IpcChanges<String> changes = log.getChangesSince(0, 0);
+		assertTrue(changes.isFullDataset());
+		assertEquals(2, changes.getSequence());
+		Map<String, String> byVehicle = changes.getChangesByVehicle();
+		assertEquals(2, byVehicle.size());
+		assertEquals("a", byVehicle.get("v1"));
+		assertEquals("b", byVehicle.get("v2"));
+	}
+
+	public void testDeltaContainsOnlyChangedVehicles() {
+		VehicleChangeLog<String> log = new VehicleChangeLog<String>();
+		log.update("v1", "a");
+		log.update("v2", "b");
+		IpcChanges<String> first = log.getChangesSince(0, 0);
+
+		log.update("v2", "b2");
+		log.update("v3", "c");
+		log.update("v3", "c2");
+
+		IpcChanges<String> delta =
+				log.getChangesSince(first.getEpoch(), first.getSequence());
+		assertFalse(delta.isFullDataset());
+		assertEquals(first.getEpoch(), delta.getEpoch());
+		assertEquals(5, delta.getSequence());
+		Map<String, String> byVehicle = delta.getChangesByVehicle();
+		assertEquals(2, byVehicle.size());
+		assertEquals("b2", byVehicle.get("v2"));
+		assertEquals("c2", byVehicle.get("v3"));
+
+		// Nothing changed since the latest sequence
+		IpcChanges<String> none =
+				log.getChangesSince(delta.getEpoch(), delta.getSequence());
+		assertFalse(none.isFullDataset());
+		assertTrue(none.getChangesByVehicle().isEmpty());
+	}
+
+	public void testRemovalIsReportedAsNull() {
+		VehicleChangeLog<String> log = new VehicleChangeLog<String>();
+		log.update("v1", "a");
+		log.update("v2", "b");
+		IpcChanges<String> first = log.getChangesSince(0, 0);
+
+		log.update("v1", null);
+		// Removing a vehicle that isn't there is not a change
+		log.update("v9", null);
+
+		IpcChanges<String> delta =
+				log.getChangesSince(first.getEpoch(), first.getSequence());
+		assertFalse(delta.isFullDataset());
+		assertEquals(3, delta.getSequence());
+		Map<String, String> byVehicle = delta.getChangesByVehicle();
+		assertEquals(1, byVehicle.size());
+		assertTrue(byVehicle.containsKey("v1"));
+		assertNull(byVehicle.get("v1"));
+
+		// A full dataset doesn't include removed vehicles
+		IpcChanges<String> full = log.getChangesSince(0, 0);
+		assertTrue(full.isFullDataset());
+		assertEquals(1, full.getChangesByVehicle().size());
+		assertEquals("b", full.getChangesByVehicle().get("v2"));
+
+		// Vehicle that comes back after being removed
+		log.update("v1", "a2");
+		IpcChanges<String> readded =
+				log.getChangesSince(delta.getEpoch(), delta.getSequence());
+		assertEquals("a2", readded.getChangesByVehicle().get("v1"));
+	}
+
+	public void testWrongEpochOrSequenceReturnsFullDataset() {
+		VehicleChangeLog<String> log = new VehicleChangeLog<String>();
+		log.update("v1", "a");
+		IpcChanges<String> first = log.getChangesSince(0, 0);
+		log.update("v2", "b");
+
+		// Epoch from a previous run of the core
+		IpcChanges<String> otherEpoch =
+				log.getChangesSince(first.getEpoch() - 1, first.getSequence());
+		assertTrue(otherEpoch.isFullDataset());
+		assertEquals(2, otherEpoch.getChangesByVehicle().size());
+
+		// Sequence newer than any change
+		IpcChanges<String> future =
+				log.getChangesSince(first.getEpoch(), 100);
+		assertTrue(future.isFullDataset());
+		assertEquals(2, future.getChangesByVehicle().size());
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.predAccuracy;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import org.transitime.db.structs.PredictionAccuracyRollup;
+import org.transitime.utils.Time;
+
+/**
+ * Tests that PredictionAccuracyRollups buckets by the hour of the agency
+ * time zone and writes out only the hours that are over, unless flushing
+ * everything.
+ */
+public class PredictionAccuracyRollupsTest extends TestCase {
+
+	private static long parse(String dateStr, TimeZone timezone)
+			throws ParseException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		format.setTimeZone(timezone);
+		return format.parse(dateStr).getTime();
+	}
+
+	@Override
+	protected void setUp() {
+		// The histograms are static so start each test with none
+		PredictionAccuracyRollups.removeHoursBefore(Long.MAX_VALUE);
+	}
+
+	public void testHourStartWholeHourOffset() throws ParseException {
+		TimeZone timezone = TimeZone.getTimeZone("America/Los_Angeles");
+		assertEquals(parse("2015-03-10 14:00", timezone),
+				PredictionAccuracyRollups.getHourStart(
+						parse("2015-03-10 14:59", timezone), timezone));
+		assertEquals(parse("2015-03-10 14:00", timezone),
+				PredictionAccuracyRollups.getHourStart(
+						parse("2015-03-10 14:00", timezone), timezone));
+	}
+
+	public void testHourStartHalfHourOffset() throws ParseException {
+		// Truncating in UTC would give 10:30 and 14:30 local time
+		TimeZone india = TimeZone.getTimeZone("Asia/Kolkata");
+		assertEquals(parse("2015-03-10 10:00", india),
+				PredictionAccuracyRollups.getHourStart(
+						parse("2015-03-10 10:15", india), india));
+
+		TimeZone newfoundland = TimeZone.getTimeZone("America/St_Johns");
+		assertEquals(parse("2015-03-10 14:00", newfoundland),
+				PredictionAccuracyRollups.getHourStart(
+						parse("2015-03-10 14:45", newfoundland), newfoundland));
+	}
+
+	public void testHourStartDaylightSavingsDay() throws ParseException {
+		// Clocks went forward at 2am on 2015-03-08
+		TimeZone timezone = TimeZone.getTimeZone("America/St_Johns");
+		assertEquals(parse("2015-03-08 03:00", timezone),
+				PredictionAccuracyRollups.getHourStart(
+						parse("2015-03-08 03:20", timezone), timezone));
+		assertEquals(parse("2015-03-08 01:00", timezone),
+				PredictionAccuracyRollups.getHourStart(
+						parse("2015-03-08 01:59", timezone), timezone));
+	}
+
+	public void testOnlyCompletedHoursRemoved() {
+		long hour1 = 1420088400000L;
+		long hour2 = hour1 + Time.MS_PER_HOUR;
+		PredictionAccuracyRollups.add(hour1, "r1", "1", "s1", 2, "Transitime",
+				false, 10);
+		PredictionAccuracyRollups.add(hour1, "r1", "1", "s1", 2, "Transitime",
+				false, 10);
+		PredictionAccuracyRollups.add(hour1, "r1", "1", "s1", 2, "Transitime",
+				false, -20);
+		PredictionAccuracyRollups.add(hour1, "r1", "1", "s2", 2, "Transitime",
+				false, 5);
+		PredictionAccuracyRollups.add(hour2, "r1", "1", "s1", 2, "Transitime",
+				false, 30);
+
+		// The current hour is hour2 so only the rollups for hour1 are done
+		List<PredictionAccuracyRollup> rollups =
+				PredictionAccuracyRollups.removeHoursBefore(hour2);
+		assertEquals(2, rollups.size());
+		for (PredictionAccuracyRollup rollup : rollups) {
+			assertEquals(hour1, rollup.getHourStart().getTime());
+			if (rollup.getStopId().equals("s1")) {
+				assertEquals(3, rollup.getNumPredictions());
+				assertEquals(0, rollup.getSumAccuracySecs());
+				assertEquals(2, (int) rollup.getHistogram().get(10));
+				assertEquals(1, (int) rollup.getHistogram().get(-20));
+			} else {
+				assertEquals("s2", rollup.getStopId());
+				assertEquals(1, rollup.getNumPredictions());
+			}
+		}
+
+		// Already removed so not written twice
+		assertTrue(PredictionAccuracyRollups.removeHoursBefore(hour2)
+				.isEmpty());
+
+		// Flushing everything, such as at shutdown, includes the current
+		// hour
+		rollups = PredictionAccuracyRollups.removeHoursBefore(Long.MAX_VALUE);
+		assertEquals(1, rollups.size());
+		assertEquals(hour2, rollups.get(0).getHourStart().getTime());
+		assertEquals(30, rollups.get(0).getSumAccuracySecs());
+		assertTrue(PredictionAccuracyRollups.removeHoursBefore(Long.MAX_VALUE)
+				.isEmpty());
+	}
+
+	public void testFullHistogramReturnedRightAway() {
+		long hour = 1420088400000L;
+		for (int i = 0; i < PredictionAccuracyRollup.MAX_HISTOGRAM_ENTRIES - 1;
+				++i)
+			assertNull(PredictionAccuracyRollups.add(hour, "r1", "1", "s1", 2,
+					"Transitime", null, i));
+
+		PredictionAccuracyRollup rollup = PredictionAccuracyRollups.add(hour,
+				"r1", "1", "s1", 2, "Transitime", null, 1000);
+		assertNotNull(rollup);
+		assertEquals(PredictionAccuracyRollup.MAX_HISTOGRAM_ENTRIES,
+				rollup.getNumPredictions());
+
+		// A new histogram is started for the key
+		assertNull(PredictionAccuracyRollups.add(hour, "r1", "1", "s1", 2,
+				"Transitime", null, 5));
+		assertEquals(1, PredictionAccuracyRollups
+				.removeHoursBefore(Long.MAX_VALUE).get(0).getNumPredictions());
+	}
+}
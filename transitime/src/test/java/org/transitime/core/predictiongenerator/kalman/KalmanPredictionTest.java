@@ -0,0 +1,99 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.predictiongenerator.kalman;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the allocation free version of KalmanPrediction.predict() gives
+ * the same results as the original one that works on TripSegments.
+ */
+public class KalmanPredictionTest extends TestCase {
+
+	private static final Vehicle VEHICLE = new Vehicle("RIY 30");
+
+	private static TripSegment segment(long duration) {
+		VehicleStopDetail origin = new VehicleStopDetail(null, 0, VEHICLE);
+		VehicleStopDetail destination =
+				new VehicleStopDetail(null, duration, VEHICLE);
+		return new TripSegment(origin, destination);
+	}
+
+	public void testKnownPrediction() {
+		double[] historical = {380, 420, 400};
+		double[] result = new double[KalmanPrediction.RESULT_SIZE];
+		KalmanPrediction.predict(300, historical, historical.length, 72.40,
+				result);
+
+		// Same values as checked by KalmanPrediction.main()
+		double prediction = result[KalmanPrediction.RESULT_PREDICTION];
+		double filterError = result[KalmanPrediction.RESULT_FILTER_ERROR];
+		assertTrue("prediction " + prediction,
+				prediction > 355 && prediction < 356);
+		assertTrue("filter error " + filterError,
+				filterError > 149 && filterError < 150);
+	}
+
+	public void testSameAsTripSegmentPredict() throws Exception {
+		long[] durations = {61000, 59000, 75000};
+		TripSegment[] segments = new TripSegment[durations.length];
+		double[] historical = new double[durations.length];
+		for (int i = 0; i < durations.length; ++i) {
+			segments[i] = segment(durations[i]);
+			historical[i] = durations[i];
+		}
+
+		KalmanPredictionResult expected = new KalmanPrediction().predict(
+				segment(64000), segments, 100);
+		double[] result = new double[KalmanPrediction.RESULT_SIZE];
+		KalmanPrediction.predict(64000, historical, historical.length, 100,
+				result);
+
+		assertEquals(expected.getResult(),
+				result[KalmanPrediction.RESULT_PREDICTION], 0.0);
+		assertEquals(expected.getFilterError(),
+				result[KalmanPrediction.RESULT_FILTER_ERROR], 0.0);
+	}
+
+	public void testOnlyCountValuesUsed() {
+		// The historical array is a scratch array that can be larger than
+		// the number of values found
+		double[] historical = {380, 420, 400, 99999, -1};
+		double[] result = new double[KalmanPrediction.RESULT_SIZE];
+		KalmanPrediction.predict(300, historical, 3, 72.40, result);
+
+		double[] exact = {380, 420, 400};
+		double[] exactResult = new double[KalmanPrediction.RESULT_SIZE];
+		KalmanPrediction.predict(300, exact, exact.length, 72.40,
+				exactResult);
+
+		assertEquals(exactResult[KalmanPrediction.RESULT_PREDICTION],
+				result[KalmanPrediction.RESULT_PREDICTION], 0.0);
+		assertEquals(exactResult[KalmanPrediction.RESULT_FILTER_ERROR],
+				result[KalmanPrediction.RESULT_FILTER_ERROR], 0.0);
+	}
+
+	public void testNoHistoricalValues() {
+		try {
+			KalmanPrediction.predict(300, new double[3], 0, 72.40,
+					new double[KalmanPrediction.RESULT_SIZE]);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
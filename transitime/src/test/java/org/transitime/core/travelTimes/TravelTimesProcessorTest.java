@@ -0,0 +1,190 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.core.travelTimes;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+import org.transitime.core.travelTimes.DataFetcher.DbDataMapKey;
+import org.transitime.db.structs.ArrivalDeparture;
+import org.transitime.db.structs.Match;
+import org.transitime.utils.Time;
+
+/**
+ * Tests that processing the trips in parallel with multiple threads results
+ * in the same stop and travel times as processing them in a single thread.
+ * The arrivals/departures are created without a db or trip configuration,
+ * which is all that the parallel processing has access to.
+ */
+public class TravelTimesProcessorTest extends TestCase {
+
+	private static final int NUM_VEHICLE_TRIPS = 200;
+	private static final int NUM_TRIP_IDS = 10;
+	private static final int NUM_STOPS = 5;
+
+	// Short enough to be a single travel time segment so that no matches
+	// are needed
+	private static final float STOP_PATH_LENGTH = 100.0f;
+
+	private static final long START_TIME = 1420088400000L;
+
+	/**
+	 * An arrival/departure with just the members used when processing trips
+	 */
+	private static class TestArrivalDeparture extends ArrivalDeparture {
+		private static final long serialVersionUID = 1L;
+
+		private TestArrivalDeparture(String vehicleId, String tripId,
+				int stopPathIndex, boolean isArrival, long time) {
+			set("vehicleId", vehicleId);
+			set("tripId", tripId);
+			set("serviceId", "weekday");
+			set("stopId", "stop" + stopPathIndex);
+			set("stopPathIndex", stopPathIndex);
+			set("stopPathLength", STOP_PATH_LENGTH);
+			set("isArrival", isArrival);
+			set("time", new Date(time));
+		}
+
+		private void set(String name, Object value) {
+			try {
+				Field field = ArrivalDeparture.class.getDeclaredField(name);
+				field.setAccessible(true);
+				field.set(this, value);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static long dwellTimeMsec(int vehicleTrip) {
+		return 20 * Time.MS_PER_SEC + (vehicleTrip % 7) * Time.MS_PER_SEC;
+	}
+
+	private static long travelTimeMsec(int vehicleTrip) {
+		return Time.MS_PER_MIN + (vehicleTrip % 11) * Time.MS_PER_SEC;
+	}
+
+	/**
+	 * Creates the arrivals/departures for the vehicle trips. There are
+	 * several vehicle trips for each trip ID so that the threads add to the
+	 * same entries of the maps.
+	 */
+	private static DataFetcher createDataFetcher(String tripIdPrefix) {
+		DataFetcher dataFetcher = 
+				new DataFetcher(TimeZone.getTimeZone("America/New_York"));
+		Map<DbDataMapKey, List<ArrivalDeparture>> arrivalDepartureMap =
+				new HashMap<DbDataMapKey, List<ArrivalDeparture>>();
+		for (int vehicleTrip = 0; vehicleTrip < NUM_VEHICLE_TRIPS; 
+				++vehicleTrip) {
+			String vehicleId = "v" + vehicleTrip;
+			String tripId = tripIdPrefix + (vehicleTrip % NUM_TRIP_IDS);
+			List<ArrivalDeparture> arrDeps = new ArrayList<ArrivalDeparture>();
+			long time = START_TIME;
+			// Start at stop path 1 since the first stop of a trip is handled
+			// using the scheduled times
+			for (int stopPathIndex = 1; stopPathIndex <= NUM_STOPS; 
+					++stopPathIndex) {
+				if (stopPathIndex > 1) {
+					time += travelTimeMsec(vehicleTrip);
+					arrDeps.add(new TestArrivalDeparture(vehicleId, tripId,
+							stopPathIndex, true, time));
+				}
+				time += dwellTimeMsec(vehicleTrip);
+				arrDeps.add(new TestArrivalDeparture(vehicleId, tripId,
+						stopPathIndex, false, time));
+			}
+			arrivalDepartureMap.put(dataFetcher.getKey("weekday", 
+					new Date(START_TIME), tripId, vehicleId), arrDeps);
+		}
+		dataFetcher.setData(arrivalDepartureMap,
+				new HashMap<DbDataMapKey, List<Match>>());
+		return dataFetcher;
+	}
+
+	private static List<Integer> sorted(List<Integer> list) {
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * Checks that the stop and travel times for each trip ID have an entry
+	 * per vehicle trip with the expected values
+	 */
+	private static void checkTimes(String tripIdPrefix) {
+		for (int t = 0; t < NUM_TRIP_IDS; ++t) {
+			String tripId = tripIdPrefix + t;
+			List<Integer> expectedStopTimes = new ArrayList<Integer>();
+			List<Integer> expectedTravelTimes = new ArrayList<Integer>();
+			for (int vehicleTrip = t; vehicleTrip < NUM_VEHICLE_TRIPS; 
+					vehicleTrip += NUM_TRIP_IDS) {
+				expectedStopTimes.add((int) dwellTimeMsec(vehicleTrip));
+				expectedTravelTimes.add((int) travelTimeMsec(vehicleTrip));
+			}
+
+			for (int stopPathIndex = 2; stopPathIndex <= NUM_STOPS; 
+					++stopPathIndex) {
+				String stopId = "stop" + stopPathIndex;
+				List<Integer> stopTimes = TravelTimesProcessor.getStopTimes(
+						tripId, stopPathIndex, stopId);
+				assertNotNull(tripId + " " + stopId, stopTimes);
+				assertEquals(tripId + " " + stopId, 
+						sorted(expectedStopTimes), sorted(stopTimes));
+
+				List<List<Integer>> travelTimes = 
+						TravelTimesProcessor.getTravelTimes(tripId, 
+								stopPathIndex, stopId);
+				assertNotNull(tripId + " " + stopId, travelTimes);
+				List<Integer> travelTimesForStopPath = new ArrayList<Integer>();
+				for (List<Integer> travelTimesForTrip : travelTimes) {
+					// Single travel time segment per stop path
+					assertEquals(1, travelTimesForTrip.size());
+					travelTimesForStopPath.add(travelTimesForTrip.get(0));
+				}
+				assertEquals(tripId + " " + stopId, 
+						sorted(expectedTravelTimes), 
+						sorted(travelTimesForStopPath));
+			}
+		}
+	}
+
+	public void testSingleThread() {
+		new TravelTimesProcessor().processTrips(
+				createDataFetcher("single"), null);
+		checkTimes("single");
+	}
+
+	public void testMultipleThreads() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			new TravelTimesProcessor().processTrips(
+					createDataFetcher("parallel"), pool);
+		} finally {
+			pool.shutdown();
+		}
+		checkTimes("parallel");
+	}
+}
@@ -0,0 +1,479 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.ipc.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.transitime.core.BlockAssignmentMethod;
+import org.transitime.db.structs.AvlReport.AssignmentType;
+import org.transitime.ipc.data.CompactInput;
+import org.transitime.ipc.data.CompactOutput;
+import org.transitime.ipc.data.IpcOccupancyStatus;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitime.ipc.data.IpcVehicleComplete;
+
+/**
+ * Tests encoding and decoding of the values sent by the socket IPC transport,
+ * both directly and as frames sent through a FrameChannel.
+ */
+public class IpcCodecTest extends TestCase {
+
+	private static final long TIME = 1500000000000L;
+
+	private static Object roundTrip(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IpcCodec.write(new DataOutputStream(bytes), value);
+		return IpcCodec.read(new DataInputStream(new ByteArrayInputStream(
+				bytes.toByteArray())));
+	}
+
+	private static Object read(byte[] bytes) throws IOException {
+		return IpcCodec.read(new DataInputStream(
+				new ByteArrayInputStream(bytes)));
+	}
+
+	private static byte[] encode(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		IpcCodec.write(new DataOutputStream(bytes), value);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] serialize(Object value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws Exception {
+		return new ObjectInputStream(new ByteArrayInputStream(bytes))
+				.readObject();
+	}
+
+	private static CompactInput compactInput(ByteArrayOutputStream bytes) {
+		return new CompactInput(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+	/**
+	 * Writes the fields of a prediction in the order used by
+	 * IpcPrediction.writeCompact() since the class can only otherwise be
+	 * created from core objects.
+	 */
+	private static void writePrediction(CompactOutput out, String vehicleId,
+			String stopId, long predictionTime, Integer delay)
+			throws IOException {
+		out.writeString(vehicleId);
+		out.writeString("route1");
+		out.writeString(stopId);
+		out.writeInt(7); // gtfsStopSeq
+		out.writeString("trip_" + vehicleId);
+		out.writeString("pattern1");
+		out.writeString("block_" + vehicleId);
+		out.writeLong(predictionTime);
+		out.writeBoolean(false); // atEndOfTrip
+		out.writeBoolean(false); // schedBasedPred
+		out.writeLong(TIME); // avlTime
+		out.writeLong(TIME + 500); // creationTime
+		out.writeLong(TIME - 600000); // tripStartEpochTime
+		out.writeBoolean(true); // affectedByWaitStop
+		out.writeString(null); // driverId
+		out.writeShort(12); // passengerCount
+		out.writeFloat(0.5f); // passengerFullness
+		out.writeBoolean(true); // isArrival
+		out.writeBoolean(false); // isDelayed
+		out.writeBoolean(false); // lateAndSubsequentTripSoMarkAsUncertain
+		out.writeInteger(delay);
+		out.writeEnum(delay != null ?
+				IpcOccupancyStatus.FEW_SEATS_AVAILABLE : null);
+	}
+
+	private static IpcPrediction prediction(String vehicleId, String stopId,
+			long predictionTime, Integer delay) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writePrediction(new CompactOutput(bytes), vehicleId, stopId,
+				predictionTime, delay);
+		return IpcPrediction.readCompact(compactInput(bytes));
+	}
+
+	private static IpcPredictionsForRouteStopDest predictionsForStop(
+			int numPredictions) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CompactOutput out = new CompactOutput(bytes);
+		out.writeString("route1");
+		out.writeString("1");
+		out.writeString("1 - Downtown");
+		out.writeInt(3); // routeOrder
+		out.writeString("stop1");
+		out.writeString("Main St & 1st Ave");
+		out.writeInteger(null); // stopCode
+		out.writeString("Downtown");
+		out.writeString("0");
+		out.writeDouble(Double.NaN); // distanceToStop
+		out.writeSize(numPredictions);
+		for (int i = 0; i < numPredictions; ++i)
+			writePrediction(out, "vehicle" + i, "stop1", TIME + i * 60000,
+					i % 2 == 0 ? null : i * 1000);
+		return IpcPredictionsForRouteStopDest.readCompact(compactInput(bytes));
+	}
+
+	/**
+	 * Writes the fields of a vehicle in the order used by
+	 * IpcVehicleComplete.writeCompact().
+	 */
+	private static IpcVehicleComplete vehicle(String vehicleId,
+			Integer schedAdhMsec) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CompactOutput out = new CompactOutput(bytes);
+		out.writeString("block_" + vehicleId);
+		out.writeEnum(BlockAssignmentMethod.AVL_FEED_BLOCK_ASSIGNMENT);
+		out.writeBoolean(true); // has avl
+		out.writeString(vehicleId);
+		out.writeLong(TIME);
+		out.writeFloat(37.8f);
+		out.writeFloat(-122.4f);
+		out.writeFloat(Float.NaN); // speed
+		out.writeFloat(90f);
+		out.writeString("GTFS-rt");
+		out.writeString("block_" + vehicleId);
+		out.writeEnum(AssignmentType.BLOCK_ID);
+		out.writeString(null); // driverId
+		out.writeString(null); // licensePlate
+		out.writeInt(-1); // passengerCount
+		out.writeEnum(null); // occupancyStatus
+		out.writeFloat(91f); // heading
+		out.writeString("route1");
+		out.writeString("1");
+		out.writeString("1 - Downtown");
+		out.writeString("trip_" + vehicleId);
+		out.writeString("pattern1");
+		out.writeString("0");
+		out.writeString("Downtown");
+		out.writeBoolean(true); // predictable
+		out.writeBoolean(false); // schedBasedPred
+		out.writeInteger(schedAdhMsec);
+		out.writeBoolean(false); // isDelayed
+		out.writeBoolean(false); // isLayover
+		out.writeLong(0); // layoverDepartureTime
+		out.writeString("stop1");
+		out.writeString("Main St & 1st Ave");
+		out.writeString("3");
+		out.writeDouble(37.81);
+		out.writeDouble(-122.41);
+		out.writeBoolean(false); // atStop
+		out.writeString("stop1");
+		out.writeInteger(7); // atOrNextGtfsStopSeq
+		out.writeLong(TIME - 600000);
+		out.writeString("stop0");
+		out.writeString("Downtown");
+		out.writeDouble(120.5);
+		out.writeDouble(1500.0);
+		out.writeDouble(1379.5);
+		out.writeEnum(IpcOccupancyStatus.MANY_SEATS_AVAILABLE);
+		return IpcVehicleComplete.readCompact(compactInput(bytes));
+	}
+
+	/**
+	 * Makes sure that the value written directly decodes to the same value,
+	 * that encoding the decoded value again gives the same bytes, and that
+	 * the value matches what Java serialization, and therefore the RMI
+	 * transport, would return.
+	 */
+	private static Object assertDirectRoundTrip(Object value) throws Exception {
+		byte[] bytes = encode(value);
+		Object decoded = read(bytes);
+		assertEquals(value.getClass(), decoded.getClass());
+		assertEquals(value.toString(), decoded.toString());
+		assertTrue(Arrays.equals(bytes, encode(decoded)));
+		assertEquals(deserialize(serialize(value)).toString(),
+				decoded.toString());
+		return decoded;
+	}
+
+	public void testDirectlyEncodedValues() throws Exception {
+		assertNull(roundTrip(null));
+		assertEquals(Boolean.TRUE, roundTrip(true));
+		assertEquals(Boolean.FALSE, roundTrip(false));
+		assertEquals(Integer.valueOf(-7), roundTrip(-7));
+		assertEquals(Long.valueOf(1L << 40), roundTrip(1L << 40));
+		assertEquals(Double.valueOf(2.5), roundTrip(2.5));
+		assertEquals("", roundTrip(""));
+		assertEquals("stop é中", roundTrip("stop é中"));
+
+		List<Object> list = new ArrayList<Object>();
+		list.add(1);
+		list.add("x");
+		list.add(null);
+		list.add(Arrays.asList(2L, 3.0));
+		assertEquals(list, roundTrip(list));
+	}
+
+	public void testSerializedValues() throws Exception {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("a", Arrays.asList(1L, 2.0));
+		assertEquals(map, roundTrip(map));
+
+		assertEquals(new Date(5), roundTrip(new Date(5)));
+
+		Object exception = roundTrip(new IOException("boom"));
+		assertTrue(exception instanceof IOException);
+		assertEquals("boom", ((IOException) exception).getMessage());
+	}
+
+	public void testPredictionsEncodedDirectly() throws Exception {
+		IpcPrediction prediction = prediction("vehicle1", "stop1", TIME, 30000);
+		assertEquals(30000, (int) ((IpcPrediction)
+				assertDirectRoundTrip(prediction)).getDelay());
+		assertNull(((IpcPrediction) assertDirectRoundTrip(
+				prediction("vehicle2", "stop2", TIME, null))).getDelay());
+
+		IpcPredictionsForRouteStopDest predsForStop = predictionsForStop(5);
+		IpcPredictionsForRouteStopDest decoded =
+				(IpcPredictionsForRouteStopDest) assertDirectRoundTrip(
+						predsForStop);
+		assertNull(decoded.getStopCode());
+		assertEquals(5, decoded.getPredictionsForRouteStop().size());
+		assertEquals(predsForStop.getPredictionsForRouteStop().toString(),
+				decoded.getPredictionsForRouteStop().toString());
+		assertDirectRoundTrip(predictionsForStop(0));
+
+		// List of them as returned by PredictionsInterface
+		List<IpcPredictionsForRouteStopDest> list =
+				new ArrayList<IpcPredictionsForRouteStopDest>();
+		list.add(predsForStop);
+		list.add(predictionsForStop(2));
+		assertEquals(list.toString(), roundTrip(list).toString());
+	}
+
+	public void testVehiclesEncodedDirectly() throws Exception {
+		IpcVehicleComplete decoded = (IpcVehicleComplete)
+				assertDirectRoundTrip(vehicle("vehicle1", -45000));
+		assertEquals("vehicle1", decoded.getId());
+		assertEquals(-45000, decoded.getRealTimeSchedAdh()
+				.getTemporalDifference());
+		assertEquals(AssignmentType.BLOCK_ID,
+				decoded.getAvl().getAssignmentType());
+
+		decoded = (IpcVehicleComplete) assertDirectRoundTrip(
+				vehicle("vehicle2", null));
+		assertNull(decoded.getRealTimeSchedAdh());
+
+		List<IpcVehicleComplete> list = new ArrayList<IpcVehicleComplete>();
+		for (int i = 0; i < 10; ++i)
+			list.add(vehicle("vehicle" + i, i * 1000));
+		assertEquals(list.toString(), roundTrip(list).toString());
+	}
+
+	public void testDirectEncodingSmallerThanSerialization()
+			throws Exception {
+		// No class descriptors are written and the IDs shared by the
+		// predictions are only written once
+		IpcPredictionsForRouteStopDest predsForStop = predictionsForStop(20);
+		assertTrue(encode(predsForStop).length
+				< serialize(predsForStop).length);
+
+		List<IpcVehicleComplete> vehicles =
+				new ArrayList<IpcVehicleComplete>();
+		for (int i = 0; i < 100; ++i)
+			vehicles.add(vehicle("vehicle" + i, i * 1000));
+		assertTrue(encode(vehicles).length
+				< serialize(new ArrayList<IpcVehicleComplete>(vehicles))
+						.length);
+	}
+
+	public void testInvalidCompactDataRejected() throws Exception {
+		// Prediction whose first string refers to a string not yet read
+		try {
+			read(new byte[] {10, 5});
+			fail("Invalid string index should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// Predictions for a stop claiming more predictions than there are
+		// bytes
+		byte[] bytes = encode(predictionsForStop(1));
+		ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+		CompactOutput out = new CompactOutput(truncated);
+		out.write(bytes, 0, bytes.length - 1);
+		try {
+			read(truncated.toByteArray());
+			fail("Truncated data should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// Vehicle with a block assignment method that doesn't exist
+		ByteArrayOutputStream badEnum = new ByteArrayOutputStream();
+		out = new CompactOutput(badEnum);
+		out.writeByte(9);
+		out.writeString("block1");
+		out.writeString("NOT_A_METHOD");
+		try {
+			read(badEnum.toByteArray());
+			fail("Invalid enum value should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testClassNotInContractsRejected() throws Exception {
+		try {
+			roundTrip(new HashSet<String>(Arrays.asList("a")));
+			fail("HashSet should not be deserialized");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testInvalidLengthsRejected() throws Exception {
+		// List claiming more elements than there are bytes
+		try {
+			read(new byte[] {7, 0x7f, 0, 0, 0});
+			fail("List length larger than data should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// String with a negative length
+		try {
+			read(new byte[] {6, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+					(byte) 0xfe});
+			fail("Negative string length should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// Unknown type tag
+		try {
+			read(new byte[] {99});
+			fail("Invalid type tag should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testDeeplyNestedListRejected() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int i = 0; i < 100; ++i) {
+			out.writeByte(7);
+			out.writeInt(1);
+		}
+		out.writeByte(0);
+		try {
+			read(bytes.toByteArray());
+			fail("Deeply nested lists should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testFrameChannelRoundTrip() throws Exception {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		SocketChannel clientChannel = null;
+		SocketChannel serverChannel = null;
+		try {
+			server.socket().bind(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), 0));
+			clientChannel = SocketChannel.open(server.socket()
+					.getLocalSocketAddress());
+			serverChannel = server.accept();
+			FrameChannel client = new FrameChannel(clientChannel);
+			FrameChannel serverSide = new FrameChannel(serverChannel);
+
+			List<Object> args = new ArrayList<Object>();
+			args.add("agency");
+			args.add(42);
+			FrameChannel.FrameBuilder request =
+					new FrameChannel.FrameBuilder(17L);
+			IpcCodec.writeString(request.getBody(), "getVehicles");
+			IpcCodec.write(request.getBody(), args);
+			client.writeFrame(request);
+
+			FrameChannel.Frame received = serverSide.readFrame();
+			assertEquals(17L, received.getRequestId());
+			DataInputStream body = received.getBody();
+			assertEquals("getVehicles", IpcCodec.readString(body));
+			assertEquals(args, IpcCodec.read(body));
+			assertEquals(-1, body.read());
+
+			// Empty body
+			serverSide.writeFrame(new FrameChannel.FrameBuilder(18L));
+			FrameChannel.Frame response = client.readFrame();
+			assertEquals(18L, response.getRequestId());
+			assertEquals(-1, response.getBody().read());
+		} finally {
+			if (clientChannel != null)
+				clientChannel.close();
+			if (serverChannel != null)
+				serverChannel.close();
+			server.close();
+		}
+	}
+
+	public void testInvalidFrameLengthRejected() throws Exception {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		SocketChannel clientChannel = null;
+		SocketChannel serverChannel = null;
+		try {
+			server.socket().bind(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), 0));
+			clientChannel = SocketChannel.open(server.socket()
+					.getLocalSocketAddress());
+			serverChannel = server.accept();
+
+			// Header with a negative length
+			clientChannel.write(ByteBuffer.wrap(new byte[] {
+					(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+					0, 0, 0, 0, 0, 0, 0, 1}));
+			try {
+				new FrameChannel(serverChannel).readFrame();
+				fail("Negative frame length should be rejected");
+			} catch (IOException e) {
+				// expected
+			}
+		} finally {
+			if (clientChannel != null)
+				clientChannel.close();
+			if (serverChannel != null)
+				serverChannel.close();
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.utils.threading;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that ParallelForEach processes each element exactly once, with the
+ * index of the element, whether or not a pool is used.
+ */
+public class ParallelForEachTest extends TestCase {
+
+	private static List<Integer> createList(int size) {
+		List<Integer> list = new ArrayList<Integer>(size);
+		for (int i = 0; i < size; ++i)
+			list.add(i * 10);
+		return list;
+	}
+
+	private static void checkProcessedOnce(ForkJoinPool pool, int size,
+			int threshold) {
+		List<Integer> list = createList(size);
+		final AtomicIntegerArray timesProcessed = new AtomicIntegerArray(size);
+		final int[] results = new int[size];
+		ParallelForEach.process(pool, list, threshold,
+				new ParallelForEach.Processor<Integer>() {
+					@Override
+					public void process(int index, Integer element) {
+						timesProcessed.incrementAndGet(index);
+						results[index] = element + 1;
+					}
+				});
+
+		for (int i = 0; i < size; ++i) {
+			assertEquals("index " + i, 1, timesProcessed.get(i));
+			assertEquals(i * 10 + 1, results[i]);
+		}
+	}
+
+	public void testWithPool() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			checkProcessedOnce(pool, 1000, 7);
+			checkProcessedOnce(pool, 1000, 1000);
+			checkProcessedOnce(pool, 1, 1);
+			checkProcessedOnce(pool, 0, 10);
+			// Threshold of 0 is treated as 1
+			checkProcessedOnce(pool, 100, 0);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public void testWithoutPool() {
+		final List<Integer> order = new ArrayList<Integer>();
+		ParallelForEach.process(null, createList(50), 5,
+				new ParallelForEach.Processor<Integer>() {
+					@Override
+					public void process(int index, Integer element) {
+						order.add(index);
+					}
+				});
+
+		// Without a pool the elements are processed in order by the caller
+		assertEquals(50, order.size());
+		for (int i = 0; i < order.size(); ++i)
+			assertEquals(Integer.valueOf(i), order.get(i));
+	}
+
+	public void testExceptionPropagated() {
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			ParallelForEach.process(pool, createList(100), 10,
+					new ParallelForEach.Processor<Integer>() {
+						@Override
+						public void process(int index, Integer element) {
+							if (index == 73)
+								throw new IllegalStateException("bad " + index);
+						}
+					});
+			fail("Expected exception from processor");
+		} catch (IllegalStateException e) {
+			// When rethrown by a different thread the ForkJoinPool wraps the
+			// message of the original exception
+			assertTrue(e.getMessage(), e.getMessage().contains("bad 73"));
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -19,6 +19,7 @@ package org.transitime.api;
 
 import javax.ws.rs.ApplicationPath;
 
+import org.glassfish.jersey.media.sse.SseFeature;
 import org.glassfish.jersey.server.ResourceConfig;
 
 /**
@@ -38,5 +39,8 @@ public class ApiApplication extends ResourceConfig {
 		// Register all root-resource classes in package that handle @Path
 		// requests
 		packages("org.transitime.api.rootResources");
+
+		// For the server-sent events of the stream command
+		register(SseFeature.class);
 	}
 }
\ No newline at end of file
@@ -17,6 +17,7 @@
 
 package org.transitime.api.data;
 
+import org.transitime.ipc.data.IpcBulkPredictions;
 import org.transitime.ipc.data.IpcOccupancyStatus;
 import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.utils.Time;
@@ -154,4 +155,50 @@ public class ApiPrediction {
 			isLateAndSubsequentTripSoMarkAsUncertain = true;
 	}
 
+	/**
+	 * For constructing an ApiPrediction from the columns of an
+	 * IpcBulkPredictions object.
+	 * 
+	 * @param preds
+	 * @param predIndex
+	 *            Which prediction of preds
+	 */
+	public ApiPrediction(IpcBulkPredictions preds, int predIndex) {
+		long predictionTime = preds.getPredictionTime(predIndex);
+		time = predictionTime / Time.MS_PER_SEC;
+		seconds = (int) (predictionTime - System.currentTimeMillis()) /
+				Time.MS_PER_SEC;
+		// Always round down minutes to be conservative and so that user
+		// doesn't miss bus.
+		minutes = seconds / 60;
+
+		// Only set the Boolean members if true so that the attributes are 
+		// not output for the majority of the times that they are false
+		if (preds.isSchedBasedPred(predIndex))
+			schedBasedPreds = true;
+		if (!preds.isArrival(predIndex))
+			isDeparture = true;
+		if (preds.isAtEndOfTrip(predIndex))
+			isAtEndOfTrip = true;
+		if (preds.isAffectedByWaitStop(predIndex))
+			basedOnScheduledDeparture = true;
+		if (preds.isDelayed(predIndex))
+			isDelayed = true;
+		if (preds.isLateAndSubsequentTripSoMarkAsUncertain(predIndex))
+			isLateAndSubsequentTripSoMarkAsUncertain = true;
+
+		tripId = preds.getTripId(predIndex);
+		tripPatternId = preds.getTripPatternId(predIndex);
+		blockId = preds.getBlockId(predIndex);
+		vehicleId = preds.getVehicleId(predIndex);
+
+		if (preds.isPassengerCountValid(predIndex))
+			passengerCount = String.valueOf(preds.getPassengerCount(predIndex));
+		occupancyStatus = preds.getOccupancyStatus(predIndex);
+
+		affectedByLayover =
+				Boolean.toString(preds.isAffectedByWaitStop(predIndex));
+		isDepartureDuplicate = Boolean.toString(!preds.isArrival(predIndex));
+	}
+
 }
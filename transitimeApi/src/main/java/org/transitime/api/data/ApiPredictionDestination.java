@@ -24,6 +24,7 @@ import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.transitime.ipc.data.IpcBulkPredictions;
 import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
 
@@ -65,4 +66,24 @@ public class ApiPredictionDestination {
 			predictions.add(new ApiPrediction(prediction));
 		}
 	}
+
+	/**
+	 * For constructing an ApiPredictionDestination from the columns of an
+	 * IpcBulkPredictions object.
+	 * 
+	 * @param preds
+	 * @param destIndex
+	 *            Which route/stop/destination of preds
+	 */
+	public ApiPredictionDestination(IpcBulkPredictions preds, int destIndex) {
+		directionId = preds.getDirectionId(destIndex);
+		headsign = preds.getHeadsign(destIndex);
+
+		int beginIndex = preds.getFirstPredictionIndex(destIndex);
+		int endIndex = preds.getFirstPredictionIndex(destIndex + 1);
+		predictions = new ArrayList<ApiPrediction>(endIndex - beginIndex);
+		for (int predIndex = beginIndex; predIndex < endIndex; ++predIndex) {
+			predictions.add(new ApiPrediction(preds, predIndex));
+		}
+	}
 }
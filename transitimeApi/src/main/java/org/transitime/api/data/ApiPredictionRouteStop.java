@@ -24,6 +24,7 @@ import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.transitime.ipc.data.IpcBulkPredictions;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
 import org.transitime.utils.MathUtils;
 
@@ -98,4 +99,31 @@ public class ApiPredictionRouteStop {
 		}
 	}
 
+	/**
+	 * For constructing an ApiPredictionRouteStop from the columns of an
+	 * IpcBulkPredictions object.
+	 * 
+	 * @param preds
+	 * @param beginDestIndex
+	 *            First route/stop/destination of preds for the route/stop
+	 * @param endDestIndex
+	 *            One past the last route/stop/destination for the route/stop
+	 */
+	public ApiPredictionRouteStop(IpcBulkPredictions preds,
+			int beginDestIndex, int endDestIndex) {
+		routeShortName = preds.getRouteShortName(beginDestIndex);
+		routeName = preds.getRouteName(beginDestIndex);
+		routeId = preds.getRouteId(beginDestIndex);
+		stopId = preds.getStopId(beginDestIndex);
+		stopName = preds.getStopName(beginDestIndex);
+		stopCode = preds.getStopCode(beginDestIndex);
+
+		destinations = new ArrayList<ApiPredictionDestination>(
+				endDestIndex - beginDestIndex);
+		for (int destIndex = beginDestIndex; destIndex < endDestIndex; 
+				++destIndex) {
+			destinations.add(new ApiPredictionDestination(preds, destIndex));
+		}
+	}
+
 }
@@ -24,6 +24,7 @@ import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import org.transitime.ipc.data.IpcBulkPredictions;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
 
 /**
@@ -50,6 +51,11 @@ public class ApiPredictions {
 	@XmlElement(name = "predictions")
 	private List<ApiPredictionRouteStop> predictionsForRouteStop;
 
+	// For bulk requests, the requested stops that were not valid. Null
+	// otherwise so that not output.
+	@XmlElement(name = "invalidStop")
+	private List<String> invalidStops;
+
 	/********************** Member Functions **************************/
 
 	/**
@@ -102,6 +108,45 @@ public class ApiPredictions {
 		predictionsForRouteStop.add(predictionsForRouteStopData);
 	}
 
+	/**
+	 * For constructing a ApiPredictions object from the columns of an
+	 * IpcBulkPredictions object. The route/stop/destinations for the same
+	 * route/stop are contiguous so they are grouped into a single
+	 * ApiPredictionRouteStop.
+	 * 
+	 * @param preds
+	 */
+	public ApiPredictions(IpcBulkPredictions preds) {
+		predictionsForRouteStop = new ArrayList<ApiPredictionRouteStop>();
+
+		int numDests = preds.getNumDestinations();
+		int beginDestIndex = 0;
+		for (int destIndex = 1; destIndex <= numDests; ++destIndex) {
+			// If this is the end or a new route/stop then create
+			// ApiPredictionRouteStop for the previous route/stop
+			if (destIndex == numDests
+					|| !isSameRouteStop(preds, beginDestIndex, destIndex)) {
+				predictionsForRouteStop.add(new ApiPredictionRouteStop(preds,
+						beginDestIndex, destIndex));
+				beginDestIndex = destIndex;
+			}
+		}
+
+		if (!preds.getInvalidStops().isEmpty())
+			invalidStops = preds.getInvalidStops();
+	}
+
+	private static boolean isSameRouteStop(IpcBulkPredictions preds,
+			int destIndex1, int destIndex2) {
+		return equal(preds.getRouteId(destIndex1), preds.getRouteId(destIndex2))
+				&& equal(preds.getStopId(destIndex1),
+						preds.getStopId(destIndex2));
+	}
+
+	private static boolean equal(String s1, String s2) {
+		return s1 == null ? s2 == null : s1.equals(s2);
+	}
+
 	/**
 	 * For setting info about the agency. Needed for when providing predictions
 	 * for multiple agencies, such as when getting predictions by location
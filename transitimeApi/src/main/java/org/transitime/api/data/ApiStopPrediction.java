@@ -0,0 +1,61 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.api.data;
+
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.transitime.ipc.data.IpcPrediction;
+
+/**
+ * A prediction along with the route and stop that it is for. Needed when the
+ * predictions are grouped by vehicle, such as for the stream command, instead
+ * of by route and stop.
+ */
+@XmlRootElement
+public class ApiStopPrediction extends ApiPrediction {
+
+	@XmlAttribute
+	private String routeId;
+
+	@XmlAttribute
+	private String stopId;
+
+	@XmlAttribute(name = "stopSeq")
+	private int gtfsStopSeq;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Need a no-arg constructor for Jersey. Otherwise get really obtuse
+	 * "MessageBodyWriter not found for media type=application/json" exception.
+	 */
+	protected ApiStopPrediction() {
+	}
+
+	public ApiStopPrediction(IpcPrediction prediction) {
+		super(prediction);
+
+		routeId = prediction.getRouteId();
+		stopId = prediction.getStopId();
+		gtfsStopSeq = prediction.getGtfsStopSeq();
+	}
+
+	public String getStopId() {
+		return stopId;
+	}
+}
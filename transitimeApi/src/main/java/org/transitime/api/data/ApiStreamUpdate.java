@@ -0,0 +1,121 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.api.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The data for a single event of the stream command. Contains only the
+ * vehicles and the predictions that changed since the previous event, except
+ * for the first event which contains the full dataset. Lists that are empty
+ * are not output.
+ */
+@XmlRootElement(name = "update")
+public class ApiStreamUpdate {
+
+	// Only output if true, for the first event
+	@XmlAttribute(name = "full")
+	private Boolean fullDataset;
+
+	// The vehicles that are new or that changed
+	@XmlElement(name = "vehicles")
+	private List<ApiVehicleDetails> vehicles;
+
+	// The vehicles that are gone or that no longer match the filters
+	@XmlElement(name = "removedVehicle")
+	private List<String> removedVehicleIds;
+
+	// The vehicles whose predictions changed
+	@XmlElement(name = "vehiclePreds")
+	private List<ApiVehiclePredictions> vehiclePredictions;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Need a no-arg constructor for Jersey. Otherwise get really obtuse
+	 * "MessageBodyWriter not found for media type=application/json" exception.
+	 */
+	public ApiStreamUpdate() {
+	}
+
+	/**
+	 * @param fullDataset
+	 *            True if the update contains the full dataset instead of just
+	 *            the changes
+	 */
+	public ApiStreamUpdate(boolean fullDataset) {
+		if (fullDataset)
+			this.fullDataset = true;
+	}
+
+	public void addVehicle(ApiVehicleDetails vehicle) {
+		if (vehicles == null)
+			vehicles = new ArrayList<ApiVehicleDetails>();
+		vehicles.add(vehicle);
+	}
+
+	public void addRemovedVehicle(String vehicleId) {
+		if (removedVehicleIds == null)
+			removedVehicleIds = new ArrayList<String>();
+		removedVehicleIds.add(vehicleId);
+	}
+
+	public void addVehiclePredictions(ApiVehiclePredictions predictions) {
+		if (vehiclePredictions == null)
+			vehiclePredictions = new ArrayList<ApiVehiclePredictions>();
+		vehiclePredictions.add(predictions);
+	}
+
+	/**
+	 * @return true if there is nothing to send
+	 */
+	public boolean isEmpty() {
+		return fullDataset == null && vehicles == null
+				&& removedVehicleIds == null && vehiclePredictions == null;
+	}
+
+	public boolean isFullDataset() {
+		return fullDataset != null;
+	}
+
+	/**
+	 * @return The vehicles that are new or that changed, or null if none
+	 */
+	public List<ApiVehicleDetails> getVehicles() {
+		return vehicles;
+	}
+
+	/**
+	 * @return The IDs of the vehicles that are gone or that no longer match
+	 *         the filters, or null if none
+	 */
+	public List<String> getRemovedVehicleIds() {
+		return removedVehicleIds;
+	}
+
+	/**
+	 * @return The predictions that changed, or null if none
+	 */
+	public List<ApiVehiclePredictions> getVehiclePredictions() {
+		return vehiclePredictions;
+	}
+}
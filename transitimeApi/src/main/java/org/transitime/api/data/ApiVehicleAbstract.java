@@ -114,4 +114,8 @@ public abstract class ApiVehicleAbstract {
 
 		this.schedBasedPreds = vehicle.isForSchedBasedPred() ? true : null;
 	}
+
+	public String getId() {
+		return id;
+	}
 }
@@ -0,0 +1,70 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.api.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.transitime.ipc.data.IpcPrediction;
+
+/**
+ * The predictions generated by a single vehicle. An empty list means that the
+ * vehicle no longer has any predictions that the client is interested in.
+ */
+@XmlRootElement
+public class ApiVehiclePredictions {
+
+	@XmlAttribute(name = "vehicle")
+	private String vehicleId;
+
+	@XmlElement(name = "pred")
+	private List<ApiStopPrediction> predictions;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Need a no-arg constructor for Jersey. Otherwise get really obtuse
+	 * "MessageBodyWriter not found for media type=application/json" exception.
+	 */
+	protected ApiVehiclePredictions() {
+	}
+
+	/**
+	 * @param vehicleId
+	 * @param predictions
+	 *            The predictions for the vehicle. Can be empty.
+	 */
+	public ApiVehiclePredictions(String vehicleId,
+			List<IpcPrediction> predictions) {
+		this.vehicleId = vehicleId;
+		this.predictions = new ArrayList<ApiStopPrediction>(predictions.size());
+		for (IpcPrediction prediction : predictions)
+			this.predictions.add(new ApiStopPrediction(prediction));
+	}
+
+	public String getVehicleId() {
+		return vehicleId;
+	}
+
+	public List<ApiStopPrediction> getPredictions() {
+		return predictions;
+	}
+}
@@ -1,6 +1,6 @@
 /*
  * This file is part of Transitime.org
- * 
+ *
  * Transitime.org is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License (GPL) as published by
  * the Free Software Foundation, either version 3 of the License, or
@@ -17,10 +17,21 @@
 
 package org.transitime.api.gtfsRealtime;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.utils.IntervalTimer;
 import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
 
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 
@@ -28,37 +39,210 @@ import com.google.transit.realtime.GtfsRealtime.FeedMessage;
  * For caching GTFS-realtime messages. Useful because the messages are huge and
  * take a lot of resources so if get multiple requests not too far apart then it
  * makes sense to return a cached version.
+ * <p>
+ * The message is stored along with its serialized and gzipped bytes so that
+ * requests can simply write out the bytes. The first request for an agency
+ * builds the message. After that a single background thread rebuilds it at
+ * the cache interval so that request threads never have to wait for a
+ * rebuild. If an agency isn't requested for a while it stops being rebuilt.
  *
  * @author SkiBu Smith
  *
  */
 public class DataCache {
 
-    private Map<String, CacheEntry> cacheMap = new HashMap<String, CacheEntry>();
+    // For creating the message for an agency
+    public interface FeedCreator {
+	/**
+	 * @return the message, or null if it could not be created
+	 */
+	public FeedMessage createMessage(String agencyId);
+    }
+
+    // If agency not requested for this many cache intervals then stop
+    // rebuilding its feed
+    private static final int IDLE_INTERVALS_BEFORE_EVICTION = 20;
+
+    // If background rebuilding is behind by this many intervals, such as
+    // because the server couldn't be reached, then the cached entry is
+    // considered to be too old to be returned.
+    private static final int STALE_INTERVALS = 3;
+
+    private final String feedName;
+    private final FeedCreator feedCreator;
+
+    private final ConcurrentMap<String, AgencyFeed> cacheMap =
+	    new ConcurrentHashMap<String, AgencyFeed>();
+
+    private final ScheduledExecutorService executor;
+
+    private static final Logger logger = LoggerFactory
+	    .getLogger(DataCache.class);
 
     /********************** Member Functions **************************/
 
-    private static class CacheEntry {
-	private long timeCreated;
-	private FeedMessage cachedFeedMessage;
+    /**
+     * An immutable cached feed: the message along with the corresponding
+     * serialized bytes.
+     */
+    public static class CacheEntry {
+	private final long timeCreated;
+	private final FeedMessage feedMessage;
+	private final byte[] bytes;
+	private final byte[] gzipBytes;
+
+	private CacheEntry(FeedMessage feedMessage) throws IOException {
+	    this.timeCreated = System.currentTimeMillis();
+	    this.feedMessage = feedMessage;
+	    this.bytes = feedMessage.toByteArray();
+
+	    ByteArrayOutputStream gzipOutput =
+		    new ByteArrayOutputStream(bytes.length / 4 + 64);
+	    GZIPOutputStream gzipStream = new GZIPOutputStream(gzipOutput);
+	    gzipStream.write(bytes);
+	    gzipStream.close();
+	    this.gzipBytes = gzipOutput.toByteArray();
+	}
+
+	public long getTimeCreated() {
+	    return timeCreated;
+	}
+
+	public FeedMessage getFeedMessage() {
+	    return feedMessage;
+	}
+
+	/**
+	 * @return the serialized message. Should not be modified.
+	 */
+	public byte[] getBytes() {
+	    return bytes;
+	}
+
+	/**
+	 * @return the gzipped serialized message. Should not be modified.
+	 */
+	public byte[] getGzipBytes() {
+	    return gzipBytes;
+	}
     }
 
-    public FeedMessage get(String agencyId, int maxCacheSeconds) {
-	CacheEntry cacheEntry = cacheMap.get(agencyId);
-	if (cacheEntry == null)
-	    return null;
-	if (cacheEntry.timeCreated < System.currentTimeMillis() - maxCacheSeconds * Time.MS_PER_SEC) {
-	    cacheMap.remove(agencyId);
-	    return null;
+    /**
+     * The cache state for a single agency.
+     */
+    private class AgencyFeed implements Runnable {
+	private final String agencyId;
+	private volatile CacheEntry cacheEntry;
+	private volatile long lastAccessTime = System.currentTimeMillis();
+	private volatile int cacheSeconds;
+	private volatile ScheduledFuture<?> scheduledFuture;
+
+	private AgencyFeed(String agencyId, int cacheSeconds) {
+	    this.agencyId = agencyId;
+	    this.cacheSeconds = cacheSeconds;
+	}
+
+	/**
+	 * Rebuilds the entry. Synchronized so that only a single thread
+	 * builds the feed at a time.
+	 */
+	private synchronized void rebuild() {
+	    IntervalTimer timer = new IntervalTimer();
+	    try {
+		FeedMessage feedMessage = feedCreator.createMessage(agencyId);
+		if (feedMessage == null)
+		    return;
+		cacheEntry = new CacheEntry(feedMessage);
+		logger.debug("Building {} feed for agencyId={} took {} msec",
+			feedName, agencyId, timer.elapsedMsec());
+	    } catch (Exception e) {
+		logger.error("Exception building {} feed for agencyId={}",
+			feedName, agencyId, e);
+	    }
+	}
+
+	/**
+	 * Returns true if the entry is too old to be used.
+	 */
+	private boolean isStale(CacheEntry entry) {
+	    return entry == null || entry.timeCreated < System.currentTimeMillis()
+		    - STALE_INTERVALS * cacheSeconds * Time.MS_PER_SEC;
+	}
+
+	/**
+	 * Called by the executor to rebuild the feed in the background
+	 */
+	@Override
+	public void run() {
+	    // If not requested for a while then stop rebuilding it
+	    if (lastAccessTime < System.currentTimeMillis()
+		    - IDLE_INTERVALS_BEFORE_EVICTION * cacheSeconds
+		    * Time.MS_PER_SEC) {
+		logger.info("The {} feed for agencyId={} has not been "
+			+ "requested recently so no longer caching it.",
+			feedName, agencyId);
+		cacheMap.remove(agencyId, this);
+		scheduledFuture.cancel(false);
+		return;
+	    }
+
+	    rebuild();
 	}
-	return cacheEntry.cachedFeedMessage;
     }
-    
-    public void put(String agencyId, FeedMessage feedMessage) {
-	CacheEntry cacheEntry = new CacheEntry();
-	cacheEntry.timeCreated = System.currentTimeMillis();
-	cacheEntry.cachedFeedMessage = feedMessage;
-	cacheMap.put(agencyId, cacheEntry);
+
+    /**
+     * @param feedName
+     *            For logging
+     * @param feedCreator
+     *            For creating the message when the cache needs to be updated
+     */
+    public DataCache(String feedName, FeedCreator feedCreator) {
+	this.feedName = feedName;
+	this.feedCreator = feedCreator;
+	this.executor = Executors.newSingleThreadScheduledExecutor(
+		new NamedThreadFactory(feedName + "DataCache"));
     }
-}
 
+    /**
+     * Returns the cached feed for the agency. The first time called for an
+     * agency the feed is built and then background rebuilding is started.
+     * Returns null if the feed could not be built.
+     *
+     * @param agencyId
+     * @param maxCacheSeconds
+     *            How frequently the feed is to be rebuilt
+     * @return The cached feed, or null if could not be built
+     */
+    public CacheEntry get(String agencyId, int maxCacheSeconds) {
+	int cacheSeconds = Math.max(1, maxCacheSeconds);
+	AgencyFeed agencyFeed = cacheMap.get(agencyId);
+	if (agencyFeed == null) {
+	    AgencyFeed newAgencyFeed = new AgencyFeed(agencyId, cacheSeconds);
+	    agencyFeed = cacheMap.putIfAbsent(agencyId, newAgencyFeed);
+	    if (agencyFeed == null) {
+		agencyFeed = newAgencyFeed;
+		agencyFeed.rebuild();
+		agencyFeed.scheduledFuture = executor.scheduleWithFixedDelay(
+			agencyFeed, cacheSeconds, cacheSeconds, TimeUnit.SECONDS);
+	    }
+	}
+	agencyFeed.lastAccessTime = System.currentTimeMillis();
+	agencyFeed.cacheSeconds = cacheSeconds;
+
+	// Normally the entry is kept current by the background thread. But
+	// if it is missing or too old, such as because the first build is
+	// still in progress or failed, then build it now. Only one thread
+	// builds at a time and others reuse its result.
+	CacheEntry cacheEntry = agencyFeed.cacheEntry;
+	if (agencyFeed.isStale(cacheEntry)) {
+	    synchronized (agencyFeed) {
+		cacheEntry = agencyFeed.cacheEntry;
+		if (agencyFeed.isStale(cacheEntry)) {
+		    agencyFeed.rebuild();
+		    cacheEntry = agencyFeed.cacheEntry;
+		}
+	    }
+	}
+	return cacheEntry;
+    }
+}
@@ -24,14 +24,18 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.api.utils.AgencyTimezoneCache;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.ipc.clients.PredictionsInterfaceFactory;
+import org.transitime.ipc.data.IpcChanges;
 import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.ipc.data.IpcPredictionsForRouteStopDest;
 import org.transitime.utils.IntervalTimer;
@@ -276,34 +280,135 @@ public class GtfsRtTripFeed {
 		return createMessage(predsByTrip);
 	}
 
+	/**
+	 * Creates the feed entities, one per trip, for the predictions of a
+	 * single vehicle.
+	 * 
+	 * @param predsForVehicle
+	 * @param now
+	 * @return the feed entities
+	 */
+	private List<FeedEntity> createEntities(List<IpcPrediction> predsForVehicle,
+			long now) {
+		// Only include predictions not too far in the future, just like
+		// getAllPredictions() does, and that haven't expired, just like
+		// the core does when it removes expired predictions
+		long maxPredictionTime = now
+				+ PREDICTION_MAX_FUTURE_SECS * Time.MS_PER_SEC;
+		Map<String, List<IpcPrediction>> predsByTrip = 
+				new LinkedHashMap<String, List<IpcPrediction>>();
+		for (IpcPrediction prediction : predsForVehicle) {
+			if (prediction.getPredictionTime() > maxPredictionTime
+					|| prediction.getPredictionTime() < now)
+				continue;
+			List<IpcPrediction> predsForTrip = 
+					predsByTrip.get(prediction.getTripId());
+			if (predsForTrip == null) {
+				predsForTrip = new ArrayList<IpcPrediction>();
+				predsByTrip.put(prediction.getTripId(), predsForTrip);
+			}
+			predsForTrip.add(prediction);
+		}
+		
+		List<FeedEntity> entities = new ArrayList<FeedEntity>(predsByTrip.size());
+		for (List<IpcPrediction> predsForTrip : predsByTrip.values()) {
+			entities.add(FeedEntity.newBuilder()
+					.setId(predsForTrip.get(0).getTripId())
+					.setTripUpdate(createTripUpdate(predsForTrip))
+					.build());
+		}
+		return entities;
+	}
+	
+	/**
+	 * Returns an IncrementalFeed for the agency that only gets the
+	 * predictions for vehicles whose predictions changed.
+	 * 
+	 * @return
+	 */
+	private IncrementalFeed<List<IpcPrediction>> createIncrementalFeed() {
+		return new IncrementalFeed<List<IpcPrediction>>() {
+			@Override
+			protected IpcChanges<List<IpcPrediction>> getChangesSince(
+					long sinceEpoch, long sinceSequence) throws RemoteException {
+				return PredictionsInterfaceFactory.get(agencyId)
+						.getPredictionChangesSince(sinceEpoch, sinceSequence);
+			}
+
+			@Override
+			protected List<FeedEntity> createEntities(
+					List<IpcPrediction> predsForVehicle, long now) {
+				return GtfsRtTripFeed.this.createEntities(predsForVehicle, now);
+			}
+
+			// The entities change when a prediction expires or when it
+			// comes within PREDICTION_MAX_FUTURE_SECS
+			@Override
+			protected long getRebuildTime(List<IpcPrediction> predsForVehicle,
+					long now) {
+				long rebuildTime = Long.MAX_VALUE;
+				for (IpcPrediction prediction : predsForVehicle) {
+					long expiryTime = prediction.getPredictionTime() + 1;
+					long windowTime = prediction.getPredictionTime()
+							- PREDICTION_MAX_FUTURE_SECS * Time.MS_PER_SEC;
+					if (expiryTime > now)
+						rebuildTime = Math.min(rebuildTime, expiryTime);
+					if (windowTime > now)
+						rebuildTime = Math.min(rebuildTime, windowTime);
+				}
+				return rebuildTime;
+			}
+
+			// If vehicle stopped reporting and all its predictions have
+			// expired then it is dropped
+			@Override
+			protected boolean isCurrent(List<IpcPrediction> predsForVehicle,
+					long now) {
+				for (IpcPrediction prediction : predsForVehicle) {
+					if (prediction.getPredictionTime() >= now)
+						return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	// The incremental feed for each agency, for when IncrementalFeed enabled
+	private static final ConcurrentMap<String, IncrementalFeed<List<IpcPrediction>>> 
+		incrementalFeeds = 
+			new ConcurrentHashMap<String, IncrementalFeed<List<IpcPrediction>>>();
+	
 	// For getPossiblyCachedMessage()
-	private static final DataCache tripFeedDataCache = new DataCache();
+	private static final DataCache tripFeedDataCache = new DataCache(
+			"GtfsRtTripFeed", new DataCache.FeedCreator() {
+				@Override
+				public FeedMessage createMessage(String agencyId) {
+					if (!IncrementalFeed.isEnabled())
+						return new GtfsRtTripFeed(agencyId).createMessage();
+					
+					IncrementalFeed<List<IpcPrediction>> incrementalFeed = 
+							incrementalFeeds.get(agencyId);
+					if (incrementalFeed == null) {
+						incrementalFeed = new GtfsRtTripFeed(agencyId)
+								.createIncrementalFeed();
+						incrementalFeeds.put(agencyId, incrementalFeed);
+					}
+					return incrementalFeed.createMessage("GtfsRtTripFeed");
+				}
+			});
 	
 	/**
-	 * For caching Vehicle Positions feed messages.
+	 * For caching Trip Updates feed messages. The feed is rebuilt in the
+	 * background so this normally returns immediately.
 	 * 
 	 * @param agencyId
 	 * @param cacheTime
-	 * @return
+	 * @return the cached message and its serialized bytes, or null if the
+	 *         feed could not be created
 	 */
-	public static FeedMessage getPossiblyCachedMessage(String agencyId, int cacheTime) {
-	    FeedMessage feedMessage = tripFeedDataCache.get(agencyId, cacheTime);
-	    if (feedMessage != null)
-	    	return feedMessage;
-	    
-	    synchronized(tripFeedDataCache) {
-	    	
-	    	// Cache may have been filled while waiting.
-	    	feedMessage = tripFeedDataCache.get(agencyId, cacheTime);
-	    	if (feedMessage != null)
-	    		return feedMessage;
-	    	
-	    	GtfsRtTripFeed feed = new GtfsRtTripFeed(agencyId);
-		    feedMessage = feed.createMessage();
-		    tripFeedDataCache.put(agencyId, feedMessage);
-	    }
-	    
-	    return feedMessage;
+	public static DataCache.CacheEntry getPossiblyCachedMessage(
+			String agencyId, int cacheTime) {
+		return tripFeedDataCache.get(agencyId, cacheTime);
 	}
 
 	public static class GtfsStopSequenceComparator implements Comparator {
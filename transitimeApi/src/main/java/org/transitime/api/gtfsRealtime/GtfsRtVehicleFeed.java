@@ -21,12 +21,17 @@ import java.rmi.RemoteException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.api.utils.AgencyTimezoneCache;
 import org.transitime.ipc.clients.VehiclesInterfaceFactory;
+import org.transitime.ipc.data.IpcChanges;
 import org.transitime.ipc.data.IpcOccupancyStatus;
 import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
 import org.transitime.ipc.interfaces.VehiclesInterface;
@@ -56,6 +61,10 @@ public class GtfsRtVehicleFeed {
 	private SimpleDateFormat gtfsRealtimeDateFormatter = 
 			new SimpleDateFormat("yyyyMMdd");
 	
+	// For filtering out vehicles with obsolete AVL info when creating the
+	// feed incrementally. Same as the server uses for getGtfsRealtime().
+	private static final int MAX_AGE_MSEC = 15 * Time.MS_PER_MIN;
+	
 	private static final Logger logger = LoggerFactory
 			.getLogger(GtfsRtVehicleFeed.class);
 
@@ -221,34 +230,80 @@ public class GtfsRtVehicleFeed {
 		return createMessage(vehicles);
 	}
 
+	/**
+	 * Returns an IncrementalFeed for the agency that only gets the vehicles
+	 * that changed.
+	 * 
+	 * @return
+	 */
+	private IncrementalFeed<IpcVehicleGtfsRealtime> createIncrementalFeed() {
+		return new IncrementalFeed<IpcVehicleGtfsRealtime>() {
+			@Override
+			protected IpcChanges<IpcVehicleGtfsRealtime> getChangesSince(
+					long sinceEpoch, long sinceSequence) throws RemoteException {
+				return VehiclesInterfaceFactory.get(agencyId)
+						.getGtfsRealtimeChangesSince(sinceEpoch, sinceSequence);
+			}
+
+			@Override
+			protected List<FeedEntity> createEntities(
+					IpcVehicleGtfsRealtime vehicle, long now) {
+				try {
+					return Collections.singletonList(FeedEntity.newBuilder()
+							.setId(vehicle.getId())
+							.setVehicle(createVehiclePosition(vehicle))
+							.build());
+				} catch (ParseException e) {
+					throw new IllegalArgumentException(e);
+				}
+			}
+
+			// Filters out vehicles with old AVL reports just like the
+			// server does for getGtfsRealtime()
+			@Override
+			protected boolean isCurrent(IpcVehicleGtfsRealtime vehicle,
+					long now) {
+				return vehicle.isLayover()
+						|| vehicle.getAvl().getTime() > now - MAX_AGE_MSEC;
+			}
+		};
+	}
+
+	// The incremental feed for each agency, for when IncrementalFeed enabled
+	private static final ConcurrentMap<String, IncrementalFeed<IpcVehicleGtfsRealtime>> 
+		incrementalFeeds = 
+			new ConcurrentHashMap<String, IncrementalFeed<IpcVehicleGtfsRealtime>>();
+
 	// For getPossiblyCachedMessage()
-	private static final DataCache vehicleFeedDataCache = new DataCache();
+	private static final DataCache vehicleFeedDataCache = new DataCache(
+			"GtfsRtVehicleFeed", new DataCache.FeedCreator() {
+				@Override
+				public FeedMessage createMessage(String agencyId) {
+					if (!IncrementalFeed.isEnabled())
+						return new GtfsRtVehicleFeed(agencyId).createMessage();
+
+					IncrementalFeed<IpcVehicleGtfsRealtime> incrementalFeed =
+							incrementalFeeds.get(agencyId);
+					if (incrementalFeed == null) {
+						incrementalFeed = new GtfsRtVehicleFeed(agencyId)
+								.createIncrementalFeed();
+						incrementalFeeds.put(agencyId, incrementalFeed);
+					}
+					return incrementalFeed.createMessage("GtfsRtVehicleFeed");
+				}
+			});
 
 	/**
-	 * For caching Vehicle Positions feed messages.
+	 * For caching Vehicle Positions feed messages. The feed is rebuilt in the
+	 * background so this normally returns immediately.
 	 * 
 	 * @param agencyId
 	 * @param cacheTime
-	 * @return
+	 * @return the cached message and its serialized bytes, or null if the
+	 *         feed could not be created
 	 */
-	public static FeedMessage getPossiblyCachedMessage(String agencyId,
-			int cacheTime) {
-		FeedMessage feedMessage = vehicleFeedDataCache.get(agencyId, cacheTime);
-		if (feedMessage != null)
-			return feedMessage;
-		
-		synchronized(vehicleFeedDataCache) {
-		
-			// Cache may have been filled while waiting.
-			feedMessage = vehicleFeedDataCache.get(agencyId, cacheTime);
-			if (feedMessage != null)
-				return feedMessage;
-		
-			GtfsRtVehicleFeed feed = new GtfsRtVehicleFeed(agencyId);
-			feedMessage = feed.createMessage();
-			vehicleFeedDataCache.put(agencyId, feedMessage);
-		}
-		
-		return feedMessage;
+	public static DataCache.CacheEntry getPossiblyCachedMessage(
+			String agencyId, int cacheTime) {
+		return vehicleFeedDataCache.get(agencyId, cacheTime);
 	}
 }
@@ -0,0 +1,275 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.api.gtfsRealtime;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.BooleanConfigValue;
+import org.transitime.ipc.data.IpcChanges;
+import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.Time;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * For creating a GTFS-realtime feed incrementally. Instead of getting the data
+ * for the entire fleet from the server each time only the data for the
+ * vehicles that changed since the previous call is obtained. The FeedEntity
+ * objects for each vehicle are kept so that only the ones for the changed
+ * vehicles need to be recreated. A complete FULL_DATASET message is still
+ * returned each time.
+ * <p>
+ * Since a vehicle that stops reporting no longer shows up in the changes the
+ * time dependent filtering is reapplied every time a message is created.
+ * Entities are recreated once the time returned by getRebuildTime() is
+ * reached and vehicles whose data is no longer current are dropped.
+ * <p>
+ * There should be one instance per agency per feed. Not threadsafe, but
+ * DataCache only builds a feed for an agency in one thread at a time.
+ *
+ * @param <T>
+ *            The per vehicle data obtained from the server
+ */
+public abstract class IncrementalFeed<T> {
+
+	private static BooleanConfigValue gtfsRtIncremental = new BooleanConfigValue(
+			"transitime.api.gtfsRtIncremental", false,
+			"If true then the GTFS-realtime feeds are updated using only the "
+			+ "vehicles that changed since the previous time the feed was "
+			+ "created instead of getting the data for the entire fleet "
+			+ "from the server each time. Requires a core that supports "
+			+ "getting the changes.");
+
+	// For requesting only what changed since the previous call
+	private long epoch = 0;
+	private long sequence = 0;
+
+	// The data and corresponding feed entities for each vehicle
+	private final Map<String, VehicleEntities<T>> entitiesByVehicle =
+			new HashMap<String, VehicleEntities<T>>();
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(IncrementalFeed.class);
+
+	/**
+	 * The data for a vehicle along with the feed entities created from it
+	 */
+	private static class VehicleEntities<T> {
+		private final T data;
+		private final List<FeedEntity> entities;
+		private final long rebuildTime;
+
+		private VehicleEntities(T data, List<FeedEntity> entities,
+				long rebuildTime) {
+			this.data = data;
+			this.entities = entities;
+			this.rebuildTime = rebuildTime;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @return true if the GTFS-realtime feeds are to be created incrementally
+	 */
+	public static boolean isEnabled() {
+		return gtfsRtIncremental.getValue();
+	}
+
+	/**
+	 * Gets from the server the data for the vehicles that changed.
+	 *
+	 * @param sinceEpoch
+	 * @param sinceSequence
+	 * @return the changes
+	 * @throws RemoteException
+	 */
+	protected abstract IpcChanges<T> getChangesSince(long sinceEpoch,
+			long sinceSequence) throws RemoteException;
+
+	/**
+	 * Creates the feed entities for the data of a vehicle.
+	 *
+	 * @param data
+	 * @param now
+	 *            The current time, for filtering out what is too old or too
+	 *            far in the future
+	 * @return the feed entities. Can be empty.
+	 */
+	protected abstract List<FeedEntity> createEntities(T data, long now);
+
+	/**
+	 * Returns when the entities created for the data at the specified time
+	 * would differ just because time has passed, such as when a prediction
+	 * expires or comes within the time window of the feed. The entities are
+	 * then recreated even though the data hasn't changed.
+	 *
+	 * @param data
+	 * @param now
+	 * @return epoch time to recreate the entities at, or Long.MAX_VALUE if
+	 *         they never need to be recreated
+	 */
+	protected long getRebuildTime(T data, long now) {
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Whether the entities for the data should still be included in the feed.
+	 * For filtering out data that has become obsolete even though it hasn't
+	 * been changed, such as for a vehicle that stopped reporting. Data that
+	 * is not current is dropped so once it returns false for a time it must
+	 * also return false for all later times.
+	 *
+	 * @param data
+	 * @param now
+	 * @return true if entities are to be included
+	 */
+	protected boolean isCurrent(T data, long now) {
+		return true;
+	}
+
+	/**
+	 * Creates the entities for the data of a vehicle and stores them. If
+	 * there is a problem the vehicle is dropped.
+	 *
+	 * @param vehicleId
+	 * @param data
+	 * @param now
+	 * @param feedName
+	 *            For logging
+	 */
+	private void putEntities(String vehicleId, T data, long now,
+			String feedName) {
+		try {
+			entitiesByVehicle.put(vehicleId, new VehicleEntities<T>(data,
+					createEntities(data, now), getRebuildTime(data, now)));
+		} catch (Exception e) {
+			logger.error("Error creating {} entities for vehicleId={}",
+					feedName, vehicleId, e);
+			entitiesByVehicle.remove(vehicleId);
+		}
+	}
+
+	/**
+	 * Updates the feed entities using the changes since the previous call and
+	 * returns a complete message.
+	 *
+	 * @param feedName
+	 *            For logging
+	 * @return the message, or null if could not get the changes from the
+	 *         server
+	 */
+	public FeedMessage createMessage(String feedName) {
+		return createMessage(feedName, System.currentTimeMillis());
+	}
+
+	/**
+	 * Updates the feed entities using the changes since the previous call and
+	 * returns a complete message. The time is passed in so that can be
+	 * tested.
+	 *
+	 * @param feedName
+	 *            For logging
+	 * @param now
+	 *            The current time
+	 * @return the message, or null if could not get the changes from the
+	 *         server
+	 */
+	FeedMessage createMessage(String feedName, long now) {
+		IntervalTimer timer = new IntervalTimer();
+		IpcChanges<T> changes;
+		try {
+			changes = getChangesSince(epoch, sequence);
+		} catch (RemoteException e) {
+			logger.error("Exception when getting changes for {} via RMI",
+					feedName, e);
+			return null;
+		}
+
+		if (changes.isFullDataset())
+			entitiesByVehicle.clear();
+		for (Map.Entry<String, T> change :
+				changes.getChangesByVehicle().entrySet()) {
+			if (change.getValue() == null)
+				entitiesByVehicle.remove(change.getKey());
+			else
+				putEntities(change.getKey(), change.getValue(), now, feedName);
+		}
+		epoch = changes.getEpoch();
+		sequence = changes.getSequence();
+
+		// Vehicles that haven't changed don't show up in the changes so drop
+		// the ones whose data has become obsolete and recreate the entities
+		// that are out of date
+		int numDropped = 0;
+		int numRebuilt = 0;
+		Iterator<Map.Entry<String, VehicleEntities<T>>> iterator =
+				entitiesByVehicle.entrySet().iterator();
+		List<Map.Entry<String, VehicleEntities<T>>> toRebuild =
+				new ArrayList<Map.Entry<String, VehicleEntities<T>>>();
+		while (iterator.hasNext()) {
+			Map.Entry<String, VehicleEntities<T>> entry = iterator.next();
+			if (!isCurrent(entry.getValue().data, now)) {
+				iterator.remove();
+				++numDropped;
+			} else if (now >= entry.getValue().rebuildTime) {
+				toRebuild.add(entry);
+			}
+		}
+		for (Map.Entry<String, VehicleEntities<T>> entry : toRebuild) {
+			putEntities(entry.getKey(), entry.getValue().data, now, feedName);
+			++numRebuilt;
+		}
+
+		FeedMessage.Builder message = FeedMessage.newBuilder();
+		FeedHeader.Builder feedheader = FeedHeader.newBuilder()
+				.setGtfsRealtimeVersion("1.0")
+				.setIncrementality(Incrementality.FULL_DATASET)
+				.setTimestamp(now / Time.MS_PER_SEC);
+		message.setHeader(feedheader);
+
+		// Entity IDs need to be unique so if, rarely, multiple vehicles
+		// have an entity with the same ID only the first is used
+		Set<String> entityIds = new HashSet<String>();
+		for (VehicleEntities<T> vehicleEntities : entitiesByVehicle.values()) {
+			for (FeedEntity entity : vehicleEntities.entities) {
+				if (entityIds.add(entity.getId()))
+					message.addEntity(entity);
+			}
+		}
+
+		logger.debug("Updating {} with {} changed vehicles (fullDataset={}), "
+				+ "{} dropped and {} rebuilt took {} msec", feedName,
+				changes.getChangesByVehicle().size(), changes.isFullDataset(),
+				numDropped, numRebuilt, timer.elapsedMsec());
+
+		return message.build();
+	}
+}
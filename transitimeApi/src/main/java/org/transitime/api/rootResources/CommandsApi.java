@@ -275,7 +275,11 @@ public class CommandsApi {
 							routeShortName, directionId, headsign);
 			String sql = time.getUpdateSql();
 			GenericQuery query = new GenericQuery(agencyId);
-			query.doUpdate(sql);
+			try {
+				query.doUpdate(sql);
+			} finally {
+				query.close();
+			}
 			
 			// Create the acknowledgment and return it as JSON or XML
 			ApiCommandAck ack =
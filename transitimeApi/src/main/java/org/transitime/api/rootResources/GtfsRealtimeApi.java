@@ -22,22 +22,23 @@ import java.io.OutputStream;
 
 import javax.ws.rs.BeanParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 
 import org.transitime.api.utils.StandardParameters;
 import org.transitime.config.IntegerConfigValue;
+import org.transitime.api.gtfsRealtime.DataCache;
 import org.transitime.api.gtfsRealtime.GtfsRtTripFeed;
 import org.transitime.api.gtfsRealtime.GtfsRtVehicleFeed;
 import org.transitime.feed.gtfsRt.OctalDecoder;
 
-import com.google.transit.realtime.GtfsRealtime.FeedMessage;
-
 /**
  * Contains API commands for the GTFS-realtime API.
  *
@@ -58,6 +59,109 @@ public class GtfsRealtimeApi {
 	
 	/********************** Member Functions **************************/
 
+	/**
+	 * Determines whether the client accepts gzip encoding. The
+	 * Accept-Encoding header is a comma separated list of codings, each
+	 * possibly with a q value. A q value of 0 means that the coding is not
+	 * acceptable. If gzip is not listed then a "*" coding determines whether
+	 * it is acceptable.
+	 * 
+	 * @param acceptEncoding
+	 *            The Accept-Encoding header of the request. Can be null.
+	 * @return true if gzip encoded output can be returned
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null)
+			return false;
+
+		Boolean gzipAccepted = null;
+		Boolean wildcardAccepted = null;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim().toLowerCase();
+			boolean accepted = true;
+			for (int i = 1; i < params.length; ++i) {
+				String param = params[i].trim();
+				if (param.length() > 1 
+						&& Character.toLowerCase(param.charAt(0)) == 'q'
+						&& param.substring(1).trim().startsWith("=")) {
+					try {
+						accepted = Double.parseDouble(param.substring(
+								param.indexOf('=') + 1).trim()) > 0.0;
+					} catch (NumberFormatException e) {
+						accepted = false;
+					}
+				}
+			}
+
+			if (name.equals("gzip") || name.equals("x-gzip"))
+				gzipAccepted = accepted;
+			else if (name.equals("*"))
+				wildcardAccepted = accepted;
+		}
+
+		if (gzipAccepted != null)
+			return gzipAccepted;
+		return wildcardAccepted != null && wildcardAccepted;
+	}
+
+	/**
+	 * Creates the response for the cached GTFS-realtime feed. For binary
+	 * output the already serialized bytes are written out, gzipped if the
+	 * client accepts gzip, so that the feed doesn't need to be serialized
+	 * for every request.
+	 * 
+	 * @param cacheEntry
+	 *            The cached feed
+	 * @param format
+	 *            if set to "human" then will output GTFS-rt data in human
+	 *            readable format. Otherwise will output data in binary format.
+	 * @param acceptEncoding
+	 *            The Accept-Encoding header of the request
+	 * @return
+	 * @throws WebApplicationException
+	 */
+	private static Response createResponse(
+			final DataCache.CacheEntry cacheEntry, String format,
+			String acceptEncoding) throws WebApplicationException {
+		if (cacheEntry == null)
+			throw new WebApplicationException(
+					Response.Status.SERVICE_UNAVAILABLE);
+
+		// Output in human readable format. For plain text best to use
+		// MediaType.TEXT_PLAIN so that output is formatted properly in web
+		// browser instead of newlines being removed.
+		if ("human".equals(format)) {
+			StreamingOutput stream = new StreamingOutput() {
+				public void write(OutputStream outputStream)
+						throws IOException, WebApplicationException {
+					// First, convert the octal escaped message to regular
+					// UTF encoding.
+					String decodedMessage =
+							OctalDecoder.convertOctalEscapedString(cacheEntry
+									.getFeedMessage().toString());
+					outputStream.write(decodedMessage.getBytes());
+				}
+			};
+			return Response.ok(stream).type(MediaType.TEXT_PLAIN).build();
+		}
+
+		// Standard binary output. Since whether it is gzipped depends on the
+		// Accept-Encoding header caches need to be told so via Vary.
+		if (acceptsGzip(acceptEncoding)) {
+			return Response.ok(cacheEntry.getGzipBytes())
+					.type(MediaType.APPLICATION_OCTET_STREAM)
+					.header(HttpHeaders.CONTENT_ENCODING, "gzip")
+					.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+					.build();
+		} else {
+			return Response.ok(cacheEntry.getBytes())
+					.type(MediaType.APPLICATION_OCTET_STREAM)
+					.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+					.build();
+		}
+	}
+
 	/**
 	 * For getting GTFS-realtime Vehicle Positions data for all vehicles.
 	 * 
@@ -65,6 +169,8 @@ public class GtfsRealtimeApi {
 	 * @param format
 	 *            if set to "human" then will output GTFS-rt data in human
 	 *            readable format. Otherwise will output data in binary format.
+	 * @param acceptEncoding
+	 *            if it accepts gzip then binary output is gzipped
 	 * @return
 	 * @throws WebApplicationException
 	 */
@@ -73,55 +179,18 @@ public class GtfsRealtimeApi {
 	@Produces({ MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
 	public Response getGtfsRealtimeVehiclePositionsFeed(
 			final @BeanParam StandardParameters stdParameters,
-			@QueryParam(value = "format") String format)
+			@QueryParam(value = "format") String format,
+			@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding)
 			throws WebApplicationException {
 
 		// Make sure request is valid
 		stdParameters.validate();
 
-		// Determine if output should be in human readable format or in
-		// standard binary GTFS-realtime format.
-		final boolean humanFormatOutput = "human".equals(format);
-
-		// Determine the appropriate output format. For plain text best to use
-		// MediaType.TEXT_PLAIN so that output is formatted properly in web
-		// browser instead of newlines being removed. For binary output should
-		// use MediaType.APPLICATION_OCTET_STREAM.
-		String mediaType =
-				humanFormatOutput ? MediaType.TEXT_PLAIN
-						: MediaType.APPLICATION_OCTET_STREAM;
-
-		// Prepare a StreamingOutput object so can write using it
-		StreamingOutput stream = new StreamingOutput() {
-			public void write(OutputStream outputStream) throws IOException,
-					WebApplicationException {
-				try {
-					FeedMessage message =
-							GtfsRtVehicleFeed.getPossiblyCachedMessage(
-									stdParameters.getAgencyId(),
-									gtfsRtCacheSeconds.getValue());
-
-					// Output in human readable format or in standard binary
-					// format
-					if (humanFormatOutput) {
-						// Output data in human readable format. First, convert
-						// the octal escaped message to regular UTF encoding.
-						String decodedMessage =
-								OctalDecoder.convertOctalEscapedString(message
-										.toString());
-						outputStream.write(decodedMessage.getBytes());
-					} else {
-						// Standard binary output
-						message.writeTo(outputStream);
-					}
-				} catch (Exception e) {
-					throw new WebApplicationException(e);
-				}
-			}
-		};
-
-		// Write out the data using the output stream
-		return Response.ok(stream).type(mediaType).build();
+		DataCache.CacheEntry cacheEntry =
+				GtfsRtVehicleFeed.getPossiblyCachedMessage(
+						stdParameters.getAgencyId(),
+						gtfsRtCacheSeconds.getValue());
+		return createResponse(cacheEntry, format, acceptEncoding);
 	}
 
 	/**
@@ -131,6 +200,8 @@ public class GtfsRealtimeApi {
 	 * @param format
 	 *            if set to "human" then will output GTFS-rt data in human
 	 *            readable format. Otherwise will output data in binary format.
+	 * @param acceptEncoding
+	 *            if it accepts gzip then binary output is gzipped
 	 * @return
 	 * @throws WebApplicationException
 	 */
@@ -139,55 +210,18 @@ public class GtfsRealtimeApi {
 	@Produces({ MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
 	public Response getGtfsRealtimeTripFeed(
 			final @BeanParam StandardParameters stdParameters,
-			@QueryParam(value = "format") String format)
+			@QueryParam(value = "format") String format,
+			@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding)
 			throws WebApplicationException {
 
 		// Make sure request is valid
 		stdParameters.validate();
 
-		// Determine if output should be in human readable format or in
-		// standard binary GTFS-realtime format.
-		final boolean humanFormatOutput = "human".equals(format);
-
-		// Determine the appropriate output format. For plain text best to use
-		// MediaType.TEXT_PLAIN so that output is formatted properly in web
-		// browser instead of newlines being removed. For binary output should
-		// use MediaType.APPLICATION_OCTET_STREAM.
-		String mediaType =
-				humanFormatOutput ? MediaType.TEXT_PLAIN
-						: MediaType.APPLICATION_OCTET_STREAM;
-
-		// Prepare a StreamingOutput object so can write using it
-		StreamingOutput stream = new StreamingOutput() {
-			public void write(OutputStream outputStream) throws IOException,
-					WebApplicationException {
-				try {
-					FeedMessage message =
-							GtfsRtTripFeed.getPossiblyCachedMessage(
-									stdParameters.getAgencyId(),
-									gtfsRtCacheSeconds.getValue());
-
-					// Output in human readable format or in standard binary
-					// format
-					if (humanFormatOutput) {
-						// Output data in human readable format. First, convert
-						// the octal escaped message to regular UTF encoding.
-						String decodedMessage =
-								OctalDecoder.convertOctalEscapedString(message
-										.toString());
-						outputStream.write(decodedMessage.getBytes());
-					} else {
-						// Standard binary output
-						message.writeTo(outputStream);
-					}
-				} catch (Exception e) {
-					throw new WebApplicationException(e);
-				}
-			}
-		};
-
-		// Write out the data using the output stream
-		return Response.ok(stream).type(mediaType).build();
+		DataCache.CacheEntry cacheEntry =
+				GtfsRtTripFeed.getPossiblyCachedMessage(
+						stdParameters.getAgencyId(),
+						gtfsRtCacheSeconds.getValue());
+		return createResponse(cacheEntry, format, acceptEncoding);
 	}
 
 }
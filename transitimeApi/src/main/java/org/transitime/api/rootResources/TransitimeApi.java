@@ -26,14 +26,21 @@ import java.util.List;
 import java.util.Map;
 
 import javax.ws.rs.BeanParam;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
+import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
 
 import org.transitime.api.data.ApiActiveBlocks;
 import org.transitime.api.data.ApiActiveBlocksRoutes;
@@ -66,14 +73,18 @@ import org.transitime.api.data.ApiVehicleConfigs;
 import org.transitime.api.data.ApiVehicles;
 import org.transitime.api.data.ApiVehiclesDetails;
 import org.transitime.api.predsByLoc.PredsByLoc;
+import org.transitime.api.stream.ChangeStream;
+import org.transitime.api.stream.StreamSubscriber;
 import org.transitime.api.utils.StandardParameters;
 import org.transitime.api.utils.WebUtils;
+import org.transitime.config.IntegerConfigValue;
 import org.transitime.core.TemporalDifference;
 import org.transitime.db.structs.Agency;
 import org.transitime.db.structs.Location;
 import org.transitime.ipc.data.IpcActiveBlock;
 import org.transitime.ipc.data.IpcArrivalDeparture;
 import org.transitime.ipc.data.IpcBlock;
+import org.transitime.ipc.data.IpcBulkPredictions;
 import org.transitime.ipc.data.IpcCalendar;
 import org.transitime.ipc.data.IpcPrediction;
 import org.transitime.ipc.data.IpcPredictionForStopPath;
@@ -115,6 +126,13 @@ import org.transitime.ipc.interfaces.PredictionsInterface.RouteStop;
 @Path("/key/{key}/agency/{agency}")
 public class TransitimeApi {
 
+	private static IntegerConfigValue maxStopsForPredictions =
+			new IntegerConfigValue(
+					"transitime.api.maxStopsForPredictions", 5000,
+					"Maximum number of stops that can be specified for a "
+					+ "predictionsForStops request. Limits how much work "
+					+ "a single request can cause for the server.");
+
 	/**
 	 * Handles the "vehicles" command. Returns data for all vehicles or for the
 	 * vehicles specified via the query string.
@@ -526,6 +544,170 @@ public class TransitimeApi {
 		}
 	}
 
+	/**
+	 * Handles "predictionsForStops" command. Like the "predictions" command
+	 * with only stops specified, but intended for clients that need
+	 * predictions for a large number of stops, such as for digital signage.
+	 * The predictions for all of the stops are obtained from the server with
+	 * a single bulk call that returns a compact columnar result. A stop that
+	 * is not valid doesn't cause the request to fail. Instead the invalid
+	 * stops are listed in the response. Stops that don't currently have any
+	 * predictions are not included in the response.
+	 * <p>
+	 * Since a URL with thousands of stops can be too long for some servers
+	 * the stops can also be specified using a POST with a form encoded
+	 * body. The number of stops is limited by
+	 * transitime.api.maxStopsForPredictions.
+	 * 
+	 * @param stdParameters
+	 *            StdParametersBean that gets the standard parameters from the
+	 *            URI, query string, and headers.
+	 * @param stopStrs
+	 *            List of stops to return predictions for. Provides predictions
+	 *            for all routes that serve the stop. Can use either stop ID or
+	 *            stop code.
+	 * @param numberPredictions
+	 *            Maximum number of predictions to return per destination.
+	 *            Default value is 3.
+	 * @return
+	 * @throws WebApplicationException
+	 */
+	@Path("/command/predictionsForStops")
+	@GET
+	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
+	public Response getPredictionsForStops(
+			@BeanParam StandardParameters stdParameters,
+			@QueryParam(value = "s") List<String> stopStrs,
+			@QueryParam(value = "numPreds") @DefaultValue("3") int numberPredictions)
+			throws WebApplicationException {
+		return predictionsForStops(stdParameters, stopStrs, numberPredictions);
+	}
+
+	/**
+	 * Same as the GET version of the "predictionsForStops" command but the
+	 * stops and number of predictions are specified in a form encoded body.
+	 * 
+	 * @param stdParameters
+	 * @param stopStrs
+	 * @param numberPredictions
+	 * @return
+	 * @throws WebApplicationException
+	 */
+	@Path("/command/predictionsForStops")
+	@POST
+	@Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
+	public Response postPredictionsForStops(
+			@BeanParam StandardParameters stdParameters,
+			@FormParam(value = "s") List<String> stopStrs,
+			@FormParam(value = "numPreds") @DefaultValue("3") int numberPredictions)
+			throws WebApplicationException {
+		return predictionsForStops(stdParameters, stopStrs, numberPredictions);
+	}
+
+	private Response predictionsForStops(StandardParameters stdParameters,
+			List<String> stopStrs, int numberPredictions)
+			throws WebApplicationException {
+		// Make sure request is valid
+		stdParameters.validate();
+
+		if (stopStrs.size() > maxStopsForPredictions.getValue())
+			throw WebUtils.badRequestException("Maximum number of stops "
+					+ "is " + maxStopsForPredictions.getValue() + " but "
+					+ stopStrs.size() + " were specified in the request.");
+
+		try {
+			// Get Prediction data from server via a single bulk IPC call
+			PredictionsInterface inter = stdParameters.getPredictionsInterface();
+			IpcBulkPredictions predictions =
+					inter.getBulk(stopStrs, numberPredictions);
+
+			// return ApiPredictions response
+			ApiPredictions predictionsData = new ApiPredictions(predictions);
+			return stdParameters.createResponse(predictionsData);
+		} catch (Exception e) {
+			// If problem getting data then return a Bad Request
+			throw WebUtils.badRequestException(e);
+		}
+	}
+
+	/**
+	 * Handles the "stream" command. Instead of the client repeatedly polling
+	 * the "vehiclesDetails" and "predictions" commands for the full dataset
+	 * the connection is held open and the changes are pushed to the client
+	 * as server-sent events. The first "update" event contains all of the
+	 * vehicles and predictions that match the filters. Each subsequent
+	 * "update" event contains only the vehicles and predictions that changed,
+	 * the vehicles that were removed or no longer match the filters, and
+	 * empty predictions for vehicles that no longer have matching
+	 * predictions. The data of each event is in JSON.
+	 * 
+	 * @param stdParameters
+	 *            StdParametersBean that gets the standard parameters from the
+	 *            URI, query string, and headers.
+	 * @param routesIdOrShortNames
+	 *            Optional way of specifying which routes to get data for
+	 * @param stopIdsOrCodes
+	 *            Optional way of specifying which stops to get predictions
+	 *            for. Can be the stop ID or the stop code. If specified then
+	 *            only the vehicles that have predictions for the stops are
+	 *            included.
+	 * @return The Response object for the event stream
+	 * @throws WebApplicationException
+	 */
+	@Path("/command/stream")
+	@GET
+	@Produces(SseFeature.SERVER_SENT_EVENTS)
+	public Response getStream(@BeanParam StandardParameters stdParameters,
+			@QueryParam(value = "r") List<String> routesIdOrShortNames,
+			@QueryParam(value = "s") List<String> stopIdsOrCodes)
+			throws WebApplicationException {
+		// Make sure request is valid
+		stdParameters.validate();
+
+		// Make sure the agency is valid before subscribing
+		stdParameters.getVehiclesInterface();
+		stdParameters.getPredictionsInterface();
+
+		// The predictions only contain the stop ID so convert any stop codes
+		// to stop IDs, just like the server does for the predictions command
+		List<String> stopIds = new ArrayList<String>();
+		for (String stopIdOrCode : stopIdsOrCodes) {
+			if (!stopIdOrCode.trim().isEmpty())
+				stopIds.add(stopIdOrCode.trim());
+		}
+		if (!stopIds.isEmpty()) {
+			List<String> resolvedStopIds;
+			try {
+				resolvedStopIds = stdParameters.getConfigInterface()
+						.getStopIds(stopIds);
+			} catch (RemoteException e) {
+				throw WebUtils.badRequestException(e);
+			}
+			for (int i = 0; i < stopIds.size(); ++i) {
+				if (resolvedStopIds.get(i) == null)
+					throw WebUtils.badRequestException("Stop "
+							+ stopIds.get(i) + " not valid");
+			}
+			stopIds = resolvedStopIds;
+		}
+
+		EventOutput eventOutput = new EventOutput();
+		StreamSubscriber subscriber = new StreamSubscriber(eventOutput,
+				routesIdOrShortNames, stopIds);
+		if (!ChangeStream.getInstance().subscribe(stdParameters.getAgencyId(),
+				subscriber))
+			throw WebUtils.badRequestException(
+					Status.SERVICE_UNAVAILABLE.getStatusCode(),
+					"Too many clients are streaming data for agency "
+							+ stdParameters.getAgencyId());
+
+		// Allow cross-origin requests like for the other commands
+		return Response.ok(eventOutput)
+				.header("Access-Control-Allow-Origin", "*")
+				.type(SseFeature.SERVER_SENT_EVENTS_TYPE).build();
+	}
+
 	/**
 	 * Handles "predictionsByLoc" command. Gets predictions from server and
 	 * returns the corresponding response.
@@ -0,0 +1,405 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.api.stream;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.db.structs.Agency;
+import org.transitime.db.webstructs.WebAgency;
+import org.transitime.ipc.clients.PredictionsInterfaceFactory;
+import org.transitime.ipc.clients.VehiclesInterfaceFactory;
+import org.transitime.ipc.data.IpcChanges;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.ipc.data.IpcVehicle;
+import org.transitime.ipc.data.IpcVehicleGtfsRealtime;
+import org.transitime.ipc.interfaces.PredictionsInterface;
+import org.transitime.ipc.interfaces.VehiclesInterface;
+import org.transitime.utils.IntervalTimer;
+import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
+
+/**
+ * For pushing the changes to the vehicles and predictions to the clients of
+ * the stream command. For each agency that has clients the changes are
+ * obtained from the server once per polling interval, using the same
+ * "changes since" calls as the incremental GTFS-realtime feeds. Therefore
+ * the server only needs to provide the vehicles that changed, and only once
+ * no matter how many clients there are. The changes are then filtered for
+ * each client and pushed as server-sent events.
+ * <p>
+ * The latest vehicles and predictions are kept so that a new client can be
+ * sent the full dataset before being sent the changes. When an agency no
+ * longer has any clients it stops being polled.
+ * <p>
+ * A single background thread does the polling and filtering for all agencies
+ * so the filtering done by the subscribers doesn't need to be threadsafe. The
+ * resulting events are written to the clients by a separate writer pool, see
+ * StreamSubscriber, so that a slow client cannot hold up the polling or the
+ * other clients.
+ */
+public class ChangeStream {
+
+	private static IntegerConfigValue pollingRateMsec = new IntegerConfigValue(
+			"transitime.api.streamPollingRateMsec", 1000,
+			"How frequently the changes to the vehicles and predictions are "
+			+ "obtained from the server for the clients of the stream "
+			+ "command. The changes are obtained once per agency no "
+			+ "matter how many clients there are.");
+
+	private static IntegerConfigValue maxSubscribers = new IntegerConfigValue(
+			"transitime.api.streamMaxSubscribers", 1000,
+			"Maximum number of clients of the stream command per agency. "
+			+ "Each client holds a connection open.");
+
+	// If nothing sent to a client for this long then a comment is sent so
+	// that the connection isn't closed by a proxy for being idle
+	private static final long KEEP_ALIVE_MSEC = 15 * Time.MS_PER_SEC;
+
+	// Vehicles with older AVL reports are dropped, just like for the
+	// GTFS-realtime vehicle feed
+	private static final long MAX_AVL_AGE_MSEC = 15 * Time.MS_PER_MIN;
+
+	// Keyed by agency ID. Guarded by this.
+	private final Map<String, AgencyStream> streams =
+			new HashMap<String, AgencyStream>();
+
+	private final ScheduledExecutorService executor =
+			Executors.newSingleThreadScheduledExecutor(
+					new NamedThreadFactory("ChangeStream"));
+
+	// This is a singleton class
+	private static ChangeStream singleton = new ChangeStream();
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ChangeStream.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * The polling state and the clients for a single agency
+	 */
+	private class AgencyStream implements Runnable {
+		private final String agencyId;
+		private final VehiclesInterface vehiclesInterface;
+		private final PredictionsInterface predictionsInterface;
+		private final Time timeForAgency;
+
+		// The clients. Modified only while synchronized on the
+		// ChangeStream so that can be counted when subscribing.
+		private final List<StreamSubscriber> subscribers =
+				new ArrayList<StreamSubscriber>();
+		private final List<StreamSubscriber> newSubscribers =
+				new ArrayList<StreamSubscriber>();
+
+		// For requesting only what changed since the previous poll
+		private long vehiclesEpoch = 0;
+		private long vehiclesSequence = 0;
+		private long predictionsEpoch = 0;
+		private long predictionsSequence = 0;
+
+		// The latest data, keyed by vehicle ID
+		private final Map<String, IpcVehicle> vehicles =
+				new HashMap<String, IpcVehicle>();
+		private final Map<String, List<IpcPrediction>> predictionsByVehicle =
+				new HashMap<String, List<IpcPrediction>>();
+
+		private ScheduledFuture<?> scheduledFuture;
+
+		private AgencyStream(String agencyId) {
+			this.agencyId = agencyId;
+			this.vehiclesInterface = VehiclesInterfaceFactory.get(agencyId);
+			this.predictionsInterface =
+					PredictionsInterfaceFactory.get(agencyId);
+
+			WebAgency webAgency = WebAgency.getCachedWebAgency(agencyId);
+			Agency agency = webAgency != null ? webAgency.getAgency() : null;
+			this.timeForAgency = agency != null ?
+					agency.getTime() : new Time((String) null);
+		}
+
+		/**
+		 * Called by the executor to poll for the changes and push them to
+		 * the clients
+		 */
+		@Override
+		public void run() {
+			try {
+				poll();
+			} catch (Exception e) {
+				// Don't let an exception stop the polling
+				logger.error("Exception streaming changes for agencyId={}",
+						agencyId, e);
+			}
+		}
+
+		private void poll() {
+			List<StreamSubscriber> subscribersToAdd;
+			synchronized (ChangeStream.this) {
+				// If no more clients then stop polling
+				if (subscribers.isEmpty() && newSubscribers.isEmpty()) {
+					logger.info("No more stream clients for agencyId={} so "
+							+ "no longer getting changes.", agencyId);
+					streams.remove(agencyId);
+					scheduledFuture.cancel(false);
+					return;
+				}
+
+				subscribersToAdd = new ArrayList<StreamSubscriber>(
+						newSubscribers);
+				newSubscribers.clear();
+			}
+
+			// Get the changes from the server. Both are obtained before
+			// either is applied so that a failure doesn't cause changes to
+			// be lost.
+			IntervalTimer timer = new IntervalTimer();
+			IpcChanges<IpcVehicleGtfsRealtime> vehicleChanges = null;
+			IpcChanges<List<IpcPrediction>> predictionChanges = null;
+			try {
+				vehicleChanges = vehiclesInterface.getGtfsRealtimeChangesSince(
+						vehiclesEpoch, vehiclesSequence);
+				predictionChanges =
+						predictionsInterface.getPredictionChangesSince(
+								predictionsEpoch, predictionsSequence);
+			} catch (RemoteException e) {
+				logger.error("Exception when getting changes for stream for "
+						+ "agencyId={} via RMI", agencyId, e);
+			}
+
+			Set<String> changedVehicles = new HashSet<String>();
+			Set<String> changedPredictions = new HashSet<String>();
+			if (vehicleChanges != null && predictionChanges != null) {
+				vehiclesEpoch = vehicleChanges.getEpoch();
+				vehiclesSequence = vehicleChanges.getSequence();
+				applyChanges(vehicles, vehicleChanges, changedVehicles);
+
+				predictionsEpoch = predictionChanges.getEpoch();
+				predictionsSequence = predictionChanges.getSequence();
+				applyChanges(predictionsByVehicle, predictionChanges,
+						changedPredictions);
+
+				logger.debug("Getting changes for stream for agencyId={} "
+						+ "took {} msec. {} vehicles and {} predictions "
+						+ "changed.", agencyId, timer.elapsedMsec(),
+						changedVehicles.size(), changedPredictions.size());
+
+				// A vehicle that stops reporting doesn't show up in the
+				// changes so drop what has become obsolete
+				removeExpired(System.currentTimeMillis(), vehicles,
+						predictionsByVehicle, changedVehicles,
+						changedPredictions);
+			} else {
+				// Can't send the full dataset to the new clients yet so
+				// try again next time
+				synchronized (ChangeStream.this) {
+					newSubscribers.addAll(subscribersToAdd);
+				}
+				subscribersToAdd.clear();
+			}
+
+			// Push the changes to the existing clients
+			List<StreamSubscriber> closedSubscribers =
+					new ArrayList<StreamSubscriber>();
+			for (StreamSubscriber subscriber : subscribers) {
+				// If client has gone away, or was closed for falling
+				// behind, then no longer send it anything
+				if (subscriber.isClosed()) {
+					closedSubscribers.add(subscriber);
+					continue;
+				}
+				if (!changedVehicles.isEmpty()
+						|| !changedPredictions.isEmpty())
+					subscriber.sendChanges(changedVehicles,
+							changedPredictions, vehicles,
+							predictionsByVehicle, timeForAgency);
+				subscriber.keepAlive(KEEP_ALIVE_MSEC);
+			}
+
+			// Send the full dataset to the new clients
+			List<StreamSubscriber> addedSubscribers =
+					new ArrayList<StreamSubscriber>();
+			for (StreamSubscriber subscriber : subscribersToAdd) {
+				if (subscriber.isClosed())
+					continue;
+				subscriber.sendFullDataset(vehicles, predictionsByVehicle,
+						timeForAgency);
+				addedSubscribers.add(subscriber);
+			}
+
+			synchronized (ChangeStream.this) {
+				subscribers.removeAll(closedSubscribers);
+				subscribers.addAll(addedSubscribers);
+			}
+		}
+	}
+
+	/**
+	 * Constructor private because singleton class
+	 */
+	private ChangeStream() {
+	}
+
+	/**
+	 * Get singleton instance.
+	 * 
+	 * @return
+	 */
+	public static ChangeStream getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Updates the data using the changes. If the changes are the full
+	 * dataset then the vehicles that are not included are removed.
+	 *
+	 * @param data
+	 *            The data to be updated, keyed by vehicle ID
+	 * @param changes
+	 *            A null value means that the data for the vehicle was
+	 *            removed
+	 * @param changedVehicleIds
+	 *            The IDs of the vehicles whose data changed are added to it
+	 */
+	static <T> void applyChanges(Map<String, T> data,
+			IpcChanges<? extends T> changes, Set<String> changedVehicleIds) {
+		Map<String, ? extends T> changesByVehicle =
+				changes.getChangesByVehicle();
+		if (changes.isFullDataset()) {
+			for (String vehicleId : data.keySet()) {
+				if (!changesByVehicle.containsKey(vehicleId))
+					changedVehicleIds.add(vehicleId);
+			}
+			data.keySet().retainAll(changesByVehicle.keySet());
+		}
+
+		for (Map.Entry<String, ? extends T> entry :
+				changesByVehicle.entrySet()) {
+			changedVehicleIds.add(entry.getKey());
+			if (entry.getValue() != null)
+				data.put(entry.getKey(), entry.getValue());
+			else
+				data.remove(entry.getKey());
+		}
+	}
+
+	/**
+	 * Removes the data that has become obsolete even though it hasn't
+	 * changed. Vehicles with an old AVL report, unless on a layover, are
+	 * removed. Predictions that have expired are removed and if a vehicle has
+	 * no predictions left then it is removed from predictionsByVehicle.
+	 *
+	 * @param now
+	 * @param vehicles
+	 *            Keyed by vehicle ID
+	 * @param predictionsByVehicle
+	 *            Keyed by vehicle ID
+	 * @param changedVehicles
+	 *            The IDs of the vehicles removed are added to it
+	 * @param changedPredictions
+	 *            The IDs of the vehicles whose predictions changed are added
+	 *            to it
+	 */
+	static void removeExpired(long now, Map<String, IpcVehicle> vehicles,
+			Map<String, List<IpcPrediction>> predictionsByVehicle,
+			Set<String> changedVehicles, Set<String> changedPredictions) {
+		Iterator<Map.Entry<String, IpcVehicle>> vehicleIterator =
+				vehicles.entrySet().iterator();
+		while (vehicleIterator.hasNext()) {
+			Map.Entry<String, IpcVehicle> entry = vehicleIterator.next();
+			IpcVehicle vehicle = entry.getValue();
+			if (!vehicle.isLayover()
+					&& vehicle.getAvl().getTime() <= now - MAX_AVL_AGE_MSEC) {
+				vehicleIterator.remove();
+				changedVehicles.add(entry.getKey());
+			}
+		}
+
+		Iterator<Map.Entry<String, List<IpcPrediction>>> predsIterator =
+				predictionsByVehicle.entrySet().iterator();
+		while (predsIterator.hasNext()) {
+			Map.Entry<String, List<IpcPrediction>> entry = predsIterator.next();
+			List<IpcPrediction> currentPreds = null;
+			List<IpcPrediction> preds = entry.getValue();
+			for (int i = 0; i < preds.size(); ++i) {
+				if (preds.get(i).getPredictionTime() >= now) {
+					if (currentPreds != null)
+						currentPreds.add(preds.get(i));
+				} else if (currentPreds == null) {
+					// First expired prediction so copy the ones before it
+					currentPreds = new ArrayList<IpcPrediction>(
+							preds.subList(0, i));
+				}
+			}
+			if (currentPreds == null)
+				continue;
+
+			changedPredictions.add(entry.getKey());
+			if (currentPreds.isEmpty())
+				predsIterator.remove();
+			else
+				entry.setValue(currentPreds);
+		}
+	}
+
+	/**
+	 * Adds a client for the agency. The full dataset is sent to the client
+	 * at the next polling interval and then the changes after that. Starts
+	 * polling for the agency if it isn't already being polled.
+	 *
+	 * @param agencyId
+	 *            Must be a valid agency
+	 * @param subscriber
+	 * @return false if the agency already has the maximum number of clients
+	 */
+	public synchronized boolean subscribe(String agencyId,
+			StreamSubscriber subscriber) {
+		AgencyStream stream = streams.get(agencyId);
+		if (stream == null) {
+			logger.info("Starting to get changes for stream for agencyId={}",
+					agencyId);
+			stream = new AgencyStream(agencyId);
+			streams.put(agencyId, stream);
+			stream.scheduledFuture = executor.scheduleWithFixedDelay(stream,
+					0, Math.max(100, pollingRateMsec.getValue()),
+					TimeUnit.MILLISECONDS);
+		}
+
+		if (stream.subscribers.size() + stream.newSubscribers.size()
+				>= maxSubscribers.getValue()) {
+			logger.warn("Stream for agencyId={} already has the maximum of "
+					+ "{} clients.", agencyId, maxSubscribers.getValue());
+			return false;
+		}
+
+		stream.newSubscribers.add(subscriber);
+		return true;
+	}
+}
@@ -0,0 +1,379 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License (GPL) as published by the
+ * Free Software Foundation, either version 3 of the License, or any later
+ * version.
+ * 
+ * Transitime.org is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Transitime.org . If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.api.stream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.core.MediaType;
+
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitime.api.data.ApiStreamUpdate;
+import org.transitime.api.data.ApiVehicleDetails;
+import org.transitime.api.data.ApiVehiclePredictions;
+import org.transitime.config.IntegerConfigValue;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.ipc.data.IpcVehicle;
+import org.transitime.utils.Time;
+import org.transitime.utils.threading.NamedThreadFactory;
+
+/**
+ * A client of the stream command. Filters the changes for the agency
+ * according to the routes and stops that the client specified and writes
+ * them as server-sent events. Keeps track of which vehicles and predictions
+ * the client has been sent so that it can be told when a vehicle no longer
+ * matches the filters, such as when it changes route.
+ * <p>
+ * The events are not written by the ChangeStream thread since writing to a
+ * slow client would then hold up all the other clients. Instead they are put
+ * into a bounded queue for the client and written by a separate writer
+ * thread. If a client falls so far behind that its queue is full then it is
+ * closed. The client can then reconnect and will be sent the full dataset.
+ * <p>
+ * Other than the queue and closing, only accessed by the ChangeStream thread
+ * so the filtering is not threadsafe.
+ */
+public class StreamSubscriber {
+
+	private static IntegerConfigValue maxQueuedUpdates =
+			new IntegerConfigValue(
+					"transitime.api.streamMaxQueuedUpdates", 30,
+					"Maximum number of updates that can be waiting to be "
+					+ "written to a client of the stream command. If a "
+					+ "client falls further behind than this it is "
+					+ "disconnected so that it doesn't use up memory.");
+
+	// Writes the events to the clients. A write to a client that isn't
+	// reading blocks until the connection times out. Each client therefore
+	// uses its own thread while it is being written to, so that it can't
+	// hold up the other clients. The number of threads is limited by the
+	// maximum number of subscribers.
+	private static final ExecutorService writerPool =
+			Executors.newCachedThreadPool(
+					new NamedThreadFactory("StreamWriter"));
+
+	private final EventOutput eventOutput;
+
+	// Events waiting to be written by the writer pool
+	private final BlockingQueue<OutboundEvent> queue =
+			new ArrayBlockingQueue<OutboundEvent>(
+					Math.max(1, maxQueuedUpdates.getValue()));
+
+	// True while a task for writing the queued events has been submitted to
+	// the writer pool. This way only one thread writes to the client at a
+	// time and the events are written in order.
+	private final AtomicBoolean writing = new AtomicBoolean(false);
+
+	private volatile boolean closed = false;
+
+	// The route IDs or route short names, and the stop IDs, that the client
+	// is interested in. Empty if not filtering on routes or stops.
+	private final Set<String> routeIdsOrShortNames;
+	private final Set<String> stopIds;
+
+	// What the client currently has
+	private final Set<String> vehiclesSent = new HashSet<String>();
+	private final Set<String> predictionsSent = new HashSet<String>();
+
+	// So can send a keep alive comment if nothing has been sent for a while
+	private long lastQueueTime = System.currentTimeMillis();
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(StreamSubscriber.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param eventOutput
+	 *            For writing the events to the client
+	 * @param routeIdsOrShortNames
+	 *            Only vehicles and predictions for these routes are sent. If
+	 *            empty then not filtered by route.
+	 * @param stopIds
+	 *            Only predictions for these stops, and the vehicles that
+	 *            have such predictions, are sent. If empty then not filtered
+	 *            by stop.
+	 */
+	public StreamSubscriber(EventOutput eventOutput,
+			Collection<String> routeIdsOrShortNames,
+			Collection<String> stopIds) {
+		this.eventOutput = eventOutput;
+		this.routeIdsOrShortNames = getNonBlank(routeIdsOrShortNames);
+		this.stopIds = getNonBlank(stopIds);
+	}
+
+	/**
+	 * Query string parameters can be specified but empty, such as "r=", so
+	 * ignore the blank ones.
+	 */
+	private static Set<String> getNonBlank(Collection<String> values) {
+		Set<String> nonBlankValues = new HashSet<String>();
+		for (String value : values) {
+			if (value != null && !value.trim().isEmpty())
+				nonBlankValues.add(value.trim());
+		}
+		return nonBlankValues;
+	}
+
+	/**
+	 * @return true if the client has gone away or was closed for falling
+	 *         behind
+	 */
+	public boolean isClosed() {
+		return closed || eventOutput.isClosed();
+	}
+
+	/**
+	 * Closes the connection to the client. The queued events are discarded.
+	 * Since closing can block if a write to the client is in progress the
+	 * connection is closed by the writer pool, so this method returns right
+	 * away.
+	 */
+	public void close() {
+		closed = true;
+		queue.clear();
+		writerPool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					eventOutput.close();
+				} catch (IOException e) {
+					// Nothing useful can be done so ignore
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends the full dataset. Called when the client first subscribes.
+	 *
+	 * @param vehicles
+	 *            The current vehicles, keyed by vehicle ID
+	 * @param predictionsByVehicle
+	 *            The current predictions, keyed by vehicle ID
+	 * @param timeForAgency
+	 *            For formatting the times in the vehicle data
+	 */
+	public void sendFullDataset(Map<String, IpcVehicle> vehicles,
+			Map<String, List<IpcPrediction>> predictionsByVehicle,
+			Time timeForAgency) {
+		Set<String> vehicleIds = new HashSet<String>(vehicles.keySet());
+		vehicleIds.addAll(predictionsByVehicle.keySet());
+		send(vehicleIds, vehicleIds, vehicleIds, vehicles,
+				predictionsByVehicle, timeForAgency, true);
+	}
+
+	/**
+	 * Sends what changed, as filtered for this client. If nothing that the
+	 * client is interested in changed then nothing is sent.
+	 *
+	 * @param changedVehicles
+	 *            IDs of vehicles whose data changed or was removed
+	 * @param changedPredictions
+	 *            IDs of vehicles whose predictions changed or were removed
+	 * @param vehicles
+	 *            The current vehicles, keyed by vehicle ID
+	 * @param predictionsByVehicle
+	 *            The current predictions, keyed by vehicle ID
+	 * @param timeForAgency
+	 *            For formatting the times in the vehicle data
+	 */
+	public void sendChanges(Set<String> changedVehicles,
+			Set<String> changedPredictions, Map<String, IpcVehicle> vehicles,
+			Map<String, List<IpcPrediction>> predictionsByVehicle,
+			Time timeForAgency) {
+		Set<String> vehicleIds = new HashSet<String>(changedVehicles);
+		vehicleIds.addAll(changedPredictions);
+		send(vehicleIds, changedVehicles, changedPredictions, vehicles,
+				predictionsByVehicle, timeForAgency, false);
+	}
+
+	/**
+	 * Sends a comment if nothing has been written for a while so that
+	 * proxies don't close the connection as idle and so that a client that
+	 * has gone away is detected.
+	 *
+	 * @param keepAliveMsec
+	 */
+	public void keepAlive(long keepAliveMsec) {
+		if (System.currentTimeMillis() - lastQueueTime < keepAliveMsec)
+			return;
+
+		write(new OutboundEvent.Builder().comment("keepalive").build());
+	}
+
+	private void send(Set<String> vehicleIds, Set<String> changedVehicles,
+			Set<String> changedPredictions, Map<String, IpcVehicle> vehicles,
+			Map<String, List<IpcPrediction>> predictionsByVehicle,
+			Time timeForAgency, boolean fullDataset) {
+		ApiStreamUpdate update = new ApiStreamUpdate(fullDataset);
+		for (String vehicleId : vehicleIds) {
+			IpcVehicle vehicle = vehicles.get(vehicleId);
+			List<IpcPrediction> predictions = getMatchingPredictions(vehicle,
+					predictionsByVehicle.get(vehicleId));
+
+			// Vehicle only sent if it is for one of the routes and, if
+			// filtering on stops, it is predicted for one of the stops
+			boolean vehicleMatches = vehicle != null
+					&& isRouteMatch(vehicle.getRouteId(),
+							vehicle.getRouteShortName())
+					&& (stopIds.isEmpty() || !predictions.isEmpty());
+			if (vehicleMatches) {
+				if (vehiclesSent.add(vehicleId)
+						|| changedVehicles.contains(vehicleId))
+					update.addVehicle(
+							new ApiVehicleDetails(vehicle, timeForAgency));
+			} else if (vehiclesSent.remove(vehicleId)) {
+				update.addRemovedVehicle(vehicleId);
+			}
+
+			// An empty list of predictions is sent to tell the client that
+			// the vehicle no longer has any of the predictions it was sent
+			if (!predictions.isEmpty()) {
+				if (predictionsSent.add(vehicleId)
+						|| changedPredictions.contains(vehicleId))
+					update.addVehiclePredictions(
+							new ApiVehiclePredictions(vehicleId, predictions));
+			} else if (predictionsSent.remove(vehicleId)) {
+				update.addVehiclePredictions(
+						new ApiVehiclePredictions(vehicleId, predictions));
+			}
+		}
+
+		if (update.isEmpty())
+			return;
+
+		write(new OutboundEvent.Builder().name("update")
+				.mediaType(MediaType.APPLICATION_JSON_TYPE)
+				.data(ApiStreamUpdate.class, update).build());
+	}
+
+	/**
+	 * Returns the predictions that are for the routes and stops that the
+	 * client is interested in. Since the route short name is not available
+	 * for predictions on the client side a prediction is considered to be
+	 * for a route specified by short name if it is for the same route as the
+	 * vehicle.
+	 *
+	 * @param vehicle
+	 *            The vehicle, or null if not available
+	 * @param predictions
+	 *            The predictions for the vehicle, or null if there are none
+	 * @return The matching predictions. Empty if there are none.
+	 */
+	private List<IpcPrediction> getMatchingPredictions(IpcVehicle vehicle,
+			List<IpcPrediction> predictions) {
+		if (predictions == null)
+			return Collections.emptyList();
+
+		List<IpcPrediction> matchingPredictions =
+				new ArrayList<IpcPrediction>();
+		for (IpcPrediction prediction : predictions) {
+			if (!stopIds.isEmpty()
+					&& !stopIds.contains(prediction.getStopId()))
+				continue;
+
+			String routeShortName = null;
+			if (vehicle != null
+					&& prediction.getRouteId() != null
+					&& prediction.getRouteId().equals(vehicle.getRouteId()))
+				routeShortName = vehicle.getRouteShortName();
+			if (!isRouteMatch(prediction.getRouteId(), routeShortName))
+				continue;
+
+			matchingPredictions.add(prediction);
+		}
+		return matchingPredictions;
+	}
+
+	private boolean isRouteMatch(String routeId, String routeShortName) {
+		return routeIdsOrShortNames.isEmpty()
+				|| (routeId != null && routeIdsOrShortNames.contains(routeId))
+				|| (routeShortName != null
+						&& routeIdsOrShortNames.contains(routeShortName));
+	}
+
+	/**
+	 * Queues the event to be written by the writer pool. If the client has
+	 * fallen too far behind then it is closed instead.
+	 *
+	 * @param event
+	 */
+	private void write(OutboundEvent event) {
+		if (closed)
+			return;
+
+		if (!queue.offer(event)) {
+			logger.warn("Stream client fell behind by more than {} updates "
+					+ "so closing it.", maxQueuedUpdates.getValue());
+			close();
+			return;
+		}
+		lastQueueTime = System.currentTimeMillis();
+
+		if (writing.compareAndSet(false, true))
+			writerPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					writeQueuedEvents();
+				}
+			});
+	}
+
+	/**
+	 * Called by the writer pool to write the queued events to the client.
+	 * Keeps going until the queue is empty.
+	 */
+	private void writeQueuedEvents() {
+		while (true) {
+			OutboundEvent event = queue.poll();
+			if (event == null) {
+				// Done for now. But an event might have been queued after
+				// the poll() and before writing was set to false, in which
+				// case no new task was submitted so need to keep going.
+				writing.set(false);
+				if (queue.isEmpty() || !writing.compareAndSet(false, true))
+					return;
+				continue;
+			}
+
+			if (closed)
+				continue;
+
+			try {
+				eventOutput.write(event);
+			} catch (IOException e) {
+				// Client has gone away
+				close();
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitime.api.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket, as used by UsageValidator. Instead of storing the number of
+ * tokens stores the time when the bucket would be full, the "theoretical
+ * arrival time". Each request moves that time forward by the time it takes
+ * to refill one token. If doing so would move it further into the future
+ * than it takes to refill the entire bucket then the bucket is empty and the
+ * request is rejected.
+ */
+class TokenBucket {
+	private final AtomicLong fullTime;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates a full bucket.
+	 *
+	 * @param now
+	 *            Current System.nanoTime()
+	 */
+	TokenBucket(long now) {
+		fullTime = new AtomicLong(now);
+	}
+
+	/**
+	 * Tries to take a token from the bucket.
+	 *
+	 * @param now
+	 *            Current System.nanoTime()
+	 * @param nanosPerToken
+	 *            How long it takes to refill a single token
+	 * @param nanosForFullBucket
+	 *            How long it takes to refill the whole bucket
+	 * @return 0 if a token was taken, otherwise the number of nanoseconds
+	 *         until a token will be available
+	 */
+	long tryTake(long now, long nanosPerToken, long nanosForFullBucket) {
+		while (true) {
+			long currentFullTime = fullTime.get();
+			long newFullTime = Math.max(currentFullTime, now) + nanosPerToken;
+			long excessNanos = newFullTime - now - nanosForFullBucket;
+			if (excessNanos > 0)
+				return excessNanos;
+			if (fullTime.compareAndSet(currentFullTime, newFullTime))
+				return 0;
+		}
+	}
+
+	/**
+	 * @param now
+	 * @return true if the bucket is full and therefore no different from a
+	 *         new bucket
+	 */
+	boolean isFull(long now) {
+		return fullTime.get() - now <= 0;
+	}
+}
@@ -1,6 +1,6 @@
 /*
  * This file is part of Transitime.org
- * 
+ *
  * Transitime.org is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License (GPL) as published by
  * the Free Software Foundation, either version 3 of the License, or
@@ -17,49 +17,76 @@
 
 package org.transitime.api.utils;
 
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.WebApplicationException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.transitime.config.IntegerConfigValue;
 
 /**
  * For making sure that use of API doesn't exceed limits. Intended to deal with
  * bad applications that are requesting too much data or a denial of service
- * attack. Currently simply checks to make sure that for a given request IP
- * address that there aren't more than a certain number of requests per time
- * frame.
+ * attack. For both the request IP address and the API key makes sure that
+ * there aren't more than a certain number of requests per time frame. If
+ * there are then a 429 Too Many Requests response is returned with a
+ * Retry-After header.
  * <p>
- * This check should probably be refined in the future.
+ * Uses a token bucket for each IP address and for each API key. The bucket
+ * holds up to transitime.usage.maxRequests tokens and is refilled at a rate
+ * of maxRequests tokens per transitime.usage.maxRequestsTimeMsec. Each
+ * request takes a token. The bucket is implemented as a "theoretical arrival
+ * time" stored in an AtomicLong so that it can be updated without locking.
  * <p>
- * Note that a map is used to keep track of the last request times. Eventually
- * this map could take up quite a bit of memory if old requests are never
- * cleared out.
- * 
+ * A bucket that has been idle long enough to be completely refilled is
+ * equivalent to a new bucket so such buckets are periodically removed from
+ * the maps. This way the maps don't grow without bound.
+ *
  * @author SkiBu Smith
- * 
+ *
  */
 public class UsageValidator {
 
-	// The limits of requests per IP address
-	
+	// The limits of requests per IP address and per API key
+
 	private static IntegerConfigValue maxRequests = new IntegerConfigValue(
 			"transitime.usage.maxRequests", 2000,
-			"Maximum number of requests to allow within the specified time frame");
-	
+			"Maximum number of requests to allow within the specified time "
+			+ "frame, for both an IP address and an API key. A value of 0 "
+			+ "means that usage is not limited.");
+
 	private static IntegerConfigValue maxRequestsTimeMsec = new IntegerConfigValue(
 			"transitime.usage.maxRequestsTimeMsec", 1000,
 			"Amount of time in msec before max requests count limit is reset");
-	
+
+	// How often idle buckets are removed from the maps
+	private static final long EVICTION_INTERVAL_NANOS =
+			TimeUnit.MINUTES.toNanos(1);
+
 	// This is a singleton class
 	private static UsageValidator singleton = new UsageValidator();
 
-	// Keyed on IP address. Contains list of times API last called for the 
-	// IP address.
-	private Map<String, LinkedList<Long>> requestTimesPerIp = 
-			new ConcurrentHashMap<String, LinkedList<Long>>();
+	// Keyed on IP address
+	private final ConcurrentMap<String, TokenBucket> bucketsPerIp =
+			new ConcurrentHashMap<String, TokenBucket>();
+
+	// Keyed on API key
+	private final ConcurrentMap<String, TokenBucket> bucketsPerKey =
+			new ConcurrentHashMap<String, TokenBucket>();
+
+	// When idle buckets were last removed, in System.nanoTime() units
+	private final AtomicLong lastEvictionTime =
+			new AtomicLong(System.nanoTime());
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(UsageValidator.class);
 
 	/********************** Member Functions **************************/
 
@@ -71,7 +98,7 @@ public class UsageValidator {
 
 	/**
 	 * Get singleton instance.
-	 * 
+	 *
 	 * @return
 	 */
 	public static UsageValidator getInstance() {
@@ -79,14 +106,123 @@ public class UsageValidator {
 	}
 
 	/**
-	 * TODO: previous impl was not thread safe -- so now its just a placeholder
-	 * for future checks  
+	 * Makes sure that neither the IP address nor the API key of the request
+	 * has exceeded the allowed number of requests.
+	 *
 	 * @param stdParameters
 	 * @throws WebApplicationException
+	 *             429 Too Many Requests, with a Retry-After header, if usage
+	 *             limit exceeded
 	 */
 	public void validateUsage(StandardParameters stdParameters)
 			throws WebApplicationException {
+		int requests = maxRequests.getValue();
+		if (requests <= 0)
+			return;
+
+		long now = System.nanoTime();
+		long nanosForFullBucket =
+				TimeUnit.MILLISECONDS.toNanos(maxRequestsTimeMsec.getValue());
+		long nanosPerToken = Math.max(nanosForFullBucket / requests, 1);
+
+		evictIdleBucketsIfNeeded(now);
+
+		HttpServletRequest request = stdParameters.getRequest();
+		String ip = request != null ? request.getRemoteAddr() : null;
+		if (ip != null) {
+			long waitNanos = tryTake(bucketsPerIp, ip, now, nanosPerToken,
+					nanosForFullBucket);
+			if (waitNanos > 0)
+				throw tooManyRequestsException("IP address " + ip, waitNanos);
+		}
+
+		String key = stdParameters.getKey();
+		if (key != null) {
+			long waitNanos = tryTake(bucketsPerKey, key, now, nanosPerToken,
+					nanosForFullBucket);
+			if (waitNanos > 0)
+				throw tooManyRequestsException("Application key \"" + key
+						+ "\"", waitNanos);
+		}
+	}
+
+	/**
+	 * Takes a token from the bucket for the id, creating the bucket if there
+	 * isn't one yet.
+	 *
+	 * @return 0 if a token was taken, otherwise the number of nanoseconds
+	 *         until a token will be available
+	 */
+	private static long tryTake(ConcurrentMap<String, TokenBucket> buckets,
+			String id, long now, long nanosPerToken, long nanosForFullBucket) {
+		TokenBucket bucket = buckets.get(id);
+		if (bucket == null) {
+			TokenBucket newBucket = new TokenBucket(now);
+			bucket = buckets.putIfAbsent(id, newBucket);
+			if (bucket == null)
+				bucket = newBucket;
+		}
+
+		return bucket.tryTake(now, nanosPerToken, nanosForFullBucket);
+	}
+
+	/**
+	 * Creates the 429 Too Many Requests exception.
+	 *
+	 * @param requester
+	 *            For the message
+	 * @param waitNanos
+	 *            How long until another request will be allowed. Used for
+	 *            the Retry-After header, which is in seconds.
+	 * @return Exception to be thrown
+	 */
+	private WebApplicationException tooManyRequestsException(String requester,
+			long waitNanos) {
+		long retryAfterSecs =
+				(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1)
+				/ TimeUnit.SECONDS.toNanos(1);
+
+		logger.debug("{} exceeded {} requests per {} msec.", requester,
+				maxRequests.getValue(), maxRequestsTimeMsec.getValue());
+
+		return WebUtils.tooManyRequestsException(requester + " exceeded "
+				+ maxRequests.getValue() + " requests per "
+				+ maxRequestsTimeMsec.getValue() + " msec.", retryAfterSecs);
+	}
+
+	/**
+	 * Removes the buckets that are full from the maps, but only if haven't
+	 * done so recently. Only one thread does the eviction. A bucket that is
+	 * full is the same as a new one so removing it doesn't change the
+	 * limits, other than that a request concurrently using the removed bucket
+	 * won't be counted.
+	 *
+	 * @param now
+	 */
+	private void evictIdleBucketsIfNeeded(long now) {
+		long lastEviction = lastEvictionTime.get();
+		if (now - lastEviction < EVICTION_INTERVAL_NANOS
+				|| !lastEvictionTime.compareAndSet(lastEviction, now))
+			return;
+
+		int removed = evictIdleBuckets(bucketsPerIp, now)
+				+ evictIdleBuckets(bucketsPerKey, now);
+		logger.debug("Removed {} idle usage buckets. {} IP and {} key "
+				+ "buckets remain.",
+				removed, bucketsPerIp.size(), bucketsPerKey.size());
+	}
 
-		return;
+	private static int evictIdleBuckets(
+			ConcurrentMap<String, TokenBucket> buckets, long now) {
+		int removed = 0;
+		Iterator<Map.Entry<String, TokenBucket>> iterator =
+				buckets.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getValue().isFull(now)) {
+				iterator.remove();
+				++removed;
+			}
+		}
+		return removed;
 	}
 }
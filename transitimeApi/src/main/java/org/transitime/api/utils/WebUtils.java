@@ -36,6 +36,9 @@ public class WebUtils {
   private static final Logger logger = LoggerFactory
       .getLogger(WebUtils.class);
   
+	// HTTP status code for Too Many Requests. Not defined in Response.Status.
+	private static final int TOO_MANY_REQUESTS = 429;
+  
 	/**
 	 * Provides the API key to be used to access the Transitime API by
 	 * Transitime web pages.
@@ -91,4 +94,26 @@ public class WebUtils {
 					.build());
 	}
 
+	/**
+	 * Convenience method for when need to throw a 429 Too Many Requests
+	 * exception response. Includes a Retry-After header so that well behaved
+	 * clients know how long to wait.
+	 * 
+	 * @param s
+	 *            Message to be provided as part of the response.
+	 * @param retryAfterSecs
+	 *            How many seconds the client should wait before retrying
+	 * @return Exception to be thrown
+	 */
+	public static WebApplicationException tooManyRequestsException(String s,
+			long retryAfterSecs) {
+		return new WebApplicationException(
+				Response.status(TOO_MANY_REQUESTS)
+					.entity(s)
+					.type(MediaType.TEXT_PLAIN)
+					.header("Access-Control-Allow-Origin", "*")
+					.header("Retry-After", retryAfterSecs)
+					.build());
+	}
+
 }
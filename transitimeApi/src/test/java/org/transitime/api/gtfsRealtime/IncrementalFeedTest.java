@@ -0,0 +1,184 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.api.gtfsRealtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.transitime.ipc.data.IpcChanges;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Tests that IncrementalFeed reapplies the time dependent filtering to
+ * vehicles that have stopped reporting. The data for a vehicle is a list of
+ * prediction times and, like GtfsRtTripFeed, an entity is created for each
+ * prediction that hasn't expired and is within the time window.
+ */
+public class IncrementalFeedTest extends TestCase {
+
+	private static final long WINDOW_MSEC = 1000;
+
+	private static final long START = 1000000;
+
+	/**
+	 * Feed whose changes are set by the test
+	 */
+	private static class TestFeed extends IncrementalFeed<List<Long>> {
+		private Map<String, List<Long>> nextChanges =
+				new HashMap<String, List<Long>>();
+		private long sequence = 0;
+		private int numCreated = 0;
+
+		private void change(String vehicleId, Long... predictionTimes) {
+			nextChanges.put(vehicleId, predictionTimes.length == 0 ? null
+					: Arrays.asList(predictionTimes));
+		}
+
+		@Override
+		protected IpcChanges<List<Long>> getChangesSince(long sinceEpoch,
+				long sinceSequence) {
+			IpcChanges<List<Long>> changes = new IpcChanges<List<Long>>(1,
+					++sequence, sinceEpoch != 1, nextChanges);
+			nextChanges = new HashMap<String, List<Long>>();
+			return changes;
+		}
+
+		@Override
+		protected List<FeedEntity> createEntities(List<Long> predictionTimes,
+				long now) {
+			++numCreated;
+			List<FeedEntity> entities = new ArrayList<FeedEntity>();
+			for (long time : predictionTimes) {
+				if (time >= now && time <= now + WINDOW_MSEC)
+					entities.add(FeedEntity.newBuilder()
+							.setId(Long.toString(time)).build());
+			}
+			return entities;
+		}
+
+		@Override
+		protected long getRebuildTime(List<Long> predictionTimes, long now) {
+			long rebuildTime = Long.MAX_VALUE;
+			for (long time : predictionTimes) {
+				if (time + 1 > now)
+					rebuildTime = Math.min(rebuildTime, time + 1);
+				if (time - WINDOW_MSEC > now)
+					rebuildTime = Math.min(rebuildTime, time - WINDOW_MSEC);
+			}
+			return rebuildTime;
+		}
+
+		@Override
+		protected boolean isCurrent(List<Long> predictionTimes, long now) {
+			for (long time : predictionTimes) {
+				if (time >= now)
+					return true;
+			}
+			return false;
+		}
+	}
+
+	private static List<String> entityIds(FeedMessage message) {
+		List<String> ids = new ArrayList<String>();
+		for (FeedEntity entity : message.getEntityList())
+			ids.add(entity.getId());
+		return ids;
+	}
+
+	public void testSilentVehicleExpires() {
+		TestFeed feed = new TestFeed();
+		feed.change("v1", START + 100, START + 500);
+		feed.change("v2", START + 800);
+		assertEquals(Arrays.asList("1000100", "1000500", "1000800"),
+				sorted(entityIds(feed.createMessage("test", START))));
+
+		// Neither vehicle reports again. The first prediction expires.
+		assertEquals(Arrays.asList("1000500", "1000800"),
+				sorted(entityIds(feed.createMessage("test", START + 200))));
+
+		// All predictions expired so nothing left in the feed
+		FeedMessage message = feed.createMessage("test", START + 900);
+		assertEquals(0, message.getEntityCount());
+		assertEquals((START + 900) / 1000,
+				message.getHeader().getTimestamp());
+	}
+
+	public void testPredictionEntersWindowWithoutChange() {
+		TestFeed feed = new TestFeed();
+		feed.change("v1", START + 500, START + 3000);
+		assertEquals(Arrays.asList("1000500"),
+				entityIds(feed.createMessage("test", START)));
+
+		// The later prediction is now within the window even though the
+		// vehicle didn't report
+		assertEquals(Arrays.asList("1003000"),
+				entityIds(feed.createMessage("test", START + 2000)));
+	}
+
+	public void testEntitiesOnlyRecreatedWhenNeeded() {
+		TestFeed feed = new TestFeed();
+		feed.change("v1", START + 500);
+		feed.createMessage("test", START);
+		assertEquals(1, feed.numCreated);
+
+		// Nothing changed and nothing expired
+		feed.createMessage("test", START + 100);
+		feed.createMessage("test", START + 200);
+		assertEquals(1, feed.numCreated);
+
+		// Once the prediction expires the vehicle is dropped instead of
+		// its entities being recreated
+		feed.createMessage("test", START + 501);
+		assertEquals(1, feed.numCreated);
+	}
+
+	public void testVehicleReportingAgainAfterBeingDropped() {
+		TestFeed feed = new TestFeed();
+		feed.change("v1", START + 100);
+		feed.createMessage("test", START);
+		assertEquals(0, feed.createMessage("test", START + 200)
+				.getEntityCount());
+
+		feed.change("v1", START + 600);
+		assertEquals(Arrays.asList("1000600"),
+				entityIds(feed.createMessage("test", START + 300)));
+	}
+
+	public void testRemovedVehicle() {
+		TestFeed feed = new TestFeed();
+		feed.change("v1", START + 100);
+		feed.change("v2", START + 200);
+		feed.createMessage("test", START);
+
+		feed.change("v1");
+		assertEquals(Arrays.asList("1000200"),
+				entityIds(feed.createMessage("test", START + 10)));
+	}
+
+	private static List<String> sorted(List<String> list) {
+		Collections.sort(list);
+		return list;
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.api.stream;
+
+import static org.transitime.api.stream.StreamSubscriberTest.NOW;
+import static org.transitime.api.stream.StreamSubscriberTest.prediction;
+import static org.transitime.api.stream.StreamSubscriberTest.vehicle;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.transitime.ipc.data.IpcChanges;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.ipc.data.IpcVehicle;
+import org.transitime.utils.Time;
+
+/**
+ * Tests how ChangeStream keeps the latest vehicles and predictions up to date
+ * using the changes obtained from the server.
+ */
+public class ChangeStreamTest extends TestCase {
+
+	private static Set<String> ids(String... ids) {
+		return new HashSet<String>(Arrays.asList(ids));
+	}
+
+	public void testFullDatasetThenChanges() {
+		Map<String, String> data = new HashMap<String, String>();
+		data.put("gone", "old");
+		data.put("v1", "old");
+
+		// Full dataset replaces everything. The vehicles that are no longer
+		// included count as changed so that the clients are told.
+		Map<String, String> changesByVehicle = new HashMap<String, String>();
+		changesByVehicle.put("v1", "a");
+		changesByVehicle.put("v2", "b");
+		Set<String> changed = new HashSet<String>();
+		ChangeStream.applyChanges(data,
+				new IpcChanges<String>(1, 5, true, changesByVehicle), changed);
+		assertEquals(ids("v1", "v2"), data.keySet());
+		assertEquals("a", data.get("v1"));
+		assertEquals(ids("gone", "v1", "v2"), changed);
+
+		// Changes only affect the vehicles included. Null means removed.
+		changesByVehicle = new HashMap<String, String>();
+		changesByVehicle.put("v2", null);
+		changesByVehicle.put("v3", "c");
+		changed = new HashSet<String>();
+		ChangeStream.applyChanges(data,
+				new IpcChanges<String>(1, 6, false, changesByVehicle), changed);
+		assertEquals(ids("v1", "v3"), data.keySet());
+		assertEquals("a", data.get("v1"));
+		assertEquals("c", data.get("v3"));
+		assertEquals(ids("v2", "v3"), changed);
+
+		// No changes
+		changed = new HashSet<String>();
+		ChangeStream.applyChanges(data, new IpcChanges<String>(1, 6, false,
+				new HashMap<String, String>()), changed);
+		assertEquals(ids("v1", "v3"), data.keySet());
+		assertTrue(changed.isEmpty());
+	}
+
+	public void testRemoveExpired() throws Exception {
+		Map<String, IpcVehicle> vehicles = new HashMap<String, IpcVehicle>();
+		long old = NOW - 20 * Time.MS_PER_MIN;
+		vehicles.put("current", vehicle("current", "r1", "1", NOW, false));
+		vehicles.put("stale", vehicle("stale", "r1", "1", old, false));
+		vehicles.put("layover", vehicle("layover", "r1", "1", old, true));
+
+		Map<String, List<IpcPrediction>> predictionsByVehicle =
+				new HashMap<String, List<IpcPrediction>>();
+		predictionsByVehicle.put("current", Arrays.asList(
+				prediction("current", "r1", "s1", NOW + 60000)));
+		predictionsByVehicle.put("someExpired", Arrays.asList(
+				prediction("someExpired", "r1", "s1", NOW - 60000),
+				prediction("someExpired", "r1", "s2", NOW + 60000)));
+		predictionsByVehicle.put("allExpired", Arrays.asList(
+				prediction("allExpired", "r1", "s1", NOW - 60000)));
+
+		Set<String> changedVehicles = new HashSet<String>();
+		Set<String> changedPredictions = new HashSet<String>();
+		ChangeStream.removeExpired(NOW, vehicles, predictionsByVehicle,
+				changedVehicles, changedPredictions);
+
+		// Vehicle on a layover is kept even though its AVL report is old
+		assertEquals(ids("current", "layover"), vehicles.keySet());
+		assertEquals(ids("stale"), changedVehicles);
+
+		assertEquals(ids("current", "someExpired"),
+				predictionsByVehicle.keySet());
+		assertEquals(1, predictionsByVehicle.get("someExpired").size());
+		assertEquals("s2",
+				predictionsByVehicle.get("someExpired").get(0).getStopId());
+		assertEquals(ids("someExpired", "allExpired"), changedPredictions);
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.api.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.transitime.api.data.ApiStopPrediction;
+import org.transitime.api.data.ApiStreamUpdate;
+import org.transitime.api.data.ApiVehicleDetails;
+import org.transitime.api.data.ApiVehiclePredictions;
+import org.transitime.core.BlockAssignmentMethod;
+import org.transitime.db.structs.AvlReport.AssignmentType;
+import org.transitime.ipc.data.CompactInput;
+import org.transitime.ipc.data.CompactOutput;
+import org.transitime.ipc.data.IpcAvl;
+import org.transitime.ipc.data.IpcPrediction;
+import org.transitime.ipc.data.IpcVehicle;
+import org.transitime.utils.Time;
+
+/**
+ * Tests that StreamSubscriber sends the full dataset and then only what
+ * changed, filtered by route and stop, and that a client that falls behind
+ * is closed.
+ */
+public class StreamSubscriberTest extends TestCase {
+
+	private static final int MAX_QUEUED_UPDATES = 2;
+
+	static {
+		System.setProperty("transitime.api.streamMaxQueuedUpdates",
+				Integer.toString(MAX_QUEUED_UPDATES));
+	}
+
+	static final long NOW = System.currentTimeMillis();
+
+	private static final Time TIME_FOR_AGENCY = new Time((String) null);
+
+	private static final Set<String> NONE = Collections.emptySet();
+
+	/**
+	 * Captures the events instead of writing them to a connection. Writing
+	 * can be blocked to simulate a client that isn't reading.
+	 */
+	private static class TestEventOutput extends EventOutput {
+		private final BlockingQueue<OutboundEvent> events =
+				new LinkedBlockingQueue<OutboundEvent>();
+		private final CountDownLatch writeStarted = new CountDownLatch(1);
+		private final CountDownLatch closedLatch = new CountDownLatch(1);
+		private volatile CountDownLatch blocker = null;
+		private volatile boolean closed = false;
+
+		@Override
+		public void write(OutboundEvent event) throws IOException {
+			writeStarted.countDown();
+			CountDownLatch b = blocker;
+			if (b != null) {
+				try {
+					b.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			events.add(event);
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			closedLatch.countDown();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * @return the next update written to the client
+		 */
+		private ApiStreamUpdate nextUpdate() throws InterruptedException {
+			OutboundEvent event = events.poll(5, TimeUnit.SECONDS);
+			assertNotNull("No update written", event);
+			assertEquals("update", event.getName());
+			return (ApiStreamUpdate) event.getData();
+		}
+
+		private void assertNothingWritten() throws InterruptedException {
+			assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	/**
+	 * Creates a vehicle using the protected IpcVehicle constructor since
+	 * otherwise can only be created from core objects.
+	 */
+	static IpcVehicle vehicle(String vehicleId, String routeId,
+			String routeShortName, long avlTime, boolean isLayover) {
+		IpcAvl avl = new IpcAvl(vehicleId, avlTime, 37.8f, -122.4f,
+				Float.NaN, 90f, "test", null, AssignmentType.UNSET, null,
+				null, -1, null);
+		return new IpcVehicle("block_" + vehicleId,
+				BlockAssignmentMethod.AVL_FEED_BLOCK_ASSIGNMENT, avl, 90f,
+				routeId, routeShortName, "Route " + routeShortName,
+				"trip_" + vehicleId, "pattern_" + routeId, "0", "Downtown",
+				true, false, null, false, isLayover, 0, null, null, "3",
+				37.8, -122.4) {
+		};
+	}
+
+	private static IpcVehicle vehicle(String vehicleId, String routeId,
+			String routeShortName) {
+		return vehicle(vehicleId, routeId, routeShortName, NOW, false);
+	}
+
+	/**
+	 * Creates a prediction by reading fields written in the order used by
+	 * IpcPrediction.writeCompact() since the class can otherwise only be
+	 * created from core objects.
+	 */
+	static IpcPrediction prediction(String vehicleId, String routeId,
+			String stopId, long predictionTime) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CompactOutput out = new CompactOutput(bytes);
+		out.writeString(vehicleId);
+		out.writeString(routeId);
+		out.writeString(stopId);
+		out.writeInt(1); // gtfsStopSeq
+		out.writeString("trip_" + vehicleId);
+		out.writeString("pattern_" + routeId);
+		out.writeString("block_" + vehicleId);
+		out.writeLong(predictionTime);
+		out.writeBoolean(false); // atEndOfTrip
+		out.writeBoolean(false); // schedBasedPred
+		out.writeLong(NOW); // avlTime
+		out.writeLong(NOW); // creationTime
+		out.writeLong(NOW); // tripStartEpochTime
+		out.writeBoolean(false); // affectedByWaitStop
+		out.writeString(null); // driverId
+		out.writeShort(-1); // passengerCount
+		out.writeFloat(Float.NaN); // passengerFullness
+		out.writeBoolean(true); // isArrival
+		out.writeBoolean(false); // isDelayed
+		out.writeBoolean(false); // lateAndSubsequentTripSoMarkAsUncertain
+		out.writeInteger(null); // delay
+		out.writeEnum(null); // occupancyStatus
+		return IpcPrediction.readCompact(new CompactInput(
+				new ByteArrayInputStream(bytes.toByteArray())));
+	}
+
+	private static IpcPrediction prediction(String vehicleId, String routeId,
+			String stopId) throws IOException {
+		return prediction(vehicleId, routeId, stopId, NOW + 60000);
+	}
+
+	private static Set<String> ids(String... ids) {
+		return new HashSet<String>(Arrays.asList(ids));
+	}
+
+	private static Set<String> vehicleIds(ApiStreamUpdate update) {
+		Set<String> ids = new HashSet<String>();
+		if (update.getVehicles() != null) {
+			for (ApiVehicleDetails vehicle : update.getVehicles())
+				ids.add(vehicle.getId());
+		}
+		return ids;
+	}
+
+	private static Set<String> removedVehicleIds(ApiStreamUpdate update) {
+		return update.getRemovedVehicleIds() == null ? NONE
+				: new HashSet<String>(update.getRemovedVehicleIds());
+	}
+
+	/**
+	 * @return the stop IDs of the predictions of each vehicle in the update
+	 */
+	private static Map<String, List<String>> predictionStopIds(
+			ApiStreamUpdate update) {
+		Map<String, List<String>> stopIdsByVehicle =
+				new HashMap<String, List<String>>();
+		if (update.getVehiclePredictions() != null) {
+			for (ApiVehiclePredictions preds : update.getVehiclePredictions()) {
+				List<String> stopIds = new ArrayList<String>();
+				for (ApiStopPrediction pred : preds.getPredictions())
+					stopIds.add(pred.getStopId());
+				stopIdsByVehicle.put(preds.getVehicleId(), stopIds);
+			}
+		}
+		return stopIdsByVehicle;
+	}
+
+	private final Map<String, IpcVehicle> vehicles =
+			new HashMap<String, IpcVehicle>();
+	private final Map<String, List<IpcPrediction>> predictionsByVehicle =
+			new HashMap<String, List<IpcPrediction>>();
+
+	private void setPredictions(String vehicleId, IpcPrediction... preds) {
+		if (preds.length == 0)
+			predictionsByVehicle.remove(vehicleId);
+		else
+			predictionsByVehicle.put(vehicleId, Arrays.asList(preds));
+	}
+
+	public void testFullDatasetThenChanges() throws Exception {
+		TestEventOutput output = new TestEventOutput();
+		StreamSubscriber subscriber = new StreamSubscriber(output,
+				Collections.<String> emptyList(),
+				Collections.<String> emptyList());
+
+		vehicles.put("v1", vehicle("v1", "r1", "1"));
+		vehicles.put("v2", vehicle("v2", "r2", "2"));
+		setPredictions("v1", prediction("v1", "r1", "s1"));
+		subscriber.sendFullDataset(vehicles, predictionsByVehicle,
+				TIME_FOR_AGENCY);
+
+		ApiStreamUpdate update = output.nextUpdate();
+		assertTrue(update.isFullDataset());
+		assertEquals(ids("v1", "v2"), vehicleIds(update));
+		assertEquals(Collections.singletonMap("v1", Arrays.asList("s1")),
+				predictionStopIds(update));
+
+		// Only the vehicle that changed is sent
+		vehicles.put("v2", vehicle("v2", "r2", "2"));
+		subscriber.sendChanges(ids("v2"), NONE, vehicles,
+				predictionsByVehicle, TIME_FOR_AGENCY);
+		update = output.nextUpdate();
+		assertFalse(update.isFullDataset());
+		assertEquals(ids("v2"), vehicleIds(update));
+		assertNull(update.getVehiclePredictions());
+		assertNull(update.getRemovedVehicleIds());
+
+		// A vehicle that gets predictions for the first time
+		setPredictions("v2", prediction("v2", "r2", "s2"));
+		subscriber.sendChanges(NONE, ids("v2"), vehicles,
+				predictionsByVehicle, TIME_FOR_AGENCY);
+		update = output.nextUpdate();
+		assertNull(update.getVehicles());
+		assertEquals(Collections.singletonMap("v2", Arrays.asList("s2")),
+				predictionStopIds(update));
+
+		// A vehicle that is removed, along with its predictions
+		vehicles.remove("v1");
+		setPredictions("v1");
+		subscriber.sendChanges(ids("v1"), ids("v1"), vehicles,
+				predictionsByVehicle, TIME_FOR_AGENCY);
+		update = output.nextUpdate();
+		assertEquals(ids("v1"), removedVehicleIds(update));
+		assertEquals(Collections.singletonMap("v1",
+				Collections.<String> emptyList()), predictionStopIds(update));
+
+		// Removing it again doesn't send anything since the client already
+		// knows it is gone
+		subscriber.sendChanges(ids("v1"), ids("v1"), vehicles,
+				predictionsByVehicle, TIME_FOR_AGENCY);
+		output.assertNothingWritten();
+	}
+
+	public void testVehicleChangingRouteRemoved() throws Exception {
+		TestEventOutput output = new TestEventOutput();
+		// Filter on route short name
+		StreamSubscriber subscriber = new StreamSubscriber(output,
+				Arrays.asList("1", " "), Collections.<String> emptyList());
+
+		vehicles.put("v1", vehicle("v1", "r1", "1"));
+		vehicles.put("v2", vehicle("v2", "r2", "2"));
+		setPredictions("v1", prediction("v1", "r1", "s1"));
+		setPredictions("v2", prediction("v2", "r2", "s2"));
+		subscriber.sendFullDataset(vehicles, predictionsByVehicle,
+				TIME_FOR_AGENCY);
+		ApiStreamUpdate update = output.nextUpdate();
+		assertEquals(ids("v1"), vehicleIds(update));
+		assertEquals(ids("v1"), predictionStopIds(update).keySet());
+
+		// Changes to a vehicle on another route are not sent
+		subscriber.sendChanges(ids("v2"), ids("v2"), vehicles,
+				predictionsByVehicle, TIME_FOR_AGENCY);
+		output.assertNothingWritten();
+
+		// Vehicle changing to another route is reported as removed and as
+		// no longer having predictions
+		vehicles.put("v1", vehicle("v1", "r2", "2"));
+		setPredictions("v1", prediction("v1", "r2", "s2"));
+		subscriber.sendChanges(ids("v1"), ids("v1"), vehicles,
+				predictionsByVehicle, TIME_FOR_AGENCY);
+		update = output.nextUpdate();
+		assertNull(update.getVehicles());
+		assertEquals(ids("v1"), removedVehicleIds(update));
+		assertEquals(Collections.singletonMap("v1",
+				Collections.<String> emptyList()), predictionStopIds(update));
+
+		// And as new when it changes back
+		vehicles.put("v1", vehicle("v1", "r1", "1"));
+		setPredictions("v1", prediction("v1", "r1", "s1"));
+		subscriber.sendChanges(ids("v1"), ids("v1"), vehicles,
+				predictionsByVehicle, TIME_FOR_AGENCY);
+		update = output.nextUpdate();
+		assertEquals(ids("v1"), vehicleIds(update));
+		assertNull(update.getRemovedVehicleIds());
+		assertEquals(ids("v1"), predictionStopIds(update).keySet());
+	}
+
+	public void testStopFilter() throws Exception {
+		TestEventOutput output = new TestEventOutput();
+		StreamSubscriber subscriber = new StreamSubscriber(output,
+				Collections.<String> emptyList(), Arrays.asList("s1"));
+
+		// Only the vehicles with predictions for the stop are sent, with
+		// only the predictions for the stop
+		vehicles.put("v1", vehicle("v1", "r1", "1"));
+		vehicles.put("v2", vehicle("v2", "r1", "1"));
+		setPredictions("v1", prediction("v1", "r1", "s1"),
+				prediction("v1", "r1", "s2"));
+		setPredictions("v2", prediction("v2", "r1", "s2"));
+		subscriber.sendFullDataset(vehicles, predictionsByVehicle,
+				TIME_FOR_AGENCY);
+		ApiStreamUpdate update = output.nextUpdate();
+		assertEquals(ids("v1"), vehicleIds(update));
+		assertEquals(Collections.singletonMap("v1", Arrays.asList("s1")),
+				predictionStopIds(update));
+
+		// Once the vehicle has passed the stop it is removed
+		setPredictions("v1", prediction("v1", "r1", "s2"));
+		subscriber.sendChanges(NONE, ids("v1"), vehicles,
+				predictionsByVehicle, TIME_FOR_AGENCY);
+		update = output.nextUpdate();
+		assertEquals(ids("v1"), removedVehicleIds(update));
+		assertEquals(Collections.singletonMap("v1",
+				Collections.<String> emptyList()), predictionStopIds(update));
+	}
+
+	public void testClientFallingBehindClosed() throws Exception {
+		TestEventOutput output = new TestEventOutput();
+		output.blocker = new CountDownLatch(1);
+		StreamSubscriber subscriber = new StreamSubscriber(output,
+				Collections.<String> emptyList(),
+				Collections.<String> emptyList());
+
+		vehicles.put("v1", vehicle("v1", "r1", "1"));
+		subscriber.sendFullDataset(vehicles, predictionsByVehicle,
+				TIME_FOR_AGENCY);
+
+		// Wait until the first update is being written, and is blocked,
+		// and then fill the queue
+		assertTrue(output.writeStarted.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < MAX_QUEUED_UPDATES; ++i)
+			subscriber.sendChanges(ids("v1"), NONE, vehicles,
+					predictionsByVehicle, TIME_FOR_AGENCY);
+		assertFalse(subscriber.isClosed());
+
+		// One more update than fits so client is closed
+		subscriber.sendChanges(ids("v1"), NONE, vehicles,
+				predictionsByVehicle, TIME_FOR_AGENCY);
+		assertTrue(subscriber.isClosed());
+
+		// The write in progress completes but the queued updates are
+		// discarded
+		output.blocker.countDown();
+		assertTrue(output.closedLatch.await(5, TimeUnit.SECONDS));
+		assertTrue(output.nextUpdate().isFullDataset());
+		output.assertNothingWritten();
+
+		// Nothing more is queued once closed
+		subscriber.sendChanges(ids("v1"), NONE, vehicles,
+				predictionsByVehicle, TIME_FOR_AGENCY);
+		output.assertNothingWritten();
+	}
+}
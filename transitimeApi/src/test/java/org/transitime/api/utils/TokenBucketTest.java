@@ -0,0 +1,120 @@
+/*
+ * This file is part of Transitime.org
+ * 
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitime.api.utils;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the token bucket used by UsageValidator for limiting the request
+ * rate of IP addresses and API keys.
+ */
+public class TokenBucketTest extends TestCase {
+
+	// 10 requests per second
+	private static final long NANOS_FOR_FULL_BUCKET = 1000000000L;
+	private static final long NANOS_PER_TOKEN = NANOS_FOR_FULL_BUCKET / 10;
+
+	// Arbitrary start time. System.nanoTime() can be negative.
+	private static final long START = -5000000000L;
+
+	public void testBurstUpToCapacityThenRejected() {
+		TokenBucket bucket = new TokenBucket(START);
+		for (int i = 0; i < 10; ++i)
+			assertEquals("request " + i, 0, bucket.tryTake(START,
+					NANOS_PER_TOKEN, NANOS_FOR_FULL_BUCKET));
+
+		long waitNanos = bucket.tryTake(START, NANOS_PER_TOKEN,
+				NANOS_FOR_FULL_BUCKET);
+		assertEquals(NANOS_PER_TOKEN, waitNanos);
+
+		// A rejected request doesn't use up a token
+		assertEquals(NANOS_PER_TOKEN, bucket.tryTake(START, NANOS_PER_TOKEN,
+				NANOS_FOR_FULL_BUCKET));
+	}
+
+	public void testRefillsAtConfiguredRate() {
+		TokenBucket bucket = new TokenBucket(START);
+		for (int i = 0; i < 10; ++i)
+			bucket.tryTake(START, NANOS_PER_TOKEN, NANOS_FOR_FULL_BUCKET);
+
+		// Part of the way to the next token still isn't enough
+		long now = START + NANOS_PER_TOKEN / 2;
+		assertEquals(NANOS_PER_TOKEN / 2, bucket.tryTake(now,
+				NANOS_PER_TOKEN, NANOS_FOR_FULL_BUCKET));
+
+		// Once a token's worth of time has passed one more is allowed
+		now = START + NANOS_PER_TOKEN;
+		assertEquals(0, bucket.tryTake(now, NANOS_PER_TOKEN,
+				NANOS_FOR_FULL_BUCKET));
+		assertTrue(bucket.tryTake(now, NANOS_PER_TOKEN,
+				NANOS_FOR_FULL_BUCKET) > 0);
+
+		// Steady rate of one request per token time is always allowed
+		for (int i = 2; i < 100; ++i) {
+			now = START + i * NANOS_PER_TOKEN;
+			assertEquals(0, bucket.tryTake(now, NANOS_PER_TOKEN,
+					NANOS_FOR_FULL_BUCKET));
+		}
+	}
+
+	public void testIdleBucketBecomesFull() {
+		TokenBucket bucket = new TokenBucket(START);
+		assertTrue(bucket.isFull(START));
+
+		bucket.tryTake(START, NANOS_PER_TOKEN, NANOS_FOR_FULL_BUCKET);
+		assertFalse(bucket.isFull(START));
+		assertFalse(bucket.isFull(START + NANOS_PER_TOKEN - 1));
+		assertTrue(bucket.isFull(START + NANOS_PER_TOKEN));
+
+		// After being idle a long time only a full bucket's worth of
+		// requests is allowed, not more
+		long now = START + 100 * NANOS_FOR_FULL_BUCKET;
+		for (int i = 0; i < 10; ++i)
+			assertEquals(0, bucket.tryTake(now, NANOS_PER_TOKEN,
+					NANOS_FOR_FULL_BUCKET));
+		assertTrue(bucket.tryTake(now, NANOS_PER_TOKEN,
+				NANOS_FOR_FULL_BUCKET) > 0);
+	}
+
+	public void testConcurrentRequestsDontExceedCapacity() throws Exception {
+		final TokenBucket bucket = new TokenBucket(START);
+		final int numThreads = 8;
+		final int[] taken = new int[numThreads];
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; ++t) {
+			final int threadIndex = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 1000; ++i) {
+						if (bucket.tryTake(START, NANOS_PER_TOKEN,
+								NANOS_FOR_FULL_BUCKET) == 0)
+							++taken[threadIndex];
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		int total = 0;
+		for (int t = 0; t < numThreads; ++t) {
+			threads[t].join();
+			total += taken[t];
+		}
+		assertEquals(10, total);
+	}
+}
@@ -16,6 +16,12 @@
  */
 package org.transitime.reports;
 
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
 /**
  * Does a query of AVL data and returns result in JSON format.
  * 
@@ -24,7 +30,7 @@ package org.transitime.reports;
  */
 public class AvlJsonQuery {
 	// Maximum number of rows that can be retrieved by a query
-	private static final int MAX_ROWS = 50000;
+	public static final int MAX_ROWS = 50000;
 	
 	/**
 	 * Queries agency for AVL data and returns result as a JSON string. Limited
@@ -47,6 +53,103 @@ public class AvlJsonQuery {
 	 */
 	public static String getAvlJson(String agencyId, String vehicleId,
 			String beginDate, String numdays, String beginTime, String endTime, String routeId) {
+		String sql = getAvlSql(vehicleId, beginDate, numdays, beginTime,
+				endTime, routeId, "", MAX_ROWS);
+		
+		String json = GenericJsonQuery.getJsonString(agencyId, sql);
+
+		return json;
+
+	}
+
+	/**
+	 * Like getAvlJson() but writes the AVL data as JSON directly to the writer
+	 * as it is read from the database so that memory use is constant no
+	 * matter how much data is requested. The data can be loaded a page at a
+	 * time by using a time window and/or by limiting the number of rows and
+	 * continuing after the last vehicle and time returned. Since the data is
+	 * ordered by vehicle and then time the next page is requested by setting
+	 * afterVehicleId and afterTime to the values of the last row of the
+	 * previous page.
+	 * 
+	 * @param writer
+	 *            Where the JSON is written to
+	 * @param agencyId
+	 * @param vehicleId
+	 *            Which vehicle to get data for. Set to null or empty string to
+	 *            get data for all vehicles
+	 * @param beginDate
+	 *            date to start query
+	 * @param numdays
+	 *            of days to collect data for
+	 * @param beginTime
+	 *            optional time of day during the date range
+	 * @param endTime
+	 *            optional time of day during the date range
+	 * @param routeId
+	 * @param windowBegin
+	 *            optional, only AVL reports at or after this time
+	 * @param windowEnd
+	 *            optional, only AVL reports before this time
+	 * @param afterVehicleId
+	 *            optional, for continuing after the last row of the previous
+	 *            page. Must be used with afterTime.
+	 * @param afterTime
+	 *            optional, for continuing after the last row of the previous
+	 *            page
+	 * @param maxRows
+	 *            Maximum number of rows to return. Since this can come from
+	 *            the client it is capped at MAX_ROWS, and a value of 0 or
+	 *            less also means MAX_ROWS.
+	 * @throws SQLException
+	 */
+	public static void writeAvlJson(Writer writer, String agencyId,
+			String vehicleId, String beginDate, String numdays,
+			String beginTime, String endTime, String routeId,
+			Date windowBegin, Date windowEnd, String afterVehicleId,
+			Date afterTime, int maxRows) throws SQLException {
+		// Don't let client request an unlimited number of rows
+		if (maxRows <= 0 || maxRows > MAX_ROWS)
+			maxRows = MAX_ROWS;
+
+		// Determine the paging portion of the SQL. Uses parameters instead
+		// of putting the values into the SQL string.
+		String pagingSql = "";
+		List<Object> parameters = new ArrayList<Object>();
+		if (windowBegin != null) {
+			pagingSql += " AND a.time >= ? ";
+			parameters.add(windowBegin);
+		}
+		if (windowEnd != null) {
+			pagingSql += " AND a.time < ? ";
+			parameters.add(windowEnd);
+		}
+		if (afterVehicleId != null && !afterVehicleId.isEmpty()
+				&& afterTime != null) {
+			pagingSql += " AND (a.vehicleId > ? "
+					+ "OR (a.vehicleId = ? AND a.time > ?)) ";
+			parameters.add(afterVehicleId);
+			parameters.add(afterVehicleId);
+			parameters.add(afterTime);
+		}
+
+		String sql = getAvlSql(vehicleId, beginDate, numdays, beginTime,
+				endTime, routeId, pagingSql, maxRows);
+
+		GenericJsonQuery.writeJson(agencyId, writer, sql, parameters.toArray());
+	}
+
+	/**
+	 * Returns the SQL for getAvlJson() and writeAvlJson().
+	 * 
+	 * @param pagingSql
+	 *            Additional conditions, such as for paging
+	 * @param maxRows
+	 *            Maximum number of rows to return. 0 means no limit.
+	 */
+	private static String getAvlSql(String vehicleId, String beginDate,
+			String numdays, String beginTime, String endTime, String routeId,
+			String pagingSql, int maxRows) {
 		//Determine the time portion of the SQL
 		String timeSql = "";
 		// If beginTime or endTime set but not both then use default values
@@ -74,7 +177,8 @@ public class AvlJsonQuery {
 				+ "ON v.vehicleId=a.vehicleId and v.avlTime=a.time "
 				+ "WHERE a.time BETWEEN '" + beginDate + "' "
 				+ "AND TIMESTAMPADD(DAY," + numdays + ",'" + beginDate + "') "
-				+ timeSql;
+				+ timeSql
+				+ pagingSql;
 
 		// If only want data for single vehicle then specify so in SQL
 		if (vehicleId != null && !vehicleId.isEmpty())
@@ -88,12 +192,11 @@ public class AvlJsonQuery {
 		// to order by time to make sure they are in proper order. And
 		// lastly, limit AVL reports to 5000 so that someone doesn't try
 		// to view too much data at once.
-		sql += "ORDER BY a.vehicleId, a.time LIMIT " + MAX_ROWS;
+		sql += "ORDER BY a.vehicleId, a.time";
+		if (maxRows > 0)
+			sql += " LIMIT " + maxRows;
 		
-		String json = GenericJsonQuery.getJsonString(agencyId, sql);
-
-		return json;
-
+		return sql;
 	}
 
 	/**
@@ -90,8 +90,11 @@ public class ChartGenericJsonQuery extends GenericQuery {
 	public static String getJsonString(String agencyId, String sql, Date... parameters) 
 			throws SQLException {
 		ChartGenericJsonQuery query = new ChartGenericJsonQuery(agencyId);
-						
-		query.doQuery(sql, (Object[]) parameters);
+		try {
+			query.doQuery(sql, (Object[]) parameters);
+		} finally {
+			query.close();
+		}
 		// If query returns empty set then should return null!
 		if (query.getNumberOfRows() != 0)			
 			return query.jsonBuilder.getJson();
@@ -16,6 +16,9 @@
  */
 package org.transitime.reports;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
@@ -29,16 +32,26 @@ public class GenericJsonQuery extends GenericQuery {
 
 	private static final Logger logger = LoggerFactory
 			.getLogger(GenericJsonQuery.class);
-	private StringBuilder strBuilder = new StringBuilder();
+	// Where the JSON is written to. A PrintWriter so that the rows can be
+	// written directly to a servlet response as they are read in.
+	private final PrintWriter jsonWriter;
 	private List<String> columnNames = new ArrayList<String>();
 	private boolean firstRow = true;
 	
+	// Number of rows to read from the db at a time when streaming results
+	private static final int STREAMING_FETCH_SIZE = 1000;
+	
 	/**
 	 * @param agencyId
+	 * @param writer
+	 *            Where the JSON is to be written
 	 * @throws SQLException
 	 */
-	private GenericJsonQuery(String agencyId) throws SQLException {
+	private GenericJsonQuery(String agencyId, Writer writer)
+			throws SQLException {
 		super(agencyId);
+		jsonWriter = writer instanceof PrintWriter ? (PrintWriter) writer
+				: new PrintWriter(writer);
 	}
 
 	/* (non-Javadoc)
@@ -51,19 +64,19 @@ public class GenericJsonQuery extends GenericQuery {
 	}
 
 	private void addRowElement(int i, double value) {
-		strBuilder.append(value);
+		jsonWriter.print(value);
 	}
 	
 	private void addRowElement(int i, long value) {
-		strBuilder.append(value);
+		jsonWriter.print(value);
 	}
 	
 	private void addRowElement(int i, String value) {
-		strBuilder.append("\"").append(value).append("\"");
+		jsonWriter.append("\"").append(value).append("\"");
 	}
 	
 	private void addRowElement(int i, Timestamp value) {
-		strBuilder.append("\"").append(value).append("\"");
+		jsonWriter.append("\"").append(String.valueOf(value)).append("\"");
 	}
 	
 	/* (non-Javadoc)
@@ -72,10 +85,10 @@ public class GenericJsonQuery extends GenericQuery {
 	@Override
 	protected void addRow(List<Object> values) {
 		if (!firstRow)			
-			strBuilder.append(",\n");
+			jsonWriter.append(",\n");
 		firstRow = false;
 		
-		strBuilder.append('{');
+		jsonWriter.append('{');
 		
 		// Add each cell in the row
 		boolean firstElementInRow = true;
@@ -86,11 +99,11 @@ public class GenericJsonQuery extends GenericQuery {
 				continue;
 			
 			if (!firstElementInRow)
-				strBuilder.append(",");
+				jsonWriter.append(",");
 			firstElementInRow = false;
 			
 			// Output name of attribute
-			strBuilder.append("\"").append(columnNames.get(i)).append("\":");
+			jsonWriter.append("\"").append(columnNames.get(i)).append("\":");
 			
 			// Output value of attribute
 			if (o instanceof Double || o instanceof Float) {
@@ -104,7 +117,7 @@ public class GenericJsonQuery extends GenericQuery {
 			}
 		}
 		
-		strBuilder.append('}');
+		jsonWriter.append('}');
 	}
 	/**
 	 * Does SQL query and returns JSON formatted results.
@@ -117,17 +130,22 @@ public class GenericJsonQuery extends GenericQuery {
 	public static String getJsonString(String agencyId, String sql, Object...parameters) {
 		// Add the rows from the query to the JSON string
 		try {
-			GenericJsonQuery query = new GenericJsonQuery(agencyId);
-			
-			// Start the JSON
-			query.strBuilder.append("{\"data\": [\n");
+			StringWriter stringWriter = new StringWriter();
+			GenericJsonQuery query = new GenericJsonQuery(agencyId, stringWriter);
+			try {
+				// Start the JSON
+				query.jsonWriter.append("{\"data\": [\n");
 
-			query.doQuery(sql, parameters);
+				query.doQuery(sql, parameters);
 
-			// Finish up the JSON
-			query.strBuilder.append("]}");
+				// Finish up the JSON
+				query.jsonWriter.append("]}");
+				query.jsonWriter.flush();
+			} finally {
+				query.close();
+			}
 						
-			return query.strBuilder.toString();
+			return stringWriter.toString();
 		} catch (SQLException e) {
 			return e.getMessage();
 		}
@@ -143,23 +161,62 @@ public class GenericJsonQuery extends GenericQuery {
 	public static String getJsonString(String agencyId, String sql) {
 		// Add the rows from the query to the JSON string
 		try {
-			GenericJsonQuery query = new GenericJsonQuery(agencyId);
-			
-			// Start the JSON
-			query.strBuilder.append("{\"data\": [\n");
-			logger.debug("sql=" + sql);
-
-			query.doQuery(sql);
+			StringWriter stringWriter = new StringWriter();
+			GenericJsonQuery query = new GenericJsonQuery(agencyId, stringWriter);
+			try {
+				// Start the JSON
+				query.jsonWriter.append("{\"data\": [\n");
+				logger.debug("sql=" + sql);
 
-			// Finish up the JSON
-			query.strBuilder.append("]}");
+				query.doQuery(sql);
+
+				// Finish up the JSON
+				query.jsonWriter.append("]}");
+				query.jsonWriter.flush();
+			} finally {
+				query.close();
+			}
 						
-			return query.strBuilder.toString();
+			return stringWriter.toString();
 		} catch (SQLException e) {
 			return e.getMessage();
 		}
 	}
 
+	/**
+	 * Does SQL query and writes the JSON formatted results to the writer as
+	 * the rows are read from the database. Unlike getJsonString() the whole
+	 * result is never held in memory so can be used for queries that return
+	 * a huge number of rows.
+	 * 
+	 * @param agencyId
+	 * @param writer
+	 *            Where to write the JSON, such as the servlet response writer
+	 * @param sql
+	 * @param parameters
+	 *            Parameters for the SQL
+	 * @throws SQLException
+	 */
+	public static void writeJson(String agencyId, Writer writer, String sql,
+			Object... parameters) throws SQLException {
+		GenericJsonQuery query = new GenericJsonQuery(agencyId, writer);
+		try {
+			query.setFetchSize(STREAMING_FETCH_SIZE);
+
+			// Start the JSON
+			query.jsonWriter.append("{\"data\": [\n");
+			logger.debug("sql=" + sql);
+
+			query.doQuery(sql, parameters);
+
+			// Finish up the JSON
+			query.jsonWriter.append("]}");
+			query.jsonWriter.flush();
+		} finally {
+			query.close();
+		}
+	}
+
 	public static void main(String[] args) {
 		String agencyId = "sfmta";
 		
@@ -19,13 +19,11 @@ package org.transitime.reports;
 
 import java.sql.SQLException;
 import java.text.ParseException;
-import java.util.Collections;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.reports.ChartJsonBuilder.RowBuilder;
-import org.transitime.statistics.Statistics;
 
 /**
  * For doing SQL query and generating JSON data for a prediction accuracy
@@ -73,8 +71,8 @@ public class PredAccuracyIntervalQuery extends PredictionAccuracyQuery {
 	}
 
 	/**
-	 * Goes through data array (must already be sorted!) and determines the
-	 * index of the array that corresponds to the minimum element. For example,
+	 * Goes through the prediction bucket data and determines the
+	 * sorted index that corresponds to the minimum element. For example,
 	 * if the fraction is specified as 0.70 which means that want to know the
 	 * minimum value such that 70% of the predictions are between the min and
 	 * the max, then will return the index for the item whose index is at
@@ -87,19 +85,19 @@ public class PredAccuracyIntervalQuery extends PredictionAccuracyQuery {
 	 *            should be between the min and the max
 	 * @return Value of the desired element or null if fraction not valid
 	 */
-	private Long getMin(List<Integer> data, double percentage) {
+	private Long getMin(PredictionBucket data, double percentage) {
 		if (percentage == 0.0 || Double.isNaN(percentage))
 			return null;
 
 		double fraction = percentage / 100.0;
 
 		int index = (int) (data.size() * (1 - fraction) / 2);
-		return (long) data.get(index);
+		return (long) data.getSorted(index);
 	}
 
 	/**
-	 * Goes through data array (must already be sorted!) and determines the
-	 * index of the array that corresponds to the maximum element. For example,
+	 * Goes through the prediction bucket data and determines the
+	 * sorted index that corresponds to the maximum element. For example,
 	 * if the fraction is specified as 0.70 which means that want to know the
 	 * minimum value such that 70% of the predictions are between the min and
 	 * the max, then will return the index for the item whose index is at 85% in
@@ -112,16 +110,16 @@ public class PredAccuracyIntervalQuery extends PredictionAccuracyQuery {
 	 *            should be between the min and the max
 	 * @return Value of the desired element or null if fraction not valid
 	 */
-	private Long getMax(List<Integer> data, double percentage) {
+	private Long getMax(PredictionBucket data, double percentage) {
 		if (percentage == 0.0 || Double.isNaN(percentage))
 			return null;
 		if (percentage == 100.0)
-			return (long) data.get(data.size() - 1);
+			return (long) data.getSorted(data.size() - 1);
 		
 		double fraction = percentage / 100.0;
 
 		int index = (int) (data.size() * (fraction + (1 - fraction) / 2));
-		return (long) data.get(index);
+		return (long) data.getSorted(index);
 	}
 
 	/**
@@ -199,21 +197,16 @@ public class PredAccuracyIntervalQuery extends PredictionAccuracyQuery {
 			// Add prediction mean and intervals data for each source
 			for (String source : map.keySet()) {
 				// Determine mean and standard deviation for this source
-				List<List<Integer>> dataForSource = map.get(source);
-				List<Integer> listForPredBucket = null;
+				List<PredictionBucket> dataForSource = map.get(source);
+				PredictionBucket predBucket = null;
 				if (dataForSource != null
 						&& dataForSource.size() > predBucketIdx)
-					listForPredBucket = dataForSource.get(predBucketIdx);
-
-				// Sort the prediction accuracy data so that can call
-				// getMin() and getMax() using necessary sort list.
-				if (listForPredBucket != null)
-					Collections.sort(listForPredBucket);
+					predBucket = dataForSource.get(predBucketIdx);
 
 				// Log some info for debugging
 				logger.info("For source {} for prediction bucket minute {} "
-						+ "sorted datapoints={}", source, predBucketSecs,
-						listForPredBucket);
+						+ "datapoints={}", source, predBucketSecs,
+						predBucket);
 
 				// If there is enough data then handle stats for this prediction
 				// bucket. If there are fewer than
@@ -222,18 +215,15 @@ public class PredAccuracyIntervalQuery extends PredictionAccuracyQuery {
 				// based min and max intervals would not be valid either. This
 				// would cause an unsightly and inappropriate necking of data
 				// for this bucket.
-				if (listForPredBucket != null
-						&& listForPredBucket.size() >= MIN_DATA_POINTS_PER_PRED_BUCKET) {
+				if (predBucket != null
+						&& predBucket.size() >= MIN_DATA_POINTS_PER_PRED_BUCKET) {
 					// Determine the mean
-					double dataForPredBucket[] = Statistics
-							.toDoubleArray(listForPredBucket);
-					double mean = Statistics.mean(dataForPredBucket);
+					double mean = predBucket.mean();
 
 					// Determine the standard deviation and handle special case
 					// of when there is only a single data point such that the
 					// standard deviation is NaN.
-					double stdDev = Statistics.getSampleStandardDeviation(
-							dataForPredBucket, mean);
+					double stdDev = predBucket.sampleStandardDeviation();
 					if (Double.isNaN(stdDev))
 						stdDev = 0.0;
 
@@ -246,9 +236,9 @@ public class PredAccuracyIntervalQuery extends PredictionAccuracyQuery {
 					Long intervalMin;
 					Long intervalMax;
 					if (intervalsType == IntervalsType.PERCENTAGE) {
-						intervalMin = getMin(listForPredBucket,
+						intervalMin = getMin(predBucket,
 								intervalPercentage1);
-						intervalMax = getMax(listForPredBucket,
+						intervalMax = getMax(predBucket,
 								intervalPercentage1);
 					} else {
 						// Use single standard deviation
@@ -269,16 +259,16 @@ public class PredAccuracyIntervalQuery extends PredictionAccuracyQuery {
 								|| Double.isNaN(intervalPercentage2))
 							continue;
 
-						intervalMin = getMin(listForPredBucket,
+						intervalMin = getMin(predBucket,
 								intervalPercentage2);
-						intervalMax = getMax(listForPredBucket,
+						intervalMax = getMax(predBucket,
 								intervalPercentage2);
 					} else if (intervalsType == IntervalsType.BOTH) {
 						// Use percentage but since also displaying results
 						// for a single deviation use a fraction that
 						// corresponds, which is 0.68.
-						intervalMin = getMin(listForPredBucket, 0.68);
-						intervalMax = getMax(listForPredBucket, 0.68);
+						intervalMin = getMin(predBucket, 0.68);
+						intervalMax = getMax(predBucket, 0.68);
 					} else {
 						// Using standard deviation for second interval. Use
 						// 1.5 standard deviations, which corresponds to 86.6%
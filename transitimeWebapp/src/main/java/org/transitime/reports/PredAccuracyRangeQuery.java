@@ -111,7 +111,7 @@ public class PredAccuracyRangeQuery extends PredictionAccuracyQuery {
 		}
 
 		// Only dealing with a single source so get data for that source
-		List<List<Integer>> dataForSource = null;
+		List<PredictionBucket> dataForSource = null;
 		for (String source : map.keySet()) {
 			dataForSource = map.get(source);
 		}
@@ -123,29 +123,24 @@ public class PredAccuracyRangeQuery extends PredictionAccuracyQuery {
 			double predBucketSecs = predBucketIdx
 					* PREDICTION_LENGTH_BUCKET_SIZE / 60.0;
 
-			List<Integer> listForPredBucket = null;
+			PredictionBucket predBucket = null;
 			if (dataForSource != null && dataForSource.size() > predBucketIdx) {
-				listForPredBucket = dataForSource.get(predBucketIdx);
-
-				// For this prediction bucket track whether prediction below
-				// min,
-				// between min and max, and above max.
-				int tooEarly = 0, ok = 0, tooLate = 0;
-				for (int accuracyInSecs : listForPredBucket) {
-					if (accuracyInSecs < -maxEarlySec)
-						++tooEarly;
-					else if (accuracyInSecs < maxLateSec)
-						++ok;
-					else
-						++tooLate;
-				}
+				predBucket = dataForSource.get(predBucketIdx);
 
 				// If no data for this prediction bucket then continue to next
 				// one
-				int numPreds = listForPredBucket.size();
+				int numPreds = predBucket.size();
 				if (numPreds == 0)
 					continue;
 
+				// For this prediction bucket determine whether prediction below
+				// min,
+				// between min and max, and above max.
+				int tooEarly = predBucket.countLessThan(-maxEarlySec);
+				int ok = Math.max(0,
+						predBucket.countLessThan(maxLateSec) - tooEarly);
+				int tooLate = numPreds - tooEarly - ok;
+
 				double tooEarlyPercentage = 100.0 * tooEarly / numPreds;
 				double okPercentage = 100.0 * ok / numPreds;
 				double tooLatePercentage = 100.0 * tooLate / numPreds;
@@ -27,10 +27,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitime.db.GenericQuery;
+import org.transitime.db.structs.PredictionAccuracyRollup;
 import org.transitime.db.webstructs.WebAgency;
 import org.transitime.utils.Time;
 
@@ -55,11 +58,128 @@ abstract public class PredictionAccuracyQuery {
 
 	// Keyed on source (so can show data for multiple sources at
 	// once in order to compare prediction accuracy. Contains a array,
-	// with an element for each prediction bucket, containing an array
-	// of the prediction accuracy values in seconds for that bucket. Each bucket
+	// with an element for each prediction bucket, containing the
+	// prediction accuracy data in seconds for that bucket. Each bucket
 	// is for
 	// a certain prediction range, specified by predictionLengthBucketSize.
-	protected final Map<String, List<List<Integer>>> map = new HashMap<String, List<List<Integer>>>();
+	protected final Map<String, List<PredictionBucket>> map = new HashMap<String, List<PredictionBucket>>();
+
+	/**
+	 * The prediction accuracy data for a prediction length bucket. Instead of
+	 * a value per prediction it contains the count, sum, and sum of squares
+	 * plus a histogram of the prediction accuracies in seconds. This way the
+	 * PredictionAccuracyRollup rows can simply be merged in, and the mean,
+	 * standard deviation, and percentiles can be determined without having
+	 * to process each individual prediction.
+	 */
+	protected static class PredictionBucket {
+		private int count = 0;
+		private long sum = 0;
+		private double sumSquares = 0.0;
+
+		// Number of predictions for each prediction accuracy in seconds
+		private final SortedMap<Integer, Integer> histogram =
+				new TreeMap<Integer, Integer>();
+
+		/**
+		 * Adds the prediction accuracy of a single prediction
+		 * 
+		 * @param predAccuracy
+		 */
+		private void add(int predAccuracy) {
+			++count;
+			sum += predAccuracy;
+			sumSquares += (double) predAccuracy * predAccuracy;
+			addToHistogram(predAccuracy, 1);
+		}
+
+		/**
+		 * Adds the data from a PredictionAccuracyRollup row
+		 * 
+		 * @param rowCount
+		 * @param rowSum
+		 * @param rowSumSquares
+		 * @param rowHistogram
+		 */
+		private void add(int rowCount, long rowSum, double rowSumSquares,
+				SortedMap<Integer, Integer> rowHistogram) {
+			count += rowCount;
+			sum += rowSum;
+			sumSquares += rowSumSquares;
+			for (Map.Entry<Integer, Integer> entry : rowHistogram.entrySet())
+				addToHistogram(entry.getKey(), entry.getValue());
+		}
+
+		private void addToHistogram(int predAccuracy, int numPreds) {
+			Integer previous = histogram.get(predAccuracy);
+			histogram.put(predAccuracy,
+					previous == null ? numPreds : previous + numPreds);
+		}
+
+		/**
+		 * @return number of predictions in the bucket
+		 */
+		public int size() {
+			return count;
+		}
+
+		public double mean() {
+			return (double) sum / count;
+		}
+
+		/**
+		 * Same as Statistics.getSampleStandardDeviation() but determined from
+		 * the sum and the sum of squares.
+		 * 
+		 * @return the standard deviation, or NaN if fewer than 2 predictions
+		 */
+		public double sampleStandardDeviation() {
+			if (count < 2)
+				return Double.NaN;
+			double variance = (sumSquares - (double) sum * sum / count)
+					/ (count - 1);
+			// Rounding can make the variance slightly negative
+			return Math.sqrt(Math.max(0.0, variance));
+		}
+
+		/**
+		 * Returns the prediction accuracy that would be at the specified index
+		 * if all the prediction accuracies of the bucket were in a sorted
+		 * list.
+		 * 
+		 * @param index
+		 *            0 to size()-1
+		 * @return the prediction accuracy in seconds
+		 */
+		public int getSorted(int index) {
+			int numBefore = 0;
+			for (Map.Entry<Integer, Integer> entry : histogram.entrySet()) {
+				numBefore += entry.getValue();
+				if (index < numBefore)
+					return entry.getKey();
+			}
+			throw new IndexOutOfBoundsException("Index " + index
+					+ " for size " + count);
+		}
+
+		/**
+		 * @param predAccuracy
+		 * @return number of predictions with prediction accuracy less than
+		 *         the specified value
+		 */
+		public int countLessThan(int predAccuracy) {
+			int num = 0;
+			for (int value : histogram.headMap(predAccuracy).values())
+				num += value;
+			return num;
+		}
+
+		@Override
+		public String toString() {
+			return "PredictionBucket [count=" + count + ", histogram="
+					+ PredictionAccuracyRollup.encodeHistogram(histogram) + "]";
+		}
+	}
 
 	// Defines the output type for the intervals, whether should show
 	// standard deviation, percentage, or both.
@@ -165,23 +285,14 @@ abstract public class PredictionAccuracyQuery {
 	 * @param source
 	 */
 	private void addDataToMap(int predLength, int predAccuracy, String source) {
-		// Get the prediction buckets for the specified source
-		List<List<Integer>> predictionBuckets = map.get(source);
-		if (predictionBuckets == null) {
-			predictionBuckets = new ArrayList<List<Integer>>();
-			map.put(source, predictionBuckets);
-		}
-
 		// Determine the index of the appropriate prediction bucket
 		int predictionBucketIndex = index(predLength);
-		while (predictionBuckets.size() < predictionBucketIndex + 1)
-			predictionBuckets.add(new ArrayList<Integer>());
+		PredictionBucket predictionBucket =
+				getPredictionBucket(source, predictionBucketIndex);
 			
-		if (predictionBucketIndex < predictionBuckets.size() && predictionBucketIndex >= 0) {
-		  List<Integer> predictionAccuracies = predictionBuckets
-		      .get(predictionBucketIndex);
+		if (predictionBucket != null) {
 	    	// Add the prediction accuracy to the bucket.
-	    	predictionAccuracies.add(predAccuracy);
+	    	predictionBucket.add(predAccuracy);
 		} else {
 		  // some prediction streams supply predictions in the past -- ignore those
 		  logger.error("predictionLength {} has illegal index {} for predAccuracy {} and source {}", 
@@ -190,6 +301,148 @@ abstract public class PredictionAccuracyQuery {
 
 	}
 
+	/**
+	 * Merges the data from a PredictionAccuracyRollup row into the map. Uses
+	 * the stored count, sum, and sum of squares and merges the histogram so
+	 * that the cost doesn't depend on the number of predictions summarized
+	 * by the row.
+	 * 
+	 * @param predictionBucketIndex
+	 * @param numPredictions
+	 * @param sumAccuracySecs
+	 * @param sumSquaresAccuracySecs
+	 * @param encodedHistogram
+	 * @param source
+	 */
+	private void addRollupToMap(int predictionBucketIndex, int numPredictions,
+			long sumAccuracySecs, double sumSquaresAccuracySecs,
+			String encodedHistogram, String source) {
+		PredictionBucket predictionBucket =
+				getPredictionBucket(source, predictionBucketIndex);
+		if (predictionBucket == null) {
+			logger.error("Illegal prediction bucket index {} for source {}",
+					predictionBucketIndex, source);
+			return;
+		}
+
+		predictionBucket.add(numPredictions, sumAccuracySecs,
+				sumSquaresAccuracySecs,
+				PredictionAccuracyRollup.decodeHistogram(encodedHistogram));
+	}
+
+	/**
+	 * Returns the prediction accuracy data for the specified source and
+	 * prediction bucket, creating it if needed.
+	 * 
+	 * @param source
+	 * @param predictionBucketIndex
+	 * @return the prediction bucket, or null if the index is not valid
+	 */
+	private PredictionBucket getPredictionBucket(String source,
+			int predictionBucketIndex) {
+		if (predictionBucketIndex < 0)
+			return null;
+
+		// Get the prediction buckets for the specified source
+		List<PredictionBucket> predictionBuckets = map.get(source);
+		if (predictionBuckets == null) {
+			predictionBuckets = new ArrayList<PredictionBucket>();
+			map.put(source, predictionBuckets);
+		}
+
+		while (predictionBuckets.size() < predictionBucketIndex + 1)
+			predictionBuckets.add(new PredictionBucket());
+		return predictionBuckets.get(predictionBucketIndex);
+	}
+
+	/**
+	 * Determines route portion of SQL. Need to examine each route ID twice
+	 * since doing a routeId='stableId' OR routeShortName='stableId' in order
+	 * to handle agencies where GTFS route_id is not stable but the GTFS
+	 * route_short_name is.
+	 * 
+	 * @param routeIds
+	 * @return the SQL, or empty string if not querying for particular routes
+	 */
+	private static String getRouteSql(String routeIds[]) {
+		String routeSql = "";
+		if (routeIds != null && routeIds.length > 0 && !routeIds[0].trim().isEmpty()) {
+			routeSql = " AND (routeId=? OR routeShortName=?";
+			for (int i = 1; i < routeIds.length; ++i)
+				routeSql += " OR routeId=? OR routeShortName=?";
+			routeSql += ")";
+		}
+		return routeSql;
+	}
+
+	/**
+	 * Determines the source portion of the SQL. Default is to provide
+	 * predictions for all sources
+	 * 
+	 * @param predSource
+	 * @return the SQL, or empty string if for all sources
+	 */
+	private static String getSourceSql(String predSource) {
+		String sourceSql = "";
+		if (predSource != null && !predSource.isEmpty()) {
+			if (predSource.equals("Transitime")) {
+				// Only "Transitime" predictions
+				sourceSql = " AND predictionSource='Transitime'";
+			} else {
+				// Anything but "Transitime"
+				sourceSql = " AND predictionSource<>'Transitime'";
+			}
+		}
+		return sourceSql;
+	}
+
+	/**
+	 * Determines SQL for prediction type. Can be "" (for all),
+	 * "AffectedByWaitStop", or "NotAffectedByWaitStop".
+	 * 
+	 * @param predType
+	 * @return the SQL, or empty string if for all prediction types
+	 */
+	private static String getPredTypeSql(String predType) {
+		String predTypeSql = "";
+		if (predType != null && !predType.isEmpty()) {
+			if (predType.equals("AffectedByWaitStop")) {
+				// Only "AffectedByLayover" predictions
+				predTypeSql = " AND affectedByWaitStop = true ";
+			} else {
+				// Only "NotAffectedByLayover" predictions
+				predTypeSql = " AND affectedByWaitStop = false ";
+			}
+		}
+		return predTypeSql;
+	}
+
+	/**
+	 * Sets the route parameters for the SQL created by getRouteSql().
+	 * 
+	 * @param statement
+	 * @param i
+	 *            Index of the first route parameter
+	 * @param routeIds
+	 * @return index of the next parameter
+	 * @throws SQLException
+	 */
+	private static int setRouteParams(PreparedStatement statement, int i,
+			String routeIds[]) throws SQLException {
+		if (routeIds != null) {
+			for (String routeId : routeIds)
+				if (!routeId.trim().isEmpty()) {
+					// Need to add the route ID twice since doing a
+					// routeId='stableId' OR routeShortName='stableId' in
+					// order to handle agencies where GTFS route_id is not
+					// stable but the GTFS route_short_name is.
+					statement.setString(i++, routeId);
+					statement.setString(i++, routeId);
+				}
+		}
+		return i;
+	}
+
 	/**
 	 * Performs the SQL query and puts the resulting data into the map.
 	 * 
@@ -233,6 +486,14 @@ abstract public class PredictionAccuracyQuery {
 					+ " startDate=" + Time.parseDate(beginDateStr)
 					+ " Number of days of " + numDays + " spans more than a month", 0);
 		}
+
+		// If configured to use the much smaller rollup table then do so
+		if (ReportsConfig.isUsePredAccuracyRollups()) {
+			doRollupQuery(beginDateStr, numDays, beginTimeStr, endTimeStr,
+					routeIds, predSource, predType);
+			return;
+		}
+
 		String timeSql = "";
 		String mySqlTimeSql = "";
 		if ((beginTimeStr != null && !beginTimeStr.isEmpty())
@@ -255,44 +516,9 @@ abstract public class PredictionAccuracyQuery {
 
 		}
 
-		// Determine route portion of SQL
-		// Need to examine each route ID twice since doing a
-		// routeId='stableId' OR routeShortName='stableId' in
-		// order to handle agencies where GTFS route_id is not
-		// stable but the GTFS route_short_name is.
-		String routeSql = "";
-		if (routeIds != null && routeIds.length > 0 && !routeIds[0].trim().isEmpty()) {
-			routeSql = " AND (routeId=? OR routeShortName=?";
-			for (int i = 1; i < routeIds.length; ++i)
-				routeSql += " OR routeId=? OR routeShortName=?";
-			routeSql += ")";
-		}
-
-		// Determine the source portion of the SQL. Default is to provide
-		// predictions for all sources
-		String sourceSql = "";
-		if (predSource != null && !predSource.isEmpty()) {
-			if (predSource.equals("Transitime")) {
-				// Only "Transitime" predictions
-				sourceSql = " AND predictionSource='Transitime'";
-			} else {
-				// Anything but "Transitime"
-				sourceSql = " AND predictionSource<>'Transitime'";
-			}
-		}
-
-		// Determine SQL for prediction type. Can be "" (for
-		// all), "AffectedByWaitStop", or "NotAffectedByWaitStop".
-		String predTypeSql = "";
-		if (predType != null && !predType.isEmpty()) {
-			if (predSource.equals("AffectedByWaitStop")) {
-				// Only "AffectedByLayover" predictions
-				predTypeSql = " AND affectedByWaitStop = true ";
-			} else {
-				// Only "NotAffectedByLayover" predictions
-				predTypeSql = " AND affectedByWaitStop = false ";
-			}
-		}
+		String routeSql = getRouteSql(routeIds);
+		String sourceSql = getSourceSql(predSource);
+		String predTypeSql = getPredTypeSql(predType);
 		// TODO generate database independent SQL if possible!
 		// Put the entire SQL query together
 		String postSql = "SELECT "
@@ -399,17 +625,7 @@ abstract public class PredictionAccuracyQuery {
 			    statement.setTime(i++, endTime);
 			  }
 			}
-			if (routeIds != null) {
-				for (String routeId : routeIds)
-					if (!routeId.trim().isEmpty()) {
-						// Need to add the route ID twice since doing a
-						// routeId='stableId' OR routeShortName='stableId' in
-						// order to handle agencies where GTFS route_id is not
-						// stable but the GTFS route_short_name is.
-						statement.setString(i++, routeId);
-						statement.setString(i++, routeId);
-					}
-			}
+			setRouteParams(statement, i, routeIds);
 
 			// Actually execute the query
 			ResultSet rs = statement.executeQuery();
@@ -432,4 +648,92 @@ abstract public class PredictionAccuracyQuery {
 		}
 	}
 
+	/**
+	 * Like doQuery() but reads the PredictionAccuracyRollup table instead of
+	 * the PredictionAccuracy table. Since the rollups are by hour the time of
+	 * day range is extended to include the whole hour that the begin time is
+	 * in.
+	 * 
+	 * @throws SQLException
+	 * @throws ParseException
+	 */
+	private void doRollupQuery(String beginDateStr, int numDays,
+			String beginTimeStr, String endTimeStr, String routeIds[],
+			String predSource, String predType) throws SQLException,
+			ParseException {
+		String beginTimeOfDayStr = null;
+		String endTimeOfDayStr = null;
+		String timeSql = "";
+		if ((beginTimeStr != null && !beginTimeStr.isEmpty())
+				|| (endTimeStr != null && !endTimeStr.isEmpty())) {
+			int beginSecs = 0;
+			if (beginTimeStr != null && !beginTimeStr.isEmpty()) {
+				if (!beginTimeStr.matches("\\d+:\\d+"))
+					throw new ParseException("begin time \"" + beginTimeStr 
+							+ "\" is not valid.", 0);
+				beginSecs = Time.parseTimeOfDay(beginTimeStr);
+			}
+			int endSecs = Time.SEC_PER_DAY - 1;
+			if (endTimeStr != null && !endTimeStr.isEmpty())
+				endSecs = Time.parseTimeOfDay(endTimeStr);
+
+			beginSecs -= beginSecs % Time.SEC_PER_HOUR;
+			beginTimeOfDayStr = Time.timeOfDayStr(beginSecs);
+			endTimeOfDayStr = Time.timeOfDayStr(endSecs);
+			timeSql = " AND CAST(hourStart AS TIME) BETWEEN CAST(? AS TIME) "
+					+ "AND CAST(? AS TIME) ";
+		}
+
+		// Filter out MBTA_seconds source for mysql, same as in doQuery()
+		String mbtaSql = "mysql".equals(dbType) ? 
+				" AND predictionSource <> 'MBTA_seconds' " : "";
+
+		String sql = "SELECT "
+				+ "     predictionLengthBucket, "
+				+ "     predictionSource AS source, "
+				+ "     numPredictions, "
+				+ "     sumAccuracySecs, "
+				+ "     sumSquaresAccuracySecs, "
+				+ "     histogram "
+				+ " FROM PredictionAccuracyRollup "
+				+ "WHERE hourStart >= ? AND hourStart < ? "
+				+ timeSql
+				+ mbtaSql
+				+ getRouteSql(routeIds)
+				+ getSourceSql(predSource)
+				+ getPredTypeSql(predType);
+
+		PreparedStatement statement = null;
+		try {
+			logger.debug("SQL: {}", sql);
+			statement = connection.prepareStatement(sql);
+
+			java.util.Date beginDate = Time.parse(beginDateStr);
+			int i = 1;
+			statement.setTimestamp(i++, new Timestamp(beginDate.getTime()));
+			statement.setTimestamp(i++, new Timestamp(beginDate.getTime() 
+					+ numDays * Time.MS_PER_DAY));
+			if (beginTimeOfDayStr != null) {
+				statement.setString(i++, beginTimeOfDayStr);
+				statement.setString(i++, endTimeOfDayStr);
+			}
+			setRouteParams(statement, i, routeIds);
+
+			// Actually execute the query
+			ResultSet rs = statement.executeQuery();
+
+			// Process results of query
+			while (rs.next()) {
+				addRollupToMap(rs.getInt("predictionLengthBucket"),
+						rs.getInt("numPredictions"),
+						rs.getLong("sumAccuracySecs"),
+						rs.getDouble("sumSquaresAccuracySecs"),
+						rs.getString("histogram"), rs.getString("source"));
+			}
+		} finally {
+			if (statement != null)
+				statement.close();
+		}
+	}
+
 }
@@ -30,4 +30,30 @@ public class ReportsConfig {
 	public static boolean isShowPredictionSource() {
 		return showPredictionSource.getValue();
 	}
+
+	private static BooleanConfigValue usePredAccuracyRollups =
+			new BooleanConfigValue(
+					"transitime.reports.usePredAccuracyRollups",
+					false,
+					"Whether the prediction accuracy reports should use the "
+					+ "PredictionAccuracyRollup table written by the core "
+					+ "instead of the much larger PredictionAccuracy table. "
+					+ "Time of day ranges are then handled by the hour.");
+
+	public static boolean isUsePredAccuracyRollups() {
+		return usePredAccuracyRollups.getValue();
+	}
+
+	private static BooleanConfigValue useScheduleAdherenceCounts =
+			new BooleanConfigValue(
+					"transitime.reports.useScheduleAdherenceCounts",
+					false,
+					"Whether the schedule adherence reports should use the "
+					+ "ScheduleAdherenceCounts table written by the core "
+					+ "instead of the ArrivalsDepartures table when possible. "
+					+ "Time of day ranges are then handled by the hour.");
+
+	public static boolean isUseScheduleAdherenceCounts() {
+		return useScheduleAdherenceCounts.getValue();
+	}
 }
@@ -39,6 +39,7 @@ import org.transitime.config.BooleanConfigValue;
 import org.transitime.config.IntegerConfigValue;
 import org.transitime.db.hibernate.HibernateUtils;
 import org.transitime.db.structs.ArrivalDeparture;
+import org.transitime.db.structs.ScheduleAdherenceCounts;
 import org.transitime.utils.Time;
 
 public class ScheduleAdherenceController {
@@ -117,6 +118,23 @@ public class ScheduleAdherenceController {
 		int ontime = 0;
 		Double earlyLimit = (usePredictionLimits.getValue() ? earlyLimitParam : scheduleEarlySeconds.getValue());
 		Double lateLimit = (usePredictionLimits.getValue() ? lateLimitParam : scheduleLateSeconds.getValue());
+
+		// The counts in the ScheduleAdherenceCounts table were determined
+		// using the configured limits so can only use them if not using
+		// the limits from the request
+		if (ReportsConfig.isUseScheduleAdherenceCounts() && !usePredictionLimits.getValue()) {
+			Object[] sums = (Object[]) dbify(countsCriteria(startDate, numDays, startTime, endTime,
+					"routeId", routeIds, null).setProjection(Projections.projectionList()
+							.add(Projections.sum("numEarly"))
+							.add(Projections.sum("numOnTime"))
+							.add(Projections.sum("numLate")))).get(0);
+			early = sums[0] == null ? 0 : ((Number) sums[0]).intValue();
+			ontime = sums[1] == null ? 0 : ((Number) sums[1]).intValue();
+			late = sums[2] == null ? 0 : ((Number) sums[2]).intValue();
+			count = early + ontime + late;
+			return summary(count, early, ontime, late, earlyLimit, lateLimit);
+		}
+
 		List<Object> results = routeScheduleAdherence(startDate, numDays, startTime, endTime, routeIds, false, null);
 
 		for (Object o : results) {
@@ -131,6 +149,11 @@ public class ScheduleAdherenceController {
 				ontime++;
 			}
 		}
+		return summary(count, early, ontime, late, earlyLimit, lateLimit);
+	}
+
+	private static List<Integer> summary(int count, int early, int ontime, int late,
+			Double earlyLimit, Double lateLimit) {
 		logger.info("query complete -- earlyLimit={}, lateLimit={}, early={}, ontime={}, late={}, count={}",
 				earlyLimit, lateLimit, early, ontime, late, count);
 		double earlyPercent = (1.0 - (double)(count - early)/count) * 100;
@@ -145,6 +168,12 @@ public class ScheduleAdherenceController {
 	private static List<Object> groupScheduleAdherence(Date startDate, int numDays, String startTime, String endTime,
 			String groupName, List<String> idsOrEmpty, boolean byGroup, String datatype) {
 
+		// Averages by group can be determined from the much smaller
+		// ScheduleAdherenceCounts table
+		if (byGroup && ReportsConfig.isUseScheduleAdherenceCounts())
+			return groupScheduleAdherenceFromCounts(startDate, numDays, startTime, endTime, groupName,
+					idsOrEmpty, datatype);
+
 		// filter ids which may be empty.
 		List<String> ids = new ArrayList<String>();
 		if (idsOrEmpty != null)
@@ -187,6 +216,74 @@ public class ScheduleAdherenceController {
 
 	}
 
+	/**
+	 * Same as groupScheduleAdherence() with byGroup set but uses the
+	 * ScheduleAdherenceCounts table. The scheduleAdherence for each group is
+	 * the average in seconds, positive meaning late.
+	 */
+	private static List<Object> groupScheduleAdherenceFromCounts(Date startDate, int numDays, String startTime,
+			String endTime, String groupName, List<String> idsOrEmpty, String datatype) {
+		DetachedCriteria criteria = countsCriteria(startDate, numDays, startTime, endTime, groupName,
+				idsOrEmpty, datatype);
+		criteria.setProjection(Projections.projectionList()
+				.add(Projections.groupProperty(groupName))
+				.add(Projections.sum("numEarly"))
+				.add(Projections.sum("numOnTime"))
+				.add(Projections.sum("numLate"))
+				.add(Projections.sum("sumScheduleAdherenceMsecs")));
+
+		List<Object> results = new ArrayList<Object>();
+		for (Object o : dbify(criteria)) {
+			Object[] sums = (Object[]) o;
+			long count = ((Number) sums[1]).longValue() + ((Number) sums[2]).longValue()
+					+ ((Number) sums[3]).longValue();
+			if (count == 0)
+				continue;
+
+			HashMap<String, Object> row = new HashMap<String, Object>();
+			row.put(groupName, sums[0]);
+			row.put("count", count);
+			row.put("scheduleAdherence", ((Number) sums[4]).doubleValue() / count / Time.MS_PER_SEC);
+			results.add(row);
+		}
+		return results;
+	}
+
+	/**
+	 * Returns criteria for the ScheduleAdherenceCounts for the date range, the
+	 * hours containing the time of day range, and the specified ids. The
+	 * counts are by service date so hours past midnight of trips from the
+	 * previous service day are stored as 24 or more and are matched as well.
+	 */
+	private static DetachedCriteria countsCriteria(Date startDate, int numDays, String startTime,
+			String endTime, String groupName, List<String> idsOrEmpty, String datatype) {
+		Date endDate = new Date(startDate.getTime() + (numDays * Time.MS_PER_DAY));
+		int startHour = Time.parseTimeOfDay(startTime) / Time.SEC_PER_HOUR;
+		int endHour = Time.parseTimeOfDay(endTime) / Time.SEC_PER_HOUR;
+
+		DetachedCriteria criteria = DetachedCriteria.forClass(ScheduleAdherenceCounts.class)
+				.add(Restrictions.ge("arrivalDepartureDate", startDate))
+				.add(Restrictions.lt("arrivalDepartureDate", endDate))
+				.add(Restrictions.or(
+						Restrictions.between("hourOfDay", startHour, endHour),
+						Restrictions.between("hourOfDay", startHour + 24, endHour + 24)));
+
+		if ("arrival".equals(datatype))
+			criteria.add(Restrictions.eq("isArrival", true));
+		else if ("departure".equals(datatype))
+			criteria.add(Restrictions.eq("isArrival", false));
+
+		List<String> ids = new ArrayList<String>();
+		if (idsOrEmpty != null)
+			for (String id : idsOrEmpty)
+				if (!StringUtils.isBlank(id))
+					ids.add(id);
+		if (!ids.isEmpty())
+			criteria.add(Restrictions.in(groupName, ids));
+
+		return criteria;
+	}
+
 	 private static Date endOfDay(Date endDate) {
 		 Calendar c = Calendar.getInstance();
 		 c.setTime(endDate);
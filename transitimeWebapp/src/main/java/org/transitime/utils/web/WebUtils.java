@@ -22,12 +22,17 @@ import org.transitime.config.StringConfigValue;
 import org.transitime.db.webstructs.WebAgency;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
  *
@@ -115,6 +120,32 @@ public class WebUtils {
 	return queryStringParams;
     }
 
+    /**
+     * Sets up the response for JSON and returns a writer for it. If the client
+     * accepts gzip encoding then the response is gzipped, which is
+     * worthwhile for large responses such as AVL data. The writer must be
+     * closed when done so that the gzip data is completed.
+     * 
+     * @param request
+     * @param response
+     * @return Writer for writing the JSON response
+     * @throws IOException
+     */
+    public static Writer getJsonResponseWriter(HttpServletRequest request,
+	    HttpServletResponse response) throws IOException {
+	response.setContentType("application/json");
+	response.setCharacterEncoding("UTF-8");
+	response.setHeader("Access-Control-Allow-Origin", "*");
+
+	String acceptEncoding = request.getHeader("Accept-Encoding");
+	if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+	    response.setHeader("Content-Encoding", "gzip");
+	    return new BufferedWriter(new OutputStreamWriter(
+		    new GZIPOutputStream(response.getOutputStream()), "UTF-8"));
+	}
+	return response.getWriter();
+    }
+
     public static StringBuffer getApiRequest(String command, Map<String, String> properties) throws IOException {
     	String url = "http://" + getApiHostname() + ":" + getApiPort() +  "/api/v1/key/"
 				+ System.getProperty("transitime.apikey")
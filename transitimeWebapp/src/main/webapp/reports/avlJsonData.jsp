@@ -1,6 +1,9 @@
 <%@ page language="java" contentType="application/json; charset=UTF-8"
-    pageEncoding="UTF-8"%>
+    pageEncoding="UTF-8" trimDirectiveWhitespaces="true"%>
 <%@ page import="org.transitime.reports.AvlJsonQuery" %>
+<%@ page import="org.transitime.utils.web.WebUtils" %>
+<%@ page import="java.io.Writer" %>
+<%@ page import="java.sql.Timestamp" %>
 <%
 // Get the params
 String agencyId = request.getParameter("a");
@@ -11,11 +14,31 @@ String numDays = request.getParameter("numDays");
 String beginTime = request.getParameter("beginTime");
 String endTime = request.getParameter("endTime");
 
-// Query db and get JSON string
-String jsonString = AvlJsonQuery.getAvlJson(agencyId, vehicleId, beginDate, numDays, beginTime, endTime, routeId);
+// Optional params for loading the data a page at a time. Times are
+// of the form "yyyy-mm-dd hh:mm:ss", the same as the AVL times returned.
+String windowBeginStr = request.getParameter("windowBegin");
+String windowEndStr = request.getParameter("windowEnd");
+String afterVehicleId = request.getParameter("afterVehicleId");
+String afterTimeStr = request.getParameter("afterTime");
+String maxRowsStr = request.getParameter("maxRows");
 
-// Respond with the JSON string
-response.setContentType("application/json");
-response.setHeader("Access-Control-Allow-Origin", "*");
-response.getWriter().write(jsonString);
+Timestamp windowBegin = windowBeginStr != null && !windowBeginStr.isEmpty() ?
+		Timestamp.valueOf(windowBeginStr) : null;
+Timestamp windowEnd = windowEndStr != null && !windowEndStr.isEmpty() ?
+		Timestamp.valueOf(windowEndStr) : null;
+Timestamp afterTime = afterTimeStr != null && !afterTimeStr.isEmpty() ?
+		Timestamp.valueOf(afterTimeStr) : null;
+int maxRows = maxRowsStr != null && !maxRowsStr.isEmpty() ?
+		Integer.parseInt(maxRowsStr) : AvlJsonQuery.MAX_ROWS;
+
+// Query db and write the JSON directly to the response as the rows are
+// read so that large amounts of AVL data don't use up memory
+Writer writer = WebUtils.getJsonResponseWriter(request, response);
+try {
+	AvlJsonQuery.writeAvlJson(writer, agencyId, vehicleId, beginDate, numDays,
+			beginTime, endTime, routeId, windowBegin, windowEnd,
+			afterVehicleId, afterTime, maxRows);
+} finally {
+	writer.close();
+}
 %>